@@ -0,0 +1,49 @@
+package org.usfirst.frc.team224;
+
+import java.util.Random;
+
+/**
+ * Builds synthetic macros of any size for the benchmarks, without recording them in real time.
+ */
+final class BenchmarkMacros {
+    private BenchmarkMacros() {
+    }
+
+    /**
+     * Creates a finished macro recorded from two gamepads, with the given number of events spread evenly over 15
+     * seconds (all of them within the first 14, so playback reaches the last one before the macro ends). Most events
+     * are axis changes, like a real recording.
+     *
+     * @param events How many events the macro should have.
+     * @param seed   The seed for the events.
+     * @return The macro.
+     */
+    static Macro synthetic(int events, long seed) {
+        Random random = new Random(seed);
+        FakeJoystickSource[] sticks = FakeJoystickSource.gamepads(2, seed);
+        simulatedJoystick[] initialStates = new simulatedJoystick[sticks.length];
+        for (int i = 0; i < sticks.length; i++)
+            initialStates[i] = new simulatedJoystick(sticks[i]).update(sticks[i]);
+        Macro macro = new Macro(null, 1483228800000L, initialStates, Macro.binaryMacroFormatVersion);
+        long length = 15000000;
+        byte[] rawAxes = new byte[6];
+        for (int i = 0; i < events; i++) {
+            long offset = (length - 1000000) * i / events;
+            int stick = random.nextInt(sticks.length);
+            int kind = random.nextInt(20);
+            if (kind == 0)
+                macro.addEventMicros(random.nextBoolean() ? JoystickEvent.eventType.PRESS: JoystickEvent.eventType.RELEASE,
+                                     offset, stick, 1 + random.nextInt(12), 0);
+            else if (kind == 1)
+                macro.addEventMicros(JoystickEvent.eventType.POV, offset, stick, 0, random.nextInt(8) * 45);
+            else {
+                int axis = random.nextInt(rawAxes.length);
+                rawAxes[axis] = (byte) Math.max(-128, Math.min(127, rawAxes[axis] + random.nextInt(7) - 3));
+                macro.addEventMicros(JoystickEvent.eventType.AXIS, offset, stick, axis,
+                                     rawAxes[axis] < 0 ? rawAxes[axis] / 128.0: rawAxes[axis] / 127.0);
+            }
+        }
+        macro.finishLoadingMicros(length);
+        return macro;
+    }
+}
@@ -0,0 +1,109 @@
+package org.usfirst.frc.team224;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A joystick that moves on its own, for benchmarking without robot hardware.
+ * <p>
+ * Each {@link #step()} is one Driver Station packet: axes wander like a driver's hands, with one bit of jitter on top
+ * (which is what makes real recordings noisy), buttons are occasionally pressed and released, and the POV switch is
+ * occasionally pushed. Values are quantized the same way the Driver Station quantizes them. The same seed always
+ * produces the same sequence.
+ */
+class FakeJoystickSource implements JoystickSource {
+    private final int port;
+    private final boolean[] buttons;
+    private final double[] axes;
+    private final byte[] rawAxes;
+    private final int[] POVs;
+    private final Random random;
+
+    /**
+     * Creates a fake joystick.
+     *
+     * @param port       The Driver Station port it pretends to be on.
+     * @param numButtons How many buttons it has.
+     * @param numAxes    How many axes it has.
+     * @param numPOVs    How many POV switches it has.
+     * @param seed       The seed for its movements.
+     */
+    FakeJoystickSource(int port, int numButtons, int numAxes, int numPOVs, long seed) {
+        this.port = port;
+        this.buttons = new boolean[numButtons];
+        this.axes = new double[numAxes];
+        this.rawAxes = new byte[numAxes];
+        this.POVs = new int[numPOVs];
+        Arrays.fill(POVs, -1);
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Creates the given number of fake sticks shaped like a typical gamepad: 12 buttons, 6 axes and 1 POV.
+     *
+     * @param count How many sticks to create, up to 6.
+     * @param seed  The seed for their movements.
+     * @return The sticks, on ports 0 to count - 1.
+     */
+    static FakeJoystickSource[] gamepads(int count, long seed) {
+        FakeJoystickSource[] sticks = new FakeJoystickSource[count];
+        for (int i = 0; i < count; i++)
+            sticks[i] = new FakeJoystickSource(i, 12, 6, 1, seed + i);
+        return sticks;
+    }
+
+    /**
+     * Moves the stick to its state in the next Driver Station packet.
+     */
+    void step() {
+        for (int i = 0; i < axes.length; i++) {
+            //A slow drift plus one bit of jitter.
+            int raw = rawAxes[i] + (random.nextInt(8) == 0 ? random.nextInt(9) - 4: 0) + random.nextInt(3) - 1;
+            rawAxes[i] = (byte) Math.max(-128, Math.min(127, raw));
+            axes[i] = rawAxes[i] < 0 ? rawAxes[i] / 128.0: rawAxes[i] / 127.0;
+        }
+        for (int i = 0; i < buttons.length; i++)
+            if (random.nextInt(100) == 0)
+                buttons[i] = !buttons[i];
+        for (int i = 0; i < POVs.length; i++)
+            if (random.nextInt(50) == 0) {
+                int angle = random.nextInt(9);
+                POVs[i] = angle == 8 ? -1: angle * 45;
+            }
+    }
+
+    @Override
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public int getButtonCount() {
+        return buttons.length;
+    }
+
+    @Override
+    public int getAxisCount() {
+        return axes.length;
+    }
+
+    @Override
+    public int getPOVCount() {
+        return POVs.length;
+    }
+
+    @Override
+    public boolean getRawButton(int button) {
+        return buttons[button - 1];
+    }
+
+    @Override
+    public double getRawAxis(int axis) {
+        return axes[axis];
+    }
+
+    @Override
+    public int getPOV(int pov) {
+        return POVs[pov];
+    }
+}
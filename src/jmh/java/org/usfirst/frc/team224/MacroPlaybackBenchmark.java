@@ -0,0 +1,58 @@
+package org.usfirst.frc.team224;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long it takes to play back a whole 15 second macro, one 20 ms robot loop at a time on a virtual clock, for
+ * macros from 1k to 1M events, with and without interpolation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MacroPlaybackBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int events;
+    @Param({"false", "true"})
+    public boolean interpolated;
+
+    private Macro macro;
+    private VirtualClock clock;
+    private simulatedJoystick[] sticks;
+
+    @Setup
+    public void setUp() {
+        macro = BenchmarkMacros.synthetic(events, 224);
+        clock = new VirtualClock();
+        macro.setClock(clock);
+        macro.setInterpolated(interpolated);
+        sticks = new simulatedJoystick[macro.stickCount()];
+        for (int i = 0; i < sticks.length; i++)
+            sticks[i] = new simulatedJoystick(macro.getInitialState(i));
+    }
+
+    @Benchmark
+    public int playWholeMacro() {
+        macro.startPlaying();
+        //Stops once every event has been applied, before playback() would end the macro and print that it finished.
+        while (macro.getPlaybackPosition() < macro.eventCount()) {
+            macro.playback(sticks);
+            clock.advance(20000000);
+        }
+        return macro.getPlaybackPosition();
+    }
+}
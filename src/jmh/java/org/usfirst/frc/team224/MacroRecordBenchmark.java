@@ -0,0 +1,55 @@
+package org.usfirst.frc.team224;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long one {@link Macro#record()} call takes, for 2 to 6 gamepads that change every packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MacroRecordBenchmark {
+    @Param({"2", "4", "6"})
+    public int stickCount;
+
+    private FakeJoystickSource[] sticks;
+    private VirtualClock clock;
+    private Macro macro;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        sticks = FakeJoystickSource.gamepads(stickCount, 224);
+        clock = new VirtualClock();
+        macro = new Macro(sticks);
+        macro.setClock(clock);
+        macro.startRecording();
+    }
+
+    @Benchmark
+    public int record() {
+        for (FakeJoystickSource stick : sticks)
+            stick.step();
+        //Only a little virtual time passes per call, so an iteration never reaches the 15 second limit.
+        clock.advance(100);
+        if (macro.eventCount() > 3000) //Keep the columns from growing, like a journaled recording does.
+            macro.discardEvents();
+        macro.record();
+        return macro.eventCount();
+    }
+}
@@ -0,0 +1,79 @@
+package org.usfirst.frc.team224;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long it takes to save and load macros from 1k to 1M events, in both the text and binary formats, and to write
+ * the text and readable formats into a reused Writer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class MacroSerializationBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int events;
+
+    private Macro macro;
+    private String text;
+    private byte[] binary;
+    private CharArrayWriter writer;
+
+    @Setup
+    public void setUp() {
+        macro = BenchmarkMacros.synthetic(events, 224);
+        text = macro.toString();
+        binary = MacroCodec.encode(macro);
+        writer = new CharArrayWriter(text.length() * 3);
+    }
+
+    @Benchmark
+    public String toText() {
+        return macro.toString();
+    }
+
+    @Benchmark
+    public CharArrayWriter writeText() throws IOException {
+        writer.reset();
+        macro.writeText(writer);
+        return writer;
+    }
+
+    @Benchmark
+    public CharArrayWriter writeReadable() throws IOException {
+        writer.reset();
+        macro.writeReadable(writer);
+        return writer;
+    }
+
+    @Benchmark
+    public Macro parseText() {
+        return new Macro(text.split("\n"), (JoystickSource[]) null);
+    }
+
+    @Benchmark
+    public byte[] toBinary() {
+        return MacroCodec.encode(macro);
+    }
+
+    @Benchmark
+    public Macro parseBinary() {
+        return Macro.load(binary, (JoystickSource[]) null);
+    }
+}
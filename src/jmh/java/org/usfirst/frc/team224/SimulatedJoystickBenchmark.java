@@ -0,0 +1,62 @@
+package org.usfirst.frc.team224;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long it takes to copy a gamepad's state into a {@link simulatedJoystick}, with and without generating events or
+ * dispatching them through a {@link JoystickDispatcher}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimulatedJoystickBenchmark {
+    private FakeJoystickSource source;
+    private simulatedJoystick stick;
+    private JoystickDispatcher dispatcher;
+    private int dispatched;
+
+    @Setup
+    public void setUp() {
+        source = new FakeJoystickSource(0, 12, 6, 1, 224);
+        stick = new simulatedJoystick(source);
+        dispatcher = new JoystickDispatcher();
+        for (int i = 1; i <= 12; i += 2) //Half of the buttons and axes are bound, like a typical robot.
+            dispatcher.bind(JoystickEvent.eventType.PRESS, 0, i, () -> dispatched++);
+        for (int i = 0; i < 6; i += 2)
+            dispatcher.bind(JoystickEvent.eventType.AXIS, 0, i, () -> dispatched++);
+    }
+
+    @Benchmark
+    public simulatedJoystick update() {
+        source.step();
+        return stick.update(source);
+    }
+
+    @Benchmark
+    public void updateWithEvents(Blackhole blackhole) {
+        source.step();
+        blackhole.consume(stick.updateWithEvents(source, 0));
+    }
+
+    @Benchmark
+    public int dispatcherUpdate() {
+        source.step();
+        dispatcher.update(stick, source, 0);
+        return dispatched;
+    }
+}
@@ -0,0 +1,116 @@
+package org.usfirst.frc.team224;
+
+/**
+ * Decides which axis movements a {@link Macro} records, so a stick jittering by one bit doesn't produce an event every
+ * loop on every axis.
+ * <p>
+ * There are three parts, each of which can be turned off by setting it to 0:
+ * <ul>
+ * <li>The deadband: values this close to 0 are recorded as exactly 0.</li>
+ * <li>The step: the axis has to move at least this far from the last recorded value to be recorded again. Reaching 0
+ * or full scale is always recorded exactly.</li>
+ * <li>The maximum rate: how many events per second the axis can record. A movement made too soon after the last event
+ * is recorded as soon as the axis is allowed to again.</li>
+ * </ul>
+ * While recording, the played back value is always within the larger of the deadband and the step of the real value,
+ * and at most 1 / maximum rate seconds behind it.
+ * <p>
+ * If the tolerance is set, the recorded events are also simplified when the recording stops: any event that is within
+ * the tolerance of both the event before it and the straight line between the events around it is dropped (like the
+ * Ramer-Douglas-Peucker algorithm), which adds at most the tolerance to the error. A macro streamed to a
+ * {@link MacroJournal} is only simplified if it's still all in memory, and its journal is replaced with the result.
+ *
+ * @see Macro#setAxisFilter(AxisFilter)
+ * @see Macro#getDroppedEvents()
+ */
+public class AxisFilter {
+    /**
+     * Doesn't filter anything, recording every change like a macro without a filter.
+     */
+    public static final AxisFilter none = new AxisFilter(0, 0, 0, 0);
+    /**
+     * Ignores a couple of bits of jitter and records at most 25 events per second per axis. Plays back within 0.05 of
+     * the real value.
+     */
+    public static final AxisFilter gamepad = new AxisFilter(0.02, 0.02, 25, 0.03);
+
+    private final double deadband;
+    private final double step;
+    private final double maxRate;
+    private final long minIntervalMicros;
+    private final double tolerance;
+
+    /**
+     * Creates a filter.
+     *
+     * @param deadband  Values this close to 0 are recorded as 0.
+     * @param step      How far the axis has to move from the last recorded value to be recorded again.
+     * @param maxRate   How many events per second can be recorded, or 0 for no limit.
+     * @param tolerance How far from the recorded values the simplification at the end of the recording can go, or 0 to
+     *                  not simplify.
+     */
+    public AxisFilter(double deadband, double step, double maxRate, double tolerance) {
+        if (deadband < 0 || step < 0 || maxRate < 0 || tolerance < 0)
+            throw new IllegalArgumentException("Axis filter settings can't be negative.");
+        this.deadband = deadband;
+        this.step = step;
+        this.maxRate = maxRate;
+        this.minIntervalMicros = maxRate > 0 ? (long) (1000000 / maxRate): 0;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * @param value The raw value of the axis.
+     * @return The value to record, with the deadband applied.
+     */
+    double apply(double value) {
+        return Math.abs(value) <= deadband ? 0: value;
+    }
+
+    /**
+     * @param value        The value of the axis, with the deadband applied.
+     * @param recorded     The last value recorded for the axis.
+     * @param elapsedMicros How long ago the last value was recorded, in microseconds.
+     * @return If the value should be recorded now.
+     */
+    boolean shouldRecord(double value, double recorded, long elapsedMicros) {
+        if (value == recorded || elapsedMicros < minIntervalMicros)
+            return false;
+        return value == 0 || Math.abs(value) >= 1 || Math.abs(value - recorded) >= step;
+    }
+
+    /**
+     * @return Values this close to 0 are recorded as 0.
+     */
+    public double getDeadband() {
+        return deadband;
+    }
+
+    /**
+     * @return How far the axis has to move from the last recorded value to be recorded again.
+     */
+    public double getStep() {
+        return step;
+    }
+
+    /**
+     * @return How many events per second can be recorded, or 0 for no limit.
+     */
+    public double getMaxRate() {
+        return maxRate;
+    }
+
+    /**
+     * @return How far the simplification at the end of the recording can go from the recorded values, or 0 if it's off.
+     */
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * @return The most the played back value can differ from the real value, not counting the delay from the rate limit.
+     */
+    public double getErrorBound() {
+        return Math.max(deadband, step) + tolerance;
+    }
+}
@@ -0,0 +1,404 @@
+package org.usfirst.frc.team224;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Named config values (numbers, booleans and strings) that are read from memory and saved to a file in the background.
+ * <p>
+ * Reading a value is a hash lookup, so values can be read every loop. Setting one updates memory, tells the
+ * {@link Listener listeners}, and wakes a background thread, which writes every value to the file through
+ * {@link MacroHelper#writeAtomically(java.nio.file.Path, byte[])}. The file is either the old values or the new ones,
+ * even if the robot loses power. Changes made while a write is pending go out with it, and the file is written at
+ * most once per write interval, so tuning a value from the dashboard every loop doesn't wear out the flash or make the
+ * robot thread wait on it.
+ * <p>
+ * The file is a {@link Properties} file, with one <code>key=value</code> line per value. Values are parsed the first
+ * time they're read as a type. A value that can't be parsed as that type is reported once, and the default is used
+ * instead, but it's kept in the file.
+ *
+ * @see ExampleMacroRobot
+ */
+public class ConfigStore implements Closeable {
+    /**
+     * How often, in milliseconds, the file is written at most, when it isn't given.
+     */
+    public static final long defaultWriteInterval = 1000;
+
+    /**
+     * Told when a value is set to something it wasn't already.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * Called on the thread that set the value, after it's been set.
+         *
+         * @param key   The name of the value.
+         * @param value The new value: a Double, Integer, Boolean or String.
+         */
+        void changed(String key, Object value);
+    }
+
+    private final Path path;
+    private final long writeInterval; //In nanoseconds.
+    //A String until it's read as a type, then the parsed value, so it's only parsed once.
+    private final Map<String, Object> values = new ConcurrentHashMap<>();
+    //Strings that couldn't be parsed as the type they were read as, so they're only reported once.
+    private final Map<String, Object> rejected = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>(); //Told about every key.
+    private final Map<String, List<Listener>> keyListeners = new ConcurrentHashMap<>();
+    private final Object lock = new Object(); //Guards everything below, and is notified when any of it changes.
+    private long version, writtenVersion; //Bumped by every change, and the last one that made it to the file.
+    private int failures;
+    private boolean flushing;
+    private volatile boolean closed;
+    private final Thread writer;
+
+    /**
+     * Creates an empty store, saved to the given file at most once every {@link #defaultWriteInterval} milliseconds.
+     * Call {@link #load()} to read the values already in it.
+     *
+     * @param path The file to save the values to.
+     */
+    public ConfigStore(Path path) {
+        this(path, defaultWriteInterval);
+    }
+
+    /**
+     * Creates an empty store, saved to the given file at most once per interval. Call {@link #load()} to read the
+     * values already in it.
+     *
+     * @param path          The file to save the values to.
+     * @param writeInterval The least time, in milliseconds, between writes.
+     */
+    public ConfigStore(Path path, long writeInterval) {
+        this.path = path;
+        this.writeInterval = TimeUnit.MILLISECONDS.toNanos(writeInterval);
+        writer = new Thread(this::write, "Config writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Reads the values in the file, replacing any with the same names. Listeners aren't told about them. A missing
+     * file is the same as an empty one.
+     *
+     * @throws IOException If the file exists, but can't be read.
+     */
+    public void load() throws IOException {
+        byte[] data;
+        try {
+            data = Files.readAllBytes(path);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        Properties properties = new Properties();
+        try {
+            properties.load(new ByteArrayInputStream(data));
+        } catch (IllegalArgumentException e) { //A malformed \\uXXXX escape.
+            throw new IOException("The config at " + path + " is corrupt.", e);
+        }
+        for (String key : properties.stringPropertyNames())
+            values.put(key, properties.getProperty(key));
+    }
+
+    /**
+     * @param key          The name of the value.
+     * @param defaultValue What to return if there's no such value, or it isn't a number.
+     * @return The value, as a double.
+     */
+    public double getDouble(String key, double defaultValue) {
+        Object value = values.get(key);
+        if (value instanceof Number)
+            return ((Number) value).doubleValue();
+        if (value instanceof String && rejected.get(key) != value)
+            try {
+                double parsed = Double.parseDouble((String) value);
+                values.replace(key, value, parsed);
+                return parsed;
+            } catch (NumberFormatException e) {
+                ignore(key, value, "a number");
+            }
+        return defaultValue;
+    }
+
+    /**
+     * @param key          The name of the value.
+     * @param defaultValue What to return if there's no such value, or it isn't a number.
+     * @return The value, as an int. Decimals are rounded down.
+     */
+    public int getInt(String key, int defaultValue) {
+        Object value = values.get(key);
+        if (value instanceof Number)
+            return ((Number) value).intValue();
+        if (value instanceof String && rejected.get(key) != value)
+            try {
+                int parsed = Integer.parseInt((String) value);
+                values.replace(key, value, parsed);
+                return parsed;
+            } catch (NumberFormatException e) {
+                return (int) getDouble(key, defaultValue);
+            }
+        return defaultValue;
+    }
+
+    /**
+     * @param key          The name of the value.
+     * @param defaultValue What to return if there's no such value, or it isn't true or false.
+     * @return The value, as a boolean.
+     */
+    public boolean getBoolean(String key, boolean defaultValue) {
+        Object value = values.get(key);
+        if (value instanceof Boolean)
+            return (Boolean) value;
+        if (value instanceof String && rejected.get(key) != value) {
+            if (((String) value).equalsIgnoreCase("true") || ((String) value).equalsIgnoreCase("false")) {
+                boolean parsed = Boolean.parseBoolean((String) value);
+                values.replace(key, value, parsed);
+                return parsed;
+            }
+            ignore(key, value, "true or false");
+        }
+        return defaultValue;
+    }
+
+    /**
+     * @param key          The name of the value.
+     * @param defaultValue What to return if there's no such value.
+     * @return The value, as it would be written to the file.
+     */
+    public String getString(String key, String defaultValue) {
+        Object value = values.get(key);
+        return value != null ? value.toString(): defaultValue;
+    }
+
+    /**
+     * @param key The name of the value.
+     * @return If the value has been loaded or set.
+     */
+    public boolean contains(String key) {
+        return values.containsKey(key);
+    }
+
+    /**
+     * Remembers a value that can't be parsed as the type it's read as, so it's only reported once.
+     */
+    private void ignore(String key, Object value, String expected) {
+        if (rejected.put(key, value) != value)
+            System.err.println("The config value " + key + " is " + value + ", which isn't " + expected + ". Using the default.");
+    }
+
+    /**
+     * Sets a value, saving it in the background.
+     *
+     * @param key   The name of the value.
+     * @param value The new value.
+     */
+    public void set(String key, double value) {
+        put(key, value);
+    }
+
+    /**
+     * Sets a value, saving it in the background.
+     *
+     * @param key   The name of the value.
+     * @param value The new value.
+     */
+    public void set(String key, int value) {
+        put(key, value);
+    }
+
+    /**
+     * Sets a value, saving it in the background.
+     *
+     * @param key   The name of the value.
+     * @param value The new value.
+     */
+    public void set(String key, boolean value) {
+        put(key, value);
+    }
+
+    /**
+     * Sets a value, saving it in the background.
+     *
+     * @param key   The name of the value.
+     * @param value The new value.
+     */
+    public void set(String key, String value) {
+        put(key, value);
+    }
+
+    /**
+     * Sets a value and, if it changed, tells the listeners and wakes the writer.
+     */
+    private void put(String key, Object value) {
+        if (key == null || value == null)
+            throw new NullPointerException("Config keys and values can't be null.");
+        if (closed)
+            throw new IllegalStateException("The config store is closed.");
+        Object old = values.put(key, value);
+        if (value.equals(old) || old instanceof String && old.equals(value.toString())) //Set to what it already was.
+            return;
+        synchronized (lock) {
+            version++;
+            lock.notifyAll();
+        }
+        for (Listener listener : listeners)
+            tell(listener, key, value);
+        List<Listener> forKey = keyListeners.get(key);
+        if (forKey != null)
+            for (Listener listener : forKey)
+                tell(listener, key, value);
+    }
+
+    /**
+     * Tells a listener about a change, reporting anything it throws rather than letting it reach the caller.
+     */
+    private static void tell(Listener listener, String key, Object value) {
+        try {
+            listener.changed(key, value);
+        } catch (RuntimeException e) {
+            System.err.println("A config listener threw " + e + '.');
+        }
+    }
+
+    /**
+     * Tells the listener whenever any value changes.
+     *
+     * @param listener What to tell.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Tells the listener whenever the given value changes.
+     *
+     * @param key      The name of the value.
+     * @param listener What to tell.
+     */
+    public void addListener(String key, Listener listener) {
+        keyListeners.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    /**
+     * Stops telling the listener about changes.
+     *
+     * @param listener The listener, as it was added.
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+        for (List<Listener> forKey : keyListeners.values())
+            forKey.remove(listener);
+    }
+
+    /**
+     * Writes any changes now, without waiting for the write interval, and waits for them to reach the file.
+     *
+     * @return If every change so far was written. False if the write failed, or the thread was interrupted.
+     */
+    public boolean flush() {
+        synchronized (lock) {
+            long target = version;
+            int failuresBefore = failures;
+            flushing = true;
+            lock.notifyAll();
+            try {
+                while (writtenVersion < target && failures == failuresBefore && writer.isAlive())
+                    lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                flushing = false;
+            }
+            return writtenVersion >= target;
+        }
+    }
+
+    /**
+     * Writes any changes, then stops the writer. If the last write fails, it's tried once more and then given up on.
+     * Values can still be read, but not set.
+     */
+    @Override
+    public void close() {
+        flush();
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits for changes and writes them, at most once per {@link #writeInterval}. Runs on {@link #writer}.
+     */
+    private void write() {
+        long lastWrite = System.nanoTime() - writeInterval;
+        while (true) {
+            long target;
+            synchronized (lock) {
+                try {
+                    while (version == writtenVersion && !closed)
+                        lock.wait();
+                    if (version == writtenVersion) //Closed, with nothing left to write.
+                        return;
+                    long wait = lastWrite + writeInterval - System.nanoTime();
+                    if (wait > 0 && !flushing && !closed) { //Let more changes pile up.
+                        TimeUnit.NANOSECONDS.timedWait(lock, wait);
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                target = version;
+            }
+            boolean written = false;
+            try {
+                MacroHelper.writeAtomically(path, serialize());
+                written = true;
+            } catch (IOException e) {
+                System.err.println("Could not save the config to " + path + " (" + e + ")" +
+                                   (closed ? ", giving up.": ", trying again later."));
+            }
+            lastWrite = System.nanoTime();
+            synchronized (lock) {
+                if (written)
+                    writtenVersion = target;
+                else
+                    failures++;
+                lock.notifyAll();
+                if (!written && closed) //That was the last try. Retrying would skip the interval and spin.
+                    return;
+            }
+        }
+    }
+
+    /**
+     * @return Every value, as the contents of a Properties file.
+     */
+    private byte[] serialize() throws IOException {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Object> entry : values.entrySet())
+            properties.setProperty(entry.getKey(), entry.getValue().toString());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        properties.store(out, null);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return The file the values are saved to.
+     */
+    public Path getPath() {
+        return path;
+    }
+}
@@ -6,12 +6,11 @@ import edu.wpi.first.wpilibj.Joystick;
 import edu.wpi.first.wpilibj.MotorSafety;
 import edu.wpi.first.wpilibj.RobotDrive;
 import edu.wpi.first.wpilibj.SpeedController;
-import edu.wpi.first.wpilibj.Timer;
 import edu.wpi.first.wpilibj.smartdashboard.SendableChooser;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 
 /**
  * An example IterativeRobot class implementing Macro recording, Macro playback, storing and reading values from a
@@ -26,15 +25,17 @@ import java.util.HashMap;
 public class ExampleMacroRobot extends IterativeRobot {
     //Paths used by the program
     private static final String macroDir = "/home/lvuser/macros";
-    private static final String configDir = "/home/lvuser/cfg";
+    private static final String configPath = "/home/lvuser/robot.properties";
+    private static final String oldConfigPath = "/home/lvuser/cfg"; //Where older versions kept minSpeed and maxSpeed.
 
-    //Defaults for values loaded from the config
+    //Defaults for values loaded from the config, kept up to date by its listeners.
     private static double minSpeed = .45; //The slowest the robot can move, (because under a certain threshold it won't move!)
     private static double maxSpeed = 1; //The fastest it can move. (In case you don't want the motors to run at full power)
     //Stuff whose IDs may need to be changed
     private static final int driveStickId = 0;
     private static final int auxStickId = 1;
     private static final int recordButtonId = 5;
+    private static final int saveLastRunButtonId = 6; //Saves the last 15 seconds of driving as a macro.
     private static final int frontLeftMotorId = 0; //ID of the front left motor
     private static final int backLeftMotorId = 1; //ID of the back left motor
     private static final int frontRightMotorId = 2; //ID of the front right motor
@@ -44,13 +45,16 @@ public class ExampleMacroRobot extends IterativeRobot {
     //Initializing variables, no need to change these.
     private static Joystick realDriveStick;
     private static Joystick realAuxStick;
+    private static JoystickSource realDriveSource;
+    private static JoystickSource realAuxSource;
     private static simulatedJoystick driveStick;
     private static simulatedJoystick auxStick;
     private static final SendableChooser<String> autoChooser = new SendableChooser<>();
     private static Macro currentMacro; //Used to keep track of the current macro
     private static MacroHelper macroHelper;
-    private static final HashMap<JoystickEvent, Runnable> methods = new HashMap<>();
-    private static final ArrayList<Runnable> scheduledEvents = new ArrayList<>();
+    private static ConfigStore config;
+    private static final JoystickDispatcher dispatcher = new JoystickDispatcher();
+    private static final TickScheduler scheduler = new TickScheduler();
     private static RobotDrive drive;
     private static double throttle;
     private static SpeedController[] motors;
@@ -59,17 +63,33 @@ public class ExampleMacroRobot extends IterativeRobot {
     public void robotInit() { //Joysticks work oddly at competition when you initialize them outside of robotInit...
         realDriveStick = new Joystick(driveStickId);
         realAuxStick = new Joystick(auxStickId);
+        realDriveSource = JoystickSource.of(realDriveStick);
+        realAuxSource = JoystickSource.of(realAuxStick);
         driveStick = new simulatedJoystick(realDriveStick);
         auxStick = new simulatedJoystick(realAuxStick);
         macroHelper = new MacroHelper(macroDir, autoChooser, realDriveStick, realAuxStick);
+        try {
+            macroHelper.setMacroPack(true); //Keep every macro in one file, so they're listed at boot with one read.
+        } catch (IOException e) {
+            if (debug)
+                e.printStackTrace();
+            System.err.println("Could not open the macro pack, using a file per macro...");
+        }
         macroHelper.addExistingMacrosToSendableChooser(); //The method name should explain itself, if not the JavaDoc.
+        macroHelper.setAxisFilter(AxisFilter.gamepad); //Don't record every bit of jitter on the sticks.
+        //Leave the record and save buttons out of macros, so playing one back doesn't start or save a recording.
+        macroHelper.setChannelMask(driveStickId, ~(1 << recordButtonId - 1 | 1 << saveLastRunButtonId - 1), -1, -1);
+        //Put how long recording and playback take on the SmartDashboard. Remove this to skip measuring.
+        macroHelper.setInstrumentation(new MacroInstrumentation(Paths.get("/home/lvuser/macro-stats.log")));
+        macroHelper.setPacketCapture(true); //Record every Driver Station packet, not just the ones teleopPeriodic sees.
+        macroHelper.startRollingRecording(15); //Always keep the last 15 seconds, in case they were worth saving.
         //Change these to your actual motor controllers.
         motors = new SpeedController[]{new CANTalon(frontLeftMotorId), new CANTalon(backLeftMotorId),
                 new CANTalon(frontRightMotorId), new CANTalon(backRightMotorId)};
 
         drive = new RobotDrive(motors[0], motors[1], motors[2], motors[3]);
         addJoystickMethods();
-        loadVarsFromConfig();
+        loadConfig();
     }
 
     /**
@@ -78,13 +98,15 @@ public class ExampleMacroRobot extends IterativeRobot {
     public void addJoystickMethods() {
         addJoystickMethod(JoystickEvent.eventType.PRESS, recordButtonId, driveStickId, () -> { //When the record button on the drive stick is pressed...
             try {
-                macroHelper.startOrStopMacro(currentMacro); //Start or stop the macro!
+                currentMacro = macroHelper.startOrStopMacro(currentMacro); //Start or stop the macro!
             } catch (IOException e) {
                 if (debug)
                     e.printStackTrace();
                 System.err.println("Could not access the macro, not starting/stopping...");
             }
         });
+        //Made a good run without recording it? This saves it anyway.
+        addJoystickMethod(JoystickEvent.eventType.PRESS, saveLastRunButtonId, driveStickId, () -> macroHelper.saveLastSeconds(15));
         for (int i = 1; i <= driveStick.getButtonCount(); i++) {
             int i2 = i; //It has to be final, thus this variable.
             addJoystickMethod(JoystickEvent.eventType.PRESS, i, auxStickId, () -> System.out.println("ID: " + i2));
@@ -92,59 +114,78 @@ public class ExampleMacroRobot extends IterativeRobot {
     }
 
     /**
-     * Loads variables from the config file, if possible.
+     * Loads variables from the config file, if possible, and keeps them up to date when they're changed. The first time,
+     * they're copied from the old config file.
      *
      * @return If the config file could be read.
      */
-    private boolean loadVarsFromConfig() { //Example to load variables from config
-        String[] configFile;
+    private boolean loadConfig() { //Example to load variables from config
+        config = new ConfigStore(Paths.get(configPath));
+        boolean migrate = !Files.exists(config.getPath()) && Files.exists(Paths.get(oldConfigPath));
+        //Add a listener for each variable, so setting it through the config changes it everywhere.
+        config.addListener("minSpeed", (key, value) -> minSpeed = config.getDouble(key, minSpeed));
+        config.addListener("maxSpeed", (key, value) -> maxSpeed = config.getDouble(key, maxSpeed));
         try { //Read the config
-            configFile = MacroHelper.readFile(configDir);
+            config.load();
         } catch (IOException e) { //You can't access the file for some reason.
             if (debug)
                 e.printStackTrace();
-            System.err.println("Could not read config at " + configDir + '.');
+            System.err.println("Could not read config at " + configPath + '.');
             return false;
         }
-
-        //The try and catch is pretty tedious, but it's nice to know which ones failed to load, which is why I use them.
-        try {
-            minSpeed = Double.parseDouble(configFile[0]); //If it's an int, not a double, use Integer.parseInt().
-        } catch (Exception e) { //If it's a boolean, use Boolean.parseBoolean, and so on for other primitives.
-            if (debug)
-                e.printStackTrace();
-            System.err.println("Could not load minSpeed.");
-        }
-        try {
-            maxSpeed = Double.parseDouble(configFile[1]);
-        } catch (Exception e) {
-            if (debug)
-                e.printStackTrace();
-            System.err.println("Could not load maxSpeed.");
-        }
+        if (migrate)
+            migrateOldConfig();
+        minSpeed = config.getDouble("minSpeed", minSpeed); //Use getInt, getBoolean or getString for other types.
+        maxSpeed = config.getDouble("maxSpeed", maxSpeed);
         return true;
     }
 
     /**
-     * Writes the current configurable values to the config file. Run it every time a value changes.
-     *
-     * @return If the values could successfully be written.
+     * Copies minSpeed and maxSpeed from the config file older versions used, which had one bare value per line, into
+     * the config, which saves them to the new file. The old file is left alone, and not read again once the new one
+     * exists.
      */
-    private boolean updateConfig() {
-        String vars = String.valueOf(minSpeed) + '\n' + maxSpeed; //Add more variables with '\n' between as necessary.
+    private void migrateOldConfig() {
+        String[] configFile;
         try {
-            MacroHelper.overwriteFile(configDir, vars);
+            configFile = MacroHelper.readFile(oldConfigPath);
         } catch (IOException e) {
             if (debug)
                 e.printStackTrace();
-            System.err.println("Could not update config.");
-            return false;
+            System.err.println("Could not read the old config at " + oldConfigPath + '.');
+            return;
         }
-        return true;
+        String[] keys = {"minSpeed", "maxSpeed"}; //In the order the old file had them.
+        for (int i = 0; i < keys.length; i++)
+            try {
+                config.set(keys[i], Double.parseDouble(configFile[i]));
+            } catch (RuntimeException e) { //Missing, or not a number.
+                if (debug)
+                    e.printStackTrace();
+                System.err.println("Could not load " + keys[i] + " from the old config.");
+            }
+        System.out.println("Moved the config from " + oldConfigPath + " to " + configPath + '.');
+    }
+
+    /**
+     * Changes how fast the robot can drive, and saves it to the config. Safe to call every loop, like when tuning from
+     * the dashboard: the file is written in the background, at most once a second.
+     *
+     * @param minSpeed The slowest the robot can move.
+     * @param maxSpeed The fastest the robot can move.
+     */
+    public void setSpeedLimits(double minSpeed, double maxSpeed) {
+        config.set("minSpeed", minSpeed); //The listeners update the variables.
+        config.set("maxSpeed", maxSpeed);
+    }
+
+    public void disabledPeriodic() {
+        macroHelper.preloadSelectedMacro(); //Load the chosen macro now, rather than when autonomous starts.
     }
 
     public void autonomousInit() {
         stoppedMacro = false; //In case you run autonomous more than once, reset stoppedMacro.
+        macroHelper.resetAutonMacro(); //And start the macro over from the beginning.
     }
 
     public void autonomousPeriodic() {
@@ -157,8 +198,8 @@ public class ExampleMacroRobot extends IterativeRobot {
             System.err.println("Could not load macro at " + macroDir + macroHelper.getSelectedAuton().substring(5));
         }
         if (runMacro != null)
-            if (runMacro)
-                teleopPeriodic();
+            if (runMacro) //Drive from the sticks the macro plays into, not the real ones.
+                runRobot(macroHelper.getPlaybackStick(0), macroHelper.getPlaybackStick(1));
             else if (!stoppedMacro) { //The macro is over.
                 //Add any additional motors you want, or a function to run before stopping these motors.
                 stopRobot(motors[0], motors[1], motors[2], motors[3]);
@@ -190,16 +231,16 @@ public class ExampleMacroRobot extends IterativeRobot {
      * @param method The method to run on the given event.
      */
     public void addJoystickMethod(JoystickEvent j, Runnable method) {
-        methods.put(j, method);
+        dispatcher.bind(j, method);
     }
 
     /**
-     * Runs the event associated with the given JoystickEvent.
+     * Runs the methods associated with the given JoystickEvent, if there are any.
      *
      * @param j The JoystickEvent's method to run.
      */
     public void runJoystickMethod(JoystickEvent j) {
-        methods.get(j).run();
+        dispatcher.dispatch(j);
     }
 
     /**
@@ -207,27 +248,30 @@ public class ExampleMacroRobot extends IterativeRobot {
      *
      * @param seconds  The number of seconds until <code>function</code> runs
      * @param function The function to run when <code>seconds</code> seconds has passed.
+     * @return The scheduled task, which can be cancelled.
      */
-    public void scheduleEvent(double seconds, Runnable function) {
-        Timer timer = new Timer();
-        Runnable finalFunction = new Runnable() {
-            public void run() {
-                if (timer.hasPeriodPassed(seconds)) { //If the time has passed...
-                    function.run(); //Run the function...
-                    timer.stop(); //Stop and reset the timer...
-                    timer.reset();
-                    scheduledEvents.remove(this); //And then remove this from the ArrayList automatically!
-                }
-            }
-        };
-        timer.start();
-        scheduledEvents.add(finalFunction);
+    public TickScheduler.Task scheduleEvent(double seconds, Runnable function) {
+        return scheduler.schedule(seconds, function);
     }
 
-    public void teleopPeriodic() { //It drives, has joystick events, and has the throttle.
-        driveStick.updateWithEvents(realDriveStick, driveStickId).forEach(this::runJoystickMethod);
-        auxStick.updateWithEvents(realAuxStick, auxStickId).forEach(this::runJoystickMethod);
-        scheduledEvents.forEach(Runnable::run); //Check all scheduled events, then run them if ready (they remove themselves from the ArrayList automatically)
+    public void teleopPeriodic() {
+        if (currentMacro != null && currentMacro.isRecording())
+            currentMacro.record();
+        macroHelper.recordRolling();
+        runRobot(realDriveSource, realAuxSource);
+    }
+
+    /**
+     * Drives the robot from the given sticks, and runs the methods for anything that changed on them. It drives, has
+     * joystick events, and has the throttle.
+     *
+     * @param driveSource The drive stick: the real one in teleop, or the one a macro plays back into in autonomous.
+     * @param auxSource   The aux stick, from the same place.
+     */
+    private void runRobot(JoystickSource driveSource, JoystickSource auxSource) {
+        dispatcher.update(driveStick, driveSource, driveStickId); //Runs the methods for anything that changed.
+        dispatcher.update(auxStick, auxSource, auxStickId);
+        scheduler.tick(); //Run any scheduled events that are due this loop.
         throttle = (-driveStick.getThrottle() + 1) / 2 * (maxSpeed - minSpeed) + minSpeed;
         drive.arcadeDrive(driveStick.getY() * throttle, -driveStick.getTwist() * throttle);
     }
@@ -0,0 +1,127 @@
+package org.usfirst.frc.team224;
+
+import java.util.Arrays;
+
+/**
+ * Runs methods bound to joystick events: when button 5 on stick 1 is pressed, when an axis on stick 0 moves, and so on.
+ * <p>
+ * Handlers are kept in a table with a slot for every stick port, event type and button/axis/POV, so dispatching an
+ * event is an array lookup: nothing is hashed or allocated. Unbound slots hold no handlers, so events nobody bound
+ * are ignored. Binding more than one handler to the same slot runs all of them, in the order they were bound.
+ *
+ * @see JoystickEvent
+ * @see ExampleMacroRobot
+ */
+public class JoystickDispatcher {
+    /**
+     * How many joystick ports the Driver Station has.
+     */
+    public static final int maxPorts = 6;
+    /**
+     * One more than the highest button the Driver Station supports, since buttons start at 1. Also covers every axis
+     * and POV switch.
+     */
+    public static final int maxChannels = 33;
+
+    private static final Runnable[] noHandlers = new Runnable[0];
+    private static final JoystickEvent.eventType[] eventTypes = JoystickEvent.eventType.values();
+
+    private final Runnable[][] handlers = new Runnable[maxPorts * eventTypes.length * maxChannels][];
+    private final simulatedJoystick.ChangeListener dispatchChange = (port, type, id, val) -> dispatch(type, port, id);
+
+    /**
+     * Creates a dispatcher with nothing bound.
+     */
+    public JoystickDispatcher() {
+        Arrays.fill(handlers, noHandlers);
+    }
+
+    /**
+     * @return The index of the given slot in {@link #handlers}, or -1 if there isn't one.
+     */
+    private static int slot(JoystickEvent.eventType type, int port, int id) {
+        if (port < 0 || port >= maxPorts || id < 0 || id >= maxChannels)
+            return -1;
+        return (port * eventTypes.length + type.ordinal()) * maxChannels + id;
+    }
+
+    /**
+     * Binds a method to run on the given event.
+     *
+     * @param type   The type of event (PRESS, RELEASE, AXIS, POV)
+     * @param port   The port of the stick.
+     * @param id     The ID of the button/axis/POV
+     * @param method The method to run.
+     */
+    public void bind(JoystickEvent.eventType type, int port, int id, Runnable method) {
+        int slot = slot(type, port, id);
+        if (slot < 0)
+            throw new IllegalArgumentException("There is no " + type + ' ' + id + " on port " + port + '.');
+        if (method == null)
+            throw new NullPointerException("The method to bind can't be null.");
+        Runnable[] bound = handlers[slot];
+        Runnable[] newHandlers = Arrays.copyOf(bound, bound.length + 1);
+        newHandlers[bound.length] = method;
+        handlers[slot] = newHandlers;
+    }
+
+    /**
+     * Binds a method to run on the given event.
+     *
+     * @param event  The event for the method to run on. Only its type, stick and ID matter.
+     * @param method The method to run.
+     */
+    public void bind(JoystickEvent event, Runnable method) {
+        bind(event.getEventType(), event.getStickId(), event.getID(), method);
+    }
+
+    /**
+     * Removes every method bound to the given event.
+     *
+     * @param type The type of event (PRESS, RELEASE, AXIS, POV)
+     * @param port The port of the stick.
+     * @param id   The ID of the button/axis/POV
+     */
+    public void unbind(JoystickEvent.eventType type, int port, int id) {
+        int slot = slot(type, port, id);
+        if (slot >= 0)
+            handlers[slot] = noHandlers;
+    }
+
+    /**
+     * Runs the methods bound to the given event, if there are any.
+     *
+     * @param type The type of event (PRESS, RELEASE, AXIS, POV)
+     * @param port The port of the stick.
+     * @param id   The ID of the button/axis/POV
+     */
+    public void dispatch(JoystickEvent.eventType type, int port, int id) {
+        int slot = slot(type, port, id);
+        if (slot < 0)
+            return;
+        for (Runnable handler : handlers[slot])
+            handler.run();
+    }
+
+    /**
+     * Runs the methods bound to the given event, if there are any.
+     *
+     * @param event The event that happened.
+     */
+    public void dispatch(JoystickEvent event) {
+        dispatch(event.getEventType(), event.getStickId(), event.getID());
+    }
+
+    /**
+     * Updates a simulated stick from a real one, running the methods bound to everything that changed. Use this in
+     * place of {@link simulatedJoystick#updateWithEvents(JoystickSource, int)}, since it doesn't create any events.
+     * Handlers can read the new values from the simulated stick.
+     *
+     * @param stick  The simulated stick to update.
+     * @param source The stick to update it from.
+     * @param port   The port to dispatch the events for.
+     */
+    public void update(simulatedJoystick stick, JoystickSource source, int port) {
+        stick.updateWithEvents(source, port, dispatchChange);
+    }
+}
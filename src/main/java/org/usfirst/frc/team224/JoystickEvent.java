@@ -1,8 +1,5 @@
 package org.usfirst.frc.team224;
 
-import java.text.SimpleDateFormat;
-import java.util.Locale;
-
 /**
  * An object representing a change in the state of a joystick, and when it occurred.
  *
@@ -18,29 +15,44 @@ class JoystickEvent {
         PRESS, RELEASE, AXIS, POV
     }
 
-    private final JoystickEvent.eventType eventType;
+    private final JoystickEvent.eventType type;
     private final int stickId;
     private final int id;
-    private Double val;
+    private final double val; //0 for buttons.
     private final long time;
-    private static SimpleDateFormat fmt;
 
     /**
-     * Creates a joystick event. (JoystickEvent.eventType.PRESS/RELEASE)
+     * The shared button events handed out by {@link #of}, by port, PRESS/RELEASE and button.
+     */
+    private static final JoystickEvent[] buttonEvents = new JoystickEvent[JoystickDispatcher.maxPorts * 2 * JoystickDispatcher.maxChannels];
+
+    static {
+        for (int port = 0; port < JoystickDispatcher.maxPorts; port++)
+            for (int button = 0; button < JoystickDispatcher.maxChannels; button++) {
+                buttonEvents[buttonSlot(eventType.PRESS, port, button)] = new JoystickEvent(eventType.PRESS, 0L, port, button);
+                buttonEvents[buttonSlot(eventType.RELEASE, port, button)] = new JoystickEvent(eventType.RELEASE, 0L, port, button);
+            }
+    }
+
+    /**
+     * Creates a joystick event. (JoystickEvent.eventType.PRESS/RELEASE) Its time is now, from
+     * System.currentTimeMillis(), like the times saved in the text format.
      *
      * @param type  The eventType of event (JoystickEvent.eventType.PRESS/RELEASE)
      * @param id    The id of the joystick being used.
      * @param btnId The id of the button being pressed/released.
      */
     public JoystickEvent(JoystickEvent.eventType type, int id, int btnId) {
-        this.eventType = type;
+        this.type = type;
         this.stickId = id;
         this.id = btnId;
+        this.val = 0;
         this.time = System.currentTimeMillis();
     }
 
     /**
-     * Creates a joystick event. (JoystickEvent.eventType.AXIS/POV)
+     * Creates a joystick event. (JoystickEvent.eventType.AXIS/POV) Its time is now, from
+     * System.currentTimeMillis(), like the times saved in the text format.
      *
      * @param type   The eventType of event (JoystickEvent.eventType.AXIS)
      * @param id     The id of the joystick being used.
@@ -48,7 +60,7 @@ class JoystickEvent {
      * @param val    The current value of the axis.
      */
     public JoystickEvent(JoystickEvent.eventType type, int id, int axisId, double val) {
-        this.eventType = type;
+        this.type = type;
         this.stickId = id;
         this.id = axisId;
         this.val = val;
@@ -64,12 +76,38 @@ class JoystickEvent {
      * @param btnId The id of the button being pressed/released.
      */
     public JoystickEvent(JoystickEvent.eventType type, long time, int id, int btnId) {
-        this.eventType = type;
+        this.type = type;
         this.stickId = id;
         this.id = btnId;
+        this.val = 0;
         this.time = time;
     }
 
+    /**
+     * @return The index of the given button event in {@link #buttonEvents}.
+     */
+    private static int buttonSlot(JoystickEvent.eventType type, int port, int button) {
+        return (port * 2 + (type == eventType.PRESS ? 0: 1)) * JoystickDispatcher.maxChannels + button;
+    }
+
+    /**
+     * Gets the shared event for a button being pressed or released, whose time is 0. Events are immutable, so these
+     * can be handed out as often as needed without making new ones. Ports and buttons the Driver Station doesn't have
+     * get a new event.
+     *
+     * @param type  The eventType of event (JoystickEvent.eventType.PRESS/RELEASE)
+     * @param id    The id of the joystick being used.
+     * @param btnId The id of the button being pressed/released.
+     * @return The event.
+     */
+    static JoystickEvent of(JoystickEvent.eventType type, int id, int btnId) {
+        if (type != eventType.PRESS && type != eventType.RELEASE)
+            throw new IllegalArgumentException("Only button events are shared, not " + type + '.');
+        if (id < 0 || id >= JoystickDispatcher.maxPorts || btnId < 0 || btnId >= JoystickDispatcher.maxChannels)
+            return new JoystickEvent(type, 0L, id, btnId);
+        return buttonEvents[buttonSlot(type, id, btnId)];
+    }
+
     /**
      * Creates a joystick event. (JoystickEvent.eventType.AXIS/POV)
      *
@@ -80,7 +118,7 @@ class JoystickEvent {
      * @param val    The current value of the axis.
      */
     public JoystickEvent(JoystickEvent.eventType type, long time, int id, int axisId, double val) {
-        this.eventType = type;
+        this.type = type;
         this.stickId = id;
         this.id = axisId;
         this.val = val;
@@ -98,14 +136,14 @@ class JoystickEvent {
      * @return The current value of the axis, if it is a AXIS event, and null otherwise.
      */
     public Double getVal() {
-        return val != null ? val: null;
+        return type == eventType.AXIS || type == eventType.POV ? val: null;
     }
 
     /**
      * @return The eventType of event this event is.
      */
     public JoystickEvent.eventType getEventType() {
-        return eventType;
+        return type;
     }
 
     /**
@@ -119,7 +157,7 @@ class JoystickEvent {
      * @return The value of the POV switch, if it is a POV event, and null otherwise.
      */
     public Integer getPOVValue() {
-        return this.eventType == eventType.POV ? val.intValue(): null;
+        return type == eventType.POV ? (int) val: null;
     }
 
     /**
@@ -135,24 +173,9 @@ class JoystickEvent {
      * @return This serialized into a string.
      */
     public String toString() {
-        String str = time + ":";
-        switch (eventType) {
-            case PRESS:
-                str += "press";
-                break;
-            case RELEASE:
-                str += "release";
-                break;
-            case AXIS:
-                str += "axis";
-                break;
-            case POV:
-                str += "POV";
-                break;
-        }
-        return str + ',' + stickId + ',' + id + ',' +
-               (eventType == eventType.AXIS ? String.valueOf(val) + ',':
-                eventType == eventType.POV ? String.valueOf(val.intValue()): "") + '\n';
+        StringBuilder str = new StringBuilder(32);
+        MacroTextCodec.appendEvent(str, type, time, stickId, id, val);
+        return str.toString();
     }
 
     /**
@@ -175,7 +198,7 @@ class JoystickEvent {
 
         JoystickEvent that = (JoystickEvent) o;
 
-        return this.stickId == that.stickId && this.id == that.id && this.eventType == that.eventType;
+        return this.stickId == that.stickId && this.id == that.id && this.type == that.type;
     }
 
     /**
@@ -197,10 +220,9 @@ class JoystickEvent {
      * @return This event as a human-readable string.
      */
     public String toReadableString() {
-        fmt = fmt == null ? new SimpleDateFormat("MM/dd/yyyy hh:mm:ss"): fmt; //Create the date formatter if it does not exist.
-        return String.format(Locale.ENGLISH, "%s: Joystick %d's %s %s\n", fmt.format(time), stickId,
-                             eventType == eventType.PRESS || eventType == eventType.RELEASE ? "Button ": eventType == eventType.AXIS ? "Axis": "POV",
-                             eventType == eventType.PRESS ? "pressed.": eventType == eventType.RELEASE ? "released.": ("set to " + val));
+        StringBuilder str = new StringBuilder(64);
+        MacroTextCodec.appendReadableEvent(str, type, time, stickId, id, val);
+        return str.toString();
     }
 
-}
\ No newline at end of file
+}
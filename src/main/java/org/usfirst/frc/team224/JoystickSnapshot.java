@@ -0,0 +1,168 @@
+package org.usfirst.frc.team224;
+
+/**
+ * The state of a joystick at one moment, read once per loop so everything that needs it can share it.
+ * <p>
+ * {@link #capture(JoystickSource)} reads each button, axis and POV switch exactly once. Buttons are packed into an int,
+ * with button 1 in the lowest bit, so the buttons that changed between two snapshots are found with one XOR (see
+ * {@link #changedButtons(JoystickSnapshot)}) and walked with {@link Integer#numberOfTrailingZeros(int)}. Snapshots are
+ * meant to be reused, so capturing one doesn't allocate anything.
+ *
+ * @see Macro#record()
+ * @see simulatedJoystick#updateWithEvents(JoystickSource, int)
+ */
+public class JoystickSnapshot implements JoystickSource {
+    /**
+     * The most buttons a snapshot can hold, one per bit of an int.
+     */
+    public static final int maxButtons = 32;
+    /**
+     * The most axes the Driver Station supports.
+     */
+    public static final int maxAxes = 12;
+    /**
+     * The most POV switches the Driver Station supports.
+     */
+    public static final int maxPOVs = 12;
+
+    private int port;
+    private int buttonCount, axisCount, POVCount;
+    private int buttons;
+    private final double[] axes = new double[maxAxes];
+    private final int[] POVs = new int[maxPOVs];
+
+    /**
+     * Creates an empty snapshot, with no buttons, axes or POV switches.
+     */
+    public JoystickSnapshot() {
+    }
+
+    /**
+     * Reads the current state of the given stick into this snapshot. Buttons, axes and POV switches past the
+     * snapshot's limits are ignored.
+     *
+     * @param source The stick to read.
+     * @return This, for convenience.
+     */
+    public JoystickSnapshot capture(JoystickSource source) {
+        return capture(source, -1, -1);
+    }
+
+    /**
+     * Reads the current state of the given stick into this snapshot, skipping the axes and POV switches that aren't in
+     * the masks. Those aren't read at all, and keep whatever value the snapshot last had. Buttons are always read, since
+     * they're read all at once.
+     *
+     * @param source   The stick to read.
+     * @param axisMask A bit for each axis to read, with axis 0 in the lowest bit.
+     * @param POVMask  A bit for each POV switch to read, with POV 0 in the lowest bit.
+     * @return This, for convenience.
+     */
+    public JoystickSnapshot capture(JoystickSource source, int axisMask, int POVMask) {
+        port = source.getPort();
+        buttonCount = Math.min(source.getButtonCount(), maxButtons);
+        axisCount = Math.min(source.getAxisCount(), maxAxes);
+        POVCount = Math.min(source.getPOVCount(), maxPOVs);
+        buttons = source.getButtons() & mask(buttonCount);
+        for (int read = axisMask & mask(axisCount); read != 0; read &= read - 1) {
+            int i = Integer.numberOfTrailingZeros(read);
+            axes[i] = source.getRawAxis(i);
+        }
+        for (int read = POVMask & mask(POVCount); read != 0; read &= read - 1) {
+            int i = Integer.numberOfTrailingZeros(read);
+            POVs[i] = source.getPOV(i);
+        }
+        return this;
+    }
+
+    /**
+     * Copies another snapshot into this one.
+     *
+     * @param other The snapshot to copy.
+     * @return This, for convenience.
+     */
+    public JoystickSnapshot copy(JoystickSnapshot other) {
+        port = other.port;
+        buttonCount = other.buttonCount;
+        axisCount = other.axisCount;
+        POVCount = other.POVCount;
+        buttons = other.buttons;
+        System.arraycopy(other.axes, 0, axes, 0, axisCount);
+        System.arraycopy(other.POVs, 0, POVs, 0, POVCount);
+        return this;
+    }
+
+    /**
+     * @param count A number of buttons, axes or POV switches, up to {@link #maxButtons}.
+     * @return An int with a bit set for each of them.
+     */
+    static int mask(int count) {
+        return count >= maxButtons ? -1: (1 << count) - 1;
+    }
+
+    /**
+     * Finds the buttons that were pressed or released since the given snapshot. Walk the result with:
+     * <pre>
+     * for (int changed = now.changedButtons(before); changed != 0; changed &amp;= changed - 1) {
+     *     int button = Integer.numberOfTrailingZeros(changed) + 1;
+     *     ...
+     * }
+     * </pre>
+     *
+     * @param previous An earlier snapshot of the same stick.
+     * @return A bit for each button that changed, with button 1 in the lowest bit.
+     */
+    public int changedButtons(JoystickSnapshot previous) {
+        return buttons ^ previous.buttons;
+    }
+
+    /**
+     * Finds the buttons that differ between this snapshot and the given buttons.
+     *
+     * @param previous The state of every button, with button 1 in the lowest bit.
+     * @return A bit for each button that changed, with button 1 in the lowest bit.
+     */
+    public int changedButtons(int previous) {
+        return (buttons ^ previous) & mask(buttonCount);
+    }
+
+    @Override
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public int getButtonCount() {
+        return buttonCount;
+    }
+
+    @Override
+    public int getAxisCount() {
+        return axisCount;
+    }
+
+    @Override
+    public int getPOVCount() {
+        return POVCount;
+    }
+
+    @Override
+    public int getButtons() {
+        return buttons;
+    }
+
+    @Override
+    public boolean getRawButton(int button) {
+        return (buttons >>> (button - 1) & 1) != 0;
+    }
+
+    @Override
+    public double getRawAxis(int axis) {
+        return axes[axis];
+    }
+
+    @Override
+    public int getPOV(int pov) {
+        return POVs[pov];
+    }
+}
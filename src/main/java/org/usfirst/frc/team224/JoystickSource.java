@@ -0,0 +1,125 @@
+package org.usfirst.frc.team224;
+import edu.wpi.first.wpilibj.DriverStation;
+import edu.wpi.first.wpilibj.Joystick;
+
+/**
+ * Anything a {@link Macro} can read joystick state from: a real {@link Joystick}, a {@link simulatedJoystick}, or a
+ * fake source when running without robot hardware.
+ *
+ * @see Macro
+ * @see simulatedJoystick
+ */
+public interface JoystickSource {
+    /**
+     * @return The Driver Station port of this stick.
+     */
+    int getPort();
+
+    /**
+     * @return How many buttons are on this stick.
+     */
+    int getButtonCount();
+
+    /**
+     * @return How many axes are on this stick.
+     */
+    int getAxisCount();
+
+    /**
+     * @return How many POV switches are on this stick.
+     */
+    int getPOVCount();
+
+    /**
+     * @param button The button to check, starting at 1.
+     * @return If the given button is being pressed.
+     */
+    boolean getRawButton(int button);
+
+    /**
+     * @return The state of the first 32 buttons, with button 1 in the lowest bit.
+     */
+    default int getButtons() {
+        int buttons = 0;
+        for (int i = Math.min(getButtonCount(), JoystickSnapshot.maxButtons); i >= 1; i--)
+            buttons = buttons << 1 | (getRawButton(i) ? 1: 0);
+        return buttons;
+    }
+
+    /**
+     * @param axis The axis to check, starting at 0.
+     * @return The current value of the given axis.
+     */
+    double getRawAxis(int axis);
+
+    /**
+     * @param pov The POV switch to check, starting at 0.
+     * @return The angle of the given POV switch, or -1 if it isn't pressed.
+     */
+    int getPOV(int pov);
+
+    /**
+     * Wraps a real joystick.
+     *
+     * @param stick The joystick to read from.
+     * @return A source reading from the given joystick.
+     */
+    static JoystickSource of(Joystick stick) {
+        return new JoystickSource() {
+            @Override
+            public int getPort() {
+                return stick.getPort();
+            }
+
+            @Override
+            public int getButtonCount() {
+                return stick.getButtonCount();
+            }
+
+            @Override
+            public int getAxisCount() {
+                return stick.getAxisCount();
+            }
+
+            @Override
+            public int getPOVCount() {
+                return stick.getPOVCount();
+            }
+
+            @Override
+            public boolean getRawButton(int button) {
+                return stick.getRawButton(button);
+            }
+
+            @Override
+            public int getButtons() { //The Driver Station already packs them into an int.
+                return DriverStation.getInstance().getStickButtons(stick.getPort());
+            }
+
+            @Override
+            public double getRawAxis(int axis) {
+                return stick.getRawAxis(axis);
+            }
+
+            @Override
+            public int getPOV(int pov) {
+                return stick.getPOV(pov);
+            }
+        };
+    }
+
+    /**
+     * Wraps each of the given real joysticks.
+     *
+     * @param sticks The joysticks to read from, or null.
+     * @return A source for each joystick, or null if sticks was null.
+     */
+    static JoystickSource[] of(Joystick... sticks) {
+        if (sticks == null)
+            return null;
+        JoystickSource[] sources = new JoystickSource[sticks.length];
+        for (int i = 0; i < sticks.length; i++)
+            sources[i] = of(sticks[i]);
+        return sources;
+    }
+}
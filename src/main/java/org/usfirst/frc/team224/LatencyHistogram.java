@@ -0,0 +1,129 @@
+package org.usfirst.frc.team224;
+
+import java.util.Arrays;
+
+/**
+ * Counts how often each value (like how long something took) was seen, in the style of HdrHistogram: values below
+ * {@link #subBuckets} are counted exactly, and every doubling above that is split into {@link #subBuckets} equal
+ * buckets, so any value is counted within about 3% of itself. Recording a value is a few shifts and an increment, and
+ * never allocates.
+ * <p>
+ * Not thread-safe: record from one thread, or synchronize.
+ *
+ * @see MacroInstrumentation
+ */
+public class LatencyHistogram {
+    private static final int subBucketBits = 5;
+    /**
+     * How many buckets each doubling of the values is split into.
+     */
+    public static final int subBuckets = 1 << subBucketBits;
+    //Exact buckets for 0 to subBuckets - 1, then subBuckets buckets for each power of two from subBuckets up.
+    private static final int bucketCount = subBuckets + (63 - subBucketBits) * subBuckets;
+
+    private final long[] counts = new long[bucketCount];
+    private long count;
+    private long total;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    /**
+     * Counts a value. Negative values are counted as 0.
+     *
+     * @param value The value to count.
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts[index(value)]++;
+        count++;
+        total += value;
+        if (value < min)
+            min = value;
+        if (value > max)
+            max = value;
+    }
+
+    /**
+     * @return The bucket the given value is counted in.
+     */
+    private static int index(long value) {
+        if (value < subBuckets)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - subBucketBits; //How many low bits don't fit in a bucket.
+        return subBuckets + shift * subBuckets + (int) (value >>> shift) - subBuckets;
+    }
+
+    /**
+     * @return The largest value counted in the given bucket.
+     */
+    private static long highestValue(int index) {
+        if (index < subBuckets)
+            return index;
+        int shift = (index - subBuckets) / subBuckets;
+        long sub = subBuckets + (index - subBuckets) % subBuckets;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * @param percentile The percentile to find, from 0 to 100.
+     * @return The value the given percentage of counted values are at or below, or 0 if nothing has been counted.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (count == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target)
+                return Math.min(Math.max(highestValue(i), min), max);
+        }
+        return max;
+    }
+
+    /**
+     * @return How many values have been counted.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The average of the counted values, or 0 if nothing has been counted.
+     */
+    public double getMean() {
+        return count == 0 ? 0: (double) total / count;
+    }
+
+    /**
+     * @return The smallest counted value, or 0 if nothing has been counted.
+     */
+    public long getMin() {
+        return count == 0 ? 0: min;
+    }
+
+    /**
+     * @return The largest counted value.
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Forgets every counted value.
+     */
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = total = max = 0;
+        min = Long.MAX_VALUE;
+    }
+
+    /**
+     * @return A one-line summary: count, mean, median, 99th percentile and max.
+     */
+    public String toString() {
+        return "count=" + count + " mean=" + Math.round(getMean()) + " p50=" + getValueAtPercentile(50) + " p90=" +
+               getValueAtPercentile(90) + " p99=" + getValueAtPercentile(99) + " max=" + max;
+    }
+}
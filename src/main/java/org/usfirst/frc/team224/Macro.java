@@ -1,9 +1,11 @@
 package org.usfirst.frc.team224;
 import edu.wpi.first.wpilibj.Joystick;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.HashMap;
 
 /**
  * Allows recording during teleop, and playback of those recordings during autonomous.
@@ -14,23 +16,88 @@ import java.util.HashMap;
  * @see MacroHelper
  */
 public class Macro {
-    private Long startTime = null, stopTime = null;
-    private final Joystick[] sticks;
-    private final HashMap<Integer, simulatedJoystick> previousStateSticks;
-    private final HashMap<Integer, simulatedJoystick> initialStateSticks;
+    private Long startTime = null, stopTime = null; //Wall-clock times, only used to label when the macro was recorded.
+    private long startNanos; //When the recording started, on the macro's clock.
+    private long lengthMicros;
+    private MacroClock clock = MacroClock.systemClock;
+    private final JoystickSource[] sticks;
+    private JoystickSnapshot[] previousStates; //Each stick as of the last record(), by index in sticks.
+    private JoystickSnapshot[] currentStates; //Each stick as of this record(), swapped with previousStates after.
+    //The state of each stick when the recording was started, by Driver Station port.
+    private final simulatedJoystick[] initialStateSticks = new simulatedJoystick[JoystickDispatcher.maxPorts];
     private final int[] ids;
-    private Long playbackStart;
+    //By stick: which buttons, axes and POV switches are recorded and played back, one bit each. See setChannelMask.
+    private int[] buttonMasks, axisMasks, POVMasks;
+    private boolean masked; //If any of the masks leaves something out.
+    private long playbackStart; //On the macro's clock, in nanoseconds.
+    private int playbackIndex; //The index of the next event to play back.
+    private boolean appliedInitialState;
+    private boolean interpolated;
+    private int[] nextAxisEvents; //For each axis event, the index of the next event on the same axis, or -1.
+    private int[][] firstAxisEvents; //By stick, then axis: the index of the first event on it, or -1.
+    private int[][] axisCursors; //By stick, then axis: the index of the last event on it that has been reached, or -1.
+    private int[][] lastAxisEvents; //By stick, then axis: the index of the last event on it, while linking them.
+    private long lastAxisSample; //The last time interpolateAxes sampled the axes at, or -1. Earlier events are measured.
+    private long lastPlaybackTime; //When playback() last ran, in microseconds since playback started, or -1.
+    private long estimatedPeriod; //How often playback() is called, in microseconds.
+    private long periodJitter; //How much the time between playback() calls varies, in microseconds.
+    private long driftSamples; //How many events have been played back, and how far from their recorded times.
+    private long totalDrift;
+    private long maxDrift;
+    private MacroInstrumentation instrumentation; //Null unless measuring.
+    private MacroStream stream; //Where the rest of the events are read from while playing, or null once they're all read.
+    private boolean streamed;
+    private int streamedEvents; //Events that were played and then dropped from a streamed macro.
+    private int lastStreamedMicros; //When the last event read from the stream occurred.
     private boolean playing;
     private boolean recording;
-    private final int maxLength = 15000; //15 seconds for autonomous.
+    private MacroJournal journal;
+    private PacketCapture capture; //Where record() gets its events from, or null to read the sticks itself.
+    private long spilledEvents; //Events that were journaled and then dropped from memory.
+    private AxisFilter[][] axisFilters; //By stick, then axis. Null if no axes are filtered.
+    private double[][] recordedAxes; //The last value recorded for each filtered axis.
+    private long[][] recordedAxisTimes; //When the last value was recorded for each filtered axis, in microseconds.
+    private int lastRecordMicros; //When record() last ran.
+    private int lastEventMicros; //When the last event was appended, even if it's been spilled. Nothing goes before it.
+    private long droppedEvents; //Axis changes the filters didn't record.
+    private static final int maxLength = 15000; //15 seconds for autonomous.
     //In case the format changes and you want to convert...
-    private final byte macroFormatVersion;
-    public static final byte currentMacroFormatVersion = 1;
+    private byte macroFormatVersion;
+    /**
+     * The original format, one line of text per event. See {@link #toString()}.
+     */
+    public static final byte textMacroFormatVersion = 1;
+    /**
+     * The compact binary format, with microsecond timing. See {@link MacroCodec}. Version 2, with millisecond timing,
+     * can still be loaded.
+     */
+    public static final byte binaryMacroFormatVersion = 3;
+    public static final byte currentMacroFormatVersion = binaryMacroFormatVersion;
 
+    private static final int loopPeriod = 20; //How often teleopPeriodic runs, in milliseconds.
     /**
-     * All joystick events that occurred during the macro, in chronological order.
+     * The longest gap, in microseconds, interpolated playback ramps across. Most axis events are one or two loops apart
+     * while a stick moves, but a stick that sits still doesn't record anything, so a longer gap means the stick was held
+     * and only moved just before the next event.
      */
-    private final ArrayList<JoystickEvent> events;
+    private static final long maxInterpolationGap = 50000;
+    /**
+     * How many events a streamed macro keeps in memory, ahead of and just behind playback. See {@link MacroStream}.
+     */
+    static final int streamWindow = 256;
+    private static final int expectedEventsPerLoop = 8; //Used to size the event columns so recording never has to grow them.
+    private static final JoystickEvent.eventType[] eventTypes = JoystickEvent.eventType.values();
+
+    /**
+     * All joystick events that occurred during the macro, in chronological order. They're stored column by column, so
+     * recording an event doesn't allocate anything. Only the first {@link #eventCount} entries of each are used.
+     */
+    private int eventCount;
+    private int[] eventTimes; //Microseconds since the recording started
+    private byte[] eventTypeOrdinals;
+    private byte[] eventSticks;
+    private byte[] eventIds;
+    private double[] eventValues; //Axis/POV value, 0 for buttons
 
     /**
      * Creates a macro for recording given the sticks being used.
@@ -38,17 +105,77 @@ public class Macro {
      * @param sticks An array containing all joysticks being used in the recording.
      */
     public Macro(Joystick[] sticks) {
-        events = new ArrayList<>();
+        this(JoystickSource.of(sticks), currentMacroFormatVersion);
+    }
+
+    /**
+     * Creates a macro for recording given the sticks being used.
+     *
+     * @param sticks An array containing all joysticks being used in the recording.
+     */
+    public Macro(JoystickSource[] sticks) {
+        this(sticks, currentMacroFormatVersion);
+    }
+
+    /**
+     * Creates a macro for recording given the sticks being used, which will be saved in the given format.
+     *
+     * @param sticks             An array containing all joysticks being used in the recording.
+     * @param macroFormatVersion The format to save the macro in. ({@link #textMacroFormatVersion} or {@link #binaryMacroFormatVersion})
+     */
+    public Macro(Joystick[] sticks, byte macroFormatVersion) {
+        this(JoystickSource.of(sticks), macroFormatVersion);
+    }
+
+    /**
+     * Creates a macro for recording given the sticks being used, which will be saved in the given format.
+     *
+     * @param sticks             An array containing all joysticks being used in the recording.
+     * @param macroFormatVersion The format to save the macro in. ({@link #textMacroFormatVersion} or {@link #binaryMacroFormatVersion})
+     */
+    public Macro(JoystickSource[] sticks, byte macroFormatVersion) {
+        allocateEvents(maxLength / loopPeriod * expectedEventsPerLoop);
         this.sticks = sticks;
-        this.ids = Arrays.stream(sticks).mapToInt(Joystick::getPort).toArray();
-        previousStateSticks = new HashMap<>();
-        initialStateSticks = new HashMap<>();
-        for (Joystick stick : this.sticks) {
-            previousStateSticks.put(stick.getPort(), new simulatedJoystick(stick).update(stick));
-            // initialStateSticks cannot have pointers to previousStateSticks in it. Each simulatedJoystick must be new.
-            initialStateSticks.put(stick.getPort(), new simulatedJoystick(stick).update(stick));
-        }
-        macroFormatVersion = currentMacroFormatVersion;
+        this.ids = Arrays.stream(sticks).mapToInt(JoystickSource::getPort).toArray();
+        allocateStates();
+        for (JoystickSource stick : this.sticks)
+            initialStateSticks[port(stick.getPort())] = new simulatedJoystick(stick).update(stick);
+        setMacroFormatVersion(macroFormatVersion);
+    }
+
+    /**
+     * Creates a macro to be filled in by a loader. Call {@link #addEvent} for each event, then {@link #finishLoading}.
+     *
+     * @param sticks             The joysticks used in the recording, or null to use the ports saved in the macro.
+     * @param startTime          When the recording was started.
+     * @param initialStates      The state of each stick when the recording was started.
+     * @param macroFormatVersion The format the macro was loaded from.
+     */
+    Macro(JoystickSource[] sticks, long startTime, simulatedJoystick[] initialStates, byte macroFormatVersion) {
+        this(sticks, startTime, initialStates, macroFormatVersion, maxLength / loopPeriod * expectedEventsPerLoop);
+    }
+
+    /**
+     * Creates a macro to be filled in by a loader, with room for the given number of events before it has to grow.
+     *
+     * @param sticks             The joysticks used in the recording, or null to use the ports saved in the macro.
+     * @param startTime          When the recording was started.
+     * @param initialStates      The state of each stick when the recording was started.
+     * @param macroFormatVersion The format the macro was loaded from.
+     * @param capacity           How many events to make room for.
+     */
+    Macro(JoystickSource[] sticks, long startTime, simulatedJoystick[] initialStates, byte macroFormatVersion, int capacity) {
+        this.sticks = sticks != null ? sticks: new JoystickSource[0];
+        this.ids = sticks != null ? Arrays.stream(sticks).mapToInt(JoystickSource::getPort).toArray():
+                   Arrays.stream(initialStates).mapToInt(simulatedJoystick::getPort).toArray();
+        if (this.ids.length != initialStates.length)
+            throw new IllegalArgumentException("The macro was recorded with " + initialStates.length + " sticks, but " + ids.length + " were given.");
+        allocateStates();
+        for (int i = 0; i < ids.length; i++)
+            initialStateSticks[port(ids[i])] = initialStates[i];
+        allocateEvents(capacity);
+        this.startTime = startTime;
+        this.macroFormatVersion = macroFormatVersion;
     }
 
     /**
@@ -59,49 +186,564 @@ public class Macro {
      */
 
     public Macro(String loadedMacro, Joystick[] sticks) {
-        this(loadedMacro.split("\n"), sticks);
+        this(loadedMacro.split("\n"), JoystickSource.of(sticks));
     }
 
     /**
      * Loads a saved macro. (given the output from .toString())
      *
      * @param lines  The output from Macro.toString()
-     * @param sticks The joysticks used in the recording
+     * @param sticks The joysticks used in the recording, or null to use the ports saved in the macro.
      */
     public Macro(String[] lines, Joystick[] sticks) {
-        this.sticks = sticks;
-        this.ids = Arrays.stream(sticks).mapToInt(Joystick::getPort).toArray();
-        previousStateSticks = new HashMap<>();
-        for (Joystick stick : this.sticks)
-            previousStateSticks.put(stick.getPort(), new simulatedJoystick(stick).update(stick));
-        events = new ArrayList<>();
-        startTime = Long.parseLong(lines[0].substring(1));
-        // Read the initial state of each stick
-        initialStateSticks = new HashMap<>();
-        for (int i = 1; i <= this.sticks.length; i++)
-            initialStateSticks.put(ids[i - 1], new simulatedJoystick(lines[i]));
+        this(lines, JoystickSource.of(sticks));
+    }
+
+    /**
+     * Loads a saved macro. (given the output from .toString())
+     *
+     * @param lines  The output from Macro.toString()
+     * @param sticks The joysticks used in the recording, or null to use the ports saved in the macro.
+     */
+    public Macro(String[] lines, JoystickSource[] sticks) {
+        this(sticks, Long.parseLong(lines[0].substring(1)), readInitialStates(lines), Byte.parseByte(lines[lines.length - 1]));
 
         // Read each event, adding it to the event list in chronological order.
-        for (int i = this.sticks.length + 1; i < lines.length - 2; i++) {
-            long time = Long.parseLong(lines[i].substring(0, lines[i].indexOf(':')));
-            String[] values = lines[i].substring(lines[i].indexOf(':') + 1).split(",");
-            switch (values[0]) {
-                case "press":
-                    events.add(new JoystickEvent(JoystickEvent.eventType.PRESS, time, Integer.parseInt(values[1]), Integer.parseInt(values[2])));
-                    break;
-                case "release":
-                    events.add(new JoystickEvent(JoystickEvent.eventType.RELEASE, time, Integer.parseInt(values[1]), Integer.parseInt(values[2])));
-                    break;
-                case "axis":
-                    events.add(new JoystickEvent(JoystickEvent.eventType.AXIS, time, Integer.parseInt(values[1]), Integer.parseInt(values[2]), Double.parseDouble(values[3])));
-                    break;
-                case "POV":
-                    events.add(new JoystickEvent(JoystickEvent.eventType.POV, time, Integer.parseInt(values[1]), Integer.parseInt(values[2]), (double) Integer.parseInt(values[3])));
-                    break;
-            }
+        for (int i = ids.length + 1; i < lines.length - 2; i++)
+            addEvent(lines[i]);
+        finishLoading(Long.parseLong(lines[lines.length - 2].substring(1)));
+    }
+
+    /**
+     * Adds an event read from a macro saved in the text format. Events must be added in chronological order.
+     *
+     * @param line The event's line, as written by {@link JoystickEvent#toString()}.
+     */
+    void addEvent(String line) {
+        long time = Long.parseLong(line.substring(0, line.indexOf(':')));
+        String[] values = line.substring(line.indexOf(':') + 1).split(",");
+        switch (values[0]) {
+            case "press":
+                addEvent(JoystickEvent.eventType.PRESS, time, Integer.parseInt(values[1]), Integer.parseInt(values[2]), 0);
+                break;
+            case "release":
+                addEvent(JoystickEvent.eventType.RELEASE, time, Integer.parseInt(values[1]), Integer.parseInt(values[2]), 0);
+                break;
+            case "axis":
+                addEvent(JoystickEvent.eventType.AXIS, time, Integer.parseInt(values[1]), Integer.parseInt(values[2]), Double.parseDouble(values[3]));
+                break;
+            case "POV":
+                addEvent(JoystickEvent.eventType.POV, time, Integer.parseInt(values[1]), Integer.parseInt(values[2]), Integer.parseInt(values[3]));
+                break;
         }
-        stopTime = Long.parseLong(lines[lines.length - 2].substring(1));
-        macroFormatVersion = Byte.parseByte(lines[lines.length - 1]);
+    }
+
+    /**
+     * Reads the initial state of each stick, which are the lines after the start time containing a '|'.
+     */
+    private static simulatedJoystick[] readInitialStates(String[] lines) {
+        int count = 0;
+        while (count + 1 < lines.length && lines[count + 1].indexOf('|') >= 0)
+            count++;
+        simulatedJoystick[] initialStates = new simulatedJoystick[count];
+        for (int i = 0; i < count; i++)
+            initialStates[i] = new simulatedJoystick(lines[i + 1]);
+        return initialStates;
+    }
+
+    /**
+     * Adds an event read from a saved macro. Events must be added in chronological order.
+     *
+     * @param type  The type of event
+     * @param time  When the event occurred (using output from System.currentTimeMillis())
+     * @param stick The index of the stick in this macro's sticks.
+     * @param id    The ID of the button/axis/POV
+     * @param val   The value of the axis/POV, ignored for buttons.
+     */
+    void addEvent(JoystickEvent.eventType type, long time, int stick, int id, double val) {
+        addEventMicros(type, (time - startTime) * 1000, stick, id, val);
+    }
+
+    /**
+     * Adds an event read from a saved macro. Events must be added in chronological order.
+     *
+     * @param type   The type of event
+     * @param offset When the event occurred, in microseconds since the recording started.
+     * @param stick  The index of the stick in this macro's sticks.
+     * @param id     The ID of the button/axis/POV
+     * @param val    The value of the axis/POV, ignored for buttons.
+     * @throws IllegalArgumentException If the event is outside of the macro, or on a stick or channel it doesn't have.
+     */
+    void addEventMicros(JoystickEvent.eventType type, long offset, int stick, int id, double val) {
+        if (offset < 0 || offset > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Event at " + offset + "us is outside of the macro.");
+        checkChannel(type, stick, id);
+        appendEvent(type, (int) offset, stick, id, val);
+    }
+
+    /**
+     * Checks that an event's stick and button/axis/POV are in the macro's initial states, so a corrupt macro is
+     * rejected when it's read rather than partway through playing it.
+     *
+     * @throws IllegalArgumentException If they aren't.
+     */
+    private void checkChannel(JoystickEvent.eventType type, int stick, int id) {
+        if (stick < 0 || stick >= stickCount())
+            throw new IllegalArgumentException("Event on stick " + stick + ", but the macro has " + stickCount() + " sticks.");
+        simulatedJoystick state = getInitialState(stick);
+        int first = 0, count;
+        switch (type) {
+            case PRESS:
+            case RELEASE:
+                first = 1;
+                count = state.getButtonCount();
+                break;
+            case AXIS:
+                count = state.getAxisCount();
+                break;
+            default:
+                count = state.getPOVCount();
+        }
+        if (id < first || id >= first + count)
+            throw new IllegalArgumentException("Stick " + stick + " has no " + type + " channel " + id + '.');
+    }
+
+    /**
+     * Checks that a stick's port is one the Driver Station has.
+     *
+     * @return The port.
+     */
+    private static int port(int port) {
+        if (port < 0 || port >= JoystickDispatcher.maxPorts)
+            throw new IllegalArgumentException("There is no joystick port " + port + '.');
+        return port;
+    }
+
+    /**
+     * Allocates a snapshot of each stick for {@link #record()} to compare, and masks that let every channel through.
+     */
+    private void allocateStates() {
+        previousStates = new JoystickSnapshot[sticks.length];
+        currentStates = new JoystickSnapshot[sticks.length];
+        for (int i = 0; i < sticks.length; i++) {
+            previousStates[i] = new JoystickSnapshot();
+            currentStates[i] = new JoystickSnapshot();
+        }
+        buttonMasks = new int[ids.length];
+        axisMasks = new int[ids.length];
+        POVMasks = new int[ids.length];
+        Arrays.fill(buttonMasks, -1);
+        Arrays.fill(axisMasks, -1);
+        Arrays.fill(POVMasks, -1);
+    }
+
+    /**
+     * Allocates the event columns with the given capacity, discarding any events.
+     */
+    private void allocateEvents(int capacity) {
+        eventCount = 0;
+        eventTimes = new int[capacity];
+        eventTypeOrdinals = new byte[capacity];
+        eventSticks = new byte[capacity];
+        eventIds = new byte[capacity];
+        eventValues = new double[capacity];
+    }
+
+    /**
+     * Adds an event to the end of the event columns, growing them if they're full.
+     *
+     * @param time Microseconds since the recording started
+     */
+    private void appendEvent(JoystickEvent.eventType type, int time, int stick, int id, double val) {
+        if (eventCount == eventTimes.length) //Only happens if the recording is unusually busy, or while loading.
+            growEvents();
+        eventTimes[eventCount] = time;
+        eventTypeOrdinals[eventCount] = (byte) type.ordinal();
+        eventSticks[eventCount] = (byte) stick;
+        eventIds[eventCount] = (byte) id;
+        eventValues[eventCount] = val;
+        eventCount++;
+        lastEventMicros = time;
+    }
+
+    /**
+     * Doubles the capacity of the event columns.
+     */
+    private void growEvents() {
+        int capacity = Math.max(16, eventCount * 2);
+        eventTimes = Arrays.copyOf(eventTimes, capacity);
+        eventTypeOrdinals = Arrays.copyOf(eventTypeOrdinals, capacity);
+        eventSticks = Arrays.copyOf(eventSticks, capacity);
+        eventIds = Arrays.copyOf(eventIds, capacity);
+        eventValues = Arrays.copyOf(eventValues, capacity);
+    }
+
+    /**
+     * Drops every event from memory, keeping the columns so recording can carry on without allocating.
+     *
+     * @return How many events were dropped.
+     */
+    int discardEvents() {
+        int discarded = eventCount;
+        eventCount = 0;
+        playbackIndex = 0;
+        return discarded;
+    }
+
+    /**
+     * Has this macro read its events from the given stream as it plays, rather than all at once. Called by
+     * {@link MacroStream} once it has read the header.
+     *
+     * @param stream The stream to read events from.
+     */
+    void streamFrom(MacroStream stream) {
+        this.stream = stream;
+        streamed = true;
+    }
+
+    /**
+     * Drops the events a streamed macro has played, and reads the next ones from its stream until the window is full or
+     * the macro ends. If the stream fails, the macro ends at the last event that was read.
+     *
+     * @return If there are events left to play in memory.
+     */
+    private boolean readAhead() {
+        if (playbackIndex >= eventTimes.length / 2) { //Slide the unplayed events to the front, rather than growing.
+            int left = eventCount - playbackIndex;
+            System.arraycopy(eventTimes, playbackIndex, eventTimes, 0, left);
+            System.arraycopy(eventTypeOrdinals, playbackIndex, eventTypeOrdinals, 0, left);
+            System.arraycopy(eventSticks, playbackIndex, eventSticks, 0, left);
+            System.arraycopy(eventIds, playbackIndex, eventIds, 0, left);
+            System.arraycopy(eventValues, playbackIndex, eventValues, 0, left);
+            streamedEvents += playbackIndex;
+            playbackIndex = 0;
+            eventCount = left;
+        }
+        try {
+            while (eventCount < eventTimes.length && stream.readEvent())
+                lastStreamedMicros = eventTimes[eventCount - 1];
+            if (stream.isFinished())
+                stream = null;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not read the rest of the macro (" + e + "), it ends after " + lastStreamedMicros / 1000 + "ms.");
+            endStream();
+        }
+        return playbackIndex < eventCount;
+    }
+
+    /**
+     * Reads every event left in a streamed macro into memory.
+     */
+    private void readAll() {
+        while (stream != null) {
+            if (eventCount == eventTimes.length) //Make room, since nothing is dropped until it's been played.
+                growEvents();
+            readAhead();
+        }
+    }
+
+    /**
+     * Receives a macro's events one at a time, as primitives rather than {@link JoystickEvent}s.
+     *
+     * @see #forEachEvent(EventVisitor)
+     */
+    @FunctionalInterface
+    interface EventVisitor {
+        /**
+         * @param type         The type of event
+         * @param offsetMicros When the event occurred, in microseconds since the recording started.
+         * @param stick        The index of the stick in the macro's sticks.
+         * @param id           The ID of the button/axis/POV
+         * @param val          The value of the axis/POV, or 0 for buttons.
+         */
+        void event(JoystickEvent.eventType type, int offsetMicros, int stick, int id, double val);
+    }
+
+    /**
+     * Hands every event to the visitor, in chronological order, without allocating. A {@link #isStreamed() streamed}
+     * macro reads the rest of its events as it goes, dropping the ones visited, so it never has more than
+     * {@link #streamWindow} in memory. Like playing it, that can only be done once.
+     *
+     * @param visitor What to hand the events to.
+     * @throws IllegalStateException If the macro is streamed and has already dropped events.
+     */
+    void forEachEvent(EventVisitor visitor) {
+        if (streamedEvents > 0)
+            throw new IllegalStateException("A streamed macro can only be read once. Load it again to read it.");
+        int i = 0;
+        while (true) {
+            for (; i < eventCount; i++)
+                visitor.event(eventType(i), eventTimes[i], eventSticks[i], eventId(i), eventValues[i]);
+            if (stream == null)
+                return;
+            playbackIndex = eventCount; //Everything in memory has been visited, so it can be dropped.
+            readAhead();
+            i = playbackIndex;
+        }
+    }
+
+    /**
+     * Stops reading a streamed macro, ending it at the last event that was read.
+     */
+    private void endStream() {
+        if (stream == null)
+            return;
+        try {
+            stream.close();
+        } catch (IOException ignored) {
+        }
+        stream = null;
+        if (stopTime == null)
+            finishLoadingMicros(lastStreamedMicros);
+    }
+
+    /**
+     * @return If this macro is read from a {@link MacroStream} as it plays. A streamed macro drops the events it has
+     * played, so it can only be played once.
+     */
+    public boolean isStreamed() {
+        return streamed;
+    }
+
+    /**
+     * Marks a macro being loaded as complete.
+     *
+     * @param stopTime When the recording was stopped.
+     */
+    void finishLoading(long stopTime) {
+        finishLoadingMicros((stopTime - startTime) * 1000);
+    }
+
+    /**
+     * Marks a macro being loaded as complete.
+     *
+     * @param lengthMicros How long the recording was, in microseconds.
+     */
+    void finishLoadingMicros(long lengthMicros) {
+        this.lengthMicros = lengthMicros;
+        this.stopTime = startTime + lengthMicros / 1000;
+    }
+
+    /**
+     * @return How many events this macro contains.
+     */
+    int eventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Creates a JoystickEvent for the event at the given index. Use the other event accessors to avoid allocating.
+     *
+     * @param i The index of the event, in chronological order.
+     * @return The event at the given index.
+     */
+    JoystickEvent getEvent(int i) {
+        JoystickEvent.eventType type = eventType(i);
+        if (type == JoystickEvent.eventType.PRESS || type == JoystickEvent.eventType.RELEASE)
+            return new JoystickEvent(type, eventTime(i), eventSticks[i], eventId(i));
+        return new JoystickEvent(type, eventTime(i), eventSticks[i], eventId(i), eventValues[i]);
+    }
+
+    /**
+     * @param i The index of the event, in chronological order.
+     * @return When the event occurred. (using output from System.currentTimeMillis())
+     */
+    long eventTime(int i) {
+        return startTime + eventTimes[i] / 1000;
+    }
+
+    /**
+     * @param i The index of the event, in chronological order.
+     * @return When the event occurred, in microseconds since the recording started.
+     */
+    int eventOffsetMicros(int i) {
+        return eventTimes[i];
+    }
+
+    /**
+     * @param i The index of the event, in chronological order.
+     * @return The type of the event.
+     */
+    JoystickEvent.eventType eventType(int i) {
+        return eventTypes[eventTypeOrdinals[i]];
+    }
+
+    /**
+     * @param i The index of the event, in chronological order.
+     * @return The index of the stick in this macro's sticks the event came from.
+     */
+    int eventStick(int i) {
+        return eventSticks[i];
+    }
+
+    /**
+     * @param i The index of the event, in chronological order.
+     * @return The ID of the button/axis/POV the event came from.
+     */
+    int eventId(int i) {
+        return eventIds[i] & 0xFF;
+    }
+
+    /**
+     * @param i The index of the event, in chronological order.
+     * @return The value of the axis/POV, or 0 for buttons.
+     */
+    double eventValue(int i) {
+        return eventValues[i];
+    }
+
+    /**
+     * @return How many sticks this macro was recorded with.
+     */
+    int stickCount() {
+        return ids.length;
+    }
+
+    /**
+     * @param i The index of the stick in this macro's sticks.
+     * @return The Driver Station port of the given stick.
+     */
+    int stickPort(int i) {
+        return ids[i];
+    }
+
+    /**
+     * @param i The index of the stick in this macro's sticks.
+     * @return The state of the given stick when the recording was started.
+     */
+    simulatedJoystick getInitialState(int i) {
+        return initialStateSticks[ids[i]];
+    }
+
+    /**
+     * Sets which buttons, axes and POV switches of a stick are recorded and played back. Channels left out of the
+     * masks aren't read while recording, so they never make events or take up room in the saved macro. When playing,
+     * their events and initial state are skipped, so whatever else sets them isn't overridden. Every channel is
+     * included by default. The masks aren't saved with the macro.
+     *
+     * @param stick   The index of the stick in this macro's sticks.
+     * @param buttons A bit for each button to include, with button 1 in the lowest bit.
+     * @param axes    A bit for each axis to include, with axis 0 in the lowest bit.
+     * @param POVs    A bit for each POV switch to include, with POV 0 in the lowest bit.
+     */
+    public void setChannelMask(int stick, int buttons, int axes, int POVs) {
+        if (recording)
+            throw new IllegalStateException("Channel masks can't be changed while recording.");
+        buttonMasks[stick] = buttons;
+        axisMasks[stick] = axes;
+        POVMasks[stick] = POVs;
+        masked = false;
+        for (int i = 0; i < ids.length; i++)
+            masked |= (buttonMasks[i] & axisMasks[i] & POVMasks[i]) != -1;
+    }
+
+    /**
+     * @param stick The index of the stick in this macro's sticks.
+     * @return The buttons of the stick that are recorded and played back, with button 1 in the lowest bit.
+     */
+    public int getButtonMask(int stick) {
+        return buttonMasks[stick];
+    }
+
+    /**
+     * @param stick The index of the stick in this macro's sticks.
+     * @return The axes of the stick that are recorded and played back, with axis 0 in the lowest bit.
+     */
+    public int getAxisMask(int stick) {
+        return axisMasks[stick];
+    }
+
+    /**
+     * @param stick The index of the stick in this macro's sticks.
+     * @return The POV switches of the stick that are recorded and played back, with POV 0 in the lowest bit.
+     */
+    public int getPOVMask(int stick) {
+        return POVMasks[stick];
+    }
+
+    /**
+     * @param type  The type of event
+     * @param stick The index of the stick in this macro's sticks.
+     * @param id    The ID of the button/axis/POV
+     * @return If the channel is in the stick's mask.
+     */
+    private boolean isInMask(JoystickEvent.eventType type, int stick, int id) {
+        switch (type) {
+            case PRESS:
+            case RELEASE:
+                return (buttonMasks[stick] >>> (id - 1) & 1) != 0;
+            case AXIS:
+                return (axisMasks[stick] >>> id & 1) != 0;
+            default:
+                return (POVMasks[stick] >>> id & 1) != 0;
+        }
+    }
+
+    /**
+     * @return The format this macro will be saved in.
+     */
+    public byte getMacroFormatVersion() {
+        return macroFormatVersion;
+    }
+
+    /**
+     * Sets the format this macro will be saved in.
+     *
+     * @param macroFormatVersion {@link #textMacroFormatVersion} or {@link #binaryMacroFormatVersion}
+     */
+    public void setMacroFormatVersion(byte macroFormatVersion) {
+        if (macroFormatVersion != textMacroFormatVersion && macroFormatVersion != binaryMacroFormatVersion)
+            throw new IllegalArgumentException("Unknown macro format version " + macroFormatVersion + '.');
+        this.macroFormatVersion = macroFormatVersion;
+    }
+
+    /**
+     * Serializes this macro in the format given by {@link #getMacroFormatVersion()}.
+     *
+     * @return The macro as bytes, which can be loaded later using {@link #load(byte[], JoystickSource[])}.
+     */
+    public byte[] toBytes() {
+        return macroFormatVersion == textMacroFormatVersion ? this.toString().getBytes(StandardCharsets.UTF_8):
+               MacroCodec.encode(this);
+    }
+
+    /**
+     * Loads a saved macro in any format, detecting which one it is.
+     *
+     * @param data   The output from {@link #toBytes()} or {@link #toString()}
+     * @param sticks The joysticks used in the recording
+     * @return The loaded macro.
+     */
+    public static Macro load(byte[] data, Joystick[] sticks) {
+        return load(data, JoystickSource.of(sticks));
+    }
+
+    /**
+     * Loads a saved macro in any format, detecting which one it is.
+     *
+     * @param data   The output from {@link #toBytes()} or {@link #toString()}
+     * @param sticks The joysticks used in the recording, or null to use the ports saved in the macro.
+     * @return The loaded macro.
+     */
+    public static Macro load(byte[] data, JoystickSource[] sticks) {
+        return MacroCodec.isBinary(data) ? MacroCodec.decode(data, sticks):
+               new Macro(new String(data, StandardCharsets.UTF_8).split("\n"), sticks);
+    }
+
+    /**
+     * Loads a saved macro in any format, straight out of a buffer. Binary macros are read from the buffer without being
+     * copied, which is how {@link MacroPack} opens macros from its memory-mapped file.
+     *
+     * @param data   The output from {@link #toBytes()}, from the buffer's position to its limit. The buffer isn't changed.
+     * @param sticks The joysticks used in the recording, or null to use the ports saved in the macro.
+     * @return The loaded macro.
+     */
+    static Macro load(ByteBuffer data, JoystickSource[] sticks) {
+        if (MacroCodec.isBinary(data))
+            return MacroCodec.decode(data.duplicate(), sticks, false);
+        byte[] text = new byte[data.remaining()]; //Text has to be copied into a String anyway.
+        data.duplicate().get(text);
+        return load(text, sticks);
     }
 
     /**
@@ -113,15 +755,138 @@ public class Macro {
         if (this.startTime == null) {
             recording = true;
             this.startTime = System.currentTimeMillis();
+            this.startNanos = clock.nanoTime();
             for (int i = 0; i < sticks.length; i++) {
-                previousStateSticks.get(ids[i]).update(sticks[i]);
-                initialStateSticks.get(ids[i]).update(sticks[i]);
+                previousStates[i].capture(sticks[i]);
+                initialStateSticks[ids[i]].update(previousStates[i]);
             }
+            if (capture != null) //Anything captured before now is already in the initial state.
+                capture.skip();
+            if (axisFilters != null) {
+                recordedAxes = new double[sticks.length][];
+                recordedAxisTimes = new long[sticks.length][];
+                for (int i = 0; i < sticks.length; i++) {
+                    recordedAxes[i] = new double[axisFilters[i].length];
+                    recordedAxisTimes[i] = new long[axisFilters[i].length];
+                    for (int j = 0; j < axisFilters[i].length; j++) {
+                        recordedAxes[i][j] = initialStateSticks[ids[i]].getRawAxis(j);
+                        recordedAxisTimes[i][j] = Long.MIN_VALUE / 2; //Long enough ago that the rate limit doesn't apply.
+                    }
+                }
+            }
+            if (journal != null)
+                try {
+                    journal.start(this);
+                } catch (IOException e) {
+                    System.err.println("Could not start the macro journal, recording in memory instead.");
+                    journal = null;
+                }
             return true;
         }
         return false;
     }
 
+    /**
+     * Streams this macro to disk while it's being recorded. Must be called before {@link #startRecording()}.
+     * <p>
+     * A journaled recording isn't limited to 15 seconds. Once the events in memory fill up, they're dropped (they're
+     * already in the journal), so a long recording has to be loaded from its file to be played back.
+     *
+     * @param journal The journal to write to, or null to only record in memory.
+     */
+    public void setJournal(MacroJournal journal) {
+        if (this.startTime != null)
+            throw new IllegalStateException("The journal must be set before recording starts.");
+        this.journal = journal;
+    }
+
+    /**
+     * Records every change a {@link PacketCapture} sees, stamped with when its Driver Station packet arrived, instead
+     * of reading the sticks each time {@link #record()} is called. {@link #record()} still has to be called every loop,
+     * to drain the capture. Must be called before {@link #startRecording()}. The macro uses the capture's clock, so
+     * their times line up.
+     *
+     * @param capture The running capture, with the same sticks as this macro, or null to read the sticks in
+     *                {@link #record()}.
+     */
+    public void setCapture(PacketCapture capture) {
+        if (this.startTime != null)
+            throw new IllegalStateException("The capture must be set before recording starts.");
+        if (capture != null) {
+            if (capture.getStickCount() != sticks.length)
+                throw new IllegalArgumentException("The capture has " + capture.getStickCount() + " sticks, but the macro has " + sticks.length + '.');
+            setClock(capture.getClock());
+        }
+        this.capture = capture;
+    }
+
+    /**
+     * @return The capture this macro records from, or null if it reads the sticks itself.
+     */
+    public PacketCapture getCapture() {
+        return capture;
+    }
+
+    /**
+     * Filters which movements of every axis are recorded. Must be called before {@link #startRecording()}.
+     *
+     * @param filter The filter to use, like {@link AxisFilter#gamepad}, or null to record every change.
+     */
+    public void setAxisFilter(AxisFilter filter) {
+        for (int i = 0; i < sticks.length; i++)
+            for (int j = 0; j < sticks[i].getAxisCount(); j++)
+                setAxisFilter(i, j, filter);
+    }
+
+    /**
+     * Filters which movements of the given axis are recorded. Must be called before {@link #startRecording()}.
+     *
+     * @param stick  The index of the stick in this macro's sticks.
+     * @param axis   The axis on that stick.
+     * @param filter The filter to use, or null to record every change.
+     */
+    public void setAxisFilter(int stick, int axis, AxisFilter filter) {
+        if (this.startTime != null)
+            throw new IllegalStateException("Axis filters must be set before recording starts.");
+        if (axisFilters == null) {
+            axisFilters = new AxisFilter[sticks.length][];
+            for (int i = 0; i < sticks.length; i++)
+                axisFilters[i] = new AxisFilter[sticks[i].getAxisCount()];
+        }
+        axisFilters[stick][axis] = filter;
+    }
+
+    /**
+     * @param stick The index of the stick in this macro's sticks.
+     * @param axis  The axis on that stick.
+     * @return The filter used for the given axis, or null if every change is recorded.
+     */
+    public AxisFilter getAxisFilter(int stick, int axis) {
+        return axisFilters != null && axis < axisFilters[stick].length ? axisFilters[stick][axis]: null;
+    }
+
+    /**
+     * @return How many axis changes weren't recorded because of the {@link AxisFilter axis filters}, including events
+     * dropped when the recording was simplified.
+     */
+    public long getDroppedEvents() {
+        return droppedEvents;
+    }
+
+    /**
+     * @return The journal this macro is being streamed to, or null if it's only in memory.
+     */
+    public MacroJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * @return If some of this macro's events were dropped from memory after being journaled.
+     */
+    public boolean isSpilled() {
+        return spilledEvents > 0;
+    }
+
     /**
      * Stops recording a macro.
      *
@@ -130,7 +895,17 @@ public class Macro {
     public boolean stopRecording() {
         if (this.startTime != null) {
             recording = false;
-            this.stopTime = System.currentTimeMillis();
+            this.lengthMicros = (clock.nanoTime() - startNanos) / 1000;
+            this.stopTime = startTime + lengthMicros / 1000;
+            boolean simplified = false;
+            if (recordedAxes != null) {
+                recordHeldAxes();
+                if (spilledEvents == 0) //Once events are spilled, only the journal has all of them.
+                    simplified = simplifyAxes() > 0;
+                recordedAxes = null;
+            }
+            if (journal != null) //The journal has every event, so it's replaced if some were simplified away.
+                journal.finish(lengthMicros, simplified ? this: null);
             return true;
         }
         return false;
@@ -140,52 +915,301 @@ public class Macro {
      * @return The length, in milliseconds, of the recording, or null if the recording is unfinished or not started.
      */
     public Long length() {
-        return (this.stopTime != null && this.startTime != null) ? this.stopTime - this.startTime: null;
+        return (this.stopTime != null && this.startTime != null) ? lengthMicros / 1000: null;
+    }
+
+    /**
+     * @return The length, in microseconds, of the recording, or 0 if the recording is unfinished or not started.
+     */
+    public long lengthMicros() {
+        return this.stopTime != null ? lengthMicros: 0;
+    }
+
+    /**
+     * Sets the clock used to time recording and playback. Defaults to {@link MacroClock#systemClock}.
+     *
+     * @param clock The clock to use, like {@link MacroClock#fpgaClock} or a {@link VirtualClock}.
+     */
+    public void setClock(MacroClock clock) {
+        if (recording || playing)
+            throw new IllegalStateException("The clock can't be changed while recording or playing.");
+        this.clock = clock;
+    }
+
+    /**
+     * @return The clock used to time recording and playback.
+     */
+    public MacroClock getClock() {
+        return clock;
     }
 
     /**
      * Plays back any events that are ready to be played. Put this in the beginning of teleop, but after checking for the button to start/stop recording.
+     * <p>
+     * Playback doesn't consume the macro, so it can be played again after {@link #rewind()} or {@link #startPlaying()}.
      *
      * @param sticks The joysticks to be changed by the recording.
      * @return If it is currently isPlaying.
      */
     public boolean playback(simulatedJoystick[] sticks) {
-        if (System.currentTimeMillis() - playbackStart >= Math.min(this.length(), maxLength)) { //If the macro ended or exceeded maximum length
-            this.stopPlaying();
+        if (this.stopTime == null && stream == null || !playing) //If it's in mid-recording or startPlaying() hasn't been called yet
             return false;
+        long tickStart = instrumentation != null ? System.nanoTime(): 0;
+        int firstPlayed = playbackIndex;
+        if (!appliedInitialState) { //If it's the beginning of the playback.
+            for (int i = 0; i < ids.length; i++)
+                if (masked)
+                    sticks[i].update(initialStateSticks[ids[i]], buttonMasks[i], axisMasks[i], POVMasks[i]);
+                else
+                    sticks[i].update(initialStateSticks[ids[i]]);
+            appliedInitialState = true;
         }
-        if (this.stopTime == null || !playing) //If it's in mid-recording or startPlaying() hasn't been called yet
+        long time = (clock.nanoTime() - playbackStart) / 1000;
+        if (stream != null)
+            readAhead();
+        long end = playbackEnd();
+        if (lastPlaybackTime >= 0) { //Keep track of how often the robot loop actually runs.
+            long period = time - lastPlaybackTime;
+            periodJitter += (Math.abs(period - estimatedPeriod) - periodJitter) / 4;
+            estimatedPeriod += (period - estimatedPeriod) / 8;
+        }
+        lastPlaybackTime = time;
+        //When interpolating, anything due closer to now than to the next loop is run now, rather than a loop late. A
+        //jittery loop makes the next one likely to be later, which makes waiting for it worse.
+        long horizon = interpolated ? time + (estimatedPeriod + periodJitter) / 2: time;
+        // Run every event that is ready to be run, up to the end of the macro.
+        while ((playbackIndex < eventCount || stream != null && readAhead()) && eventTimes[playbackIndex] <= horizon &&
+               eventTimes[playbackIndex] <= end) {
+            if (interpolated && eventTypeOrdinals[playbackIndex] == JoystickEvent.eventType.AXIS.ordinal()) {
+                playbackIndex++; //Axes are set by interpolateAxes instead.
+                continue;
+            }
+            if (masked && !isInMask(eventType(playbackIndex), eventSticks[playbackIndex], eventId(playbackIndex))) {
+                playbackIndex++;
+                continue;
+            }
+            recordDrift(time - eventTimes[playbackIndex]);
+            switch (eventType(playbackIndex)) {
+                case PRESS:
+                    sticks[eventSticks[playbackIndex]].setButton(eventId(playbackIndex), true);
+                    break;
+                case RELEASE:
+                    sticks[eventSticks[playbackIndex]].setButton(eventId(playbackIndex), false);
+                    break;
+                case POV:
+                    sticks[eventSticks[playbackIndex]].setPOV(eventId(playbackIndex), (int) eventValues[playbackIndex]);
+                    break;
+                case AXIS:
+                    sticks[eventSticks[playbackIndex]].setAxis(eventId(playbackIndex), eventValues[playbackIndex]);
+                    break;
+            }
+            playbackIndex++;
+        }
+        if (interpolated)
+            interpolateAxes(sticks, Math.min(horizon, end));
+        if (instrumentation != null)
+            instrumentation.playbackTick(System.nanoTime() - tickStart, playbackIndex - firstPlayed);
+        end = playbackEnd(); //The end of a streamed macro is only known once it's been read.
+        if (time >= end) { //If the macro ended or exceeded maximum length
+            this.stopPlaying();
             return false;
-        if (playbackStart == null) { //If it's the beginning of the playback.
-            playbackStart = System.currentTimeMillis();
-            for (int i = 0; i < ids.length; i++)
-                sticks[i].update(initialStateSticks.get(ids[i]));
         }
-        JoystickEvent event;
-        //If 15 seconds (or the length of the macro) has passed or there are no events left.
-        while (System.currentTimeMillis() - playbackStart <= Math.max(this.length(), maxLength) && !events.isEmpty()) {
-            event = events.get(0);
-            // If the current event is ready to be run, run it.
-            if (event.getTime() - this.getStartTime() <= System.currentTimeMillis() - playbackStart)
-                switch (event.getEventType()) {
-                    case PRESS:
-                        sticks[event.getStickId()].setButton(event.getID(), true);
-                        break;
-                    case RELEASE:
-                        sticks[event.getStickId()].setButton(event.getID(), false);
-                        break;
-                    case POV:
-                        sticks[event.getStickId()].setPOV(event.getID(), event.getPOVValue());
-                        break;
-                    case AXIS:
-                        sticks[event.getStickId()].setAxis(event.getID(), event.getVal());
-                        break;
-                }
+        return true;
+    }
+
+    /**
+     * Counts how early or late an event was played, for {@link #getMeanDrift()} and the instrumentation.
+     *
+     * @param drift How late the event was played, in microseconds. Negative if it was early.
+     */
+    private void recordDrift(long drift) {
+        driftSamples++;
+        totalDrift += drift;
+        maxDrift = Math.max(maxDrift, Math.abs(drift));
+        if (instrumentation != null)
+            instrumentation.playbackLag(drift);
+    }
+
+    /**
+     * @return When playback ends, in microseconds since it started.
+     */
+    private long playbackEnd() {
+        return stream != null ? maxLength * 1000L: Math.min(lengthMicros, maxLength * 1000L);
+    }
+
+    /**
+     * Moves playback back to the beginning of the macro, so the next {@link #playback} call starts over from the
+     * initial stick states. If the macro is playing, it keeps playing from the beginning.
+     *
+     * @throws IllegalStateException If the macro is {@link #isStreamed() streamed} and has already dropped events.
+     */
+    public void rewind() {
+        if (streamedEvents > 0)
+            throw new IllegalStateException("A streamed macro can only be played once. Load it again to replay it.");
+        playbackIndex = 0;
+        appliedInitialState = false;
+        playbackStart = clock.nanoTime();
+        lastPlaybackTime = -1;
+        estimatedPeriod = loopPeriod * 1000L;
+        periodJitter = 0;
+        driftSamples = totalDrift = maxDrift = 0;
+        if (interpolated)
+            prepareInterpolation();
+    }
+
+    /**
+     * Links each axis event to the next one on the same axis, so {@link #interpolateAxes} can find the events on either
+     * side of the current time without searching.
+     */
+    private void prepareInterpolation() {
+        if (nextAxisEvents == null || nextAxisEvents.length < eventCount) {
+            nextAxisEvents = new int[eventCount];
+            firstAxisEvents = new int[ids.length][];
+            axisCursors = new int[ids.length][];
+            lastAxisEvents = new int[ids.length][];
+            for (int i = 0; i < ids.length; i++) {
+                firstAxisEvents[i] = new int[getInitialState(i).getAxisCount()];
+                axisCursors[i] = new int[firstAxisEvents[i].length];
+                lastAxisEvents[i] = new int[firstAxisEvents[i].length];
+            }
+        }
+        for (int i = 0; i < ids.length; i++) {
+            Arrays.fill(firstAxisEvents[i], -1);
+            Arrays.fill(axisCursors[i], -1);
+            Arrays.fill(lastAxisEvents[i], -1);
+        }
+        lastAxisSample = lastPlaybackTime; //Events played before interpolation was turned on were already measured.
+        for (int k = 0; k < eventCount; k++) {
+            nextAxisEvents[k] = -1;
+            if (eventTypeOrdinals[k] != JoystickEvent.eventType.AXIS.ordinal() || eventId(k) >= firstAxisEvents[eventSticks[k]].length)
+                continue;
+            int stick = eventSticks[k], axis = eventId(k);
+            if (lastAxisEvents[stick][axis] < 0)
+                firstAxisEvents[stick][axis] = k;
             else
-                break;
-            events.remove(0);
+                nextAxisEvents[lastAxisEvents[stick][axis]] = k;
+            lastAxisEvents[stick][axis] = k;
         }
-        return true;
+    }
+
+    /**
+     * Sets every axis to its recorded value at the given time, drawing a straight line between the events on either
+     * side of it. Gaps longer than {@link #maxInterpolationGap} are held until that long before the next event.
+     * <p>
+     * Each axis event is measured for {@link #getMeanDrift()} once, by how far it is from the closest time the axes
+     * were sampled at: this time, or the last one.
+     *
+     * @param sticks The joysticks being played back to.
+     * @param time   Microseconds since playback started.
+     */
+    private void interpolateAxes(simulatedJoystick[] sticks, long time) {
+        for (int i = 0; i < axisCursors.length; i++)
+            for (int j = 0; j < axisCursors[i].length && j < sticks[i].getAxisCount(); j++) {
+                if ((axisMasks[i] >>> j & 1) == 0)
+                    continue;
+                int reached = axisCursors[i][j];
+                int next = reached < 0 ? firstAxisEvents[i][j]: nextAxisEvents[reached];
+                while (next >= 0 && eventTimes[next] <= time) {
+                    if (eventTimes[next] > lastAxisSample) {
+                        long late = time - eventTimes[next], early = eventTimes[next] - lastAxisSample;
+                        recordDrift(lastAxisSample >= 0 && early < late ? -early: late);
+                    }
+                    reached = next;
+                    next = nextAxisEvents[next];
+                }
+                axisCursors[i][j] = reached;
+                double value = reached < 0 ? getInitialState(i).getRawAxis(j): eventValues[reached];
+                if (next >= 0) {
+                    long rampStart = Math.max(reached < 0 ? 0: eventTimes[reached], eventTimes[next] - maxInterpolationGap);
+                    if (time > rampStart)
+                        value += (eventValues[next] - value) * (time - rampStart) / (eventTimes[next] - rampStart);
+                }
+                sticks[i].setAxis(j, value);
+            }
+        lastAxisSample = time;
+    }
+
+    /**
+     * Sets whether axes are interpolated during playback. Can be changed while the macro is playing.
+     * <p>
+     * Normally, an event is played back on the first loop after its recorded time, so it's up to a loop late, and the
+     * robot's loop usually isn't in step with the loop that recorded it. When interpolating, buttons and POV switches
+     * are played on whichever loop is closest to when they were recorded, even if that's slightly early. Each axis is
+     * set to a straight line between its recorded values, sampled halfway to the next loop: that's the time up to which
+     * buttons are played early, and the middle of the time the value is held for, so axes stay in step with the buttons
+     * recorded with them. The time of the next loop is estimated from how often and how steadily playback has been
+     * called. Use {@link #getMeanDrift()} to compare the two.
+     * <p>
+     * Interpolating needs every event, so a {@link #isStreamed() streamed} macro is read to the end first.
+     *
+     * @param interpolated If axes should be interpolated.
+     */
+    public void setInterpolated(boolean interpolated) {
+        if (interpolated && !this.interpolated) {
+            readAll();
+            prepareInterpolation();
+        }
+        this.interpolated = interpolated;
+    }
+
+    /**
+     * @return If axes are interpolated during playback.
+     */
+    public boolean isInterpolated() {
+        return interpolated;
+    }
+
+    /**
+     * Measures how long {@link #record()} and {@link #playback} take, and how late events are played.
+     *
+     * @param instrumentation Where to keep the measurements, or null to stop measuring.
+     */
+    public void setInstrumentation(MacroInstrumentation instrumentation) {
+        this.instrumentation = instrumentation;
+    }
+
+    /**
+     * @return Where measurements are kept, or null if nothing is being measured.
+     */
+    public MacroInstrumentation getInstrumentation() {
+        return instrumentation;
+    }
+
+    /**
+     * @return How often {@link #playback} is being called, in microseconds, averaged over the last few loops.
+     */
+    public long getEstimatedLoopPeriod() {
+        return estimatedPeriod;
+    }
+
+    /**
+     * @return How much the time between {@link #playback} calls varies, in microseconds.
+     */
+    public long getLoopJitter() {
+        return periodJitter;
+    }
+
+    /**
+     * @return How late, in microseconds, the events played back so far were on average, compared to when they were
+     * recorded. Negative if they were early. Interpolated axis events are counted by how far they were from the closest
+     * time the axes were sampled at, so both modes count every event.
+     */
+    public double getMeanDrift() {
+        return driftSamples == 0 ? 0: (double) totalDrift / driftSamples;
+    }
+
+    /**
+     * @return The furthest, in microseconds, an event played back so far was from when it was recorded, early or late.
+     */
+    public long getMaxDrift() {
+        return maxDrift;
+    }
+
+    /**
+     * @return How many events have been played back since the macro started playing.
+     */
+    public int getPlaybackPosition() {
+        return streamedEvents + playbackIndex;
     }
 
     /**
@@ -204,27 +1228,224 @@ public class Macro {
     }
 
     /**
-     * Starts recording the current change in the joysticks.
+     * Starts recording the current change in the joysticks. Doesn't allocate anything unless the macro has more events
+     * than expected.
      */
     public void record() {
-        if (System.currentTimeMillis() - startTime > maxLength) { //Stop it at 15 seconds.
+        long tickStart = instrumentation != null ? System.nanoTime(): 0;
+        long time = (clock.nanoTime() - startNanos) / 1000;
+        if (time > maxLength * 1000L && journal == null || time > Integer.MAX_VALUE) { //Stop it at 15 seconds, unless it's going to disk.
             this.stopRecording();
             return;
         }
         recording = true;
-        for (int i = 0; i < sticks.length; i++) { //Check all of the sticks for changes
-            for (int j = 1; j <= sticks[i].getButtonCount(); j++) //Check if any buttons were pressed or released
-                if (previousStateSticks.get(ids[i]).getRawButton(j) != sticks[i].getRawButton(j)) //Button was pressed or released
-                    events.add(new JoystickEvent(previousStateSticks.get(ids[i]).getRawButton(i) ? JoystickEvent.eventType.RELEASE: JoystickEvent.eventType.PRESS, i, j));
-
-            for (int j = 0; j < sticks[i].getAxisCount(); j++) //Check if any axes moved
-                if (previousStateSticks.get(ids[i]).getRawAxis(j) != sticks[i].getRawAxis(j)) //Axis moved
-                    events.add(new JoystickEvent(JoystickEvent.eventType.AXIS, i, j, sticks[i].getRawAxis(j)));
-
-            for (int j = 0; j < sticks[i].getPOVCount(); j++) //Check if any POV switch was moved
-                if (previousStateSticks.get(ids[i]).getPOV(j) != sticks[i].getPOV(j))
-                    events.add(new JoystickEvent(JoystickEvent.eventType.POV, i, j, (double) sticks[i].getPOV(j)));
-            previousStateSticks.get(ids[i]).update(sticks[i]); //Update the last state for next time
+        if (journal != null && eventCount >= eventTimes.length / 2) //Spill, rather than growing the columns.
+            spilledEvents += discardEvents();
+        int firstNewEvent = eventCount;
+        if (capture != null) { //The capture thread has already found the changes in every packet since the last loop.
+            capture.drainTo(this);
+            //Packets can arrive while draining, so now is after every event it added.
+            time = Math.max((clock.nanoTime() - startNanos) / 1000, lastEventMicros);
+            if (recordedAxes != null)
+                recordPendingAxes((int) time, false);
+        } else {
+            for (int i = 0; i < sticks.length; i++) { //Check all of the sticks for changes
+                JoystickSnapshot previous = previousStates[i];
+                //Read every button, axis and POV in the masks once
+                JoystickSnapshot current = currentStates[i].capture(sticks[i], axisMasks[i], POVMasks[i]);
+                //Check if any buttons were pressed or released, one bit per button
+                for (int changed = current.changedButtons(previous) & buttonMasks[i]; changed != 0; changed &= changed - 1) {
+                    int j = Integer.numberOfTrailingZeros(changed) + 1;
+                    appendEvent(current.getRawButton(j) ? JoystickEvent.eventType.PRESS: JoystickEvent.eventType.RELEASE, (int) time, i, j, 0);
+                }
+
+                //Check if any axes moved
+                for (int axes = axisMasks[i] & JoystickSnapshot.mask(current.getAxisCount()); axes != 0; axes &= axes - 1) {
+                    int j = Integer.numberOfTrailingZeros(axes);
+                    double position = current.getRawAxis(j);
+                    AxisFilter filter = recordedAxes != null && j < recordedAxes[i].length ? axisFilters[i][j]: null;
+                    if (filter == null) {
+                        if (previous.getRawAxis(j) != position) //Axis moved
+                            appendEvent(JoystickEvent.eventType.AXIS, (int) time, i, j, position);
+                    } else {
+                        double value = filter.apply(position);
+                        if (filter.shouldRecord(value, recordedAxes[i][j], time - recordedAxisTimes[i][j])) {
+                            appendEvent(JoystickEvent.eventType.AXIS, (int) time, i, j, value);
+                            recordedAxes[i][j] = value;
+                            recordedAxisTimes[i][j] = time;
+                        } else if (previous.getRawAxis(j) != position) //Axis moved, but not enough to record
+                            droppedEvents++;
+                    }
+                }
+
+                //Check if any POV switch was moved
+                for (int POVs = POVMasks[i] & JoystickSnapshot.mask(current.getPOVCount()); POVs != 0; POVs &= POVs - 1) {
+                    int j = Integer.numberOfTrailingZeros(POVs);
+                    if (previous.getPOV(j) != current.getPOV(j))
+                        appendEvent(JoystickEvent.eventType.POV, (int) time, i, j, current.getPOV(j));
+                }
+                previousStates[i] = current; //This state is the last state next time
+                currentStates[i] = previous;
+            }
+        }
+        lastRecordMicros = (int) time;
+        if (journal != null)
+            journal.append(this, firstNewEvent, eventCount);
+        if (instrumentation != null)
+            instrumentation.recordTick(System.nanoTime() - tickStart, eventCount - firstNewEvent);
+    }
+
+    /**
+     * Adds an event found by the {@link PacketCapture}, filtering it like {@link #record()} would. Called by
+     * {@link PacketCapture#drainTo(Macro)}.
+     *
+     * @param type  The type of event
+     * @param nanos When the event's packet arrived, on the macro's clock.
+     * @param stick The index of the stick in this macro's sticks.
+     * @param id    The ID of the button/axis/POV
+     * @param val   The value of the axis/POV, ignored for buttons.
+     */
+    void addCapturedEvent(JoystickEvent.eventType type, long nanos, int stick, int id, double val) {
+        long time = (nanos - startNanos) / 1000;
+        if (time < 0 || time > Integer.MAX_VALUE) //From before the recording started, so it's in the initial state.
+            return;
+        if (masked && !isInMask(type, stick, id))
+            return;
+        if (time < lastEventMicros) //Arrived during the last drain, after it had moved on.
+            time = lastEventMicros;
+        AxisFilter filter = type == JoystickEvent.eventType.AXIS && recordedAxes != null && id < recordedAxes[stick].length ?
+                            axisFilters[stick][id]: null;
+        if (filter != null) {
+            double value = filter.apply(val);
+            if (!filter.shouldRecord(value, recordedAxes[stick][id], time - recordedAxisTimes[stick][id])) {
+                droppedEvents++;
+                return;
+            }
+            val = recordedAxes[stick][id] = value;
+            recordedAxisTimes[stick][id] = time;
+        }
+        appendEvent(type, (int) time, stick, id, val);
+    }
+
+    /**
+     * Records the last value of any filtered axis whose movement was held back by its rate limit, so the macro ends
+     * where the sticks did.
+     */
+    private void recordHeldAxes() {
+        int firstNewEvent = eventCount;
+        recordPendingAxes(lastRecordMicros, true);
+        if (journal != null)
+            journal.append(this, firstNewEvent, eventCount);
+    }
+
+    /**
+     * Records the current value of any filtered axis whose filter would let it through now, but that isn't recorded
+     * yet. {@link #record()} checks this on every axis as it reads the sticks; a {@link PacketCapture} only sends axes
+     * that moved, so this catches ones that stopped moving while their rate limit held them back.
+     *
+     * @param time            When to record them, in microseconds since the recording started. Moved up to the last
+     *                        event, if it's before it, so the events stay in order.
+     * @param ignoreRateLimit If the rate limit should be ignored, like when the recording is stopping.
+     */
+    private void recordPendingAxes(int time, boolean ignoreRateLimit) {
+        time = Math.max(time, lastEventMicros);
+        for (int i = 0; i < sticks.length; i++) {
+            if (capture != null) //The snapshots aren't kept up to date when capturing.
+                previousStates[i].capture(sticks[i]);
+            JoystickSnapshot previous = previousStates[i];
+            for (int j = 0; j < recordedAxes[i].length; j++) {
+                AxisFilter filter = axisFilters[i][j];
+                if (filter == null || j >= previous.getAxisCount() || (axisMasks[i] >>> j & 1) == 0)
+                    continue;
+                double value = filter.apply(previous.getRawAxis(j));
+                if (filter.shouldRecord(value, recordedAxes[i][j], ignoreRateLimit ? Long.MAX_VALUE / 2: time - recordedAxisTimes[i][j])) {
+                    appendEvent(JoystickEvent.eventType.AXIS, time, i, j, value);
+                    recordedAxes[i][j] = value;
+                    recordedAxisTimes[i][j] = time;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the axis events that the {@link AxisFilter#getTolerance() tolerance} of their filters allows, then removes
+     * them from the event columns.
+     *
+     * @return How many events were removed.
+     */
+    private int simplifyAxes() {
+        boolean[] dropped = new boolean[eventCount];
+        int[] indices = new int[eventCount + 1]; //The initial state too.
+        for (int i = 0; i < sticks.length; i++)
+            for (int j = 0; j < axisFilters[i].length; j++) {
+                AxisFilter filter = axisFilters[i][j];
+                if (filter == null || filter.getTolerance() == 0)
+                    continue;
+                //The initial state is the first point, then every event on this axis.
+                int count = 0;
+                indices[count++] = -1;
+                for (int k = 0; k < eventCount; k++)
+                    if (eventTypeOrdinals[k] == JoystickEvent.eventType.AXIS.ordinal() && eventSticks[k] == i && eventId(k) == j)
+                        indices[count++] = k;
+                if (count > 2) {
+                    for (int k = 1; k < count - 1; k++)
+                        dropped[indices[k]] = true;
+                    keepAxisEvents(indices, 0, count - 1, initialStateSticks[ids[i]].getRawAxis(j),
+                                   filter.getTolerance(), dropped);
+                }
+            }
+        int kept = 0;
+        for (int k = 0; k < eventCount; k++)
+            if (!dropped[k]) {
+                eventTimes[kept] = eventTimes[k];
+                eventTypeOrdinals[kept] = eventTypeOrdinals[k];
+                eventSticks[kept] = eventSticks[k];
+                eventIds[kept] = eventIds[k];
+                eventValues[kept] = eventValues[k];
+                kept++;
+            }
+        int removed = eventCount - kept;
+        droppedEvents += removed;
+        eventCount = kept;
+        return removed;
+    }
+
+    /**
+     * Keeps the event furthest from the segment between the given points of one axis, if it's further than the
+     * tolerance, and then does the same for the segments on either side of it.
+     * <p>
+     * Playback holds each value until the next event, so an event is only dropped if it's within the tolerance of both
+     * the held value and the straight line between the events that are kept.
+     *
+     * @param indices      The index of each event on the axis, with -1 for the initial state.
+     * @param first        The first point of the segment, which is kept.
+     * @param last         The last point of the segment, which is kept.
+     * @param initialValue The value of the axis in the initial state.
+     * @param tolerance    How far a dropped event can be from the kept ones.
+     * @param dropped      Which events are dropped. Kept events are cleared.
+     */
+    private void keepAxisEvents(int[] indices, int first, int last, double initialValue, double tolerance, boolean[] dropped) {
+        while (last - first > 1) {
+            long firstTime = indices[first] < 0 ? 0: eventTimes[indices[first]];
+            double firstValue = indices[first] < 0 ? initialValue: eventValues[indices[first]];
+            long lastTime = eventTimes[indices[last]];
+            double slope = (eventValues[indices[last]] - firstValue) / Math.max(1, lastTime - firstTime);
+            int furthest = -1;
+            double furthestError = tolerance;
+            for (int k = first + 1; k < last; k++) {
+                double value = eventValues[indices[k]];
+                double error = Math.max(Math.abs(value - firstValue),
+                                        Math.abs(value - (firstValue + slope * (eventTimes[indices[k]] - firstTime))));
+                if (error > furthestError) {
+                    furthest = k;
+                    furthestError = error;
+                }
+            }
+            if (furthest < 0)
+                return;
+            dropped[indices[furthest]] = false;
+            keepAxisEvents(indices, first, furthest, initialValue, tolerance, dropped);
+            first = furthest; //Carry on with the second half here, rather than recursing again.
         }
     }
 
@@ -244,33 +1465,58 @@ public class Macro {
     }
 
     /**
-     * Sets the playbackStart time so .playback() works.
+     * Starts playing the macro from the beginning, so .playback() works. Can be called again to replay the macro.
      */
     public void startPlaying() {
+        rewind();
         playing = true;
-        playbackStart = System.currentTimeMillis();
     }
 
     /**
-     * Stops playback, preventing .playback() from working.
+     * Stops playback, preventing .playback() from working. A {@link #isStreamed() streamed} macro that's stopped early
+     * ends where it was stopped.
      */
     public void stopPlaying() {
         playing = false;
+        endStream(); //Nothing else will read the rest of it.
         System.out.println("Macro finished.");
     }
 
     /**
      * Converts the macro into a string which can be loaded later using either the String or String[] constructor.
+     * This is always the text format, regardless of {@link #getMacroFormatVersion()}, so event times are rounded down to
+     * the millisecond.
      *
      * @return The macro serialized into a string.
      */
     public String toString() {
-        //There may be a lot of events, so a StringBuilder is better.
-        StringBuilder str = new StringBuilder("{").append(this.startTime).append('\n');
+        StringBuilder str = new StringBuilder(64 + eventCount * 32); //Most events are under 32 characters.
+        try {
+            writeText(str);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); //A StringBuilder can't throw it.
+        }
+        return str.toString();
+    }
+
+    /**
+     * Writes the same text as {@link #toString()}, without building it all as one string first. Nothing is allocated
+     * for each event, so this is the way to write a long macro to a file or a log.
+     *
+     * @param out Where to write the macro, such as a Writer or a StringBuilder.
+     * @throws IOException If the output couldn't be written to.
+     */
+    public void writeText(Appendable out) throws IOException {
+        StringBuilder str = MacroTextCodec.buffer(out);
+        MacroTextCodec.appendNullable(str.append('{'), this.startTime).append('\n');
         for (int j: ids)
-            str.append(initialStateSticks.get(j)).append('\n');
-        events.forEach(str::append); //If you know what a for-each loop does, you can guess what this does.
-        return str.append('}').append(this.stopTime).append('\n').append(macroFormatVersion).toString();
+            initialStateSticks[j].appendTo(str).append('\n');
+        for (int i = 0; i < eventCount; i++) {
+            MacroTextCodec.appendEvent(str, eventType(i), eventTime(i), eventSticks[i], eventId(i), eventValues[i]);
+            MacroTextCodec.flushIfFull(str, out);
+        }
+        MacroTextCodec.appendNullable(str.append('}'), this.stopTime).append('\n').append(textMacroFormatVersion);
+        MacroTextCodec.flush(str, out);
     }
 
     /**
@@ -279,10 +1525,34 @@ public class Macro {
      * @return This as a human-readable string.
      */
     public String toReadableString() {
-        StringBuilder str = new StringBuilder("{ Start time: ").append(this.startTime).append('\n');
-        for (int j: ids)
-            str.append(initialStateSticks.get(j).toReadableString()).append('\n');
-        events.forEach(event->str.append(event.toReadableString())); //There's a lot of these, which is why I use a StringBuilder.
-        return str.append("} Stop time: ").append(this.stopTime).append("\nMacro Format Version: ").append(macroFormatVersion).toString();
+        StringBuilder str = new StringBuilder(128 + eventCount * 64);
+        try {
+            writeReadable(str);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); //A StringBuilder can't throw it.
+        }
+        return str.toString();
+    }
+
+    /**
+     * Writes the same text as {@link #toReadableString()}, without building it all as one string first.
+     *
+     * @param out Where to write the macro, such as a Writer or a StringBuilder.
+     * @throws IOException If the output couldn't be written to.
+     */
+    public void writeReadable(Appendable out) throws IOException {
+        StringBuilder str = MacroTextCodec.buffer(out);
+        MacroTextCodec.appendNullable(str.append("{ Start time: "), this.startTime).append('\n');
+        for (int j: ids) {
+            initialStateSticks[j].appendReadableTo(str).append('\n');
+            MacroTextCodec.flushIfFull(str, out);
+        }
+        for (int i = 0; i < eventCount; i++) {
+            MacroTextCodec.appendReadableEvent(str, eventType(i), eventTime(i), eventSticks[i], eventId(i), eventValues[i]);
+            MacroTextCodec.flushIfFull(str, out);
+        }
+        MacroTextCodec.appendNullable(str.append("} Stop time: "), this.stopTime).append("\nMacro Format Version: ")
+                      .append(macroFormatVersion);
+        MacroTextCodec.flush(str, out);
     }
 }
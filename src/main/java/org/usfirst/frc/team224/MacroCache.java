@@ -0,0 +1,265 @@
+package org.usfirst.frc.team224;
+import edu.wpi.first.wpilibj.Joystick;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Keeps recently used macros loaded, so autonomous doesn't have to read and parse its macro when it starts.
+ * <p>
+ * Macros are loaded on a background thread by {@link #preload(String)}, which is meant to be called while the robot is
+ * disabled (see {@link MacroHelper#preloadSelectedMacro()}). {@link #get(String)} then hands over the loaded macro
+ * instantly, or waits at most {@link #maxWaitMillis} for one that's still loading. At most {@link #getCapacity()}
+ * macros are kept, dropping the least recently used one first.
+ *
+ * @see MacroHelper
+ */
+public class MacroCache {
+    /**
+     * The longest {@link #get(String)} waits for a macro that's still being preloaded, in milliseconds.
+     */
+    static final long maxWaitMillis = 3000;
+
+    private final String macroDir;
+    private final Joystick[] sticks;
+    private final int capacity;
+    private final Map<String, CompletableFuture<Macro>> macros;
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Macro preloader");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY); //Stay out of the way of the robot thread.
+        return thread;
+    });
+    private volatile MacroInstrumentation instrumentation;
+    private volatile MacroPack pack;
+    private int hits, misses, loads;
+    private long loadNanos, maxLoadNanos;
+
+    /**
+     * Creates a cache for the macros in the given directory.
+     *
+     * @param macroDir The directory the macros are saved in.
+     * @param capacity How many macros to keep loaded.
+     * @param sticks   The joysticks used in the recordings.
+     */
+    public MacroCache(String macroDir, int capacity, Joystick... sticks) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("A macro cache has to hold at least one macro.");
+        this.macroDir = macroDir;
+        this.capacity = capacity;
+        this.sticks = sticks;
+        //Access order, so the eldest entry is the least recently used one.
+        this.macros = new LinkedHashMap<String, CompletableFuture<Macro>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<Macro>> eldest) {
+                return size() > MacroCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Starts loading the given macro in the background, unless it's already loaded or loading. Doesn't wait for it.
+     *
+     * @param name The name of the macro's file in the macro directory.
+     */
+    public synchronized void preload(String name) {
+        if (macros.containsKey(name))
+            return;
+        CompletableFuture<Macro> future = new CompletableFuture<>();
+        macros.put(name, future);
+        loader.execute(() -> load(name, future));
+    }
+
+    /**
+     * Starts loading every macro in the macro directory in the background, up to {@link #getCapacity()} of them.
+     */
+    public void preloadAll() {
+        int preloaded = 0;
+        MacroPack pack = this.pack;
+        if (pack != null)
+            for (MacroIndex.Entry entry : pack.getEntries())
+                if (preloaded++ < capacity)
+                    preload(entry.getName());
+        File[] files = new File(macroDir).listFiles();
+        if (files == null)
+            return;
+        for (File f : files)
+            if (MacroHelper.isMacroFile(f.getName()) && preloaded++ < capacity)
+                preload(f.getName());
+    }
+
+    /**
+     * Gets the given macro, loading it on this thread if it wasn't preloaded, or waiting for it if it's still being
+     * preloaded.
+     *
+     * @param name The name of the macro's file in the macro directory.
+     * @return The macro.
+     * @throws IOException If the macro couldn't be read, or took longer than {@link #maxWaitMillis} to preload.
+     */
+    public Macro get(String name) throws IOException {
+        CompletableFuture<Macro> future;
+        boolean loadHere = false;
+        synchronized (this) {
+            future = macros.get(name);
+            if (future != null && future.isDone() && !future.isCompletedExceptionally())
+                hits++;
+            else
+                misses++;
+            if (future == null) {
+                future = new CompletableFuture<>();
+                macros.put(name, future);
+                loadHere = true;
+            }
+        }
+        if (loadHere)
+            load(name, future);
+        try {
+            return future.get(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            //Left loading, so it may be ready next time.
+            throw new IOException("Timed out waiting for the macro " + name + " to load.", e);
+        } catch (ExecutionException e) {
+            remove(name, future);
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause():
+                  new IOException("Could not load the macro " + name + '.', e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading the macro " + name + '.', e);
+        }
+    }
+
+    /**
+     * Drops the given macro from the cache, so it's read again next time. Call this if its file changes.
+     *
+     * @param name The name of the macro's file in the macro directory.
+     */
+    public synchronized void invalidate(String name) {
+        macros.remove(name);
+    }
+
+    /**
+     * Removes the given entry, unless it's already been replaced.
+     */
+    private synchronized void remove(String name, CompletableFuture<Macro> future) {
+        macros.remove(name, future);
+    }
+
+    /**
+     * Loads a macro into the given future. Whatever goes wrong, even an Error, fails the future and drops it, so nothing
+     * is left waiting on it.
+     */
+    private void load(String name, CompletableFuture<Macro> future) {
+        try {
+            future.complete(load(name));
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+            remove(name, future);
+        }
+    }
+
+    /**
+     * Reads and parses a macro, keeping track of how long it took.
+     */
+    private Macro load(String name) throws IOException {
+        long start = System.nanoTime();
+        MacroPack pack = this.pack;
+        Macro macro = pack != null && pack.getEntry(name) != null ? pack.load(name, JoystickSource.of(sticks)):
+                      MacroHelper.loadMacro(Paths.get(macroDir, name).toString(), sticks);
+        long time = System.nanoTime() - start;
+        synchronized (this) {
+            loads++;
+            loadNanos += time;
+            maxLoadNanos = Math.max(maxLoadNanos, time);
+        }
+        MacroInstrumentation instrumentation = this.instrumentation;
+        if (instrumentation != null)
+            instrumentation.load(time);
+        return macro;
+    }
+
+    /**
+     * Measures how long loading each macro takes.
+     *
+     * @param instrumentation Where to keep the measurements, or null to stop measuring.
+     */
+    public void setInstrumentation(MacroInstrumentation instrumentation) {
+        this.instrumentation = instrumentation;
+    }
+
+    /**
+     * Loads macros from the given pack when it has them, rather than from their own files.
+     *
+     * @param pack The pack, or null to only load macros from their files.
+     */
+    public void setPack(MacroPack pack) {
+        this.pack = pack;
+    }
+
+    /**
+     * @param name The name of the macro's file in the macro directory.
+     * @return If the given macro is loaded and ready to be used.
+     */
+    public synchronized boolean isLoaded(String name) {
+        CompletableFuture<Macro> future = macros.get(name);
+        return future != null && future.isDone() && !future.isCompletedExceptionally();
+    }
+
+    /**
+     * @return How many macros are kept loaded.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return How many times {@link #get(String)} found its macro already loaded.
+     */
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    /**
+     * @return How many times {@link #get(String)} had to load its macro, or wait for it to finish preloading.
+     */
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return How many macros have been loaded, in the background or not.
+     */
+    public synchronized int getLoads() {
+        return loads;
+    }
+
+    /**
+     * @return How long loading a macro took on average, in milliseconds, or 0 if none have been loaded.
+     */
+    public synchronized double getAverageLoadMillis() {
+        return loads == 0 ? 0: loadNanos / 1e6 / loads;
+    }
+
+    /**
+     * @return The longest loading a macro took, in milliseconds.
+     */
+    public synchronized double getMaxLoadMillis() {
+        return maxLoadNanos / 1e6;
+    }
+
+    /**
+     * @return The cache's statistics, for logging.
+     */
+    public synchronized String getStats() {
+        return "Macro cache: " + hits + " hits, " + misses + " misses, " + loads + " loads averaging " +
+               getAverageLoadMillis() + "ms (max " + getMaxLoadMillis() + "ms)";
+    }
+}
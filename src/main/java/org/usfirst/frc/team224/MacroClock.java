@@ -0,0 +1,36 @@
+package org.usfirst.frc.team224;
+import edu.wpi.first.wpilibj.Utility;
+
+/**
+ * A monotonic source of time for recording and playing back macros. Unlike System.currentTimeMillis(), it never jumps
+ * when the roboRIO syncs its time with the FMS, so playback stays in step mid-match.
+ *
+ * @see Macro#setClock(MacroClock)
+ * @see VirtualClock
+ */
+@FunctionalInterface
+public interface MacroClock {
+    /**
+     * The default clock, based on System.nanoTime().
+     */
+    MacroClock systemClock = System::nanoTime;
+
+    /**
+     * A clock based on the FPGA's timestamp, which has microsecond resolution and is shared with the rest of WPILib.
+     */
+    MacroClock fpgaClock = () -> Utility.getFPGATime() * 1000;
+
+    /**
+     * Returns the current time. Only the difference between two calls means anything.
+     *
+     * @return The current time, in nanoseconds.
+     */
+    long nanoTime();
+
+    /**
+     * @return The current time, in microseconds.
+     */
+    default long microTime() {
+        return nanoTime() / 1000;
+    }
+}
@@ -0,0 +1,438 @@
+package org.usfirst.frc.team224;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads and writes macros in the compact binary format ({@link Macro#binaryMacroFormatVersion}).
+ * <p>
+ * Layout, all multi-byte values big-endian:
+ * <pre>
+ * "FRCM" | version | startTime (long) | stick count
+ * per stick: port | buttons | axes | POVs | button bits (LSB first) | axis values | POV values
+ * per event: head | id | time delta in microseconds (varint) | value (AXIS/POV only)
+ * end head | length in microseconds (long)
+ * </pre>
+ * The head byte packs the event type (bits 7-6), the stick index (bits 5-3) and flags (bits 2-0). Axis values are
+ * stored as the signed byte the Driver Station sent, unless they can't be reproduced exactly that way, in which case
+ * the {@link #exactFlag} flag is set and the full double follows instead. The format is written front to back, so it
+ * can be streamed: see {@link MacroJournal}.
+ * <p>
+ * Version 2 is the same, except time deltas are in milliseconds and the footer holds the wall-clock stop time.
+ * <p>
+ * {@link MacroStream} reads the format a piece at a time with {@link #readVersion}, {@link #readStick} and
+ * {@link #readEvent}, so a macro can start playing before the rest of it has been read.
+ *
+ * @see Macro
+ * @see MacroHelper
+ */
+final class MacroCodec {
+    private static final byte[] magic = {'F', 'R', 'C', 'M'};
+    private static final int exactFlag = 0x1;
+    /**
+     * Stick index 7 is never used by a real stick, so a head with it marks the end of the events.
+     */
+    private static final int endHead = 0xFF;
+    private static final int maxSticks = 7;
+    private static final JoystickEvent.eventType[] types = JoystickEvent.eventType.values();
+    private static final byte millisecondVersion = 2;
+    /**
+     * The most bytes {@link #writeEvent} can write: head, id, a 64-bit varint and a double.
+     */
+    static final int maxEventSize = 2 + 10 + 8;
+    /**
+     * The most bytes {@link #writeFooter} can write.
+     */
+    static final int footerSize = 1 + 8;
+    /**
+     * How many bytes of the header come before the first stick: magic, version, start time and stick count.
+     */
+    static final int preambleSize = magic.length + 1 + 8 + 1;
+    /**
+     * How many bytes each stick starts with: its port and how many buttons, axes and POV switches it has.
+     */
+    static final int stickCountsSize = 4;
+
+    private MacroCodec() {
+    }
+
+    /**
+     * Checks if the given data is in the binary format, rather than the text format.
+     *
+     * @param data The contents of a macro file.
+     * @return If the data starts with the binary format's magic bytes.
+     */
+    static boolean isBinary(byte[] data) {
+        if (data.length < magic.length)
+            return false;
+        for (int i = 0; i < magic.length; i++)
+            if (data[i] != magic[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Same as {@link #isBinary(byte[])}, for the macro from the buffer's position to its limit.
+     */
+    static boolean isBinary(ByteBuffer data) {
+        if (data.remaining() < magic.length)
+            return false;
+        for (int i = 0; i < magic.length; i++)
+            if (data.get(data.position() + i) != magic[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * @param data The contents of a macro file in the binary format.
+     * @return The version of the binary format it was saved in.
+     */
+    static byte version(byte[] data) {
+        return data[magic.length];
+    }
+
+    /**
+     * Serializes the given macro into the binary format.
+     *
+     * @param macro The macro to serialize.
+     * @return The macro as bytes.
+     */
+    static byte[] encode(Macro macro) {
+        ByteBuffer out = ByteBuffer.allocate(headerSize(macro) + macro.eventCount() * maxEventSize + footerSize);
+        writeHeader(out, macro);
+        long lastTime = 0;
+        for (int i = 0; i < macro.eventCount(); i++) {
+            writeEvent(out, macro.eventOffsetMicros(i) - lastTime, macro.eventType(i), macro.eventStick(i), macro.eventId(i), macro.eventValue(i));
+            lastTime = macro.eventOffsetMicros(i);
+        }
+        writeFooter(out, macro.lengthMicros());
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    /**
+     * @param macro The macro to check.
+     * @return The most bytes {@link #writeHeader} can write for the given macro.
+     */
+    static int headerSize(Macro macro) {
+        int size = preambleSize;
+        for (int i = 0; i < macro.stickCount(); i++) {
+            simulatedJoystick stick = macro.getInitialState(i);
+            size += stickSize(stick.getButtonCount(), stick.getAxisCount(), stick.getPOVCount());
+        }
+        return size;
+    }
+
+    /**
+     * @param buttons How many buttons the stick has.
+     * @param axes    How many axes the stick has.
+     * @param POVs    How many POV switches the stick has.
+     * @return The most bytes a stick with those counts can take up in the header.
+     */
+    static int stickSize(int buttons, int axes, int POVs) {
+        return stickCountsSize + (buttons + 7) / 8 + axes * 9 + POVs * 5;
+    }
+
+    /**
+     * Writes everything before the first event: the start time and the initial state of each stick.
+     *
+     * @param out   Where to write the header, with at least {@link #headerSize} bytes left.
+     * @param macro The macro being written.
+     */
+    static void writeHeader(ByteBuffer out, Macro macro) {
+        out.put(magic);
+        out.put(Macro.binaryMacroFormatVersion);
+        out.putLong(macro.getStartTime());
+        int stickCount = macro.stickCount();
+        if (stickCount > maxSticks)
+            throw new IllegalArgumentException("The binary macro format supports at most " + maxSticks + " sticks.");
+        out.put((byte) stickCount);
+        for (int i = 0; i < stickCount; i++)
+            writeStick(out, macro.getInitialState(i));
+    }
+
+    /**
+     * Writes one event. Doesn't allocate, so it's safe to use on the robot thread.
+     *
+     * @param out   Where to write the event, with at least {@link #maxEventSize} bytes left.
+     * @param delta Microseconds since the previous event, or since the start of the macro for the first one.
+     * @param type  The type of event
+     * @param stick The index of the stick in the macro's sticks.
+     * @param id    The ID of the button/axis/POV
+     * @param val   The value of the axis/POV, ignored for buttons.
+     */
+    static void writeEvent(ByteBuffer out, long delta, JoystickEvent.eventType type, int stick, int id, double val) {
+        if (delta < 0)
+            throw new IllegalArgumentException("Macro events are not in chronological order.");
+        int flags = 0;
+        if (type == JoystickEvent.eventType.AXIS && !isQuantized(val))
+            flags |= exactFlag;
+        out.put((byte) (type.ordinal() << 6 | stick << 3 | flags));
+        out.put((byte) id);
+        writeVarLong(out, delta);
+        if (type == JoystickEvent.eventType.AXIS)
+            writeAxis(out, val, (flags & exactFlag) != 0);
+        else if (type == JoystickEvent.eventType.POV)
+            writeVarLong(out, zigZag((int) val));
+    }
+
+    /**
+     * Works out how many bytes {@link #writeEvent} would write for an event, without writing it.
+     *
+     * @param delta Microseconds since the previous event, or since the start of the macro for the first one.
+     * @param type  The type of event
+     * @param val   The value of the axis/POV, ignored for buttons.
+     * @return The size of the event.
+     */
+    static int eventSize(long delta, JoystickEvent.eventType type, double val) {
+        int size = 2 + varLongSize(delta);
+        if (type == JoystickEvent.eventType.AXIS)
+            size += isQuantized(val) ? 1: 8;
+        else if (type == JoystickEvent.eventType.POV)
+            size += varLongSize(zigZag((int) val));
+        return size;
+    }
+
+    /**
+     * Writes the end of the events and the length of the macro.
+     *
+     * @param out          Where to write the footer, with at least {@link #footerSize} bytes left.
+     * @param lengthMicros How long the recording was, in microseconds.
+     */
+    static void writeFooter(ByteBuffer out, long lengthMicros) {
+        out.put((byte) endHead);
+        out.putLong(lengthMicros);
+    }
+
+    /**
+     * Loads a macro from the binary format.
+     *
+     * @param data   The output from {@link #encode(Macro)}
+     * @param sticks The joysticks used in the recording
+     * @return The loaded macro.
+     * @throws IllegalArgumentException If the data is not a valid binary macro.
+     */
+    static Macro decode(byte[] data, JoystickSource[] sticks) {
+        return decode(data, sticks, false);
+    }
+
+    /**
+     * Loads a macro from the binary format.
+     *
+     * @param data      The output from {@link #encode(Macro)}, or an unfinished {@link MacroJournal}
+     * @param sticks    The joysticks used in the recording
+     * @param truncated If data cut off after the header is allowed, in which case the macro ends at its last whole event.
+     * @return The loaded macro.
+     * @throws IllegalArgumentException If the data is not a valid binary macro.
+     */
+    static Macro decode(byte[] data, JoystickSource[] sticks, boolean truncated) {
+        if (!isBinary(data))
+            throw new IllegalArgumentException("Not a binary macro.");
+        return decode(ByteBuffer.wrap(data), sticks, truncated);
+    }
+
+    /**
+     * Loads a macro from the binary format, straight out of a buffer (like a slice of a {@link MacroPack}) without
+     * copying it first.
+     *
+     * @param in        The macro, from its position to its limit. The position is moved past it.
+     * @param sticks    The joysticks used in the recording
+     * @param truncated If data cut off after the header is allowed, in which case the macro ends at its last whole event.
+     * @return The loaded macro.
+     * @throws IllegalArgumentException If the data is not a valid binary macro.
+     */
+    static Macro decode(ByteBuffer in, JoystickSource[] sticks, boolean truncated) {
+        try {
+            byte version = readVersion(in);
+            long startTime = in.getLong();
+            simulatedJoystick[] initialStates = new simulatedJoystick[in.get()];
+            for (int i = 0; i < initialStates.length; i++)
+                initialStates[i] = readStick(in);
+
+            //Older binary macros are saved in the newest binary format.
+            Macro macro = new Macro(sticks, startTime, initialStates, Macro.binaryMacroFormatVersion);
+            long time = 0;
+            while (true) {
+                if (truncated && !in.hasRemaining()) { //An unfinished journal ends after its last event.
+                    macro.finishLoadingMicros(time);
+                    return macro;
+                }
+                long eventTime;
+                try {
+                    eventTime = readEvent(in, macro, time, version);
+                } catch (BufferUnderflowException e) {
+                    if (!truncated)
+                        throw e;
+                    macro.finishLoadingMicros(time); //The last event was only partly written.
+                    return macro;
+                }
+                if (eventTime < 0)
+                    return macro;
+                time = eventTime;
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("The binary macro is truncated.", e);
+        }
+    }
+
+    /**
+     * Reads the magic bytes and the format version.
+     *
+     * @param in The start of a binary macro, with at least {@link #magic}'s length plus one bytes left.
+     * @return The version of the binary format the macro was saved in.
+     * @throws IllegalArgumentException If it isn't a binary macro, or it's in a version that can't be read.
+     */
+    static byte readVersion(ByteBuffer in) {
+        for (byte b : magic)
+            if (in.get() != b)
+                throw new IllegalArgumentException("Not a binary macro.");
+        byte version = in.get();
+        if (version != Macro.binaryMacroFormatVersion && version != millisecondVersion)
+            throw new IllegalArgumentException("Unsupported binary macro format version " + version + '.');
+        return version;
+    }
+
+    /**
+     * Reads one event and adds it to the macro, or reads the footer and finishes loading the macro. If there isn't a
+     * whole event left, the buffer's position is left partway through it.
+     *
+     * @param in      Where to read from, with at least {@link #maxEventSize} bytes left unless it's the end of the
+     *                macro.
+     * @param macro   The macro being loaded.
+     * @param time    When the previous event occurred, in microseconds since the recording started.
+     * @param version The version of the binary format, from {@link #readVersion}.
+     * @return When the event occurred, in microseconds since the recording started, or -1 if the macro ended.
+     * @throws BufferUnderflowException If the event was cut off.
+     */
+    static long readEvent(ByteBuffer in, Macro macro, long time, byte version) {
+        int head = in.get() & 0xFF;
+        if (head == endHead) {
+            if (version == millisecondVersion)
+                macro.finishLoading(in.getLong());
+            else
+                macro.finishLoadingMicros(in.getLong());
+            return -1;
+        }
+        JoystickEvent.eventType type = types[head >>> 6];
+        int stick = head >>> 3 & 0x7;
+        int id = in.get() & 0xFF;
+        long eventTime = time + readVarLong(in) * (version == millisecondVersion ? 1000: 1);
+        double val = 0;
+        if (type == JoystickEvent.eventType.AXIS)
+            val = readAxis(in, (head & exactFlag) != 0);
+        else if (type == JoystickEvent.eventType.POV)
+            val = unZigZag(readVarLong(in));
+        macro.addEventMicros(type, eventTime, stick, id, val);
+        return eventTime;
+    }
+
+    private static void writeStick(ByteBuffer out, simulatedJoystick stick) {
+        out.put((byte) stick.getPort());
+        out.put((byte) stick.getButtonCount());
+        out.put((byte) stick.getAxisCount());
+        out.put((byte) stick.getPOVCount());
+        int bits = 0;
+        for (int i = 0; i < stick.getButtonCount(); i++) {
+            if (stick.getRawButton(i + 1))
+                bits |= 1 << (i & 7);
+            if ((i & 7) == 7 || i == stick.getButtonCount() - 1) {
+                out.put((byte) bits);
+                bits = 0;
+            }
+        }
+        for (int i = 0; i < stick.getAxisCount(); i++) {
+            boolean exact = !isQuantized(stick.getRawAxis(i));
+            out.put((byte) (exact ? 1: 0));
+            writeAxis(out, stick.getRawAxis(i), exact);
+        }
+        for (int i = 0; i < stick.getPOVCount(); i++)
+            writeVarLong(out, zigZag(stick.getPOV(i)));
+    }
+
+    /**
+     * Reads the initial state of one stick.
+     *
+     * @param in Where to read from, with at least {@link #stickSize} bytes left for the stick's counts.
+     * @return The stick.
+     */
+    static simulatedJoystick readStick(ByteBuffer in) {
+        int port = in.get() & 0xFF;
+        simulatedJoystick stick = new simulatedJoystick(in.get() & 0xFF, in.get() & 0xFF, in.get() & 0xFF, port);
+        int bits = 0;
+        for (int i = 0; i < stick.getButtonCount(); i++) {
+            if ((i & 7) == 0)
+                bits = in.get();
+            stick.setButton(i + 1, (bits & 1 << (i & 7)) != 0);
+        }
+        for (int i = 0; i < stick.getAxisCount(); i++)
+            stick.setAxis(i, readAxis(in, in.get() != 0));
+        for (int i = 0; i < stick.getPOVCount(); i++)
+            stick.setPOV(i, unZigZag(readVarLong(in)));
+        return stick;
+    }
+
+    /**
+     * Checks if the given axis value is exactly what the Driver Station sends for some signed byte, so it can be
+     * stored in one byte without losing anything.
+     */
+    private static boolean isQuantized(double val) {
+        if (!(val >= -1 && val <= 1)) //Also catches NaN.
+            return false;
+        long raw = Math.round(val < 0 ? val * 128 : val * 127);
+        return raw >= Byte.MIN_VALUE && raw <= Byte.MAX_VALUE && dequantize((byte) raw) == val;
+    }
+
+    /**
+     * Converts a raw Driver Station axis byte to the value the joystick reports, the same way WPILib does.
+     */
+    private static double dequantize(byte raw) {
+        return raw < 0 ? raw / 128.0: raw / 127.0;
+    }
+
+    private static void writeAxis(ByteBuffer out, double val, boolean exact) {
+        if (exact)
+            out.putDouble(val);
+        else
+            out.put((byte) Math.round(val < 0 ? val * 128 : val * 127));
+    }
+
+    private static double readAxis(ByteBuffer in, boolean exact) {
+        return exact ? in.getDouble(): dequantize(in.get());
+    }
+
+    private static void writeVarLong(ByteBuffer out, long val) {
+        while ((val & ~0x7FL) != 0) {
+            out.put((byte) (val & 0x7F | 0x80));
+            val >>>= 7;
+        }
+        out.put((byte) val);
+    }
+
+    private static int varLongSize(long val) {
+        int size = 1;
+        while ((val & ~0x7FL) != 0) {
+            size++;
+            val >>>= 7;
+        }
+        return size;
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long val = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            val |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+                return val;
+        }
+        throw new IllegalArgumentException("Malformed varint in binary macro.");
+    }
+
+    private static long zigZag(int val) {
+        return (val << 1 ^ val >> 31) & 0xFFFFFFFFL;
+    }
+
+    private static int unZigZag(long val) {
+        return (int) (val >>> 1) ^ -(int) (val & 1);
+    }
+}
@@ -4,11 +4,15 @@ import edu.wpi.first.wpilibj.smartdashboard.SendableChooser;
 import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -29,8 +33,66 @@ public class MacroHelper {
      * An array containing all of your real joysticks.
      */
     private final Joystick[] realSticks;
+    /**
+     * The sticks macros are played back into in autonomous, one for each of {@link #realSticks}, in the same order.
+     */
+    private final simulatedJoystick[] playbackSticks;
     private Long lastPress;
     private static boolean debug = false;
+    private static final String tempSuffix = ".tmp";
+    /**
+     * The format new macros are saved in.
+     */
+    private byte macroFormatVersion = Macro.currentMacroFormatVersion;
+    /**
+     * The filter new macros record their axes with, or null to record every change.
+     */
+    private AxisFilter axisFilter;
+    /**
+     * If macros played in autonomous interpolate their axes. See {@link Macro#setInterpolated(boolean)}.
+     */
+    private boolean interpolatedPlayback;
+    /**
+     * By Driver Station port: which buttons, axes and POV switches macros record and play back. See
+     * {@link Macro#setChannelMask(int, int, int, int)}.
+     */
+    private final int[] buttonMasks = new int[JoystickDispatcher.maxPorts], axisMasks = new int[JoystickDispatcher.maxPorts],
+            POVMasks = new int[JoystickDispatcher.maxPorts];
+    /**
+     * The last macro run in autonomous, and the name it was chosen by, so it can be replayed without reading it again.
+     */
+    private Macro autonMacro;
+    private String autonMacroName;
+    private boolean autonMacroStarted;
+    /**
+     * Where recording, playback, loading and saving are measured, or null if they aren't.
+     */
+    private MacroInstrumentation instrumentation;
+    private boolean autonMacroReported;
+    /**
+     * Records the sticks all the time, so the last few seconds can be saved. Null unless it's been started.
+     */
+    private RollingRecorder rollingRecorder;
+    /**
+     * Reads the sticks on every Driver Station packet for new recordings. Null if recordings read the sticks themselves.
+     */
+    private PacketCapture packetCapture;
+    /**
+     * The last selection read from {@link #autoChooser}, and the macro it names (or null if it isn't a macro), so the
+     * selection is only parsed when it changes.
+     */
+    private String lastSelection;
+    private String lastSelectedMacro;
+    /**
+     * How many macros {@link #macroCache} keeps loaded.
+     */
+    private static final int macroCacheSize = 8;
+    private final MacroCache macroCache;
+    private final MacroIndex macroIndex;
+    /**
+     * Where macros are saved and listed from, if they're kept in one file. Null if each macro has its own file.
+     */
+    private MacroPack macroPack;
 
     /**
      * Creates a MacroHelper.
@@ -43,6 +105,14 @@ public class MacroHelper {
         this.macroDir = macroDir;
         this.autoChooser = autoChooser;
         this.realSticks = realSticks;
+        this.playbackSticks = new simulatedJoystick[realSticks.length];
+        for (int i = 0; i < realSticks.length; i++)
+            playbackSticks[i] = new simulatedJoystick(realSticks[i]);
+        this.macroCache = new MacroCache(macroDir, macroCacheSize, realSticks);
+        this.macroIndex = new MacroIndex(macroDir);
+        Arrays.fill(buttonMasks, -1);
+        Arrays.fill(axisMasks, -1);
+        Arrays.fill(POVMasks, -1);
     }
 
     public MacroHelper(String macroDir, SendableChooser<String> autoChooser, boolean debug, Joystick... realSticks) {
@@ -51,36 +121,232 @@ public class MacroHelper {
     }
 
     /**
-     * Adds all saved macros into {@link #autoChooser the class's SendableChooser.}
+     * Adds all saved macros into {@link #autoChooser the class's SendableChooser.}, using the {@link MacroIndex}, and
+     * starts watching the macro directory for macros copied in later.
      */
     public void addExistingMacrosToSendableChooser() {
-        File[] macroDirectory = new File(macroDir).listFiles();
-        if (macroDirectory != null)
-            for (File f : macroDirectory)
-                autoChooser.addObject("Macro " + f.getName(), "macro" + f.getName());
+        recoverJournals();
+        if (macroPack != null) {
+            packLooseMacros();
+            for (MacroIndex.Entry entry : macroPack.getEntries())
+                autoChooser.addObject(entry.getDisplayName(), "macro" + entry.getName());
+        }
+        for (MacroIndex.Entry entry : macroIndex.getEntries())
+            autoChooser.addObject(entry.getDisplayName(), "macro" + entry.getName());
+        try {
+            macroIndex.startWatching();
+        } catch (IOException e) {
+            if (debug)
+                e.printStackTrace();
+            System.err.println("Could not watch " + macroDir + " for new macros.");
+        }
+    }
+
+    /**
+     * Adds macros that were saved or copied into the macro directory since the robot started to the SendableChooser,
+     * and drops changed ones from the {@link MacroCache}. Every new macro reaches the SendableChooser through here, by
+     * way of {@link MacroIndex#pollChanged()}. Called by {@link #preloadSelectedMacro()} and {@link #saveMacro(Macro)}.
+     */
+    public void addChangedMacrosToSendableChooser() {
+        boolean added = false;
+        String name;
+        while ((name = macroIndex.pollChanged()) != null) {
+            macroCache.invalidate(name);
+            MacroIndex.Entry entry = macroPack != null && macroPack.getEntry(name) != null ? macroPack.getEntry(name):
+                                     macroIndex.getEntry(name);
+            if (entry != null) {
+                autoChooser.addObject(entry.getDisplayName(), "macro" + name);
+                added = true;
+            }
+        }
+        if (added)
+            SmartDashboard.putData("Auto", autoChooser);
     }
 
     /**
-     * Runs the selected macro during autonomous, if a macro is selected. Put this in autonomousPeriodic.
+     * Turns any journals left behind by recordings that never finished (like after a brownout) into normal macros.
+     */
+    private void recoverJournals() {
+        File[] journals = new File(macroDir).listFiles((dir, name) -> name.endsWith(MacroJournal.journalSuffix));
+        if (journals != null)
+            for (File journal : journals)
+                try {
+                    System.out.println("Recovered unfinished macro " + MacroJournal.recover(journal.toPath()));
+                } catch (IOException e) {
+                    if (debug)
+                        e.printStackTrace();
+                    System.err.println("Could not recover the macro journal at " + journal + '.');
+                }
+    }
+
+    /**
+     * Sets whether macros are kept in one {@link MacroPack} file in the macro directory, rather than a file each, so
+     * listing them at boot is one read and opening one doesn't read a file. Call this before
+     * {@link #addExistingMacrosToSendableChooser()}, which moves any macros saved as their own files into the pack. New
+     * macros are added to the pack as they're saved, except binary recordings, which are streamed to their own file
+     * while they're recorded and moved into the pack once they're finished.
+     *
+     * @param enabled If macros should be kept in a pack.
+     * @throws IOException If the pack can't be opened or created.
+     */
+    public void setMacroPack(boolean enabled) throws IOException {
+        if (enabled && macroPack == null) {
+            macroPack = MacroPack.open(Paths.get(macroDir, MacroPack.packFileName));
+            for (MacroIndex.Entry entry : macroPack.getEntries())
+                macroIndex.reserveId(entry.getName());
+            macroCache.setPack(macroPack);
+        } else if (!enabled && macroPack != null) {
+            macroCache.setPack(null);
+            macroPack.close();
+            macroPack = null;
+        }
+    }
+
+    /**
+     * @return The pack macros are kept in, or null if each macro has its own file.
+     */
+    public MacroPack getMacroPack() {
+        return macroPack;
+    }
+
+    /**
+     * Moves every macro saved as its own file into the pack. The file is only deleted once the pack is on disk.
+     */
+    private void packLooseMacros() {
+        for (MacroIndex.Entry entry : macroIndex.getEntries()) {
+            Path path = Paths.get(macroDir, entry.getName());
+            try {
+                byte[] data = Files.readAllBytes(path);
+                macroPack.add(entry.getName(), entry.getDisplayName(), Macro.load(data, (JoystickSource[]) null), data);
+                Files.delete(path);
+                macroIndex.update(entry.getName());
+            } catch (IOException | RuntimeException e) { //Parsing errors, and names too long for the pack.
+                if (debug)
+                    e.printStackTrace();
+                System.err.println("Could not move the macro " + entry.getName() + " into the macro pack.");
+            }
+        }
+    }
+
+    /**
+     * @param name The name of a file in the macro directory.
+     * @return If the file is a macro, rather than a journal, temporary file, golden timeline, the index or the pack.
+     */
+    static boolean isMacroFile(String name) {
+        return !name.endsWith(MacroJournal.journalSuffix) && !name.endsWith(tempSuffix) && !name.equals(MacroIndex.indexFileName) &&
+               !name.equals(MacroPack.packFileName) && !name.endsWith(MacroSimulator.goldenSuffix);
+    }
+
+    /**
+     * Runs the selected macro during autonomous, if a macro is selected. Put this in autonomousPeriodic, and while it
+     * returns true, drive the robot from {@link #getPlaybackStick(int) the playback sticks} instead of the real ones.
      *
      * @param currentMacro The currently selected macro, if it's already playing, or null otherwise.
      * @throws IOException If the file cannot be read.
      * @return True = Run teleop; False = Stop the robot; null = A macro wasn't chosen in the SendableChooser.
      */
     public Boolean autonMacro(Macro currentMacro) throws IOException {
-        String chosenAuton = autoChooser.getSelected();
-        if (chosenAuton.startsWith("macro")) {
+        String chosenMacro = getSelectedMacro();
+        if (chosenMacro != null) {
+            if (currentMacro == null && autonMacroStarted)
+                currentMacro = autonMacro;
             if (currentMacro == null) {
-                System.out.println("currentMacro is null, generating...");
-                currentMacro = new Macro(readFile(macroDir + chosenAuton.substring(5)), realSticks);
-                currentMacro.startPlaying();
-                System.out.println("Macro length: " + currentMacro.length() / 1000D + "seconds");
-            } else
-                return currentMacro.isPlaying();
+                //A streamed macro can't be replayed, so it's read again (from the cache, by then).
+                if (autonMacro == null || !chosenMacro.equals(autonMacroName) || autonMacro.isStreamed()) {
+                    if (autonMacro != null && autonMacro.isPlaying())
+                        autonMacro.stopPlaying(); //Closes a streamed macro's file, which nothing else would.
+                    //Packed macros are opened straight out of memory, so there's nothing to gain from streaming them.
+                    if (macroCache.isLoaded(chosenMacro) || macroPack != null && macroPack.getEntry(chosenMacro) != null)
+                        autonMacro = macroCache.get(chosenMacro);
+                    else {
+                        System.out.println("Macro " + chosenMacro + " wasn't preloaded, streaming it...");
+                        autonMacro = MacroStream.open(Paths.get(macroDir, chosenMacro), realSticks);
+                        macroCache.preload(chosenMacro); //Load the whole thing in the background for next time.
+                    }
+                    autonMacroName = chosenMacro;
+                }
+                currentMacro = autonMacro;
+                currentMacro.setInterpolated(interpolatedPlayback);
+                currentMacro.setInstrumentation(instrumentation);
+                applyChannelMasks(currentMacro);
+                currentMacro.startPlaying(); //Playback doesn't consume the macro, so the same one can be replayed every time.
+                autonMacroStarted = true;
+                if (currentMacro.length() != null) //A streamed macro's length isn't known until it's been read.
+                    System.out.println("Macro length: " + currentMacro.length() / 1000D + "seconds");
+            }
+            boolean playing = currentMacro.playback(playbackSticks);
+            if (!playing && instrumentation != null && !autonMacroReported) {
+                autonMacroReported = true;
+                instrumentation.publish();
+                instrumentation.dump("Autonomous macro " + autonMacroName);
+            }
+            return playing;
         }
         return null;
     }
 
+    /**
+     * @param i The index of the real stick, in the order they were given to the constructor.
+     * @return The stick the autonomous macro plays that stick back into. Its values are only kept up to date by
+     * {@link #autonMacro(Macro)}.
+     */
+    public simulatedJoystick getPlaybackStick(int i) {
+        return playbackSticks[i];
+    }
+
+    /**
+     * @return The name of the macro selected in {@link #autoChooser}, or null if the selection isn't a macro.
+     */
+    private String getSelectedMacro() {
+        String selection = autoChooser.getSelected();
+        if (selection != lastSelection) { //The chooser hands back the same String until the selection changes.
+            lastSelection = selection;
+            lastSelectedMacro = selection != null && selection.startsWith("macro") ? selection.substring(5): null;
+        }
+        return lastSelectedMacro;
+    }
+
+    /**
+     * Starts loading the selected macro in the background, so {@link #autonMacro(Macro)} doesn't have to load it when
+     * autonomous starts. Put this in disabledPeriodic.
+     */
+    public void preloadSelectedMacro() {
+        addChangedMacrosToSendableChooser();
+        String chosenMacro = getSelectedMacro();
+        if (chosenMacro != null)
+            macroCache.preload(chosenMacro);
+    }
+
+    /**
+     * @return The cache the macros played in autonomous are loaded through. Call {@link MacroCache#preloadAll()} on
+     * it to load the whole library ahead of time.
+     */
+    public MacroCache getMacroCache() {
+        return macroCache;
+    }
+
+    /**
+     * @return The index of the macros in the macro directory.
+     */
+    public MacroIndex getMacroIndex() {
+        return macroIndex;
+    }
+
+    /**
+     * Lets the next call to {@link #autonMacro(Macro)} start the selected macro from the beginning. Put this in autonomousInit.
+     */
+    public void resetAutonMacro() {
+        autonMacroStarted = false;
+        autonMacroReported = false;
+    }
+
+    /**
+     * @return The macro being played in autonomous, or null if none has been started.
+     */
+    public Macro getAutonMacro() {
+        return autonMacroStarted ? autonMacro: null;
+    }
+
     /**
      * Reads a file at the given directory as a String array.
      *
@@ -93,6 +359,22 @@ public class MacroHelper {
         return lines.toArray(new String[lines.size()]);
     }
 
+    /**
+     * Loads the macro at the given path, whether it was saved in the text or binary format.
+     *
+     * @param directory The path to the macro
+     * @param sticks    The joysticks used in the recording
+     * @return The loaded macro.
+     * @throws IOException If the file cannot be read for any reason.
+     */
+    public static Macro loadMacro(String directory, Joystick... sticks) throws IOException {
+        try {
+            return Macro.load(Files.readAllBytes(Paths.get(directory)), sticks);
+        } catch (RuntimeException e) { //Parsing errors
+            throw new IOException("The macro at " + directory + " is corrupt.", e);
+        }
+    }
+
     /**
      * Overwrites a file with the given path with the given string.
      *
@@ -101,10 +383,52 @@ public class MacroHelper {
      * @throws IOException If the file could not be written to.
      */
     public static void overwriteFile(String fileDirectory, String info) throws IOException {
-        Files.write(Paths.get(fileDirectory), info.getBytes("utf8"), StandardOpenOption.CREATE,
+        overwriteFile(fileDirectory, info.getBytes("utf8"));
+    }
+
+    /**
+     * Overwrites a file with the given path with the given bytes.
+     *
+     * @param fileDirectory The path to the file
+     * @param info          What to write to the file
+     * @throws IOException If the file could not be written to.
+     */
+    public static void overwriteFile(String fileDirectory, byte[] info) throws IOException {
+        Files.write(Paths.get(fileDirectory), info, StandardOpenOption.CREATE,
                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
     }
 
+    /**
+     * Writes a file so it's either completely written or left as it was, even if the robot loses power partway
+     * through: the bytes go to a temporary file first, which is then renamed over the real one.
+     *
+     * @param file The path to the file
+     * @param info What to write to the file
+     * @throws IOException If the file could not be written to.
+     */
+    public static void writeAtomically(Path file, byte[] info) throws IOException {
+        Path temp = Paths.get(file + tempSuffix);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                                    StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(info);
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(true);
+        }
+        moveAtomically(temp, file);
+    }
+
+    /**
+     * Renames a file, replacing the target if it exists, without the target ever being partly written.
+     *
+     * @param from The file to move
+     * @param to   Where to move it
+     * @throws IOException If the file could not be moved.
+     */
+    public static void moveAtomically(Path from, Path to) throws IOException {
+        Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
     /**
      * Saves a macro to a file, named numerically.
      *
@@ -112,44 +436,248 @@ public class MacroHelper {
      * @throws IOException if the file could not be written to, or the macro directory is not a folder.
      */
     public void saveMacro(Macro currentMacro) throws IOException {
-        File[] filenames = new File(macroDir).listFiles(); //Gets all of the files in the given directory
-        int currentFileNumber = 0; //Since it saves them numerically, it keeps track of the number with an int.
-        getFileNumber:
-        {
-            while (true) { //Keep going until a file with the given name (number) doesn't exist.
-                if (filenames == null)
-                    throw new FileNotFoundException("The directory " + macroDir + " is not a folder!");
-                for (File f : filenames)
-                    if (f.getName().equals(String.valueOf(currentFileNumber)))
-                        break getFileNumber;
-                currentFileNumber++;
-            }
-        }
-        autoChooser.addObject("Macro " + currentFileNumber, "macro" + currentFileNumber);
-        SmartDashboard.putData("Auto", autoChooser); //Update the SendableChooser with the new macro
-        overwriteFile(macroDir + currentFileNumber, currentMacro.toString());
+        long start = System.nanoTime();
+        String name = String.valueOf(macroIndex.allocateId());
+        byte[] data = currentMacro.toBytes();
+        if (macroPack != null)
+            macroPack.add(name, "Macro " + name, currentMacro, data);
+        else
+            writeAtomically(Paths.get(macroDir, name), data);
+        if (instrumentation != null)
+            instrumentation.save(System.nanoTime() - start);
+        if (macroPack != null)
+            macroIndex.addPacked(name);
+        else
+            macroIndex.add(name, currentMacro, data);
+        addChangedMacrosToSendableChooser(); //Update the SendableChooser with the new macro
     }
 
     /**
      * Run when the button to start/stop recording the macro is pressed.
+     * <p>
+     * Binary macros are streamed to their file while they're recorded (see {@link MacroJournal}), so stopping one
+     * doesn't write anything on the robot thread; they're added to the SendableChooser by
+     * {@link #addChangedMacrosToSendableChooser()} once the file is finished. Text macros are written when they're
+     * stopped.
      *
+     * @param currentMacro The macro to start/stop, or null to start a new one.
+     * @return The macro that was started, or null if one was stopped.
      * @throws IOException If the file cannot be read.
-     * @param currentMacro The macro to start/stop.
      */
-    public void startOrStopMacro(Macro currentMacro) throws IOException {
+    public Macro startOrStopMacro(Macro currentMacro) throws IOException {
         if (currentMacro == null) {
-            currentMacro = new Macro(realSticks);
+            currentMacro = new Macro(realSticks, macroFormatVersion);
+            currentMacro.setAxisFilter(axisFilter);
+            applyChannelMasks(currentMacro);
+            currentMacro.setInstrumentation(instrumentation);
+            currentMacro.setCapture(packetCapture);
+            if (macroFormatVersion == Macro.binaryMacroFormatVersion) {
+                String name = String.valueOf(macroIndex.allocateId());
+                MacroJournal journal = new MacroJournal(Paths.get(macroDir, name));
+                MacroPack pack = macroPack;
+                journal.setOnSaved(() -> addJournaledMacro(name, pack));
+                currentMacro.setJournal(journal);
+            }
             System.out.println("Recording...");
             currentMacro.startRecording();
+            return currentMacro;
         } else {
             System.out.println("Stopped recording.");
             currentMacro.stopRecording();
-            this.saveMacro(currentMacro);
-            //noinspection UnusedAssignment
-            currentMacro = null;
+            if (currentMacro.getDroppedEvents() > 0)
+                System.out.println("The axis filter dropped " + currentMacro.getDroppedEvents() + " events.");
+            if (currentMacro.getJournal() == null) //Otherwise, the journal finishes the file in the background.
+                this.saveMacro(currentMacro);
+            if (instrumentation != null) {
+                instrumentation.publish();
+                instrumentation.dump("Recording");
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Adds a macro its {@link MacroJournal} just finished to the pack or the index, which queues it for the
+     * SendableChooser. Runs on the journal's writer thread.
+     *
+     * @param name The name of the macro's file in the macro directory.
+     * @param pack The pack to move it into, or null to leave it in its own file.
+     */
+    private void addJournaledMacro(String name, MacroPack pack) {
+        Path path = Paths.get(macroDir, name);
+        try {
+            byte[] data = Files.readAllBytes(path); //Read back, since a long recording isn't all in memory.
+            Macro macro = Macro.load(data, (JoystickSource[]) null);
+            if (pack != null) {
+                pack.add(name, "Macro " + name, macro, data);
+                Files.delete(path);
+                macroIndex.addPacked(name);
+            } else
+                macroIndex.add(name, macro, data);
+        } catch (IOException | RuntimeException e) {
+            if (debug)
+                e.printStackTrace();
+            System.err.println("Could not add the recorded macro " + name + " to the " + (pack != null ? "macro pack.": "index."));
         }
     }
 
+    /**
+     * Sets whether new recordings get their events from a {@link PacketCapture}, which reads the sticks on its own
+     * thread every time a Driver Station packet arrives, instead of once per loop. Short button taps are kept, and
+     * events are timed by when their packet arrived.
+     *
+     * @param enabled If new recordings should capture every packet.
+     */
+    public void setPacketCapture(boolean enabled) {
+        if (enabled && packetCapture == null) {
+            packetCapture = new PacketCapture(realSticks);
+            packetCapture.start();
+        } else if (!enabled && packetCapture != null) {
+            packetCapture.stop();
+            packetCapture = null;
+        }
+    }
+
+    /**
+     * Starts recording the sticks all the time, keeping the last <code>seconds</code> seconds, so they can be saved with
+     * {@link #saveLastSeconds(double)} after a good run. Call {@link #recordRolling()} every loop after this. It
+     * records with the axis filter and channel masks set so far.
+     *
+     * @param seconds How much to keep.
+     */
+    public void startRollingRecording(double seconds) {
+        rollingRecorder = new RollingRecorder(seconds, realSticks);
+        rollingRecorder.setAxisFilter(axisFilter);
+        for (int i = 0; i < realSticks.length; i++) {
+            int port = realSticks[i].getPort();
+            rollingRecorder.setChannelMask(i, buttonMasks[port], axisMasks[port], POVMasks[port]);
+        }
+    }
+
+    /**
+     * Records any changes in the sticks into the rolling recording, if it's been started. Put this in teleopPeriodic.
+     * Never allocates.
+     */
+    public void recordRolling() {
+        if (rollingRecorder != null)
+            rollingRecorder.record();
+    }
+
+    /**
+     * Saves the last <code>seconds</code> seconds of the rolling recording as a new macro. The macro is built and
+     * written on a background thread, so this doesn't hold up the robot loop, and it's added to the SendableChooser by
+     * {@link #addChangedMacrosToSendableChooser()} once it's saved.
+     *
+     * @param seconds How much to save, up to how much is kept. See {@link RollingRecorder#snapshot}.
+     * @return If the macro is being saved, as opposed to the rolling recording not being started, or the last one still
+     * being saved.
+     */
+    public boolean saveLastSeconds(double seconds) {
+        if (rollingRecorder == null)
+            return false;
+        byte formatVersion = macroFormatVersion;
+        MacroPack pack = macroPack;
+        boolean saving = rollingRecorder.snapshot(seconds, macro -> {
+            long start = System.nanoTime();
+            String name = String.valueOf(macroIndex.allocateId()); //Only taken once there's a macro to save.
+            macro.setMacroFormatVersion(formatVersion);
+            byte[] data = macro.toBytes();
+            try {
+                if (pack != null) {
+                    pack.add(name, "Macro " + name, macro, data);
+                    macroIndex.addPacked(name);
+                } else {
+                    writeAtomically(Paths.get(macroDir, name), data);
+                    macroIndex.add(name, macro, data);
+                }
+                if (instrumentation != null)
+                    instrumentation.save(System.nanoTime() - start);
+                System.out.println("Saved the last " + macro.length() / 1000D + " seconds as macro " + name + '.');
+            } catch (IOException e) {
+                if (debug)
+                    e.printStackTrace();
+                System.err.println("Could not save the last " + macro.length() / 1000D + " seconds as macro " + name + '.');
+            }
+        });
+        if (saving)
+            System.out.println("Saving the last " + rollingRecorder.getSnapshotLength() + " seconds...");
+        return saving;
+    }
+
+    /**
+     * @return The rolling recording, or null if it hasn't been started.
+     */
+    public RollingRecorder getRollingRecorder() {
+        return rollingRecorder;
+    }
+
+    /**
+     * Sets the format new macros are saved in. Saved macros are loaded no matter which format they're in.
+     *
+     * @param macroFormatVersion {@link Macro#textMacroFormatVersion} or {@link Macro#binaryMacroFormatVersion}
+     */
+    public void setMacroFormatVersion(byte macroFormatVersion) {
+        if (macroFormatVersion != Macro.textMacroFormatVersion && macroFormatVersion != Macro.binaryMacroFormatVersion)
+            throw new IllegalArgumentException("Unknown macro format version " + macroFormatVersion + '.');
+        this.macroFormatVersion = macroFormatVersion;
+    }
+
+    /**
+     * Sets the filter new macros record their axes with.
+     *
+     * @param axisFilter The filter to use, like {@link AxisFilter#gamepad}, or null to record every change.
+     */
+    public void setAxisFilter(AxisFilter axisFilter) {
+        this.axisFilter = axisFilter;
+    }
+
+    /**
+     * Sets which buttons, axes and POV switches of the stick on the given port new macros record, and autonomous plays
+     * back. Channels the robot doesn't use can be left out, so they're never read or saved. See
+     * {@link Macro#setChannelMask(int, int, int, int)}.
+     *
+     * @param port    The port of the stick.
+     * @param buttons A bit for each button to include, with button 1 in the lowest bit.
+     * @param axes    A bit for each axis to include, with axis 0 in the lowest bit.
+     * @param POVs    A bit for each POV switch to include, with POV 0 in the lowest bit.
+     */
+    public void setChannelMask(int port, int buttons, int axes, int POVs) {
+        buttonMasks[port] = buttons;
+        axisMasks[port] = axes;
+        POVMasks[port] = POVs;
+    }
+
+    /**
+     * Gives each of the macro's sticks the channel mask set for its port.
+     */
+    private void applyChannelMasks(Macro macro) {
+        for (int i = 0; i < macro.stickCount(); i++) {
+            int port = macro.stickPort(i);
+            macro.setChannelMask(i, buttonMasks[port], axisMasks[port], POVMasks[port]);
+        }
+    }
+
+    /**
+     * Sets whether macros played in autonomous interpolate their axes and play buttons on the loop closest to when they
+     * were recorded, rather than up to a loop late. See {@link Macro#setInterpolated(boolean)}.
+     *
+     * @param interpolatedPlayback If playback should be interpolated.
+     */
+    public void setInterpolatedPlayback(boolean interpolatedPlayback) {
+        this.interpolatedPlayback = interpolatedPlayback;
+    }
+
+    /**
+     * Measures how long recording, playback, loading and saving macros take. The results are put on the SmartDashboard
+     * and logged at the end of every recording and autonomous macro. See {@link MacroInstrumentation}.
+     *
+     * @param instrumentation Where to keep the measurements, or null to stop measuring.
+     */
+    public void setInstrumentation(MacroInstrumentation instrumentation) {
+        this.instrumentation = instrumentation;
+        macroCache.setInstrumentation(instrumentation);
+    }
+
     /**
      * Returns the selected autonomous mode
      *
@@ -0,0 +1,534 @@
+package org.usfirst.frc.team224;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * A list of the macros in the macro directory, saved next to them, so finding them at boot doesn't mean reading every
+ * macro, and saving a new one doesn't mean searching for an unused number.
+ * <p>
+ * The index is read the first time it's needed. If it's missing or unreadable, it's rebuilt from the macros
+ * themselves. Otherwise, only macros whose size or modification time don't match the index are read again. Macros saved
+ * by the robot are added with {@link #add} or {@link #addPacked}. While {@link #startWatching()} is running, macros
+ * added, changed or deleted by anything else (like copying them over SFTP) are indexed as they happen, reading them
+ * without holding up the robot thread. Both are listed by {@link #pollChanged()}.
+ * <p>
+ * The whole index is rewritten atomically after changes, on a background thread, so changes made while it's being
+ * written are saved together by the next write.
+ * <p>
+ * The index is a text file: the line {@link #indexFormatVersion}, then one line per macro with the tab-separated
+ * fields of an {@link Entry}.
+ *
+ * @see MacroHelper
+ */
+public class MacroIndex {
+    /**
+     * The name of the index file in the macro directory.
+     */
+    public static final String indexFileName = "macros.index";
+    public static final byte indexFormatVersion = 1;
+
+    private final Path macroDir;
+    private final Path indexPath;
+    private final Map<String, Entry> entries = new TreeMap<>();
+    private final Queue<String> changed = new ConcurrentLinkedQueue<>();
+    /**
+     * Names handed out by {@link #allocateId()} whose macros haven't been added yet, so the watcher leaves them alone.
+     */
+    private final Set<String> pending = new HashSet<>();
+    private final ExecutorService saver = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Macro index saver");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private boolean opened;
+    private boolean saveQueued;
+    private int nextId;
+    private WatchService watcher;
+
+    /**
+     * Everything the index knows about one macro.
+     */
+    public static class Entry {
+        private final String name;
+        private String displayName;
+        private final long length;
+        private final int eventCount;
+        private final byte formatVersion;
+        private final long checksum;
+        private final long size;
+        private final long lastModified;
+
+        Entry(String name, String displayName, long length, int eventCount, byte formatVersion, long checksum, long size,
+              long lastModified) {
+            this.name = name;
+            this.displayName = displayName;
+            this.length = length;
+            this.eventCount = eventCount;
+            this.formatVersion = formatVersion;
+            this.checksum = checksum;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Reads an entry from a line of the index.
+         */
+        static Entry parse(String line) {
+            String[] values = line.split("\t");
+            return new Entry(values[0], values[1], Long.parseLong(values[2]), Integer.parseInt(values[3]),
+                             Byte.parseByte(values[4]), Long.parseLong(values[5], 16), Long.parseLong(values[6]),
+                             Long.parseLong(values[7]));
+        }
+
+        /**
+         * @return The entry as a line of the index.
+         */
+        public String toString() {
+            return name + '\t' + displayName + '\t' + length + '\t' + eventCount + '\t' + formatVersion + '\t' +
+                   Long.toHexString(checksum) + '\t' + size + '\t' + lastModified;
+        }
+
+        /**
+         * @return The name of the macro's file in the macro directory.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The name shown for the macro in the SendableChooser.
+         */
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        /**
+         * @return The length of the macro in milliseconds.
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return How many events the macro contains.
+         */
+        public int getEventCount() {
+            return eventCount;
+        }
+
+        /**
+         * @return The format the macro was saved in.
+         */
+        public byte getFormatVersion() {
+            return formatVersion;
+        }
+
+        /**
+         * @return The CRC-32 of the macro's file.
+         */
+        public long getChecksum() {
+            return checksum;
+        }
+
+        /**
+         * @return The size of the macro's file in bytes.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return When the macro's file was last modified, or when it was added to a {@link MacroPack}.
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * Creates an index for the given directory. Nothing is read until the index is first used.
+     *
+     * @param macroDir The directory the macros are saved in.
+     */
+    public MacroIndex(String macroDir) {
+        this.macroDir = Paths.get(macroDir);
+        this.indexPath = this.macroDir.resolve(indexFileName);
+    }
+
+    /**
+     * Reads the index, rebuilding it if it's missing, and brings it up to date with the macro directory.
+     */
+    private void open() {
+        if (opened)
+            return;
+        opened = true;
+        try {
+            List<String> lines = Files.readAllLines(indexPath, StandardCharsets.UTF_8);
+            if (lines.isEmpty() || Byte.parseByte(lines.get(0)) != indexFormatVersion)
+                throw new IOException("Unknown macro index format.");
+            for (int i = 1; i < lines.size(); i++) {
+                Entry entry = Entry.parse(lines.get(i));
+                entries.put(entry.name, entry);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Rebuilding the macro index in " + macroDir + '.');
+            entries.clear();
+        }
+        boolean modified = false;
+        File[] files = macroDir.toFile().listFiles();
+        if (files != null) {
+            List<String> names = new ArrayList<>();
+            for (File f : files) {
+                String name = f.getName();
+                reserveId(name);
+                if (!MacroHelper.isMacroFile(name))
+                    continue;
+                names.add(name);
+                Entry entry = entries.get(name);
+                if (entry == null || entry.size != f.length() || entry.lastModified != f.lastModified())
+                    modified |= index(name);
+            }
+            modified |= entries.keySet().retainAll(names);
+        }
+        if (modified)
+            save();
+    }
+
+    /**
+     * Reads a macro and puts it in the index, or takes it out if it can't be read.
+     *
+     * @return If the index changed.
+     */
+    private boolean index(String name) {
+        return publish(name, read(name));
+    }
+
+    /**
+     * Reads a macro for the index. Doesn't touch the index, so it can be called without holding its lock.
+     *
+     * @return The macro's entry, with no display name, or null if it was deleted, is still being copied, or isn't a macro.
+     */
+    private Entry read(String name) {
+        Path path = macroDir.resolve(name);
+        try {
+            long lastModified = Files.getLastModifiedTime(path).toMillis();
+            byte[] data = Files.readAllBytes(path);
+            Macro macro = Macro.load(data, (JoystickSource[]) null);
+            byte formatVersion = MacroCodec.isBinary(data) ? MacroCodec.version(data): Macro.textMacroFormatVersion;
+            return new Entry(name, null, macro.length(), macro.eventCount(), formatVersion, checksum(data), data.length,
+                             lastModified);
+        } catch (IOException | RuntimeException e) { //Deleted, or still being copied, or not a macro.
+            return null;
+        }
+    }
+
+    /**
+     * Puts an entry from {@link #read} in the index, keeping the macro's display name, or takes the macro out if it
+     * couldn't be read.
+     *
+     * @return If the index changed.
+     */
+    private synchronized boolean publish(String name, Entry entry) {
+        if (entry == null)
+            return entries.remove(name) != null;
+        Entry old = entries.get(name);
+        if (old != null && old.size == entry.size && old.lastModified == entry.lastModified && old.checksum == entry.checksum)
+            return false; //Already indexed, like a macro the robot added while it was being read.
+        entry.displayName = old != null ? old.displayName: "Macro " + name;
+        entries.put(name, entry);
+        return true;
+    }
+
+    /**
+     * Makes sure {@link #allocateId()} never hands out the number in the given file name.
+     */
+    synchronized void reserveId(String name) {
+        int end = name.indexOf('.');
+        try {
+            nextId = Math.max(nextId, Integer.parseInt(end < 0 ? name: name.substring(0, end)) + 1);
+        } catch (NumberFormatException ignored) { //Not named numerically.
+        }
+    }
+
+    /**
+     * Queues the index to be written, unless it already is. Call it with the lock held.
+     */
+    private void save() {
+        if (saveQueued)
+            return;
+        saveQueued = true;
+        saver.execute(this::write);
+    }
+
+    /**
+     * Writes the index over its file atomically, on the saver thread. Only copying the entries holds the lock, so the
+     * robot thread isn't kept waiting on the file system. Failing to write it isn't fatal, since it can be rebuilt.
+     */
+    private void write() {
+        StringBuilder str = new StringBuilder().append(indexFormatVersion).append('\n');
+        synchronized (this) {
+            saveQueued = false; //Anything changed from here on is saved by the next write.
+            for (Entry entry : entries.values())
+                str.append(entry).append('\n');
+        }
+        try {
+            MacroHelper.writeAtomically(indexPath, str.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.err.println("Could not save the macro index at " + indexPath + '.');
+        }
+    }
+
+    /**
+     * Waits for the changes made so far to be written to the index file.
+     */
+    void flush() {
+        try {
+            saver.submit(() -> {
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param data The contents of a macro file.
+     * @return The CRC-32 of the data.
+     */
+    static long checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    /**
+     * @return Every macro in the index, sorted by name.
+     */
+    public synchronized Collection<Entry> getEntries() {
+        open();
+        return Collections.unmodifiableCollection(new ArrayList<>(entries.values()));
+    }
+
+    /**
+     * @param name The name of a macro's file in the macro directory.
+     * @return The macro's entry, or null if it isn't in the index.
+     */
+    public synchronized Entry getEntry(String name) {
+        open();
+        return entries.get(name);
+    }
+
+    /**
+     * Hands out a number no macro in the directory is named with, and that won't be handed out again.
+     *
+     * @return The number to name the next macro.
+     */
+    public synchronized int allocateId() {
+        open();
+        pending.add(String.valueOf(nextId));
+        return nextId++;
+    }
+
+    /**
+     * Adds a macro that was just saved to the index, without reading it back, and queues it for {@link #pollChanged()}.
+     *
+     * @param name  The name of the macro's file in the macro directory.
+     * @param macro The macro.
+     * @param data  What was written to the file.
+     * @return The macro's entry.
+     */
+    public synchronized Entry add(String name, Macro macro, byte[] data) {
+        open();
+        reserveId(name);
+        long lastModified;
+        try {
+            lastModified = Files.getLastModifiedTime(macroDir.resolve(name)).toMillis();
+        } catch (IOException e) {
+            lastModified = 0; //Read again the next time the index is opened.
+        }
+        Entry old = entries.get(name);
+        Entry entry = new Entry(name, old != null ? old.displayName: "Macro " + name, macro.length(), macro.eventCount(),
+                                macro.getMacroFormatVersion(), checksum(data), data.length, lastModified);
+        entries.put(name, entry);
+        save();
+        pending.remove(name);
+        changed.add(name);
+        return entry;
+    }
+
+    /**
+     * Queues a macro that was just saved into a {@link MacroPack} for {@link #pollChanged()}, and takes it out of the
+     * index if its own file was.
+     *
+     * @param name The macro's name in the pack.
+     */
+    public synchronized void addPacked(String name) {
+        open();
+        reserveId(name);
+        if (entries.remove(name) != null)
+            save();
+        pending.remove(name);
+        changed.add(name);
+    }
+
+    /**
+     * Reads the given macro again, after its file was changed by something else.
+     *
+     * @param name The name of the macro's file in the macro directory.
+     * @return The macro's entry, or null if it was deleted or can't be read.
+     */
+    public Entry update(String name) {
+        synchronized (this) {
+            open();
+        }
+        reindex(name);
+        return getEntry(name);
+    }
+
+    /**
+     * Reads the given macro again, saving the index if it changed. The macro is read without holding the lock, so a
+     * big one being copied in doesn't hold up {@link #allocateId()} and {@link #add} on the robot thread.
+     *
+     * @return If the index changed.
+     */
+    private boolean reindex(String name) {
+        reserveId(name);
+        Entry entry = read(name);
+        synchronized (this) {
+            if (pending.contains(name) || !publish(name, entry))
+                return false; //The robot started saving it while it was being read, and will add it itself.
+            save();
+            return true;
+        }
+    }
+
+    /**
+     * Changes the name shown for a macro in the SendableChooser.
+     *
+     * @param name        The name of the macro's file in the macro directory.
+     * @param displayName The name to show. Tabs and line breaks are replaced with spaces.
+     */
+    public synchronized void setDisplayName(String name, String displayName) {
+        open();
+        Entry entry = entries.get(name);
+        if (entry == null)
+            throw new IllegalArgumentException("There is no macro named " + name + '.');
+        entry.displayName = displayName.replaceAll("[\t\r\n]", " ");
+        save();
+    }
+
+    /**
+     * Starts a background thread that indexes macros as they're added, changed or deleted in the macro directory.
+     *
+     * @throws IOException If the directory can't be watched.
+     */
+    public synchronized void startWatching() throws IOException {
+        if (watcher != null)
+            return;
+        open();
+        watcher = macroDir.getFileSystem().newWatchService();
+        macroDir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                          StandardWatchEventKinds.ENTRY_DELETE);
+        WatchService watcher = this.watcher;
+        Thread thread = new Thread(() -> watch(watcher), "Macro index watcher");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Stops watching the macro directory.
+     */
+    public synchronized void stopWatching() {
+        if (watcher == null)
+            return;
+        try {
+            watcher.close();
+        } catch (IOException ignored) {
+        }
+        watcher = null;
+    }
+
+    /**
+     * Runs on the watcher thread, indexing each macro file that changes.
+     */
+    private void watch(WatchService watcher) {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) { //Too many changes at once, so check everything.
+                        synchronized (this) {
+                            opened = false;
+                            open();
+                            changed.addAll(entries.keySet());
+                        }
+                        continue;
+                    }
+                    String name = event.context().toString();
+                    if (MacroHelper.isMacroFile(name) && !isUpToDate(name) && reindex(name))
+                        changed.add(name); //Not while it's still being copied, and not again if it's copied slowly.
+                }
+                if (!key.reset())
+                    return;
+            }
+        } catch (ClosedWatchServiceException ignored) { //stopWatching() was called.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Checks if a file the watcher saw change is already indexed as it is now, like the macros the robot saves itself.
+     *
+     * @param name The name of the macro's file in the macro directory.
+     * @return If the file is still being saved through this index, or its size and modification time match its entry,
+     * or it's been deleted and has no entry.
+     */
+    private synchronized boolean isUpToDate(String name) {
+        if (pending.contains(name))
+            return true;
+        File file = macroDir.resolve(name).toFile();
+        Entry entry = entries.get(name);
+        if (!file.exists())
+            return entry == null;
+        return entry != null && entry.size == file.length() && entry.lastModified == file.lastModified();
+    }
+
+    /**
+     * Takes the next macro that was saved through {@link #add} or {@link #addPacked}, or added, changed or deleted by
+     * something else while the index was watching.
+     *
+     * @return The name of the macro's file in the macro directory (or in the pack), or null if nothing has changed. Use
+     * {@link #getEntry(String)} to see if it still exists.
+     */
+    public String pollChanged() {
+        return changed.poll();
+    }
+}
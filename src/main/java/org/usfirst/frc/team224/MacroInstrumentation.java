@@ -0,0 +1,224 @@
+package org.usfirst.frc.team224;
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Measures how long recording, playback, loading and saving macros take, and how far from their recorded times events
+ * are played back.
+ * <p>
+ * Give one to {@link Macro#setInstrumentation(MacroInstrumentation)} or
+ * {@link MacroHelper#setInstrumentation(MacroInstrumentation)} to turn it on. A macro without one only checks a null
+ * field each loop. Everything is kept in {@link LatencyHistogram}s, so measuring doesn't allocate.
+ * {@link #publish()} puts the results on the SmartDashboard, and {@link #dump(String)} appends them to a log file and
+ * starts over. The file is written by a background thread, so dumping doesn't wait on the disk. MacroHelper does both
+ * at the end of every recording and autonomous.
+ * <p>
+ * The record and playback measurements must be made from the robot thread. Load and save times can come from any
+ * thread.
+ *
+ * @see MacroHelper
+ */
+public class MacroInstrumentation {
+    private final Path logFile;
+    private final LatencyHistogram recordNanos = new LatencyHistogram();
+    private final LatencyHistogram recordedEvents = new LatencyHistogram();
+    private final LatencyHistogram playbackNanos = new LatencyHistogram();
+    private final LatencyHistogram playedEvents = new LatencyHistogram();
+    private final LatencyHistogram playbackLagMicros = new LatencyHistogram();
+    private final LatencyHistogram loadNanos = new LatencyHistogram();
+    private final LatencyHistogram saveNanos = new LatencyHistogram();
+    private final BlockingQueue<String> reports = new LinkedBlockingQueue<>(); //Dumped, but not written yet.
+    private Thread writer; //Started by the first dump.
+
+    /**
+     * Creates instrumentation that logs to the given file.
+     *
+     * @param logFile The file {@link #dump(String)} appends to, or null to only publish to the SmartDashboard.
+     */
+    public MacroInstrumentation(Path logFile) {
+        this.logFile = logFile;
+    }
+
+    /**
+     * Counts one call to {@link Macro#record()}.
+     *
+     * @param nanos  How long it took.
+     * @param events How many events it recorded.
+     */
+    void recordTick(long nanos, int events) {
+        recordNanos.record(nanos);
+        recordedEvents.record(events);
+    }
+
+    /**
+     * Counts one call to {@link Macro#playback}.
+     *
+     * @param nanos  How long it took.
+     * @param events How many events it played.
+     */
+    void playbackTick(long nanos, int events) {
+        playbackNanos.record(nanos);
+        playedEvents.record(events);
+    }
+
+    /**
+     * Counts how far from its recorded time an event was played.
+     *
+     * @param micros How late it was, or negative if it was early.
+     */
+    void playbackLag(long micros) {
+        playbackLagMicros.record(Math.abs(micros));
+    }
+
+    /**
+     * Counts a macro being loaded.
+     *
+     * @param nanos How long it took.
+     */
+    synchronized void load(long nanos) {
+        loadNanos.record(nanos);
+    }
+
+    /**
+     * Counts a macro being saved.
+     *
+     * @param nanos How long it took.
+     */
+    synchronized void save(long nanos) {
+        saveNanos.record(nanos);
+    }
+
+    /**
+     * Puts the median, 99th percentile and maximum of everything measured on the SmartDashboard, under "Macro/".
+     */
+    public synchronized void publish() {
+        publish("record us", recordNanos, 1000);
+        publish("recorded events", recordedEvents, 1);
+        publish("playback us", playbackNanos, 1000);
+        publish("played events", playedEvents, 1);
+        publish("playback lag us", playbackLagMicros, 1);
+        publish("load ms", loadNanos, 1000000);
+        publish("save ms", saveNanos, 1000000);
+    }
+
+    private static void publish(String name, LatencyHistogram histogram, double scale) {
+        SmartDashboard.putNumber("Macro/" + name + " p50", histogram.getValueAtPercentile(50) / scale);
+        SmartDashboard.putNumber("Macro/" + name + " p99", histogram.getValueAtPercentile(99) / scale);
+        SmartDashboard.putNumber("Macro/" + name + " max", histogram.getMax() / scale);
+    }
+
+    /**
+     * Appends everything measured to the log file, then starts measuring from scratch. The report is put together
+     * now, but written in the background.
+     *
+     * @param session What was measured, like "Autonomous" or "Recording", to label it in the log.
+     */
+    public synchronized void dump(String session) {
+        if (logFile != null) {
+            String report = session + " at " + new Date() + '\n' +
+                            "record ns: " + recordNanos + '\n' +
+                            "events recorded per loop: " + recordedEvents + '\n' +
+                            "playback ns: " + playbackNanos + '\n' +
+                            "events played per loop: " + playedEvents + '\n' +
+                            "playback lag us: " + playbackLagMicros + '\n' +
+                            "load ns: " + loadNanos + '\n' +
+                            "save ns: " + saveNanos + "\n\n";
+            reports.add(report);
+            if (writer == null) {
+                writer = new Thread(this::write, "Macro stats writer");
+                writer.setDaemon(true);
+                writer.start();
+            }
+        }
+        reset();
+    }
+
+    /**
+     * Appends reports to the log file as they're dumped. Runs on {@link #writer}.
+     */
+    private void write() {
+        try {
+            while (true) {
+                String report = reports.take();
+                try {
+                    Files.write(logFile, report.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+                                StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+                } catch (IOException e) {
+                    System.err.println("Could not write macro statistics to " + logFile + " (" + e + ").");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Forgets everything measured.
+     */
+    public synchronized void reset() {
+        recordNanos.reset();
+        recordedEvents.reset();
+        playbackNanos.reset();
+        playedEvents.reset();
+        playbackLagMicros.reset();
+        loadNanos.reset();
+        saveNanos.reset();
+    }
+
+    /**
+     * @return How long each call to {@link Macro#record()} took, in nanoseconds.
+     */
+    public LatencyHistogram getRecordNanos() {
+        return recordNanos;
+    }
+
+    /**
+     * @return How many events each call to {@link Macro#record()} recorded.
+     */
+    public LatencyHistogram getRecordedEvents() {
+        return recordedEvents;
+    }
+
+    /**
+     * @return How long each call to {@link Macro#playback} took, in nanoseconds.
+     */
+    public LatencyHistogram getPlaybackNanos() {
+        return playbackNanos;
+    }
+
+    /**
+     * @return How many events each call to {@link Macro#playback} played.
+     */
+    public LatencyHistogram getPlayedEvents() {
+        return playedEvents;
+    }
+
+    /**
+     * @return How far from its recorded time each event was played, early or late, in microseconds.
+     */
+    public LatencyHistogram getPlaybackLagMicros() {
+        return playbackLagMicros;
+    }
+
+    /**
+     * @return How long loading each macro took, in nanoseconds.
+     */
+    public LatencyHistogram getLoadNanos() {
+        return loadNanos;
+    }
+
+    /**
+     * @return How long saving each macro took, in nanoseconds.
+     */
+    public LatencyHistogram getSaveNanos() {
+        return saveNanos;
+    }
+}
@@ -0,0 +1,271 @@
+package org.usfirst.frc.team224;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Streams a macro to disk in the binary format while it's being recorded, so stopping a recording doesn't have to
+ * serialize and write the whole thing on the robot thread.
+ * <p>
+ * Events are encoded into fixed-size chunks on the robot thread, which never blocks on the disk: full chunks are
+ * handed to a background thread that appends them to a journal file next to the macro and flushes it periodically.
+ * When the recording stops, the background thread writes the end of the macro and renames the journal over the
+ * macro's file atomically, so the macro's file is either missing or complete. If the macro was simplified when it
+ * stopped, the writer saves the simplified macro over it instead, and then deletes the journal. If the robot browns out
+ * mid-recording, {@link #recover(Path)} turns what made it into the journal into a normal macro.
+ *
+ * @see Macro#setJournal(MacroJournal)
+ * @see MacroCodec
+ */
+public class MacroJournal {
+    /**
+     * Added to the end of the macro's path to get the journal's path.
+     */
+    public static final String journalSuffix = ".journal";
+    private static final int chunkSize = 4096;
+    private static final int chunkCount = 8;
+    private static final long flushInterval = 250000000; //How often, in nanoseconds, events are handed to the disk.
+    /**
+     * Handed to the writer thread to tell it the macro is finished.
+     */
+    private static final ByteBuffer finish = ByteBuffer.allocate(0);
+
+    private final Path macroPath;
+    private final Path journalPath;
+    private final BlockingQueue<ByteBuffer> freeChunks = new ArrayBlockingQueue<>(chunkCount);
+    //Room for the header, the finish marker, and chunks allocated if the writer falls behind.
+    private final BlockingQueue<ByteBuffer> fullChunks = new ArrayBlockingQueue<>(chunkCount * 8);
+    private ByteBuffer header;
+    private Macro rewrite; //Saved in place of the journal, if the macro changed after its events were journaled.
+    private Runnable onSaved; //Run on the writer thread once the macro is at its path.
+    private ByteBuffer chunk;
+    private long lastTime;
+    private long lastHandoff;
+    private int overflowChunks;
+    private boolean started, finished;
+    private volatile IOException error;
+    private volatile boolean done;
+
+    /**
+     * Creates a journal for a macro that will be saved at the given path.
+     *
+     * @param macroPath Where the finished macro should end up.
+     */
+    public MacroJournal(Path macroPath) {
+        this.macroPath = macroPath;
+        this.journalPath = Paths.get(macroPath + journalSuffix);
+        for (int i = 0; i < chunkCount; i++)
+            freeChunks.add(ByteBuffer.allocate(chunkSize));
+    }
+
+    /**
+     * Opens the journal and writes the macro's header. Called by {@link Macro#startRecording()}.
+     *
+     * @param macro The macro being recorded.
+     * @throws IOException If the journal can't be created.
+     */
+    void start(Macro macro) throws IOException {
+        if (started)
+            throw new IllegalStateException("This journal has already been started.");
+        started = true;
+        FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                               StandardOpenOption.WRITE);
+        header = ByteBuffer.allocate(MacroCodec.headerSize(macro));
+        MacroCodec.writeHeader(header, macro);
+        header.flip();
+        fullChunks.add(header);
+        chunk = freeChunks.poll();
+        lastTime = 0;
+        lastHandoff = System.nanoTime();
+        Thread writer = new Thread(() -> write(channel), "Macro journal writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Appends the given events of the macro to the journal. Called by {@link Macro#record()} with the events it just
+     * recorded. Doesn't block or allocate unless the disk has fallen behind by more than {@link #chunkCount} chunks.
+     *
+     * @param macro The macro being recorded.
+     * @param from  The index of the first new event.
+     * @param to    The index after the last new event.
+     */
+    void append(Macro macro, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (chunk.remaining() < MacroCodec.maxEventSize)
+                handOff();
+            MacroCodec.writeEvent(chunk, macro.eventOffsetMicros(i) - lastTime, macro.eventType(i), macro.eventStick(i),
+                                  macro.eventId(i), macro.eventValue(i));
+            lastTime = macro.eventOffsetMicros(i);
+        }
+        if (chunk.position() > 0 && System.nanoTime() - lastHandoff >= flushInterval)
+            handOff();
+    }
+
+    /**
+     * Writes the end of the macro, after which the writer thread renames the journal to the macro's path. Called by
+     * {@link Macro#stopRecording()}. Doesn't wait for the disk.
+     *
+     * @param lengthMicros How long the recording was, in microseconds.
+     * @param rewrite      The macro to save instead of the journal, encoded on the writer thread, or null to keep the
+     *                     journal. It must not change afterwards.
+     */
+    void finish(long lengthMicros, Macro rewrite) {
+        if (!started || finished)
+            return;
+        finished = true;
+        this.rewrite = rewrite; //Handed to the writer thread by the finish marker.
+        if (chunk.remaining() < MacroCodec.footerSize)
+            handOff();
+        MacroCodec.writeFooter(chunk, lengthMicros);
+        handOff();
+        enqueue(finish);
+    }
+
+    /**
+     * Hands the current chunk to the writer thread and takes a free one, allocating a new one if the writer is behind.
+     */
+    private void handOff() {
+        chunk.flip();
+        enqueue(chunk);
+        chunk = freeChunks.poll();
+        if (chunk == null) {
+            overflowChunks++;
+            chunk = ByteBuffer.allocate(chunkSize);
+        }
+        lastHandoff = System.nanoTime();
+    }
+
+    /**
+     * Queues a chunk for the writer thread. Only waits if the disk has fallen behind by {@link #fullChunks}' capacity.
+     */
+    private void enqueue(ByteBuffer full) {
+        try {
+            fullChunks.put(full);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs on the writer thread, writing chunks until the macro is finished.
+     */
+    private void write(FileChannel channel) {
+        long lastForce = System.nanoTime();
+        try {
+            ByteBuffer full;
+            while ((full = fullChunks.take()) != finish) {
+                if (error == null) //After an error, keep taking chunks so the robot thread never waits on a dead writer.
+                    try {
+                        while (full.hasRemaining())
+                            channel.write(full);
+                        if (System.nanoTime() - lastForce >= flushInterval) {
+                            channel.force(false);
+                            lastForce = System.nanoTime();
+                        }
+                    } catch (IOException e) {
+                        error = e;
+                        System.err.println("Could not write the macro journal at " + journalPath + '.');
+                    }
+                if (full != header) {
+                    full.clear();
+                    freeChunks.offer(full); //Chunks allocated because the writer fell behind are dropped here if the pool is full.
+                }
+            }
+            if (error == null) {
+                channel.force(true);
+                channel.close();
+                if (rewrite != null) { //The journal stays until the macro replacing it is safely written.
+                    MacroHelper.writeAtomically(macroPath, MacroCodec.encode(rewrite));
+                    Files.delete(journalPath);
+                } else
+                    MacroHelper.moveAtomically(journalPath, macroPath);
+                if (onSaved != null)
+                    onSaved.run();
+            }
+        } catch (IOException e) {
+            error = e;
+            System.err.println("Could not finish the macro journal at " + journalPath + '.');
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            done = true;
+        }
+    }
+
+    /**
+     * Sets what to do once the macro has been completely written and moved to its final path, like adding it to the
+     * SendableChooser. It runs on the writer thread, and not at all if writing the macro failed. Must be called before
+     * the recording stops.
+     *
+     * @param onSaved What to run.
+     */
+    public void setOnSaved(Runnable onSaved) {
+        if (finished)
+            throw new IllegalStateException("The journal has already been finished.");
+        this.onSaved = onSaved;
+    }
+
+    /**
+     * @return If the macro has been completely written and moved to its final path, or writing it failed.
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return The error that stopped the journal from being written, or null if there wasn't one.
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    /**
+     * @return How many chunks had to be allocated because the disk fell behind.
+     */
+    public int getOverflowChunks() {
+        return overflowChunks;
+    }
+
+    /**
+     * @return Where the finished macro will be.
+     */
+    public Path getMacroPath() {
+        return macroPath;
+    }
+
+    /**
+     * Turns a journal left behind by a recording that never finished (like after a brownout) into a normal macro,
+     * ending at the last event that was completely written, then deletes the journal.
+     *
+     * @param journalPath The path to the journal.
+     * @return The path the recovered macro was saved to.
+     * @throws IOException If the journal can't be read, or didn't get as far as the first event.
+     */
+    public static Path recover(Path journalPath) throws IOException {
+        String name = journalPath.toString();
+        if (!name.endsWith(journalSuffix))
+            throw new IllegalArgumentException(journalPath + " is not a macro journal.");
+        Path macroPath = Paths.get(name.substring(0, name.length() - journalSuffix.length()));
+        Macro macro;
+        try {
+            macro = MacroCodec.decode(Files.readAllBytes(journalPath), null, true);
+        } catch (RuntimeException e) {
+            throw new IOException("The macro journal at " + journalPath + " can't be recovered.", e);
+        }
+        MacroHelper.writeAtomically(macroPath, MacroCodec.encode(macro));
+        Files.delete(journalPath);
+        return macroPath;
+    }
+}
@@ -0,0 +1,449 @@
+package org.usfirst.frc.team224;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The whole macro library in one file, so the robot doesn't have to list the macro directory and open every macro at
+ * boot. The file starts with a table of contents, so listing the macros is one read of the header, and it's
+ * memory-mapped, so opening a binary macro decodes it straight out of the mapping without reading it into an array.
+ * <p>
+ * Layout, all multi-byte values big-endian:
+ * <pre>
+ * "FRCP" | version | 3 unused bytes | slot capacity (int) | slots used (int) | end of the macros (long)
+ * per slot ({@link #slotSize} bytes): offset (long) | size (int) | format version | live (byte) | event count (int) |
+ *     length in ms (long) | CRC-32 (long) | when it was added (long) | name (length byte, then up to 21 bytes of UTF-8) |
+ *     display name (length byte, then up to 63 bytes of UTF-8)
+ * the macros, each as {@link Macro#toBytes()} wrote it
+ * </pre>
+ * A macro is added by writing it after the last one, then its slot, then the header, so the file is only ever changed
+ * in place past its end or in an unused slot until the header says otherwise: a robot that loses power partway through
+ * comes back with the pack as it was. Replacing or removing a macro marks its slot dead and leaves its bytes where they
+ * are. Once dead macros take up more room than live ones, or the slots run out, the pack is compacted: rewritten
+ * without them, to a temporary file that's then renamed over it.
+ * <p>
+ * The file is grown ahead of the macros, doubling each time, so the mapping only has to be replaced every so often: Java
+ * can't unmap a file, so each old mapping stays around until it's garbage collected. The bytes past the end of the
+ * macros are unused.
+ *
+ * @see MacroHelper#setMacroPack(boolean)
+ * @see MacroIndex
+ */
+public class MacroPack implements Closeable {
+    /**
+     * The name of the pack file in the macro directory.
+     */
+    public static final String packFileName = "macros.pack";
+    public static final byte packFormatVersion = 1;
+    private static final byte[] magic = {'F', 'R', 'C', 'P'};
+    private static final int headerSize = magic.length + 4 + 4 + 4 + 8;
+    /**
+     * How many bytes each macro's entry in the table of contents takes.
+     */
+    public static final int slotSize = 128;
+    private static final int maxNameBytes = 21, maxDisplayNameBytes = 63;
+    private static final int initialCapacity = 64;
+    /**
+     * Dead macros aren't compacted away until they take up at least this many bytes, so small packs aren't rewritten
+     * every time a macro is replaced.
+     */
+    private static final long minCompactionBytes = 64 * 1024;
+
+    private final Path path;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private int capacity, used;
+    private long dataEnd, deadBytes;
+    private final Map<String, Integer> slots = new LinkedHashMap<>(); //Live macros by name, to their slot.
+    private final Map<String, MacroIndex.Entry> entries = new LinkedHashMap<>();
+
+    private MacroPack(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Opens a pack, creating an empty one if there isn't one yet. Only the table of contents is read.
+     *
+     * @param path Where the pack is.
+     * @return The pack.
+     * @throws IOException If the pack can't be read or created, or is corrupt.
+     */
+    public static MacroPack open(Path path) throws IOException {
+        MacroPack pack = new MacroPack(path);
+        if (!Files.exists(path))
+            writePack(path, initialCapacity, Collections.emptyList(), Collections.emptyList());
+        pack.map();
+        return pack;
+    }
+
+    /**
+     * Opens the pack file and reads its table of contents.
+     */
+    private void map() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            remap();
+            ByteBuffer in = mapped.duplicate();
+            for (byte b : magic)
+                if (in.get() != b)
+                    throw new IOException(path + " isn't a macro pack.");
+            byte version = in.get();
+            if (version != packFormatVersion)
+                throw new IOException(path + " is in an unknown macro pack format (" + version + ").");
+            in.position(magic.length + 4);
+            capacity = in.getInt();
+            used = in.getInt();
+            dataEnd = in.getLong();
+            long payloadStart = headerSize + (long) capacity * slotSize;
+            if (capacity < 0 || used < 0 || used > capacity || dataEnd < payloadStart || dataEnd > mapped.capacity())
+                throw new IOException("The macro pack at " + path + " is corrupt.");
+            slots.clear();
+            entries.clear();
+            deadBytes = 0;
+            for (int i = 0; i < used; i++) {
+                in.position(headerSize + i * slotSize);
+                long offset = in.getLong();
+                int size = in.getInt();
+                byte formatVersion = in.get();
+                boolean live = in.get() != 0;
+                int eventCount = in.getInt();
+                long length = in.getLong();
+                long checksum = in.getLong();
+                long added = in.getLong();
+                String name = readString(in, maxNameBytes), displayName = readString(in, maxDisplayNameBytes);
+                if (offset < payloadStart || size < 0 || offset + size > dataEnd)
+                    throw new IOException("The macro pack at " + path + " is corrupt.");
+                if (!live) {
+                    deadBytes += size;
+                    continue;
+                }
+                Integer replaced = slots.put(name, i);
+                if (replaced != null) //Power was lost while it was being replaced, so the later one wins.
+                    deadBytes += entries.get(name).getSize();
+                entries.put(name, new MacroIndex.Entry(name, displayName, length, eventCount, formatVersion, checksum,
+                                                       size, added));
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e instanceof IOException ? (IOException) e: new IOException("The macro pack at " + path + " is corrupt.", e);
+        }
+    }
+
+    /**
+     * Maps the whole file.
+     */
+    private void remap() throws IOException {
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    /**
+     * Makes sure the mapping reaches the given offset, growing the file to at least twice its size and mapping it again
+     * if it doesn't. Writes through the channel show up in the mapping, so it doesn't have to be replaced otherwise.
+     */
+    private void ensureMapped(long end) throws IOException {
+        if (end <= mapped.capacity())
+            return;
+        long size = Math.max(end, Math.min((long) mapped.capacity() * 2, Integer.MAX_VALUE));
+        if (channel.size() < size)
+            channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+        remap();
+    }
+
+    /**
+     * @return Every live macro in the pack, in the order they were added.
+     */
+    public synchronized Collection<MacroIndex.Entry> getEntries() {
+        return Collections.unmodifiableCollection(new ArrayList<>(entries.values()));
+    }
+
+    /**
+     * @param name The name of a macro.
+     * @return The macro's entry, or null if it isn't in the pack.
+     */
+    public synchronized MacroIndex.Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Loads a macro from the pack. A binary macro is decoded straight out of the memory-mapped file.
+     *
+     * @param name   The name of the macro.
+     * @param sticks The joysticks used in the recording, or null to use the ports saved in the macro.
+     * @return The macro.
+     * @throws IOException If the macro isn't in the pack, or is corrupt.
+     */
+    public Macro load(String name, JoystickSource[] sticks) throws IOException {
+        ByteBuffer data;
+        synchronized (this) {
+            Integer slot = slots.get(name);
+            if (slot == null)
+                throw new IOException("There is no macro named " + name + " in " + path + '.');
+            data = slice(slot);
+        }
+        try {
+            return Macro.load(data, sticks); //The old mapping stays valid even if the pack is compacted meanwhile.
+        } catch (RuntimeException e) { //Parsing errors
+            throw new IOException("The macro " + name + " in " + path + " is corrupt.", e);
+        }
+    }
+
+    /**
+     * @return The bytes of the macro in the given slot, as a read-only view of the mapping.
+     */
+    private ByteBuffer slice(int slot) {
+        long offset = mapped.getLong(headerSize + slot * slotSize);
+        int size = mapped.getInt(headerSize + slot * slotSize + 8);
+        ByteBuffer data = mapped.duplicate();
+        data.limit((int) offset + size).position((int) offset);
+        return data.slice();
+    }
+
+    /**
+     * Adds a macro to the end of the pack, replacing any macro with the same name. Compacts the pack if it's due.
+     *
+     * @param name        The name of the macro, up to 21 bytes.
+     * @param displayName The name shown for the macro in the SendableChooser. Cut off at 63 bytes.
+     * @param macro       The macro.
+     * @param data        The macro as {@link Macro#toBytes()} wrote it.
+     * @return The macro's entry.
+     * @throws IOException If the pack couldn't be written.
+     */
+    public synchronized MacroIndex.Entry add(String name, String displayName, Macro macro, byte[] data) throws IOException {
+        if (name.getBytes(StandardCharsets.UTF_8).length > maxNameBytes)
+            throw new IllegalArgumentException("A packed macro's name can be at most " + maxNameBytes + " bytes.");
+        MacroIndex.Entry entry = new MacroIndex.Entry(name, displayName, macro.length() != null ? macro.length(): 0,
+                                                      macro.eventCount(), MacroCodec.isBinary(data) ? MacroCodec.version(data):
+                                                                          Macro.textMacroFormatVersion,
+                                                      MacroIndex.checksum(data), data.length, System.currentTimeMillis());
+        if (used == capacity) //Out of slots, so make room.
+            compact(Math.max(initialCapacity, (entries.size() + 1) * 2), entry, data);
+        else {
+            long offset = dataEnd;
+            channel.write(ByteBuffer.wrap(data), offset);
+            writeSlot(used, offset, entry);
+            channel.force(false); //The macro and its slot have to be on disk before the header points to them.
+            writeHeader(used + 1, offset + data.length);
+            Integer replaced = slots.get(name);
+            if (replaced != null) //After the header, so there's always a live copy. If both are, the later one wins.
+                kill(replaced);
+            channel.force(false);
+            slots.put(name, used);
+            entries.put(name, entry);
+            used++;
+            dataEnd = offset + data.length;
+            ensureMapped(dataEnd);
+        }
+        compactIfDue();
+        return entries.get(name);
+    }
+
+    /**
+     * Removes a macro from the pack. Its bytes stay in the file until the pack is compacted.
+     *
+     * @param name The name of the macro.
+     * @return If the macro was in the pack.
+     * @throws IOException If the pack couldn't be written.
+     */
+    public synchronized boolean remove(String name) throws IOException {
+        Integer slot = slots.remove(name);
+        if (slot == null)
+            return false;
+        entries.remove(name);
+        kill(slot);
+        channel.force(false);
+        compactIfDue();
+        return true;
+    }
+
+    /**
+     * Changes the name shown for a macro in the SendableChooser, in place.
+     *
+     * @param name        The name of the macro.
+     * @param displayName The name to show. Cut off at 63 bytes.
+     * @throws IOException If the pack couldn't be written.
+     */
+    public synchronized void setDisplayName(String name, String displayName) throws IOException {
+        Integer slot = slots.get(name);
+        if (slot == null)
+            throw new IllegalArgumentException("There is no macro named " + name + '.');
+        MacroIndex.Entry old = entries.get(name);
+        MacroIndex.Entry entry = new MacroIndex.Entry(name, displayName, old.getLength(), old.getEventCount(),
+                                                      old.getFormatVersion(), old.getChecksum(), old.getSize(),
+                                                      old.getLastModified());
+        ByteBuffer out = ByteBuffer.allocate(1 + maxDisplayNameBytes);
+        putString(out, displayName, maxDisplayNameBytes);
+        out.flip();
+        channel.write(out, headerSize + (long) slot * slotSize + slotSize - 1 - maxDisplayNameBytes);
+        channel.force(false);
+        entries.put(name, entry);
+    }
+
+    /**
+     * Marks a slot dead, so its macro is dropped the next time the pack is opened or compacted.
+     */
+    private void kill(int slot) throws IOException {
+        deadBytes += mapped.getInt(headerSize + slot * slotSize + 8);
+        channel.write(ByteBuffer.wrap(new byte[] {0}), headerSize + (long) slot * slotSize + 8 + 4 + 1);
+    }
+
+    private void writeSlot(int slot, long offset, MacroIndex.Entry entry) throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(slotSize);
+        putSlot(out, offset, entry);
+        out.flip();
+        channel.write(out, headerSize + (long) slot * slotSize);
+    }
+
+    private static void putSlot(ByteBuffer out, long offset, MacroIndex.Entry entry) {
+        int start = out.position();
+        out.putLong(offset).putInt((int) entry.getSize()).put(entry.getFormatVersion()).put((byte) 1)
+           .putInt(entry.getEventCount()).putLong(entry.getLength()).putLong(entry.getChecksum())
+           .putLong(entry.getLastModified());
+        putString(out, entry.getName(), maxNameBytes);
+        putString(out, entry.getDisplayName(), maxDisplayNameBytes);
+        out.position(start + slotSize);
+    }
+
+    private void writeHeader(int used, long dataEnd) throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(headerSize);
+        putHeader(out, capacity, used, dataEnd);
+        out.flip();
+        channel.write(out, 0);
+    }
+
+    private static void putHeader(ByteBuffer out, int capacity, int used, long dataEnd) {
+        out.put(magic).put(packFormatVersion).put(new byte[3]).putInt(capacity).putInt(used).putLong(dataEnd);
+    }
+
+    /**
+     * Writes a string as a length byte and its UTF-8 bytes, cut off to fit, padded to the full width.
+     */
+    private static void putString(ByteBuffer out, String str, int maxBytes) {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, maxBytes);
+        while (length > 0 && length < bytes.length && (bytes[length] & 0xC0) == 0x80) //Don't cut a character in half.
+            length--;
+        out.put((byte) length).put(bytes, 0, length).put(new byte[maxBytes - length]);
+    }
+
+    /**
+     * Reads a string written by {@link #putString}, moving past its full width.
+     */
+    private static String readString(ByteBuffer in, int maxBytes) {
+        int start = in.position();
+        byte[] bytes = new byte[Math.min(in.get() & 0xFF, maxBytes)];
+        in.get(bytes);
+        in.position(start + 1 + maxBytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compacts the pack if dead macros take up more room than live ones.
+     */
+    private void compactIfDue() throws IOException {
+        if (deadBytes >= minCompactionBytes && deadBytes > dataEnd - deadBytes)
+            compact();
+    }
+
+    /**
+     * Rewrites the pack without its dead macros, with twice as many slots as it has live macros.
+     *
+     * @throws IOException If the pack couldn't be rewritten. It's left as it was.
+     */
+    public synchronized void compact() throws IOException {
+        compact(Math.max(initialCapacity, entries.size() * 2), null, null);
+    }
+
+    /**
+     * Rewrites the pack with only its live macros, plus the given one.
+     */
+    private void compact(int newCapacity, MacroIndex.Entry added, byte[] addedData) throws IOException {
+        List<MacroIndex.Entry> live = new ArrayList<>();
+        List<ByteBuffer> data = new ArrayList<>();
+        for (Map.Entry<String, Integer> slot : slots.entrySet())
+            if (added == null || !slot.getKey().equals(added.getName())) {
+                live.add(entries.get(slot.getKey()));
+                data.add(slice(slot.getValue()));
+            }
+        if (added != null) {
+            live.add(added);
+            data.add(ByteBuffer.wrap(addedData));
+        }
+        Path temp = Paths.get(path + ".tmp");
+        writePack(temp, newCapacity, live, data);
+        channel.close();
+        MacroHelper.moveAtomically(temp, path);
+        map();
+    }
+
+    /**
+     * Writes a new pack with the given macros and their bytes, in the same order.
+     */
+    private static void writePack(Path path, int capacity, List<MacroIndex.Entry> live, List<ByteBuffer> data) throws IOException {
+        long offset = headerSize + (long) capacity * slotSize;
+        ByteBuffer toc = ByteBuffer.allocate((int) offset);
+        long dataEnd = offset;
+        for (MacroIndex.Entry entry : live)
+            dataEnd += entry.getSize();
+        putHeader(toc, capacity, live.size(), dataEnd);
+        for (MacroIndex.Entry entry : live) {
+            putSlot(toc, offset, entry);
+            offset += entry.getSize();
+        }
+        toc.clear();
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                                StandardOpenOption.WRITE)) {
+            while (toc.hasRemaining())
+                out.write(toc);
+            for (ByteBuffer macro : data)
+                while (macro.hasRemaining())
+                    out.write(macro);
+            out.force(true);
+        }
+    }
+
+    /**
+     * @return How many bytes the macros in the pack take, including dead ones, plus its table of contents. The file
+     * itself may be bigger, with room to add more.
+     */
+    public synchronized long getSize() {
+        return dataEnd;
+    }
+
+    /**
+     * @return How many bytes of the pack are taken by macros that were replaced or removed.
+     */
+    public synchronized long getDeadBytes() {
+        return deadBytes;
+    }
+
+    /**
+     * @return Where the pack is.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Closes the pack file. Macros already loaded from it are unaffected.
+     *
+     * @throws IOException If the file couldn't be closed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}
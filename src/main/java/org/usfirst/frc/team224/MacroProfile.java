@@ -0,0 +1,492 @@
+package org.usfirst.frc.team224;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Works out where a macro's events (and bytes) come from, to find the stick or axis making a macro file big or
+ * playback slow. For each channel (a button, axis or POV switch on one stick, and the type of event), it counts the
+ * events and the bytes they take in the binary format, the most events in any second, and how long there is between
+ * them. For axes, it also shows how their values are spread, and how many events an {@link AxisFilter} would have
+ * dropped, with and without everything but its deadband.
+ * <p>
+ * Everything is worked out in one pass over the events, which are handed over as primitives by
+ * {@link Macro#forEachEvent}, so no {@link JoystickEvent}s are made. {@link #of(Path, AxisFilter)} streams the file
+ * with a {@link MacroStream}, so a macro of any size can be profiled in a few kilobytes.
+ * <p>
+ * It can also be run from a laptop, like {@link MacroTool}:
+ * <pre>
+ * java -cp robot.jar org.usfirst.frc.team224.MacroProfile [--deadband D] [--step S] [--max-rate R] FILE...
+ * </pre>
+ * The filter defaults to {@link AxisFilter#gamepad}.
+ *
+ * @see MacroTool
+ */
+public class MacroProfile {
+    private static final String usage = "Usage: MacroProfile [--deadband D] [--step S] [--max-rate R] FILE...";
+    private static final JoystickEvent.eventType[] eventTypes = JoystickEvent.eventType.values();
+    /**
+     * How long a robot loop is, in microseconds, for {@link #getPeakEventsPerLoop()}.
+     */
+    private static final int loopMicros = 20000;
+    /**
+     * How many bins axis values from -1 to 1 are counted in.
+     */
+    public static final int valueBins = 20;
+
+    private final AxisFilter filter;
+    private final AxisFilter deadbandOnly;
+    private final Channel[] channels; //By stick, then type, then ID.
+    private final RateWindow rate = new RateWindow();
+    private long events, bytes, axisEvents, droppedByFilter, droppedByDeadband;
+    private int previousMicros;
+    private long loop = -1;
+    private int loopEvents, peakLoopEvents;
+    private long lengthMicros;
+
+    /**
+     * Everything the profile knows about one channel: one type of event, from one button, axis or POV on one stick.
+     */
+    public static class Channel {
+        private final int stick;
+        private final JoystickEvent.eventType type;
+        private final int id;
+        private long events, bytes;
+        private int previousMicros = -1;
+        private final LatencyHistogram intervals = new LatencyHistogram();
+        private final RateWindow rate = new RateWindow();
+        //Only used for axes.
+        private final long[] values;
+        private double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        private double total;
+        private double recorded, recordedDeadband; //What each filter last recorded.
+        private int recordedMicros, recordedDeadbandMicros;
+        private long droppedByFilter, droppedByDeadband;
+
+        Channel(int stick, JoystickEvent.eventType type, int id) {
+            this.stick = stick;
+            this.type = type;
+            this.id = id;
+            values = type == JoystickEvent.eventType.AXIS ? new long[valueBins]: null;
+        }
+
+        /**
+         * @return The index of the stick in the macro's sticks.
+         */
+        public int getStick() {
+            return stick;
+        }
+
+        /**
+         * @return The type of the channel's events.
+         */
+        public JoystickEvent.eventType getType() {
+            return type;
+        }
+
+        /**
+         * @return The ID of the button/axis/POV.
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * @return How many events the channel has.
+         */
+        public long getEvents() {
+            return events;
+        }
+
+        /**
+         * @return How many bytes the channel's events take in the binary format.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return The most events the channel had in any one second.
+         */
+        public int getPeakEventsPerSecond() {
+            return rate.peak;
+        }
+
+        /**
+         * @return How long there was between the channel's events, in microseconds.
+         */
+        public LatencyHistogram getIntervals() {
+            return intervals;
+        }
+
+        /**
+         * @return How many of the axis' values were in each of {@link #valueBins} equal bins from -1 to 1, or null if
+         * this isn't an axis.
+         */
+        public long[] getValueBins() {
+            return values;
+        }
+
+        /**
+         * @return The lowest value the axis was set to.
+         */
+        public double getMinValue() {
+            return min;
+        }
+
+        /**
+         * @return The highest value the axis was set to.
+         */
+        public double getMaxValue() {
+            return max;
+        }
+
+        /**
+         * @return The average value the axis was set to.
+         */
+        public double getMeanValue() {
+            return events == 0 ? 0: total / events;
+        }
+
+        /**
+         * @return How many of the axis' events the profile's filter would have dropped.
+         */
+        public long getDroppedByFilter() {
+            return droppedByFilter;
+        }
+
+        /**
+         * @return How many of the axis' events the profile's filter's deadband alone would have dropped.
+         */
+        public long getDroppedByDeadband() {
+            return droppedByDeadband;
+        }
+
+        private String getName() {
+            switch (type) {
+                case PRESS:
+                    return "button " + id + " press";
+                case RELEASE:
+                    return "button " + id + " release";
+                case AXIS:
+                    return "axis " + id;
+                default:
+                    return "POV " + id;
+            }
+        }
+    }
+
+    /**
+     * Counts events in a sliding one-second window, in ten 100ms steps, and remembers the most it held.
+     */
+    private static class RateWindow {
+        private static final int stepMicros = 100000;
+        private final int[] steps = new int[10];
+        private long step = -1;
+        private int count, peak;
+
+        void add(int micros) {
+            long now = micros / stepMicros;
+            for (long s = Math.max(step + 1, now - steps.length + 1); s <= now; s++) { //Empty the steps that were skipped.
+                int i = (int) Math.floorMod(s, steps.length);
+                count -= steps[i];
+                steps[i] = 0;
+            }
+            step = Math.max(step, now);
+            steps[(int) Math.floorMod(now, steps.length)]++;
+            if (++count > peak)
+                peak = count;
+        }
+    }
+
+    /**
+     * Creates an empty profile for a macro with the given sticks.
+     *
+     * @param initialStates The state of each stick when the recording was started.
+     * @param filter        The filter to work out how many axis events would be dropped with.
+     */
+    private MacroProfile(simulatedJoystick[] initialStates, AxisFilter filter) {
+        this.filter = filter;
+        this.deadbandOnly = new AxisFilter(filter.getDeadband(), 0, 0, 0);
+        channels = new Channel[initialStates.length * eventTypes.length * 256];
+        for (int i = 0; i < initialStates.length; i++)
+            for (int j = 0; j < initialStates[i].getAxisCount(); j++) {
+                Channel axis = channel(i, JoystickEvent.eventType.AXIS, j);
+                axis.recorded = filter.apply(initialStates[i].getRawAxis(j));
+                axis.recordedDeadband = deadbandOnly.apply(initialStates[i].getRawAxis(j));
+            }
+    }
+
+    /**
+     * Profiles a macro in memory, with {@link AxisFilter#gamepad}.
+     *
+     * @param macro The macro. If it's {@link Macro#isStreamed() streamed}, it's read to the end and can't be played.
+     * @return The profile.
+     */
+    public static MacroProfile of(Macro macro) {
+        return of(macro, AxisFilter.gamepad);
+    }
+
+    /**
+     * Profiles a macro in memory.
+     *
+     * @param macro  The macro. If it's {@link Macro#isStreamed() streamed}, it's read to the end and can't be played.
+     * @param filter The filter to work out how many axis events would be dropped with.
+     * @return The profile.
+     */
+    public static MacroProfile of(Macro macro, AxisFilter filter) {
+        simulatedJoystick[] initialStates = new simulatedJoystick[macro.stickCount()];
+        for (int i = 0; i < initialStates.length; i++)
+            initialStates[i] = macro.getInitialState(i);
+        MacroProfile profile = new MacroProfile(initialStates, filter);
+        macro.forEachEvent(profile::add);
+        profile.lengthMicros = macro.lengthMicros();
+        return profile;
+    }
+
+    /**
+     * Profiles a saved macro, reading it a piece at a time, so it doesn't have to fit in memory.
+     *
+     * @param path   The path to the macro, in any format.
+     * @param filter The filter to work out how many axis events would be dropped with.
+     * @return The profile.
+     * @throws IOException If the macro couldn't be read.
+     */
+    public static MacroProfile of(Path path, AxisFilter filter) throws IOException {
+        return of(MacroStream.open(FileChannel.open(path, StandardOpenOption.READ), null), filter);
+    }
+
+    /**
+     * Counts one event. Doesn't allocate, once the event's channel has been seen.
+     */
+    private void add(JoystickEvent.eventType type, int offsetMicros, int stick, int id, double val) {
+        int size = MacroCodec.eventSize(offsetMicros - previousMicros, type, val);
+        previousMicros = offsetMicros;
+        events++;
+        bytes += size;
+        rate.add(offsetMicros);
+        long loop = offsetMicros / loopMicros;
+        if (loop != this.loop) {
+            this.loop = loop;
+            loopEvents = 0;
+        }
+        peakLoopEvents = Math.max(peakLoopEvents, ++loopEvents);
+
+        Channel channel = channel(stick, type, id);
+        channel.events++;
+        channel.bytes += size;
+        channel.rate.add(offsetMicros);
+        if (channel.previousMicros >= 0)
+            channel.intervals.record(offsetMicros - channel.previousMicros);
+        channel.previousMicros = offsetMicros;
+        if (type != JoystickEvent.eventType.AXIS)
+            return;
+        axisEvents++;
+        channel.values[Math.max(0, Math.min(valueBins - 1, (int) ((val + 1) * valueBins / 2)))]++;
+        channel.min = Math.min(channel.min, val);
+        channel.max = Math.max(channel.max, val);
+        channel.total += val;
+        double value = filter.apply(val);
+        if (filter.shouldRecord(value, channel.recorded, offsetMicros - channel.recordedMicros)) {
+            channel.recorded = value;
+            channel.recordedMicros = offsetMicros;
+        } else {
+            channel.droppedByFilter++;
+            droppedByFilter++;
+        }
+        value = deadbandOnly.apply(val);
+        if (deadbandOnly.shouldRecord(value, channel.recordedDeadband, offsetMicros - channel.recordedDeadbandMicros)) {
+            channel.recordedDeadband = value;
+            channel.recordedDeadbandMicros = offsetMicros;
+        } else {
+            channel.droppedByDeadband++;
+            droppedByDeadband++;
+        }
+    }
+
+    /**
+     * Gets the given channel, creating it the first time.
+     */
+    private Channel channel(int stick, JoystickEvent.eventType type, int id) {
+        int i = (stick * eventTypes.length + type.ordinal()) * 256 + id;
+        if (channels[i] == null)
+            channels[i] = new Channel(stick, type, id);
+        return channels[i];
+    }
+
+    /**
+     * @return Every channel that has events, the ones taking the most bytes first.
+     */
+    public List<Channel> getChannels() {
+        List<Channel> list = new ArrayList<>();
+        for (Channel channel : channels)
+            if (channel != null && channel.events > 0)
+                list.add(channel);
+        list.sort((a, b) -> Long.compare(b.bytes, a.bytes));
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * @return How many events the macro has.
+     */
+    public long getEvents() {
+        return events;
+    }
+
+    /**
+     * @return How many bytes the macro's events take in the binary format.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return How long the macro is, in microseconds.
+     */
+    public long getLengthMicros() {
+        return lengthMicros;
+    }
+
+    /**
+     * @return The most events the macro had in any one second.
+     */
+    public int getPeakEventsPerSecond() {
+        return rate.peak;
+    }
+
+    /**
+     * @return The most events the macro had in any one 20ms robot loop, which playback has to handle in one call.
+     */
+    public int getPeakEventsPerLoop() {
+        return peakLoopEvents;
+    }
+
+    /**
+     * @return How many axis events the macro has.
+     */
+    public long getAxisEvents() {
+        return axisEvents;
+    }
+
+    /**
+     * @return How many axis events the profile's filter would have dropped.
+     */
+    public long getDroppedByFilter() {
+        return droppedByFilter;
+    }
+
+    /**
+     * @return How many axis events the profile's filter's deadband alone would have dropped.
+     */
+    public long getDroppedByDeadband() {
+        return droppedByDeadband;
+    }
+
+    /**
+     * @return The filter used to work out how many axis events would be dropped.
+     */
+    public AxisFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * @return The profile as a table, one line per channel, the ones taking the most bytes first.
+     */
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append(String.format(Locale.ENGLISH, "%d events over %.3fs, %d bytes in the binary format. Peak %d events/s, %d in one loop.%n",
+                                 events, lengthMicros / 1e6, bytes, rate.peak, peakLoopEvents));
+        str.append(String.format(Locale.ENGLISH, "The axis filter (deadband %s, step %s, %s/s) would drop %d of %d axis events (%s), the deadband alone %d (%s).%n",
+                                 filter.getDeadband(), filter.getStep(), filter.getMaxRate(), droppedByFilter, axisEvents,
+                                 percent(droppedByFilter, axisEvents), droppedByDeadband, percent(droppedByDeadband, axisEvents)));
+        str.append(String.format(Locale.ENGLISH, "%-5s %-20s %8s %9s %6s %6s %22s %8s %8s  %s%n", "stick", "channel", "events",
+                                 "bytes", "share", "peak/s", "interval p50/p99/max", "filtered", "deadband", "values from -1 to 1"));
+        for (Channel channel : getChannels()) {
+            str.append(String.format(Locale.ENGLISH, "%-5d %-20s %8d %9d %6s %6d %22s", channel.stick, channel.getName(),
+                                     channel.events, channel.bytes, percent(channel.bytes, bytes), channel.rate.peak,
+                                     channel.intervals.getCount() == 0 ? "-": String.format(Locale.ENGLISH, "%.1f/%.1f/%.1fms",
+                                             channel.intervals.getValueAtPercentile(50) / 1e3,
+                                             channel.intervals.getValueAtPercentile(99) / 1e3, channel.intervals.getMax() / 1e3)));
+            if (channel.values != null)
+                str.append(String.format(Locale.ENGLISH, " %8s %8s  %s min %.3f mean %.3f max %.3f",
+                                         percent(channel.droppedByFilter, channel.events),
+                                         percent(channel.droppedByDeadband, channel.events), spread(channel.values),
+                                         channel.min, channel.getMeanValue(), channel.max));
+            str.append(String.format("%n"));
+        }
+        return str.toString();
+    }
+
+    private static String percent(long part, long whole) {
+        return whole == 0 ? "-": String.format(Locale.ENGLISH, "%.1f%%", part * 100.0 / whole);
+    }
+
+    /**
+     * Draws how the values are spread over the bins, one character per bin, darker for more values.
+     */
+    private static String spread(long[] bins) {
+        String shades = " .:-=+*#%@";
+        long most = 1;
+        for (long bin : bins)
+            most = Math.max(most, bin);
+        StringBuilder str = new StringBuilder("|");
+        for (long bin : bins)
+            str.append(shades.charAt(bin == 0 ? 0: 1 + (int) ((shades.length() - 2) * bin / most)));
+        return str.append('|').toString();
+    }
+
+    /**
+     * Profiles the macros given on the command line, printing a report for each.
+     *
+     * @param args The arguments. See {@link MacroProfile}.
+     */
+    public static void main(String[] args) {
+        double deadband = AxisFilter.gamepad.getDeadband(), step = AxisFilter.gamepad.getStep(),
+                maxRate = AxisFilter.gamepad.getMaxRate();
+        List<Path> files = new ArrayList<>();
+        AxisFilter filter;
+        try {
+            for (int i = 0; i < args.length; i++)
+                switch (args[i]) {
+                    case "--deadband":
+                        deadband = Double.parseDouble(args[++i]);
+                        break;
+                    case "--step":
+                        step = Double.parseDouble(args[++i]);
+                        break;
+                    case "--max-rate":
+                        maxRate = Double.parseDouble(args[++i]);
+                        break;
+                    default:
+                        files.add(Paths.get(args[i]));
+                }
+            if (files.isEmpty())
+                throw new IllegalArgumentException("No macros were given.");
+            filter = new AxisFilter(deadband, step, maxRate, 0);
+        } catch (RuntimeException e) { //Missing values, bad numbers and negative settings.
+            System.err.println(usage);
+            System.exit(2);
+            return;
+        }
+        boolean failed = false;
+        for (Path file : files)
+            try {
+                long start = System.nanoTime();
+                MacroProfile profile = of(file, filter);
+                System.out.println(file + " (profiled in " + (System.nanoTime() - start) / 1000000 + "ms)");
+                System.out.println(profile);
+            } catch (IOException | RuntimeException e) {
+                System.err.println(file + ": could not be read (" + e + ')');
+                failed = true;
+            }
+        System.exit(failed ? 1: 0);
+    }
+}
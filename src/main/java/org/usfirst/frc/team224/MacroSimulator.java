@@ -0,0 +1,415 @@
+package org.usfirst.frc.team224;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Plays macros back without a robot, as fast as the computer can, and checks that the sticks do the same thing they did
+ * last time. Nothing here touches WPILib's hardware classes, so it runs on any computer.
+ * <p>
+ * Each macro is played with {@link Macro#playback} into its own {@link simulatedJoystick}s, on a {@link VirtualClock}
+ * that's moved forward a robot loop at a time instead of waiting for one. The state of the sticks after every loop makes
+ * up the macro's {@link Timeline}, which is compared with a golden timeline saved earlier (or saved for the first time),
+ * in its own directory or next to the macro. A 15 second macro takes a few milliseconds, and {@link #checkAll} plays a
+ * whole directory of them at once, one per core.
+ * <p>
+ * It can also be run from a laptop, like {@link MacroTool}:
+ * <pre>
+ * java -cp robot.jar org.usfirst.frc.team224.MacroSimulator [--threads N] [--period MS] [--interpolated] [--update] MACRO_DIR GOLDEN_DIR
+ * </pre>
+ * Goldens that don't exist yet are written, and --update rewrites all of them. Exits with 0 if every macro matched its
+ * golden, 1 if any didn't, and 2 if the arguments are wrong.
+ *
+ * @see Macro#setClock(MacroClock)
+ */
+public class MacroSimulator {
+    private static final String usage = "Usage: MacroSimulator [--threads N] [--period MS] [--interpolated] [--update] MACRO_DIR GOLDEN_DIR";
+    /**
+     * Added to a macro's name to get the name of its golden timeline.
+     */
+    public static final String goldenSuffix = ".golden";
+
+    private final double periodMillis;
+    private boolean interpolated;
+    private boolean updateGoldens;
+    private double axisTolerance = 1e-6;
+
+    /**
+     * Creates a simulator that plays macros the way a robot loop running every given number of milliseconds would.
+     *
+     * @param periodMillis How far the clock is moved between calls to {@link Macro#playback}.
+     */
+    public MacroSimulator(double periodMillis) {
+        if (!(periodMillis > 0))
+            throw new IllegalArgumentException("The loop period has to be positive.");
+        this.periodMillis = periodMillis;
+    }
+
+    /**
+     * The state of a macro's sticks after every loop of playback, kept as text: a line for each stick after each loop
+     * it changed in, with the loop's time in milliseconds, the index of the stick and the stick as
+     * {@link simulatedJoystick#toString()} writes it. The last line has how many loops and events were played.
+     */
+    public static class Timeline {
+        private final List<String> lines;
+
+        Timeline(List<String> lines) {
+            this.lines = lines;
+        }
+
+        /**
+         * Reads a timeline saved by {@link #write(Path)}.
+         *
+         * @param path Where the timeline is saved.
+         * @return The timeline.
+         * @throws IOException If the file can't be read.
+         */
+        public static Timeline read(Path path) throws IOException {
+            return new Timeline(Files.readAllLines(path, StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Saves the timeline, so it can be compared with later.
+         *
+         * @param path Where to save it.
+         * @throws IOException If the file can't be written.
+         */
+        public void write(Path path) throws IOException {
+            if (path.getParent() != null)
+                Files.createDirectories(path.getParent());
+            MacroHelper.writeAtomically(path, (String.join("\n", lines) + '\n').getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * @return The timeline's lines.
+         */
+        public List<String> getLines() {
+            return Collections.unmodifiableList(lines);
+        }
+
+        /**
+         * Compares this timeline with an expected one. Buttons, POVs and times have to be identical, and axes within the
+         * given tolerance.
+         *
+         * @param expected      The golden timeline.
+         * @param axisTolerance How far apart the same axis can be in both.
+         * @return Where they first differ, or null if they match.
+         */
+        public String diff(Timeline expected, double axisTolerance) {
+            for (int i = 0; i < Math.max(lines.size(), expected.lines.size()); i++) {
+                if (i >= lines.size())
+                    return "line " + (i + 1) + ": expected \"" + expected.lines.get(i) + "\", but the timeline ended";
+                if (i >= expected.lines.size())
+                    return "line " + (i + 1) + ": expected the timeline to end, but got \"" + lines.get(i) + '"';
+                String line = lines.get(i), expectedLine = expected.lines.get(i);
+                if (!line.equals(expectedLine) && !matches(line, expectedLine, axisTolerance))
+                    return "line " + (i + 1) + ": expected \"" + expectedLine + "\", but got \"" + line + '"';
+            }
+            return null;
+        }
+
+        /**
+         * Checks if two lines that aren't identical only differ by their axes being slightly different.
+         */
+        private static boolean matches(String line, String expectedLine, double axisTolerance) {
+            String[] fields = line.split(" ", 3), expectedFields = expectedLine.split(" ", 3);
+            if (fields.length != 3 || expectedFields.length != 3 || !fields[0].equals(expectedFields[0]) ||
+                !fields[1].equals(expectedFields[1]))
+                return false;
+            try {
+                simulatedJoystick stick = new simulatedJoystick(fields[2]), expectedStick = new simulatedJoystick(expectedFields[2]);
+                if (stick.getButtonCount() != expectedStick.getButtonCount() || stick.getAxisCount() != expectedStick.getAxisCount() ||
+                    stick.getPOVCount() != expectedStick.getPOVCount())
+                    return false;
+                for (int i = 1; i <= stick.getButtonCount(); i++)
+                    if (stick.getRawButton(i) != expectedStick.getRawButton(i))
+                        return false;
+                for (int i = 0; i < stick.getPOVCount(); i++)
+                    if (stick.getPOV(i) != expectedStick.getPOV(i))
+                        return false;
+                for (int i = 0; i < stick.getAxisCount(); i++)
+                    if (!(Math.abs(stick.getRawAxis(i) - expectedStick.getRawAxis(i)) <= axisTolerance))
+                        return false;
+                return true;
+            } catch (RuntimeException e) { //Not a stick, like the last line.
+                return false;
+            }
+        }
+    }
+
+    /**
+     * What happened when a macro was checked against its golden timeline.
+     */
+    public static class Result {
+        private final String name;
+        private final boolean passed;
+        private final String message;
+        private final long nanos;
+
+        Result(String name, boolean passed, String message, long nanos) {
+            this.name = name;
+            this.passed = passed;
+            this.message = message;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @return The name of the macro.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return If the macro matched its golden timeline, or a new golden was written.
+         */
+        public boolean isPassed() {
+            return passed;
+        }
+
+        /**
+         * @return What happened, like where the timelines first differ.
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * @return How long loading, playing and comparing the macro took, in nanoseconds.
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            return (passed ? "PASS ": "FAIL ") + name + " (" + nanos / 1000000 + "ms): " + message;
+        }
+    }
+
+    /**
+     * Plays a macro from start to finish, as fast as possible, and records what its sticks do. The macro's clock is
+     * replaced with a {@link VirtualClock}.
+     *
+     * @param macro A finished macro.
+     * @return The state of the sticks after every loop.
+     */
+    public Timeline simulate(Macro macro) {
+        VirtualClock clock = new VirtualClock();
+        macro.setClock(clock);
+        macro.setInterpolated(interpolated);
+        simulatedJoystick[] sticks = new simulatedJoystick[macro.stickCount()];
+        String[] states = new String[sticks.length];
+        for (int i = 0; i < sticks.length; i++) {
+            simulatedJoystick initialState = macro.getInitialState(i);
+            sticks[i] = new simulatedJoystick(initialState.getButtonCount(), initialState.getAxisCount(),
+                                              initialState.getPOVCount(), initialState.getPort());
+        }
+        List<String> lines = new ArrayList<>();
+        StringBuilder str = new StringBuilder();
+        macro.startPlaying();
+        int loops = 0;
+        boolean playing = true;
+        while (playing) {
+            playing = macro.playback(sticks);
+            for (int i = 0; i < sticks.length; i++) {
+                str.setLength(0);
+                String state = sticks[i].appendTo(str).toString();
+                if (!state.equals(states[i])) {
+                    states[i] = state;
+                    lines.add(Math.round(loops * periodMillis) + " " + i + ' ' + state);
+                }
+            }
+            loops++;
+            clock.advanceMillis(periodMillis);
+        }
+        lines.add("end " + loops + " loops " + macro.getPlaybackPosition() + " events");
+        return new Timeline(lines);
+    }
+
+    /**
+     * Plays a macro and compares what its sticks did with its golden timeline. If there's no golden yet, or
+     * {@link #setUpdateGoldens(boolean)} is on, the golden is written instead.
+     *
+     * @param name   The name of the macro, for the result.
+     * @param macro  The macro.
+     * @param golden Where its golden timeline is saved.
+     * @return If it matched.
+     */
+    public Result check(String name, Macro macro, Path golden) {
+        long start = System.nanoTime();
+        try {
+            Timeline timeline = simulate(macro);
+            Timeline expected = null;
+            if (!updateGoldens)
+                try {
+                    expected = Timeline.read(golden);
+                } catch (NoSuchFileException ignored) {
+                }
+            if (expected == null) {
+                timeline.write(golden);
+                return new Result(name, true, "wrote " + golden, System.nanoTime() - start);
+            }
+            String diff = timeline.diff(expected, axisTolerance);
+            return new Result(name, diff == null, diff == null ? "matches " + golden: diff, System.nanoTime() - start);
+        } catch (IOException | RuntimeException e) {
+            return new Result(name, false, e.toString(), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Checks every macro in a directory against its golden timeline, several at once. Each macro's golden is the file
+     * in the golden directory with its name and {@link #goldenSuffix}.
+     *
+     * @param macroDir  The directory the macros are saved in.
+     * @param goldenDir The directory the golden timelines are saved in.
+     * @param threads   How many macros to play at once.
+     * @return The result for each macro, sorted by name.
+     * @throws IOException If the macro directory can't be listed.
+     */
+    public List<Result> checkAll(Path macroDir, Path goldenDir, int threads) throws IOException {
+        List<Path> macros = new ArrayList<>();
+        try (Stream<Path> files = Files.list(macroDir)) {
+            files.filter(path -> Files.isRegularFile(path) && MacroHelper.isMacroFile(path.getFileName().toString()))
+                 .sorted().forEach(macros::add);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "Macro simulator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (Path path : macros)
+                futures.add(executor.submit(() -> {
+                    String name = path.getFileName().toString();
+                    Macro macro;
+                    try {
+                        macro = Macro.load(Files.readAllBytes(path), (JoystickSource[]) null);
+                    } catch (IOException | RuntimeException e) { //Parsing errors
+                        return new Result(name, false, "could not be read (" + e + ')', 0);
+                    }
+                    return check(name, macro, goldenDir.resolve(name + goldenSuffix));
+                }));
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : futures)
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new IOException("A macro could not be simulated.", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while simulating macros.", e);
+                }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Sets whether macros are played with {@link Macro#setInterpolated(boolean) interpolation}. Goldens recorded one
+     * way won't match the other.
+     *
+     * @param interpolated If macros should be interpolated.
+     */
+    public void setInterpolated(boolean interpolated) {
+        this.interpolated = interpolated;
+    }
+
+    /**
+     * Sets whether {@link #check} overwrites goldens with the new timelines, rather than comparing with them. Use it
+     * after changing playback on purpose.
+     *
+     * @param updateGoldens If goldens should be rewritten.
+     */
+    public void setUpdateGoldens(boolean updateGoldens) {
+        this.updateGoldens = updateGoldens;
+    }
+
+    /**
+     * Sets how far apart an axis can be from its golden value and still match. Defaults to 1e-6.
+     *
+     * @param axisTolerance The tolerance.
+     */
+    public void setAxisTolerance(double axisTolerance) {
+        this.axisTolerance = axisTolerance;
+    }
+
+    /**
+     * @return How far the clock is moved between calls to {@link Macro#playback}, in milliseconds.
+     */
+    public double getPeriodMillis() {
+        return periodMillis;
+    }
+
+    /**
+     * Checks the macros in the directory given on the command line against their goldens.
+     *
+     * @param args The arguments. See {@link MacroSimulator}.
+     */
+    public static void main(String[] args) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        double period = 20;
+        boolean interpolated = false, update = false;
+        List<Path> dirs = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++)
+                switch (args[i]) {
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--period":
+                        period = Double.parseDouble(args[++i]);
+                        break;
+                    case "--interpolated":
+                        interpolated = true;
+                        break;
+                    case "--update":
+                        update = true;
+                        break;
+                    default:
+                        dirs.add(Paths.get(args[i]));
+                }
+            if (dirs.size() != 2 || threads < 1 || !(period > 0))
+                throw new IllegalArgumentException("A macro directory and a golden directory have to be given.");
+        } catch (RuntimeException e) { //Missing values and bad numbers.
+            System.err.println(usage);
+            System.exit(2);
+            return;
+        }
+        MacroSimulator simulator = new MacroSimulator(period);
+        simulator.setInterpolated(interpolated);
+        simulator.setUpdateGoldens(update);
+        long start = System.nanoTime();
+        List<Result> results;
+        try {
+            results = simulator.checkAll(dirs.get(0), dirs.get(1), threads);
+        } catch (IOException e) {
+            System.err.println("Could not simulate the macros in " + dirs.get(0) + ": " + e);
+            System.exit(1);
+            return;
+        }
+        int failed = 0;
+        for (Result result : results) {
+            (result.isPassed() ? System.out: System.err).println(result);
+            if (!result.isPassed())
+                failed++;
+        }
+        System.out.println(results.size() + " macros simulated in " + (System.nanoTime() - start) / 1000000 + "ms on " +
+                           threads + " threads: " + (results.size() - failed) + " passed, " + failed + " failed.");
+        System.exit(failed == 0 ? 0: 1);
+    }
+}
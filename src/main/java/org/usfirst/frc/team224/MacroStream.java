@@ -0,0 +1,222 @@
+package org.usfirst.frc.team224;
+import edu.wpi.first.wpilibj.Joystick;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads a macro a piece at a time while it's being played, so playback can start as soon as the header is read.
+ * <p>
+ * {@link #open(Path, Joystick...)} reads the start time and the initial state of each stick, and returns a macro with
+ * no events yet. As the macro plays, it reads the next events from its stream into a small window just ahead of
+ * playback, and drops the ones it has played. Only {@link #bufferSize} bytes of the file and
+ * {@link Macro#streamWindow} events are ever in memory, however long the macro is. Both the binary and the text formats
+ * can be streamed.
+ * <p>
+ * A streamed macro can only be played once, since the events it has played are gone. Use
+ * {@link MacroHelper#loadMacro(String, Joystick...)} or a {@link MacroCache} for a macro that will be replayed.
+ *
+ * @see Macro#isStreamed()
+ * @see MacroCodec
+ */
+public class MacroStream implements Closeable {
+    /**
+     * How many bytes of the macro are read from the channel at a time.
+     */
+    public static final int bufferSize = 4096;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+    private final boolean binary;
+    private byte version; //Of the binary format.
+    private long time; //When the last event read from a binary macro occurred, in microseconds.
+    private final StringBuilder line = new StringBuilder(); //The current line of a text macro.
+    private boolean pendingLine; //If the current line has been read, but not used yet.
+    private Macro macro;
+    private boolean endOfChannel, finished;
+
+    private MacroStream(ReadableByteChannel channel) throws IOException {
+        this.channel = channel;
+        buffer.flip(); //Nothing has been read yet.
+        binary = fill(1) && buffer.get(buffer.position()) != '{'; //Text macros start with their start time.
+    }
+
+    /**
+     * Opens the macro at the given path and reads its header, leaving its events to be read while it plays.
+     *
+     * @param path   The path to the macro, in any format.
+     * @param sticks The joysticks used in the recording.
+     * @return The macro, ready to play.
+     * @throws IOException If the macro can't be read, or its header is corrupt.
+     */
+    public static Macro open(Path path, Joystick... sticks) throws IOException {
+        return open(FileChannel.open(path, StandardOpenOption.READ), JoystickSource.of(sticks));
+    }
+
+    /**
+     * Reads the header of the macro in the given channel, leaving its events to be read while it plays. The channel is
+     * closed once the macro has been read, or if it fails to.
+     *
+     * @param channel Where to read the macro from, in any format.
+     * @param sticks  The joysticks used in the recording, or null to use the ports saved in the macro.
+     * @return The macro, ready to play.
+     * @throws IOException If the macro can't be read, or its header is corrupt.
+     */
+    public static Macro open(ReadableByteChannel channel, JoystickSource[] sticks) throws IOException {
+        try {
+            MacroStream stream = new MacroStream(channel);
+            stream.macro = stream.binary ? stream.readBinaryHeader(sticks): stream.readTextHeader(sticks);
+            stream.macro.streamFrom(stream);
+            return stream.macro;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            if (e instanceof IOException)
+                throw (IOException) e;
+            throw new IOException("The macro's header is corrupt.", e);
+        }
+    }
+
+    private Macro readBinaryHeader(JoystickSource[] sticks) throws IOException {
+        require(MacroCodec.preambleSize);
+        version = MacroCodec.readVersion(buffer);
+        long startTime = buffer.getLong();
+        simulatedJoystick[] initialStates = new simulatedJoystick[buffer.get()];
+        for (int i = 0; i < initialStates.length; i++) {
+            require(MacroCodec.stickCountsSize);
+            int at = buffer.position();
+            require(MacroCodec.stickSize(buffer.get(at + 1) & 0xFF, buffer.get(at + 2) & 0xFF, buffer.get(at + 3) & 0xFF));
+            initialStates[i] = MacroCodec.readStick(buffer);
+        }
+        //Older binary macros are saved in the newest binary format.
+        return new Macro(sticks, startTime, initialStates, Macro.binaryMacroFormatVersion, Macro.streamWindow);
+    }
+
+    private Macro readTextHeader(JoystickSource[] sticks) throws IOException {
+        if (!readLine() || line.charAt(0) != '{')
+            throw new IOException("The macro has no start time.");
+        long startTime = Long.parseLong(line.substring(1));
+        //The initial state of each stick is on its own line, and the first line after them is the first event.
+        int count = 0;
+        simulatedJoystick[] initialStates = new simulatedJoystick[4];
+        while (true) {
+            if (!readLine())
+                throw new IOException("The macro is truncated.");
+            if (line.indexOf("|") < 0)
+                break;
+            if (count == initialStates.length)
+                initialStates = Arrays.copyOf(initialStates, count * 2);
+            initialStates[count++] = new simulatedJoystick(line.toString());
+        }
+        pendingLine = true;
+        return new Macro(sticks, startTime, Arrays.copyOf(initialStates, count), Macro.textMacroFormatVersion,
+                         Macro.streamWindow);
+    }
+
+    /**
+     * Reads the next event into the macro, or finishes the macro if there are no more events.
+     *
+     * @return If an event was read.
+     * @throws IOException If the macro couldn't be read, or is truncated or corrupt.
+     */
+    boolean readEvent() throws IOException {
+        if (finished)
+            return false;
+        if (binary) {
+            fill(MacroCodec.maxEventSize);
+            try {
+                time = MacroCodec.readEvent(buffer, macro, time, version);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("The macro is truncated.", e);
+            } catch (RuntimeException e) { //Events on sticks or channels the macro doesn't have.
+                throw new IOException("The macro is corrupt.", e);
+            }
+            finished = time < 0;
+        } else {
+            if (!pendingLine && !readLine())
+                throw new IOException("The macro is truncated.");
+            pendingLine = false;
+            try {
+                if (line.charAt(0) == '}') {
+                    macro.finishLoading(Long.parseLong(line.substring(1)));
+                    finished = true;
+                } else
+                    macro.addEvent(line.toString());
+            } catch (RuntimeException e) { //Parsing errors
+                throw new IOException("The macro is corrupt.", e);
+            }
+        }
+        if (finished)
+            close();
+        return !finished;
+    }
+
+    /**
+     * @return If every event has been read.
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Reads the next non-empty line of a text macro into {@link #line}, without its line break.
+     *
+     * @return If there was a line to read.
+     */
+    private boolean readLine() throws IOException {
+        line.setLength(0);
+        while (true) {
+            if (!buffer.hasRemaining() && !fill(1))
+                return line.length() > 0;
+            char c = (char) (buffer.get() & 0xFF); //Every character in a text macro is ASCII.
+            if (c == '\n') {
+                if (line.length() > 0)
+                    return true;
+            } else if (c != '\r')
+                line.append(c);
+        }
+    }
+
+    /**
+     * Reads from the channel until the buffer has at least the given number of bytes, or the channel ends.
+     *
+     * @return If there are that many bytes.
+     */
+    private boolean fill(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes || endOfChannel)
+            return buffer.remaining() >= bytes;
+        buffer.compact();
+        try {
+            while (buffer.position() < bytes && !endOfChannel)
+                if (channel.read(buffer) < 0)
+                    endOfChannel = true;
+        } finally {
+            buffer.flip();
+        }
+        return buffer.remaining() >= bytes;
+    }
+
+    /**
+     * Like {@link #fill(int)}, but fails if the channel ends first.
+     */
+    private void require(int bytes) throws IOException {
+        if (!fill(bytes))
+            throw new IOException("The macro is truncated.");
+    }
+
+    /**
+     * Closes the channel. Called once the macro has been read, or when it stops being played.
+     *
+     * @throws IOException If the channel couldn't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
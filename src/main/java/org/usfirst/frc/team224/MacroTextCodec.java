@@ -0,0 +1,189 @@
+package org.usfirst.frc.team224;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Writes macros and events in the text format ({@link Macro#textMacroFormatVersion}) and the human-readable format,
+ * without making garbage for each event.
+ * <p>
+ * Everything is appended to a StringBuilder, whose number appends format in place and produce exactly what
+ * {@link String#valueOf} would, so the output is the same as the older String-concatenating code, byte for byte. When
+ * writing to anything other than a StringBuilder, the text goes through a reused buffer (one per thread) that's
+ * flushed every {@link #chunkSize} characters. Dates in the readable format are formatted by a thread-safe
+ * {@link DateTimeFormatter}, and each second is only formatted once.
+ *
+ * @see Macro#writeText(Appendable)
+ * @see Macro#writeReadable(Appendable)
+ */
+final class MacroTextCodec {
+    /**
+     * How many characters are buffered before they're handed to the output.
+     */
+    static final int chunkSize = 8192;
+    /**
+     * The same pattern, time zone and locale as the SimpleDateFormat this replaces.
+     */
+    private static final DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("MM/dd/yyyy hh:mm:ss")
+                                                                          .withZone(ZoneId.systemDefault());
+    private static final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+    private static volatile FormattedSecond lastSecond = new FormattedSecond(Long.MIN_VALUE, null);
+
+    private MacroTextCodec() {
+    }
+
+    /**
+     * A reusable buffer, and a char array to copy it into for Writers.
+     */
+    private static class Buffers {
+        final StringBuilder text = new StringBuilder(chunkSize + 256); //Room for the line that goes over.
+        final char[] chars = new char[chunkSize + 256];
+    }
+
+    /**
+     * The last second a date was formatted for. Immutable, so threads can share it without locking.
+     */
+    private static class FormattedSecond {
+        final long second;
+        final String text;
+
+        FormattedSecond(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Gets a StringBuilder to write text for the given output into: the output itself if it's a StringBuilder, or this
+     * thread's empty buffer.
+     *
+     * @param out Where the text is going.
+     * @return What to append to. Pass it to {@link #flushIfFull} as it fills up, and {@link #flush} at the end.
+     */
+    static StringBuilder buffer(Appendable out) {
+        if (out instanceof StringBuilder)
+            return (StringBuilder) out;
+        StringBuilder text = buffers.get().text;
+        text.setLength(0);
+        return text;
+    }
+
+    /**
+     * Hands the buffer to the output if it has at least {@link #chunkSize} characters.
+     */
+    static void flushIfFull(StringBuilder buffer, Appendable out) throws IOException {
+        if (buffer.length() >= chunkSize && buffer != out)
+            flush(buffer, out);
+    }
+
+    /**
+     * Hands everything in the buffer to the output, then empties it. Does nothing if the output is the buffer.
+     */
+    static void flush(StringBuilder buffer, Appendable out) throws IOException {
+        if (buffer == out)
+            return;
+        int length = buffer.length();
+        if (out instanceof Writer || out instanceof CharBuffer) { //Their append(CharSequence) would copy it to a String.
+            char[] chars = buffers.get().chars;
+            for (int start = 0; start < length; start += chars.length) {
+                int end = Math.min(length, start + chars.length);
+                buffer.getChars(start, end, chars, 0);
+                if (out instanceof Writer)
+                    ((Writer) out).write(chars, 0, end - start);
+                else
+                    ((CharBuffer) out).put(chars, 0, end - start);
+            }
+        } else
+            out.append(buffer);
+        buffer.setLength(0);
+    }
+
+    /**
+     * Appends a number that may be null, the same way string concatenation would.
+     */
+    static StringBuilder appendNullable(StringBuilder str, Long value) {
+        return value == null ? str.append("null"): str.append(value.longValue());
+    }
+
+    /**
+     * Appends one event in the text format, as a line. See {@link JoystickEvent#toString()}.
+     *
+     * @param str   Where to append it.
+     * @param type  The type of event
+     * @param time  When the event occurred. (using output from System.currentTimeMillis())
+     * @param stick The ID of the stick the event came from.
+     * @param id    The ID of the button/axis/POV
+     * @param val   The value of the axis/POV, ignored for buttons.
+     */
+    static void appendEvent(StringBuilder str, JoystickEvent.eventType type, long time, int stick, int id, double val) {
+        str.append(time).append(':');
+        switch (type) {
+            case PRESS:
+                str.append("press");
+                break;
+            case RELEASE:
+                str.append("release");
+                break;
+            case AXIS:
+                str.append("axis");
+                break;
+            case POV:
+                str.append("POV");
+                break;
+        }
+        str.append(',').append(stick).append(',').append(id).append(',');
+        if (type == JoystickEvent.eventType.AXIS)
+            str.append(val).append(',');
+        else if (type == JoystickEvent.eventType.POV)
+            str.append((int) val);
+        str.append('\n');
+    }
+
+    /**
+     * Appends one event in the human-readable format, as a line. See {@link JoystickEvent#toReadableString()}.
+     *
+     * @param str   Where to append it.
+     * @param type  The type of event
+     * @param time  When the event occurred. (using output from System.currentTimeMillis())
+     * @param stick The ID of the stick the event came from.
+     * @param id    The ID of the button/axis/POV
+     * @param val   The value of the axis/POV, ignored for buttons.
+     */
+    static void appendReadableEvent(StringBuilder str, JoystickEvent.eventType type, long time, int stick, int id, double val) {
+        appendDate(str, time);
+        str.append(": Joystick ").append(stick).append("'s ");
+        switch (type) {
+            case PRESS:
+                str.append("Button  pressed.");
+                break;
+            case RELEASE:
+                str.append("Button  released.");
+                break;
+            case AXIS:
+                str.append("Axis set to ").append(val);
+                break;
+            case POV:
+                str.append("POV set to ").append(val);
+                break;
+        }
+        str.append('\n');
+    }
+
+    /**
+     * Appends a date as MM/dd/yyyy hh:mm:ss, in the robot's time zone.
+     *
+     * @param str    Where to append it.
+     * @param millis The date. (using output from System.currentTimeMillis())
+     */
+    static void appendDate(StringBuilder str, long millis) {
+        long second = Math.floorDiv(millis, 1000);
+        FormattedSecond last = lastSecond;
+        if (last.second != second) //Events are usually in the same second as the one before.
+            lastSecond = last = new FormattedSecond(second, dateFormat.format(Instant.ofEpochSecond(second)));
+        str.append(last.text);
+    }
+}
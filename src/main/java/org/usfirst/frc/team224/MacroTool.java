@@ -0,0 +1,364 @@
+package org.usfirst.frc.team224;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Checks, and optionally converts, every macro in a directory, off the robot. Run it from a laptop with the robot's jar
+ * on the classpath (or with gradle macroTool -PmacroArgs="...", see build.gradle):
+ * <pre>
+ * java -cp robot.jar org.usfirst.frc.team224.MacroTool [--threads N] [--convert text|binary] [--out DIR] DIR...
+ * </pre>
+ * Every macro under each directory (and their subdirectories) is loaded with
+ * {@link Macro#load(byte[], JoystickSource[])} and checked with {@link #validate(Macro)}. Files that aren't macros,
+ * like journals, goldens, logs and hidden files, are skipped, and so is --out if it's inside a directory. With
+ * --convert, each valid macro is saved again in the given format: in place, or under --out with the same relative path.
+ * Macros already in that format are left alone, unless they're being written somewhere else. The robot's
+ * {@link MacroIndex} notices converted files and indexes them again.
+ * <p>
+ * The directories are walked lazily, and each macro is read, checked and converted by its own task in a
+ * {@link ForkJoinPool} with a thread per core, so only as many macros as there are threads are in memory at once.
+ * Each problem is printed as it's found, followed by a summary of how many macros were checked and how fast.
+ * <p>
+ * Exits with 0 if every macro is valid, 1 if any isn't or couldn't be read or written, and 2 if the arguments are
+ * wrong.
+ *
+ * @see Macro
+ * @see MacroCodec
+ */
+public class MacroTool {
+    private static final String usage = "Usage: MacroTool [--threads N] [--convert text|binary] [--out DIR] DIR...";
+
+    private final ForkJoinPool pool;
+    private final Byte convertTo; //Null to only validate.
+    private final Path outDir;
+    private final AtomicInteger files = new AtomicInteger(), invalid = new AtomicInteger(),
+            unreadable = new AtomicInteger(), converted = new AtomicInteger(), skipped = new AtomicInteger();
+    //Directories that couldn't be listed, and macros that couldn't be written.
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicLong events = new AtomicLong(), bytesRead = new AtomicLong(), bytesWritten = new AtomicLong();
+
+    /**
+     * Creates a tool that validates macros, and converts them if a format is given.
+     *
+     * @param threads   How many macros to work on at once.
+     * @param convertTo {@link Macro#textMacroFormatVersion} or {@link Macro#binaryMacroFormatVersion}, or null to only
+     *                  validate.
+     * @param outDir    Where to write converted macros, or null to overwrite them in place.
+     */
+    public MacroTool(int threads, Byte convertTo, Path outDir) {
+        if (convertTo != null && convertTo != Macro.textMacroFormatVersion &&
+            convertTo != Macro.binaryMacroFormatVersion)
+            throw new IllegalArgumentException("Unknown macro format version " + convertTo + '.');
+        this.pool = new ForkJoinPool(threads);
+        this.convertTo = convertTo;
+        this.outDir = outDir == null ? null: outDir.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Runs the tool from the command line.
+     *
+     * @param args The arguments. See {@link MacroTool}.
+     */
+    public static void main(String[] args) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        Byte convertTo = null;
+        Path outDir = null;
+        List<Path> dirs = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++)
+                switch (args[i]) {
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--convert":
+                        String format = args[++i];
+                        if (format.equals("text"))
+                            convertTo = Macro.textMacroFormatVersion;
+                        else if (format.equals("binary"))
+                            convertTo = Macro.binaryMacroFormatVersion;
+                        else
+                            throw new IllegalArgumentException("Unknown format " + format + '.');
+                        break;
+                    case "--out":
+                        outDir = Paths.get(args[++i]);
+                        break;
+                    default:
+                        dirs.add(Paths.get(args[i]));
+                }
+            if (dirs.isEmpty() || threads < 1)
+                throw new IllegalArgumentException("No macro directories were given.");
+        } catch (RuntimeException e) { //Missing values, bad numbers and unknown formats.
+            System.err.println(usage);
+            System.exit(2);
+            return;
+        }
+        MacroTool tool = new MacroTool(threads, convertTo, outDir);
+        long start = System.nanoTime();
+        for (Path dir : dirs)
+            tool.run(dir);
+        tool.shutdown();
+        System.out.println(tool.getSummary(System.nanoTime() - start));
+        System.exit(tool.isAllValid() ? 0: 1);
+    }
+
+    /**
+     * Checks, and converts if told to, every macro under the given directory. Returns once they're all done.
+     *
+     * @param dir The macro directory.
+     */
+    public void run(Path dir) {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(dir)) {
+            Iterator<Path> it = paths.iterator();
+            while (it.hasNext()) {
+                Path path = it.next();
+                if (!Files.isRegularFile(path))
+                    continue;
+                //Converted macros are written under outDir while the walk goes on, and shouldn't be read again.
+                if (!isMacroFile(path) || outDir != null && path.toAbsolutePath().normalize().startsWith(outDir))
+                    skipped.incrementAndGet();
+                else
+                    tasks.add(pool.submit(() -> process(dir, path)));
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Could not list the macros in " + dir + ": " + e);
+            failures.incrementAndGet();
+        }
+        for (ForkJoinTask<?> task : tasks)
+            task.join();
+    }
+
+    /**
+     * Stops the threads, once every macro given to {@link #run(Path)} is done.
+     */
+    public void shutdown() {
+        pool.shutdown();
+        try {
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Checks if a file's name is one a macro could have. Hidden files, like .DS_Store, aren't macros either.
+     */
+    private static boolean isMacroFile(Path path) {
+        String name = path.getFileName().toString();
+        return MacroHelper.isMacroFile(name) && !name.startsWith(".");
+    }
+
+    /**
+     * Checks if a file starts the way a macro does, in either format, so stray files like logs are skipped rather than
+     * reported as unreadable macros.
+     */
+    private static boolean looksLikeMacro(byte[] data) {
+        return MacroCodec.isBinary(data) || data.length > 0 && data[0] == '{';
+    }
+
+    /**
+     * Reads, checks and converts one macro, on one of the pool's threads.
+     */
+    private void process(Path dir, Path path) {
+        byte[] data;
+        try {
+            data = Files.readAllBytes(path);
+        } catch (IOException e) {
+            files.incrementAndGet();
+            unreadable(path, e);
+            return;
+        }
+        if (!looksLikeMacro(data)) {
+            skipped.incrementAndGet();
+            return;
+        }
+        files.incrementAndGet();
+        bytesRead.addAndGet(data.length);
+        Macro macro;
+        try {
+            macro = Macro.load(data, (JoystickSource[]) null);
+        } catch (RuntimeException e) { //Parsing errors, and events on sticks or channels it doesn't have.
+            unreadable(path, e);
+            return;
+        }
+        events.addAndGet(macro.eventCount());
+        List<String> problems = validate(macro);
+        if (!problems.isEmpty()) {
+            invalid.incrementAndGet();
+            for (String problem : problems)
+                System.err.println(path + ": " + problem);
+            return;
+        }
+        if (convertTo == null)
+            return;
+        boolean binary = MacroCodec.isBinary(data);
+        boolean alreadyConverted = convertTo == Macro.textMacroFormatVersion ? !binary:
+                                   binary && MacroCodec.version(data) == Macro.binaryMacroFormatVersion;
+        if (alreadyConverted && outDir == null)
+            return;
+        try {
+            Path out = outDir == null ? path: outDir.resolve(dir.relativize(path).toString());
+            if (!alreadyConverted) {
+                macro.setMacroFormatVersion(convertTo);
+                data = macro.toBytes();
+            }
+            if (out.getParent() != null)
+                Files.createDirectories(out.getParent());
+            MacroHelper.writeAtomically(out, data);
+            bytesWritten.addAndGet(data.length);
+            converted.incrementAndGet();
+        } catch (IOException e) {
+            System.err.println(path + ": could not be converted (" + e + ')');
+            failures.incrementAndGet();
+        }
+    }
+
+    private void unreadable(Path path, Exception e) {
+        System.err.println(path + ": could not be read (" + e + ')');
+        unreadable.incrementAndGet();
+    }
+
+    /**
+     * Checks that a loaded macro could have been recorded: its events are in order and within the recording, they
+     * come from sticks and buttons/axes/POVs the macro has, and their values are ones a stick could send.
+     *
+     * @param macro The macro to check.
+     * @return What's wrong with it, or an empty list if nothing is.
+     */
+    public static List<String> validate(Macro macro) {
+        List<String> problems = new ArrayList<>();
+        if (macro.length() == null) {
+            problems.add("it was never finished");
+            return problems;
+        }
+        int stickCount = macro.stickCount();
+        if (stickCount == 0)
+            problems.add("it has no sticks");
+        for (int i = 0; i < stickCount; i++)
+            for (int j = 0; j < i; j++)
+                if (macro.getInitialState(i).getPort() == macro.getInitialState(j).getPort())
+                    problems.add("sticks " + j + " and " + i + " are both on port " +
+                                 macro.getInitialState(i).getPort());
+        long previous = 0;
+        for (int i = 0; i < macro.eventCount(); i++) {
+            long time = macro.eventOffsetMicros(i);
+            if (time < previous)
+                problems.add("event " + i + " is before the one before it (" + time + "us < " + previous + "us)");
+            else if (time > macro.lengthMicros())
+                problems.add("event " + i + " is after the end of the recording (" + time + "us > " +
+                             macro.lengthMicros() + "us)");
+            previous = Math.max(previous, time);
+            int stick = macro.eventStick(i);
+            if (stick < 0 || stick >= stickCount) {
+                problems.add("event " + i + " is from stick " + stick + ", but the macro has " + stickCount +
+                             " sticks");
+                continue;
+            }
+            simulatedJoystick state = macro.getInitialState(stick);
+            int id = macro.eventId(i);
+            double val = macro.eventValue(i);
+            switch (macro.eventType(i)) {
+                case PRESS:
+                case RELEASE:
+                    if (id < 1 || id > state.getButtonCount())
+                        problems.add("event " + i + " is for button " + id + ", but stick " + stick + " has " +
+                                     state.getButtonCount());
+                    break;
+                case AXIS:
+                    if (id >= state.getAxisCount())
+                        problems.add("event " + i + " is for axis " + id + ", but stick " + stick + " has " +
+                                     state.getAxisCount());
+                    if (!(val >= -1 && val <= 1)) //Also catches NaN.
+                        problems.add("event " + i + " sets axis " + id + " to " + val + ", outside of -1 to 1");
+                    break;
+                case POV:
+                    if (id >= state.getPOVCount())
+                        problems.add("event " + i + " is for POV " + id + ", but stick " + stick + " has " +
+                                     state.getPOVCount());
+                    if (val != -1 && !(val >= 0 && val < 360))
+                        problems.add("event " + i + " sets POV " + id + " to " + val + ", which isn't -1 or an angle");
+                    break;
+            }
+        }
+        return problems;
+    }
+
+    /**
+     * @return If every macro so far was read, valid, and converted if told to.
+     */
+    public boolean isAllValid() {
+        return invalid.get() == 0 && unreadable.get() == 0 && failures.get() == 0;
+    }
+
+    /**
+     * @param elapsedNanos How long the macros took to process.
+     * @return How many macros were processed and how fast, for printing.
+     */
+    public String getSummary(long elapsedNanos) {
+        double seconds = Math.max(elapsedNanos, 1) / 1e9;
+        StringBuilder str = new StringBuilder();
+        str.append(files.get()).append(" macros (").append(events.get()).append(" events, ")
+           .append(bytesRead.get() / 1024).append("KB) checked in ").append(Math.round(seconds * 1000)).append("ms on ")
+           .append(pool.getParallelism()).append(" threads: ").append(files.get() - invalid.get() - unreadable.get())
+           .append(" valid, ").append(invalid.get()).append(" invalid, ").append(unreadable.get())
+           .append(" unreadable");
+        if (convertTo != null)
+            str.append(", ").append(converted.get()).append(" converted (").append(bytesWritten.get() / 1024)
+               .append("KB)");
+        if (failures.get() > 0)
+            str.append(", ").append(failures.get()).append(" failures");
+        if (skipped.get() > 0)
+            str.append(", ").append(skipped.get()).append(" other files skipped");
+        return str.append(". ").append(Math.round(files.get() / seconds)).append(" macros/s, ")
+                  .append(Math.round(events.get() / seconds)).append(" events/s, ")
+                  .append(Math.round(bytesRead.get() / seconds / 1024)).append("KB/s").toString();
+    }
+
+    /**
+     * @return How many macros have been checked, including invalid and unreadable ones.
+     */
+    public int getMacroCount() {
+        return files.get();
+    }
+
+    /**
+     * @return How many macros were read, but weren't valid.
+     */
+    public int getInvalidCount() {
+        return invalid.get();
+    }
+
+    /**
+     * @return How many macros couldn't be read or parsed.
+     */
+    public int getUnreadableCount() {
+        return unreadable.get();
+    }
+
+    /**
+     * @return How many macros were converted.
+     */
+    public int getConvertedCount() {
+        return converted.get();
+    }
+
+    /**
+     * @return How many files were skipped because they aren't macros, or are under --out.
+     */
+    public int getSkippedCount() {
+        return skipped.get();
+    }
+}
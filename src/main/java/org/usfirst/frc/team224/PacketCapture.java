@@ -0,0 +1,232 @@
+package org.usfirst.frc.team224;
+import edu.wpi.first.wpilibj.DriverStation;
+import edu.wpi.first.wpilibj.Joystick;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads the sticks on its own thread every time a Driver Station packet arrives, so a recording gets every change the
+ * Driver Station sends, stamped with when its packet arrived, instead of whatever the sticks look like whenever
+ * teleopPeriodic happens to run. A button tapped between two loops is still recorded.
+ * <p>
+ * The capture thread diffs each packet against the last one, like {@link Macro#record()}, and puts the changes in a
+ * single-producer, single-consumer ring of preallocated columns. The ring is handed over with two counters and no
+ * locks: the capture thread only ever moves the write counter, and {@link Macro#record()} (on the robot thread) only
+ * moves the read counter as it drains the ring. Neither side allocates or waits on the other. If the robot thread falls
+ * more than {@link #capacity} events behind, new events are dropped and counted in {@link #getOverflows()}.
+ *
+ * @see Macro#setCapture(PacketCapture)
+ * @see MacroHelper#setPacketCapture(boolean)
+ */
+public class PacketCapture {
+    /**
+     * How many events the ring holds. A power of two, so the slot for an event is found with a mask.
+     */
+    public static final int capacity = 4096;
+    private static final int mask = capacity - 1;
+    private static final double packetTimeout = 0.1; //How long to wait for a packet before checking if it should stop, in seconds.
+    private static final JoystickEvent.eventType[] eventTypes = JoystickEvent.eventType.values();
+
+    /**
+     * Waits for the next Driver Station packet.
+     */
+    @FunctionalInterface
+    public interface PacketSource {
+        /**
+         * The Driver Station, which sends a packet every 20ms.
+         */
+        PacketSource driverStation = timeout -> DriverStation.getInstance().waitForData(timeout);
+
+        /**
+         * Waits until a new packet arrives.
+         *
+         * @param timeout The longest to wait, in seconds.
+         * @return If a packet arrived, as opposed to the wait timing out.
+         */
+        boolean waitForPacket(double timeout);
+    }
+
+    private final JoystickSource[] sticks;
+    private final PacketSource packets;
+    private final MacroClock clock;
+    private JoystickSnapshot[] previousStates; //Only touched by the capture thread.
+    private JoystickSnapshot[] currentStates;
+
+    private final long[] eventTimes = new long[capacity]; //When the packet arrived, in nanoseconds on the clock.
+    private final byte[] eventTypeOrdinals = new byte[capacity];
+    private final byte[] eventSticks = new byte[capacity];
+    private final byte[] eventIds = new byte[capacity];
+    private final double[] eventValues = new double[capacity];
+    private final AtomicLong written = new AtomicLong(); //Only moved by the capture thread.
+    private final AtomicLong read = new AtomicLong(); //Only moved by the robot thread.
+    private volatile long packetCount, overflows;
+    private volatile Thread thread;
+
+    /**
+     * Creates a capture for the given sticks, synchronized to the Driver Station and timed by
+     * {@link MacroClock#systemClock}.
+     *
+     * @param sticks The joysticks to read, in the same order as the macros that will drain it.
+     */
+    public PacketCapture(Joystick... sticks) {
+        this(JoystickSource.of(sticks), PacketSource.driverStation, MacroClock.systemClock);
+    }
+
+    /**
+     * Creates a capture for the given sticks.
+     *
+     * @param sticks  The joysticks to read, in the same order as the macros that will drain it.
+     * @param packets What to wait on for each packet.
+     * @param clock   The clock to stamp packets with. Macros that drain this capture use it too.
+     */
+    public PacketCapture(JoystickSource[] sticks, PacketSource packets, MacroClock clock) {
+        this.sticks = sticks;
+        this.packets = packets;
+        this.clock = clock;
+        previousStates = new JoystickSnapshot[sticks.length];
+        currentStates = new JoystickSnapshot[sticks.length];
+        for (int i = 0; i < sticks.length; i++) {
+            previousStates[i] = new JoystickSnapshot();
+            currentStates[i] = new JoystickSnapshot();
+        }
+    }
+
+    /**
+     * Starts the capture thread, if it isn't running already.
+     */
+    public synchronized void start() {
+        if (thread != null)
+            return;
+        for (int i = 0; i < sticks.length; i++)
+            previousStates[i].capture(sticks[i]);
+        thread = new Thread(this::run, "Driver Station packet capture");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY); //The packet should be read before the robot loop changes anything.
+        thread.start();
+    }
+
+    /**
+     * Stops the capture thread. Events already captured can still be drained.
+     */
+    public synchronized void stop() {
+        Thread thread = this.thread;
+        this.thread = null;
+        if (thread != null)
+            thread.interrupt();
+    }
+
+    /**
+     * @return If the capture thread is running.
+     */
+    public boolean isRunning() {
+        return thread != null;
+    }
+
+    /**
+     * Runs on the capture thread, reading the sticks after every packet until {@link #stop()} is called.
+     */
+    private void run() {
+        Thread self = Thread.currentThread();
+        while (thread == self && !self.isInterrupted())
+            if (packets.waitForPacket(packetTimeout))
+                capturePacket(clock.nanoTime());
+    }
+
+    /**
+     * Reads every stick and puts whatever changed since the last packet in the ring. Doesn't allocate.
+     *
+     * @param time When the packet arrived, on the clock.
+     */
+    void capturePacket(long time) {
+        for (int i = 0; i < sticks.length; i++) {
+            JoystickSnapshot previous = previousStates[i];
+            JoystickSnapshot current = currentStates[i].capture(sticks[i]);
+            for (int changed = current.changedButtons(previous); changed != 0; changed &= changed - 1) {
+                int j = Integer.numberOfTrailingZeros(changed) + 1;
+                offer(time, current.getRawButton(j) ? JoystickEvent.eventType.PRESS: JoystickEvent.eventType.RELEASE, i, j, 0);
+            }
+            for (int j = 0; j < current.getAxisCount(); j++)
+                if (previous.getRawAxis(j) != current.getRawAxis(j))
+                    offer(time, JoystickEvent.eventType.AXIS, i, j, current.getRawAxis(j));
+            for (int j = 0; j < current.getPOVCount(); j++)
+                if (previous.getPOV(j) != current.getPOV(j))
+                    offer(time, JoystickEvent.eventType.POV, i, j, current.getPOV(j));
+            previousStates[i] = current;
+            currentStates[i] = previous;
+        }
+        packetCount++;
+    }
+
+    /**
+     * Puts an event in the ring, or drops it if the ring is full.
+     */
+    private void offer(long time, JoystickEvent.eventType type, int stick, int id, double val) {
+        long next = written.get();
+        if (next - read.get() >= capacity) {
+            overflows++;
+            return;
+        }
+        int i = (int) (next & mask);
+        eventTimes[i] = time;
+        eventTypeOrdinals[i] = (byte) type.ordinal();
+        eventSticks[i] = (byte) stick;
+        eventIds[i] = (byte) id;
+        eventValues[i] = val;
+        written.lazySet(next + 1); //Publishes the event; the robot thread won't look at it before this.
+    }
+
+    /**
+     * Hands every captured event to the macro, oldest first, and frees their slots. Called by {@link Macro#record()}
+     * on the robot thread. Doesn't allocate.
+     *
+     * @param macro The macro being recorded.
+     * @return How many events were drained.
+     */
+    int drainTo(Macro macro) {
+        long from = read.get();
+        long to = written.get();
+        for (long n = from; n < to; n++) {
+            int i = (int) (n & mask);
+            macro.addCapturedEvent(eventTypes[eventTypeOrdinals[i]], eventTimes[i], eventSticks[i], eventIds[i] & 0xFF,
+                                   eventValues[i]);
+        }
+        read.lazySet(to);
+        return (int) (to - from);
+    }
+
+    /**
+     * Drops every event that hasn't been drained yet. Called when a recording starts, since the sticks' initial state
+     * already includes them.
+     */
+    void skip() {
+        read.lazySet(written.get());
+    }
+
+    /**
+     * @return How many sticks are captured.
+     */
+    public int getStickCount() {
+        return sticks.length;
+    }
+
+    /**
+     * @return The clock packets are stamped with.
+     */
+    public MacroClock getClock() {
+        return clock;
+    }
+
+    /**
+     * @return How many packets have been captured.
+     */
+    public long getPacketCount() {
+        return packetCount;
+    }
+
+    /**
+     * @return How many events were dropped because the ring was full.
+     */
+    public long getOverflows() {
+        return overflows;
+    }
+}
@@ -0,0 +1,423 @@
+package org.usfirst.frc.team224;
+import edu.wpi.first.wpilibj.Joystick;
+
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Records the sticks all the time, keeping only the last few seconds, so a good run can be saved as a macro after it
+ * happens instead of having to start recording before it.
+ * <p>
+ * Events go into a ring of columns, like a {@link Macro}'s; the oldest ones are overwritten. The first
+ * {@link #record()} sizes the ring for the most events the window could hold: one per loop for every button and POV
+ * switch in the {@link #setChannelMask channel masks}, and for every axis, as many as the {@link #setAxisFilter axis
+ * filter} lets through. Every {@link #getKeyframeInterval() keyframe interval}, the full state of every stick is copied
+ * into a ring of keyframes, so a macro can start at any keyframe without replaying everything before it.
+ * {@link #record()} never allocates after the first call.
+ * <p>
+ * {@link #snapshot(double, Consumer)} copies the events since the right keyframe into a second set of preallocated
+ * columns, which only takes a few array copies, and builds the macro from that copy on a background thread, so saving
+ * one doesn't hold up the robot loop.
+ *
+ * @see MacroHelper#saveLastSeconds(double)
+ */
+public class RollingRecorder {
+    /**
+     * How often the full state of the sticks is saved, in seconds, when it isn't given.
+     */
+    public static final double defaultKeyframeInterval = 1;
+    private static final int loopPeriod = 20; //How often teleopPeriodic runs, in milliseconds.
+    private static final JoystickEvent.eventType[] eventTypes = JoystickEvent.eventType.values();
+
+    private final JoystickSource[] sticks;
+    private final long windowMicros;
+    private final long keyframeIntervalMicros;
+    private MacroClock clock = MacroClock.systemClock;
+    private boolean started;
+    private long startNanos; //On the recorder's clock.
+    private long startMillis; //Wall-clock, only used to label the macros.
+    private JoystickSnapshot[] previousStates; //Each stick as of the last record(), by index in sticks.
+    private JoystickSnapshot[] currentStates;
+    private AxisFilter axisFilter; //Null to record every change.
+    private double[][] recordedAxes; //The last value recorded for each axis, when they're filtered.
+    private long[][] recordedAxisTimes; //When the last value was recorded for each axis, in microseconds.
+    //By index in sticks: which buttons, axes and POV switches are recorded.
+    private final int[] buttonMasks, axisMasks, POVMasks;
+
+    /**
+     * The ring of events, indexed by sequence number masked to its size. Times are microseconds since recording
+     * started, kept as longs since the recorder runs for as long as the robot is on. Allocated by the first record().
+     */
+    private int mask;
+    private long[] eventTimes;
+    private byte[] eventTypeOrdinals;
+    private byte[] eventSticks;
+    private byte[] eventIds;
+    private double[] eventValues;
+    private long nextEvent; //The sequence number of the next event.
+
+    /**
+     * The ring of keyframes, indexed by keyframe number modulo its size.
+     */
+    private final long[] keyframeTimes; //Microseconds since recording started.
+    private final long[] keyframeEvents; //The sequence number of the first event after the keyframe.
+    private final JoystickSnapshot[][] keyframeStates; //By keyframe, then stick.
+    private long keyframeCount;
+    private long nextKeyframeTime;
+
+    /**
+     * The copy {@link #snapshot} builds its macro from, on the background thread.
+     */
+    private long[] copyTimes;
+    private byte[] copyTypeOrdinals;
+    private byte[] copySticks;
+    private byte[] copyIds;
+    private double[] copyValues;
+    private final JoystickSnapshot[] copyStates;
+    private int copyCount;
+    private long copyStartTime, copyLength;
+    private volatile boolean building;
+    private final ThreadPoolExecutor builder = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+        Thread thread = new Thread(runnable, "Macro snapshot builder");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY); //Stay out of the way of the robot thread.
+        return thread;
+    });
+
+    /**
+     * Creates a recorder that keeps the given number of seconds, with a keyframe every
+     * {@link #defaultKeyframeInterval} seconds.
+     *
+     * @param seconds How much to keep.
+     * @param sticks  The joysticks to record.
+     */
+    public RollingRecorder(double seconds, Joystick... sticks) {
+        this(seconds, defaultKeyframeInterval, JoystickSource.of(sticks));
+    }
+
+    /**
+     * Creates a recorder that keeps the given number of seconds.
+     *
+     * @param seconds          How much to keep.
+     * @param keyframeInterval How often to save the full state of the sticks, in seconds. Snapshots start on a
+     *                         keyframe, so they can be up to this much shorter than asked for.
+     * @param sticks           The joysticks to record.
+     */
+    public RollingRecorder(double seconds, double keyframeInterval, JoystickSource[] sticks) {
+        if (seconds <= 0 || keyframeInterval <= 0)
+            throw new IllegalArgumentException("The window and the keyframe interval must be positive.");
+        this.sticks = sticks;
+        this.windowMicros = (long) (seconds * 1e6);
+        this.keyframeIntervalMicros = (long) (keyframeInterval * 1e6);
+        buttonMasks = new int[sticks.length];
+        axisMasks = new int[sticks.length];
+        POVMasks = new int[sticks.length];
+        Arrays.fill(buttonMasks, -1);
+        Arrays.fill(axisMasks, -1);
+        Arrays.fill(POVMasks, -1);
+
+        //Enough keyframes to cover the window, plus the one being started and the one before the window.
+        int keyframes = (int) Math.ceil(seconds / keyframeInterval) + 2;
+        keyframeTimes = new long[keyframes];
+        keyframeEvents = new long[keyframes];
+        keyframeStates = new JoystickSnapshot[keyframes][sticks.length];
+        for (JoystickSnapshot[] states : keyframeStates)
+            for (int i = 0; i < sticks.length; i++)
+                states[i] = new JoystickSnapshot();
+        previousStates = new JoystickSnapshot[sticks.length];
+        currentStates = new JoystickSnapshot[sticks.length];
+        copyStates = new JoystickSnapshot[sticks.length];
+        for (int i = 0; i < sticks.length; i++) {
+            previousStates[i] = new JoystickSnapshot();
+            currentStates[i] = new JoystickSnapshot();
+            copyStates[i] = new JoystickSnapshot();
+        }
+        builder.prestartCoreThread(); //Start the thread now, rather than on the robot thread when the first snapshot is taken.
+    }
+
+    /**
+     * Records any changes in the sticks since the last call. Put this in teleopPeriodic. The first call starts the
+     * recording, and sizes the ring from the sticks it finds. Never allocates after that.
+     */
+    public void record() {
+        if (!started) {
+            started = true;
+            startNanos = clock.nanoTime();
+            startMillis = System.currentTimeMillis();
+            for (int i = 0; i < sticks.length; i++)
+                previousStates[i].capture(sticks[i], axisMasks[i], POVMasks[i]);
+            allocateEvents();
+            takeKeyframe(0);
+            return;
+        }
+        long time = (clock.nanoTime() - startNanos) / 1000;
+        for (int i = 0; i < sticks.length; i++) {
+            JoystickSnapshot previous = previousStates[i];
+            JoystickSnapshot current = currentStates[i].capture(sticks[i], axisMasks[i], POVMasks[i]);
+            for (int changed = current.changedButtons(previous) & buttonMasks[i]; changed != 0; changed &= changed - 1) {
+                int j = Integer.numberOfTrailingZeros(changed) + 1;
+                append(time, current.getRawButton(j) ? JoystickEvent.eventType.PRESS: JoystickEvent.eventType.RELEASE, i, j, 0);
+            }
+            for (int axes = axisMasks[i] & JoystickSnapshot.mask(current.getAxisCount()); axes != 0; axes &= axes - 1) {
+                int j = Integer.numberOfTrailingZeros(axes);
+                double position = current.getRawAxis(j);
+                if (axisFilter == null) {
+                    if (previous.getRawAxis(j) != position)
+                        append(time, JoystickEvent.eventType.AXIS, i, j, position);
+                } else {
+                    double value = axisFilter.apply(position);
+                    if (axisFilter.shouldRecord(value, recordedAxes[i][j], time - recordedAxisTimes[i][j])) {
+                        append(time, JoystickEvent.eventType.AXIS, i, j, value);
+                        recordedAxes[i][j] = value;
+                        recordedAxisTimes[i][j] = time;
+                    }
+                }
+            }
+            for (int POVs = POVMasks[i] & JoystickSnapshot.mask(current.getPOVCount()); POVs != 0; POVs &= POVs - 1) {
+                int j = Integer.numberOfTrailingZeros(POVs);
+                if (previous.getPOV(j) != current.getPOV(j))
+                    append(time, JoystickEvent.eventType.POV, i, j, current.getPOV(j));
+            }
+            previousStates[i] = current;
+            currentStates[i] = previous;
+        }
+        if (time >= nextKeyframeTime)
+            takeKeyframe(time);
+    }
+
+    /**
+     * Allocates the ring, and the copy snapshots are made into, with room for as many events as the sticks could make
+     * in a window and a keyframe interval, at one loop every {@link #loopPeriod} milliseconds. Each button and POV
+     * switch in the masks can change once a loop, and each axis as often as the filter allows. If the loop runs faster,
+     * the oldest events are overwritten sooner, and snapshots come out shorter.
+     */
+    private void allocateEvents() {
+        double eventsPerLoop = 0;
+        double axisEventsPerLoop = axisFilter == null || axisFilter.getMaxRate() == 0 ? 1:
+                                   Math.min(1, axisFilter.getMaxRate() * loopPeriod / 1000);
+        for (int i = 0; i < sticks.length; i++) {
+            JoystickSnapshot state = previousStates[i];
+            //A stick that isn't plugged in yet has nothing, so leave room for the most it could have.
+            boolean connected = state.getButtonCount() + state.getAxisCount() + state.getPOVCount() > 0;
+            int buttons = connected ? state.getButtonCount(): JoystickSnapshot.maxButtons;
+            int axes = connected ? state.getAxisCount(): JoystickSnapshot.maxAxes;
+            int POVs = connected ? state.getPOVCount(): JoystickSnapshot.maxPOVs;
+            eventsPerLoop += Integer.bitCount(buttonMasks[i] & JoystickSnapshot.mask(buttons)) +
+                             Integer.bitCount(axisMasks[i] & JoystickSnapshot.mask(axes)) * axisEventsPerLoop +
+                             Integer.bitCount(POVMasks[i] & JoystickSnapshot.mask(POVs));
+        }
+        double loops = (windowMicros + keyframeIntervalMicros) / 1000.0 / loopPeriod;
+        int events = (int) Math.min(1 << 30, Math.max(16, Math.ceil(loops * eventsPerLoop)));
+        int capacity = Integer.highestOneBit(events - 1) << 1; //The next power of two, so sequence numbers can be masked.
+        mask = capacity - 1;
+        eventTimes = new long[capacity];
+        eventTypeOrdinals = new byte[capacity];
+        eventSticks = new byte[capacity];
+        eventIds = new byte[capacity];
+        eventValues = new double[capacity];
+        copyTimes = new long[capacity];
+        copyTypeOrdinals = new byte[capacity];
+        copySticks = new byte[capacity];
+        copyIds = new byte[capacity];
+        copyValues = new double[capacity];
+        if (axisFilter != null) {
+            recordedAxes = new double[sticks.length][JoystickSnapshot.maxAxes];
+            recordedAxisTimes = new long[sticks.length][JoystickSnapshot.maxAxes];
+            for (int i = 0; i < sticks.length; i++)
+                for (int j = 0; j < JoystickSnapshot.maxAxes; j++) {
+                    recordedAxes[i][j] = previousStates[i].getRawAxis(j);
+                    recordedAxisTimes[i][j] = Long.MIN_VALUE / 2; //Long enough ago that the rate limit doesn't apply.
+                }
+        }
+    }
+
+    /**
+     * Adds an event to the ring, overwriting the oldest one.
+     */
+    private void append(long time, JoystickEvent.eventType type, int stick, int id, double val) {
+        int i = (int) (nextEvent & mask);
+        eventTimes[i] = time;
+        eventTypeOrdinals[i] = (byte) type.ordinal();
+        eventSticks[i] = (byte) stick;
+        eventIds[i] = (byte) id;
+        eventValues[i] = val;
+        nextEvent++;
+    }
+
+    /**
+     * Copies the current state of every stick into the next keyframe, overwriting the oldest one.
+     */
+    private void takeKeyframe(long time) {
+        int k = (int) (keyframeCount % keyframeTimes.length);
+        keyframeTimes[k] = time;
+        keyframeEvents[k] = nextEvent;
+        for (int i = 0; i < sticks.length; i++)
+            keyframeStates[k][i].copy(previousStates[i]);
+        keyframeCount++;
+        nextKeyframeTime = time + keyframeIntervalMicros;
+    }
+
+    /**
+     * Saves the last few seconds as a macro. The macro starts at the first keyframe in that time, so it can be up to a
+     * {@link #getKeyframeInterval() keyframe interval} shorter. The events are copied right away, and the macro is built
+     * and handed to <code>onBuilt</code> on a background thread.
+     *
+     * @param seconds How much to save, up to the recorder's window. Keep it at 15 or under, since that's as long as a
+     *                macro plays.
+     * @param onBuilt What to do with the macro, like saving it. Runs on the background thread.
+     * @return If the snapshot was taken, as opposed to nothing having been recorded yet or the last snapshot still
+     * being built.
+     */
+    public boolean snapshot(double seconds, Consumer<Macro> onBuilt) {
+        if (!started || building)
+            return false;
+        long now = (clock.nanoTime() - startNanos) / 1000;
+        long from = now - Math.min((long) (seconds * 1e6), windowMicros);
+        long oldestEvent = Math.max(0, nextEvent - eventTimes.length); //Anything before this was overwritten.
+        int k = -1;
+        for (long n = Math.max(0, keyframeCount - keyframeTimes.length); n < keyframeCount; n++) {
+            int candidate = (int) (n % keyframeTimes.length);
+            if (keyframeEvents[candidate] >= oldestEvent && (keyframeTimes[candidate] >= from || n == keyframeCount - 1)) {
+                k = candidate;
+                break;
+            }
+        }
+        if (k < 0) { //Only if there were more events since the last keyframe than the ring holds.
+            System.err.println("Too much happened since the last keyframe to save it.");
+            return false;
+        }
+        //Copy the events after the keyframe in order, in at most two pieces if they wrap around the ring.
+        copyCount = (int) (nextEvent - keyframeEvents[k]);
+        int first = (int) (keyframeEvents[k] & mask);
+        int firstPart = Math.min(copyCount, eventTimes.length - first);
+        copyRange(first, 0, firstPart);
+        copyRange(0, firstPart, copyCount - firstPart);
+        for (int i = 0; i < sticks.length; i++)
+            copyStates[i].copy(keyframeStates[k][i]);
+        copyStartTime = keyframeTimes[k];
+        copyLength = now - keyframeTimes[k];
+        building = true;
+        builder.execute(() -> {
+            try {
+                onBuilt.accept(build());
+            } catch (RuntimeException e) {
+                System.err.println("Could not save the snapshot: " + e);
+            } finally {
+                building = false;
+            }
+        });
+        return true;
+    }
+
+    private void copyRange(int from, int to, int length) {
+        System.arraycopy(eventTimes, from, copyTimes, to, length);
+        System.arraycopy(eventTypeOrdinals, from, copyTypeOrdinals, to, length);
+        System.arraycopy(eventSticks, from, copySticks, to, length);
+        System.arraycopy(eventIds, from, copyIds, to, length);
+        System.arraycopy(eventValues, from, copyValues, to, length);
+    }
+
+    /**
+     * Builds a macro from the copy made by {@link #snapshot}. Runs on the background thread.
+     */
+    private Macro build() {
+        simulatedJoystick[] initialStates = new simulatedJoystick[sticks.length];
+        for (int i = 0; i < sticks.length; i++)
+            initialStates[i] = new simulatedJoystick(copyStates[i]).update(copyStates[i]);
+        Macro macro = new Macro(sticks, startMillis + copyStartTime / 1000, initialStates, Macro.currentMacroFormatVersion,
+                                copyCount);
+        for (int i = 0; i < copyCount; i++)
+            macro.addEventMicros(eventTypes[copyTypeOrdinals[i]], copyTimes[i] - copyStartTime, copySticks[i],
+                                 copyIds[i] & 0xFF, copyValues[i]);
+        macro.finishLoadingMicros(copyLength);
+        return macro;
+    }
+
+    /**
+     * Sets the clock used to time the recording. Defaults to {@link MacroClock#systemClock}. Must be called before the
+     * first {@link #record()}.
+     *
+     * @param clock The clock to use, like {@link MacroClock#fpgaClock} or a {@link VirtualClock}.
+     */
+    public void setClock(MacroClock clock) {
+        if (started)
+            throw new IllegalStateException("The clock can't be changed once recording has started.");
+        this.clock = clock;
+    }
+
+    /**
+     * Filters which movements of every axis are recorded, like {@link Macro#setAxisFilter(AxisFilter)}. Must be called
+     * before the first {@link #record()}, since the ring is sized for it.
+     *
+     * @param filter The filter to use, like {@link AxisFilter#gamepad}, or null to record every change.
+     */
+    public void setAxisFilter(AxisFilter filter) {
+        if (started)
+            throw new IllegalStateException("The axis filter can't be changed once recording has started.");
+        axisFilter = filter;
+    }
+
+    /**
+     * Sets which buttons, axes and POV switches of a stick are recorded, like
+     * {@link Macro#setChannelMask(int, int, int, int)}. Must be called before the first {@link #record()}, since the
+     * ring is sized for them.
+     *
+     * @param stick   The index of the stick in the recorder's sticks.
+     * @param buttons A bit for each button to include, with button 1 in the lowest bit.
+     * @param axes    A bit for each axis to include, with axis 0 in the lowest bit.
+     * @param POVs    A bit for each POV switch to include, with POV 0 in the lowest bit.
+     */
+    public void setChannelMask(int stick, int buttons, int axes, int POVs) {
+        if (started)
+            throw new IllegalStateException("Channel masks can't be changed once recording has started.");
+        buttonMasks[stick] = buttons;
+        axisMasks[stick] = axes;
+        POVMasks[stick] = POVs;
+    }
+
+    /**
+     * @return How much is kept, in seconds.
+     */
+    public double getWindow() {
+        return windowMicros / 1e6;
+    }
+
+    /**
+     * @return How often the full state of the sticks is saved, in seconds.
+     */
+    public double getKeyframeInterval() {
+        return keyframeIntervalMicros / 1e6;
+    }
+
+    /**
+     * @return How many events the ring holds before it starts overwriting them, or 0 if recording hasn't started.
+     */
+    public int getCapacity() {
+        return eventTimes != null ? eventTimes.length: 0;
+    }
+
+    /**
+     * @return How long the last snapshot is, in seconds. It starts on a keyframe, so it can be shorter than asked for,
+     * or a lot shorter if the ring overflowed.
+     */
+    public double getSnapshotLength() {
+        return copyLength / 1e6;
+    }
+
+    /**
+     * @return How many events have been recorded since the recording started, including overwritten ones.
+     */
+    public long getEventCount() {
+        return nextEvent;
+    }
+
+    /**
+     * @return If a snapshot is still being built.
+     */
+    public boolean isBuilding() {
+        return building;
+    }
+}
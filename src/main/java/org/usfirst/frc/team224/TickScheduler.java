@@ -0,0 +1,249 @@
+package org.usfirst.frc.team224;
+
+/**
+ * Runs tasks after a number of robot loops, once or repeatedly. Call {@link #tick()} once per loop, in
+ * teleopPeriodic or wherever the tasks should run.
+ * <p>
+ * Tasks are kept in a hashed timer wheel: a ring of {@link #wheelSize} buckets, with each task in the bucket for the
+ * tick it's due on (wrapping around the ring for tasks further away than that). Scheduling and cancelling a task is
+ * O(1), and each tick only looks at one bucket. Tasks can schedule and cancel tasks, including themselves, while they
+ * run. Delays given in seconds are rounded up to whole loops.
+ *
+ * @see ExampleMacroRobot#scheduleEvent(double, Runnable)
+ */
+public class TickScheduler {
+    /**
+     * How many buckets the wheel has. A power of two, so the bucket for a tick is found with a mask.
+     */
+    public static final int wheelSize = 256;
+    private static final int mask = wheelSize - 1;
+    /**
+     * How long a robot loop is, in seconds, when it isn't given.
+     */
+    public static final double defaultLoopPeriod = 0.02;
+
+    private final Task[] buckets = new Task[wheelSize];
+    private final double loopPeriod;
+    private long tick;
+    private int size;
+
+    /**
+     * A scheduled task, which can be used to cancel it.
+     */
+    public static class Task {
+        private final Runnable function;
+        private final long period;
+        private long deadline;
+        private Task prev, next;
+        private TickScheduler scheduler;
+        private boolean inBucket, cancelled, done;
+
+        private Task(Runnable function, long period) {
+            this.function = function;
+            this.period = period;
+        }
+
+        /**
+         * Stops the task from running again. If it's running now, it finishes.
+         *
+         * @return If the task was stopped, as opposed to having already finished or been cancelled.
+         */
+        public boolean cancel() {
+            if (cancelled || done)
+                return false;
+            cancelled = true;
+            if (inBucket)
+                scheduler.unlink(this);
+            scheduler.size--;
+            return true;
+        }
+
+        /**
+         * @return If the task was cancelled.
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * @return If the task ran and won't run again. Repeating tasks are never done, only cancelled.
+         */
+        public boolean isDone() {
+            return done;
+        }
+
+        /**
+         * @return The tick the task will next run on.
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+
+    /**
+     * Creates a scheduler for a robot loop of {@link #defaultLoopPeriod}.
+     */
+    public TickScheduler() {
+        this(defaultLoopPeriod);
+    }
+
+    /**
+     * Creates a scheduler for a robot loop of the given length.
+     *
+     * @param loopPeriod How often {@link #tick()} is called, in seconds. Used to convert delays in seconds to ticks.
+     */
+    public TickScheduler(double loopPeriod) {
+        if (loopPeriod <= 0)
+            throw new IllegalArgumentException("The loop period must be positive.");
+        this.loopPeriod = loopPeriod;
+    }
+
+    /**
+     * Runs <code>function</code> once, after <code>ticks</code> calls to {@link #tick()}.
+     *
+     * @param ticks    How many ticks to wait. Less than 1 runs it on the next tick.
+     * @param function The function to run.
+     * @return The task, which can be cancelled.
+     */
+    public Task scheduleTicks(long ticks, Runnable function) {
+        return add(new Task(function, 0), ticks);
+    }
+
+    /**
+     * Runs <code>function</code> once, after <code>seconds</code> seconds.
+     *
+     * @param seconds  How long to wait.
+     * @param function The function to run.
+     * @return The task, which can be cancelled.
+     */
+    public Task schedule(double seconds, Runnable function) {
+        return scheduleTicks(toTicks(seconds), function);
+    }
+
+    /**
+     * Runs <code>function</code> after <code>delay</code> ticks, then every <code>period</code> ticks until it's
+     * cancelled.
+     *
+     * @param delay    How many ticks to wait before the first run. Less than 1 runs it on the next tick.
+     * @param period   How many ticks to wait between runs, at least 1.
+     * @param function The function to run.
+     * @return The task, which can be cancelled.
+     */
+    public Task scheduleRepeatingTicks(long delay, long period, Runnable function) {
+        if (period < 1)
+            throw new IllegalArgumentException("A repeating task's period must be at least one tick.");
+        return add(new Task(function, period), delay);
+    }
+
+    /**
+     * Runs <code>function</code> after <code>delay</code> seconds, then every <code>period</code> seconds until it's
+     * cancelled.
+     *
+     * @param delay    How long to wait before the first run.
+     * @param period   How long to wait between runs.
+     * @param function The function to run.
+     * @return The task, which can be cancelled.
+     */
+    public Task scheduleRepeating(double delay, double period, Runnable function) {
+        return scheduleRepeatingTicks(toTicks(delay), toTicks(period), function);
+    }
+
+    /**
+     * @param seconds A delay in seconds.
+     * @return The number of ticks to wait for at least that long, and at least 1.
+     */
+    private long toTicks(double seconds) {
+        return Math.max(1, (long) Math.ceil(seconds / loopPeriod - 1e-9)); //Don't let rounding error add a tick.
+    }
+
+    /**
+     * Puts a new task in the bucket for the given delay.
+     */
+    private Task add(Task task, long ticks) {
+        if (task.function == null)
+            throw new NullPointerException("The function to schedule can't be null.");
+        task.scheduler = this;
+        task.deadline = tick + Math.max(1, ticks);
+        link(task);
+        size++;
+        return task;
+    }
+
+    /**
+     * Adds a task to the front of the bucket for its deadline.
+     */
+    private void link(Task task) {
+        int index = (int) (task.deadline & mask);
+        task.prev = null;
+        task.next = buckets[index];
+        if (task.next != null)
+            task.next.prev = task;
+        buckets[index] = task;
+        task.inBucket = true;
+    }
+
+    /**
+     * Removes a task from its bucket.
+     */
+    private void unlink(Task task) {
+        if (task.prev != null)
+            task.prev.next = task.next;
+        else
+            buckets[(int) (task.deadline & mask)] = task.next;
+        if (task.next != null)
+            task.next.prev = task.prev;
+        task.prev = task.next = null;
+        task.inBucket = false;
+    }
+
+    /**
+     * Advances to the next tick, running every task due on it. Call this once per robot loop.
+     */
+    public void tick() {
+        tick++;
+        int index = (int) (tick & mask);
+        Task task = buckets[index];
+        if (task == null)
+            return;
+        //Take the whole bucket first, so tasks can schedule into it or cancel each other while it's being run.
+        buckets[index] = null;
+        for (Task t = task; t != null; t = t.next)
+            t.inBucket = false;
+        while (task != null) {
+            Task next = task.next;
+            if (!task.cancelled) {
+                if (task.deadline > tick) //Due on a later trip around the wheel.
+                    link(task);
+                else {
+                    if (task.period > 0) { //Put it back before running it, so it can cancel itself.
+                        task.deadline = tick + task.period;
+                        link(task);
+                    } else {
+                        task.done = true;
+                        size--;
+                    }
+                    try {
+                        task.function.run();
+                    } catch (RuntimeException e) { //One broken task shouldn't stop the rest of the bucket.
+                        System.err.println("A scheduled task threw " + e + '.');
+                    }
+                }
+            }
+            task = next;
+        }
+    }
+
+    /**
+     * @return How many times {@link #tick()} has been called.
+     */
+    public long getTick() {
+        return tick;
+    }
+
+    /**
+     * @return How many tasks are waiting to run.
+     */
+    public int size() {
+        return size;
+    }
+}
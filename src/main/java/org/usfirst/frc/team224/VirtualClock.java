@@ -0,0 +1,60 @@
+package org.usfirst.frc.team224;
+
+/**
+ * A clock which only moves when it's told to, for running macros faster than real time, or with exact timing.
+ *
+ * @see MacroClock
+ */
+public class VirtualClock implements MacroClock {
+    private volatile long time;
+
+    /**
+     * Creates a virtual clock starting at 0.
+     */
+    public VirtualClock() {
+        this(0);
+    }
+
+    /**
+     * Creates a virtual clock starting at the given time.
+     *
+     * @param nanoTime The time to start at, in nanoseconds.
+     */
+    public VirtualClock(long nanoTime) {
+        this.time = nanoTime;
+    }
+
+    @Override
+    public long nanoTime() {
+        return time;
+    }
+
+    /**
+     * Moves the clock forward.
+     *
+     * @param nanos How far to move the clock, in nanoseconds.
+     */
+    public void advance(long nanos) {
+        if (nanos < 0)
+            throw new IllegalArgumentException("A clock can't go backwards.");
+        time += nanos;
+    }
+
+    /**
+     * Moves the clock forward.
+     *
+     * @param millis How far to move the clock, in milliseconds.
+     */
+    public void advanceMillis(double millis) {
+        advance(Math.round(millis * 1000000));
+    }
+
+    /**
+     * Sets the clock to the given time.
+     *
+     * @param nanoTime The new time, in nanoseconds. Can't be before the current time.
+     */
+    public void set(long nanoTime) {
+        advance(nanoTime - time);
+    }
+}
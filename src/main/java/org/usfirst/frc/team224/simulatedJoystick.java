@@ -3,19 +3,20 @@ import edu.wpi.first.wpilibj.Joystick;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.stream.IntStream;
 
 /**
  * A class acting as an abstraction layer between a {@link Joystick} and a {@link Macro}.
  * @author Nicholas DeLello
  */
-class simulatedJoystick {
+class simulatedJoystick implements JoystickSource {
     private final boolean[] buttons;
     private final double[] axes;
     private int[] POVs;
     private final int id;
     private final ArrayList<JoystickEvent> events = new ArrayList<>();
-    public final byte simulatedJoystickFormatVersion = 1; //In case the format changes and you want to convert...
+    private final JoystickSnapshot snapshot = new JoystickSnapshot(); //Reused by updateWithEvents.
+    private final ChangeListener collector = this::collect; //Made once, since a method reference allocates.
+    public final byte simulatedJoystickFormatVersion = 2; //In case the format changes and you want to convert...
 
     /**
      * Creates a simulated joystick from the given joystick ID.
@@ -32,6 +33,15 @@ class simulatedJoystick {
      * @param j The real joystick this is based on.
      */
     public simulatedJoystick(Joystick j) {
+        this(JoystickSource.of(j));
+    }
+
+    /**
+     * Creates a simulated joystick with the same buttons, axes and POVs as the given source.
+     *
+     * @param j The source this is based on.
+     */
+    public simulatedJoystick(JoystickSource j) {
         buttons = new boolean[j.getButtonCount()];
         axes = new double[j.getAxisCount()];
         POVs = new int[j.getPOVCount()];
@@ -57,23 +67,32 @@ class simulatedJoystick {
      * @param serializedJoystick The serialized joystick in string form.
      */
     public simulatedJoystick(String serializedJoystick) {
-        String[] values = serializedJoystick.split("|");
+        String[] values = serializedJoystick.split("\\|", -1);
         id = Integer.parseInt(values[0]);
 
-        String[] buttons = values[1].split(",");
+        String[] buttons = split(values[1]);
         this.buttons = new boolean[buttons.length];
         for (int i = 0; i < buttons.length; i++)
             this.buttons[i] = Boolean.parseBoolean(buttons[i]);
 
-        String[] axes = values[2].split(",");
+        String[] axes = split(values[2]);
         this.axes = new double[axes.length];
         for (int i = 0; i < axes.length; i++)
-            this.axes[i] = Integer.parseInt(axes[i]);
+            this.axes[i] = Double.parseDouble(axes[i]);
 
-        String[] POVs = values[3].split(",");
-        for (int i = 0; i < POVs.length; i++) {
+        String[] POVs = split(values[3]);
+        //Older versions appended the format version to the last POV, without a '|' in between.
+        int POVCount = values.length > 4 ? POVs.length: Math.max(POVs.length - 1, 0);
+        this.POVs = new int[POVCount];
+        for (int i = 0; i < POVCount; i++)
             this.POVs[i] = Integer.parseInt(POVs[i]);
-        }
+    }
+
+    /**
+     * Splits a comma-separated list, returning an empty array for an empty string.
+     */
+    private static String[] split(String list) {
+        return list.isEmpty() ? new String[0]: list.split(",");
     }
 
     /**
@@ -86,6 +105,17 @@ class simulatedJoystick {
         return buttons[buttonNum - 1];
     }
 
+    /**
+     * @return The state of the first 32 buttons on this joystick, with button 1 in the lowest bit.
+     */
+    @Override
+    public int getButtons() {
+        int buttons = 0;
+        for (int i = Math.min(this.buttons.length, JoystickSnapshot.maxButtons) - 1; i >= 0; i--)
+            buttons = buttons << 1 | (this.buttons[i] ? 1: 0);
+        return buttons;
+    }
+
     /**
      * Returns the value of the given axis in this joystick.
      *
@@ -243,9 +273,23 @@ class simulatedJoystick {
      * @return This, for convenience.
      */
     public simulatedJoystick update(Joystick j) {
-        IntStream.range(0, j.getPOVCount()).forEach(i -> this.setPOV(i, j.getPOV(i)));
-        IntStream.range(0, j.getButtonCount()).forEach(i -> this.setButton(i, j.getRawButton(i)));
-        IntStream.range(0, j.getAxisCount()).forEach(i -> this.setAxis(i, j.getRawAxis(i)));
+        return update(JoystickSource.of(j));
+    }
+
+    /**
+     * Sets the values of the current stick to those in the one given.
+     *
+     * @param j The source to set the values from
+     * @return This, for convenience.
+     */
+    public simulatedJoystick update(JoystickSource j) {
+        //Plain loops rather than IntStreams, since this runs every loop while recording and lambdas allocate.
+        for (int i = 0; i < POVs.length; i++)
+            this.setPOV(i, j.getPOV(i));
+        for (int i = 1; i <= buttons.length; i++)
+            this.setButton(i, j.getRawButton(i));
+        for (int i = 0; i < axes.length; i++)
+            this.setAxis(i, j.getRawAxis(i));
         return this;
     }
 
@@ -256,9 +300,34 @@ class simulatedJoystick {
      * @return This, for convenience.
      */
     public simulatedJoystick update(simulatedJoystick j) {
-        IntStream.range(0, j.getPOVCount()).forEach(i -> this.setPOV(i, j.getPOV(i)));
-        IntStream.range(0, j.getButtonCount()).forEach(i -> this.setButton(i, j.getRawButton(i)));
-        IntStream.range(0, j.getAxisCount()).forEach(i -> this.setAxis(i, j.getRawAxis(i)));
+        System.arraycopy(j.POVs, 0, POVs, 0, Math.min(POVs.length, j.POVs.length));
+        System.arraycopy(j.buttons, 0, buttons, 0, Math.min(buttons.length, j.buttons.length));
+        System.arraycopy(j.axes, 0, axes, 0, Math.min(axes.length, j.axes.length));
+        return this;
+    }
+
+    /**
+     * Sets the buttons, axes and POV switches in the masks to those in the one given, leaving the rest alone.
+     *
+     * @param j          The joystick to set the values from
+     * @param buttonMask A bit for each button to set, with button 1 in the lowest bit.
+     * @param axisMask   A bit for each axis to set, with axis 0 in the lowest bit.
+     * @param POVMask    A bit for each POV switch to set, with POV 0 in the lowest bit.
+     * @return This, for convenience.
+     */
+    public simulatedJoystick update(simulatedJoystick j, int buttonMask, int axisMask, int POVMask) {
+        for (int set = buttonMask & JoystickSnapshot.mask(Math.min(buttons.length, j.buttons.length)); set != 0; set &= set - 1) {
+            int i = Integer.numberOfTrailingZeros(set);
+            buttons[i] = j.buttons[i];
+        }
+        for (int set = axisMask & JoystickSnapshot.mask(Math.min(axes.length, j.axes.length)); set != 0; set &= set - 1) {
+            int i = Integer.numberOfTrailingZeros(set);
+            axes[i] = j.axes[i];
+        }
+        for (int set = POVMask & JoystickSnapshot.mask(Math.min(POVs.length, j.POVs.length)); set != 0; set &= set - 1) {
+            int i = Integer.numberOfTrailingZeros(set);
+            POVs[i] = j.POVs[i];
+        }
         return this;
     }
 
@@ -281,6 +350,23 @@ class simulatedJoystick {
         return id;
     }
 
+    /**
+     * Receives the changes found by {@link #updateWithEvents(JoystickSource, int, ChangeListener)} as primitives,
+     * rather than {@link JoystickEvent}s.
+     */
+    @FunctionalInterface
+    interface ChangeListener {
+        /**
+         * Called after the simulated stick has been updated, so it already has the new value.
+         *
+         * @param stick The joystick's ID, as given to updateWithEvents.
+         * @param type  The type of change (PRESS, RELEASE, AXIS, POV)
+         * @param id    The ID of the button/axis/POV
+         * @param val   The new value of the axis/POV, or 0 for buttons.
+         */
+        void changed(int stick, JoystickEvent.eventType type, int id, double val);
+    }
+
     /**
      * Updates the joystick, returning events (whose times are all 0 for convenience) for any changes that occur.
      *
@@ -289,40 +375,98 @@ class simulatedJoystick {
      * @return A list of all events that were generated from the update.
      */
     public ArrayList<JoystickEvent> updateWithEvents(Joystick j, int id) {
-        boolean currentState;
-        double currentPosition;
+        return updateWithEvents(JoystickSource.of(j), id);
+    }
+
+    /**
+     * Updates the joystick, returning events (whose times are all 0 for convenience) for any changes that occur.
+     *
+     * @param j  The source to update from
+     * @param id The joystick's ID
+     * @return A list of all events that were generated from the update.
+     */
+    public ArrayList<JoystickEvent> updateWithEvents(JoystickSource j, int id) {
+        return updateWithEvents(snapshot.capture(j), id);
+    }
+
+    /**
+     * Updates the joystick, returning events (whose times are all 0 for convenience) for any changes that occur. Button
+     * events are the {@link JoystickEvent#of shared ones}, so only axis and POV changes create events. The list is
+     * reused by the next update.
+     *
+     * @param j  A snapshot of the stick to update from
+     * @param id The joystick's ID
+     * @return A list of all events that were generated from the update.
+     */
+    public ArrayList<JoystickEvent> updateWithEvents(JoystickSnapshot j, int id) {
         events.clear();
-        for (int i = 1; i <= j.getButtonCount(); i++) {
-            currentState = j.getRawButton(i);
-            if (this.buttons[i-1] != currentState) {
-                this.setButton(i, currentState);
-                events.add(new JoystickEvent(currentState ? JoystickEvent.eventType.PRESS : JoystickEvent.eventType.RELEASE, 0L, id, i));
-            }
+        updateWithEvents(j, id, collector);
+        return events;
+    }
+
+    /**
+     * Adds a change to {@link #events}.
+     */
+    private void collect(int stick, JoystickEvent.eventType type, int id, double val) {
+        if (type == JoystickEvent.eventType.PRESS || type == JoystickEvent.eventType.RELEASE)
+            events.add(JoystickEvent.of(type, stick, id));
+        else
+            events.add(new JoystickEvent(type, 0L, stick, id, val));
+    }
+
+    /**
+     * Updates the joystick, handing each change to the listener as it's made. Nothing is allocated, so this can run
+     * for every stick on every loop.
+     *
+     * @param j        The source to update from
+     * @param id       The joystick's ID
+     * @param listener What to tell about each change.
+     */
+    public void updateWithEvents(JoystickSource j, int id, ChangeListener listener) {
+        updateWithEvents(snapshot.capture(j), id, listener);
+    }
+
+    /**
+     * Updates the joystick, handing each change to the listener as it's made. Nothing is allocated, so this can run
+     * for every stick on every loop.
+     *
+     * @param j        A snapshot of the stick to update from
+     * @param id       The joystick's ID
+     * @param listener What to tell about each change.
+     */
+    public void updateWithEvents(JoystickSnapshot j, int id, ChangeListener listener) {
+        //One bit per button, so only the buttons that changed are visited.
+        for (int changed = j.changedButtons(getButtons()) & JoystickSnapshot.mask(buttons.length); changed != 0; changed &= changed - 1) {
+            int i = Integer.numberOfTrailingZeros(changed) + 1;
+            boolean currentState = j.getRawButton(i);
+            this.setButton(i, currentState);
+            listener.changed(id, currentState ? JoystickEvent.eventType.PRESS : JoystickEvent.eventType.RELEASE, i, 0);
         }
-        for (int i = 0; i < j.getAxisCount(); i++) {
-            currentPosition = j.getRawAxis(i);
+        int axisCount = Math.min(j.getAxisCount(), axes.length);
+        for (int i = 0; i < axisCount; i++) {
+            double currentPosition = j.getRawAxis(i);
             if (this.axes[i] != currentPosition) {
                 this.setAxis(i, currentPosition);
-                events.add(new JoystickEvent(JoystickEvent.eventType.AXIS, 0L, id, i, currentPosition));
+                listener.changed(id, JoystickEvent.eventType.AXIS, i, currentPosition);
             }
         }
-        for (int i = 0; i < j.getPOVCount(); i++) {
-            currentPosition = j.getPOV(i);
+        int POVCount = Math.min(j.getPOVCount(), POVs.length);
+        for (int i = 0; i < POVCount; i++) {
+            int currentPosition = j.getPOV(i);
             if (this.POVs[i] != currentPosition) {
-                this.setPOV(i, (int) Math.round(currentPosition));
-                events.add(new JoystickEvent(JoystickEvent.eventType.POV, 0L, id, i, currentPosition));
+                this.setPOV(i, currentPosition);
+                listener.changed(id, JoystickEvent.eventType.POV, i, currentPosition);
             }
         }
-        return events;
     }
 
     /**
      * Sets all of the values on this joystick to their defaults.
      */
     public void reset() {
-        IntStream.range(0, this.getButtonCount()).forEach(i -> this.setButton(i, false));
-        IntStream.range(0, this.getAxisCount()).forEach(i -> this.setAxis(i, 0));
-        IntStream.range(0, this.getPOVCount()).forEach(i -> this.setPOV(i, -1));
+        Arrays.fill(buttons, false);
+        Arrays.fill(axes, 0);
+        Arrays.fill(POVs, -1);
     }
 
     /**
@@ -331,7 +475,16 @@ class simulatedJoystick {
      * @return This serialized into a string.
      */
     public String toString() {
-        StringBuilder str = new StringBuilder();
+        return appendTo(new StringBuilder()).toString();
+    }
+
+    /**
+     * Appends the same string as {@link #toString()}, without making one.
+     *
+     * @param str Where to append it.
+     * @return The StringBuilder.
+     */
+    StringBuilder appendTo(StringBuilder str) {
         str.append(id).append('|');
         for (int i = 0; i < buttons.length; i++) {
             str.append(buttons[i]);
@@ -347,10 +500,10 @@ class simulatedJoystick {
         str.append('|');
         for (int i = 0; i < POVs.length; i++) {
             str.append(POVs[i]);
-            if (i != axes.length - 1)
+            if (i != POVs.length - 1)
                 str.append(',');
         }
-        return str.append(simulatedJoystickFormatVersion).toString();
+        return str.append('|').append(simulatedJoystickFormatVersion);
     }
 
     /**
@@ -359,9 +512,19 @@ class simulatedJoystick {
      * @return This event as a human-readable string.
      */
     public String toReadableString() {
-        StringBuilder str = new StringBuilder();
+        return appendReadableTo(new StringBuilder()).toString();
+    }
+
+    /**
+     * Appends the same string as {@link #toReadableString()}, without making one.
+     *
+     * @param str Where to append it.
+     * @return The StringBuilder.
+     */
+    StringBuilder appendReadableTo(StringBuilder str) {
         str.append("POVs switch angles: ");
-        Arrays.stream(POVs).forEachOrdered(POV -> str.append(POV).append(", "));
+        for (int POV: POVs)
+            str.append(POV).append(", ");
         str.append("; ");
         for (int i = 0; i < buttons.length; i++) {
             str.append("Button ").append(i + 1).append(" is ").append(buttons[i] ? "on" : "off");
@@ -374,6 +537,6 @@ class simulatedJoystick {
             if (i != axes.length - 1)
                 str.append(", ");
         }
-        return str.toString();
+        return str;
     }
 }
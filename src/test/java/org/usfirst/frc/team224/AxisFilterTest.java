@@ -0,0 +1,88 @@
+package org.usfirst.frc.team224;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records a jittery axis through a filter and plays it back, checking that the played back value stays within the
+ * filter's error bound of the real one on every loop, simplification included.
+ */
+public class AxisFilterTest {
+    private static final long loopNanos = 20000000;
+
+    /**
+     * Records a slow sweep across the whole range of one axis, with a bit of noise on top, one value per loop.
+     *
+     * @param filter The filter to record with, or null to record every change.
+     * @param values Filled with the real value of the axis on each loop.
+     * @return The macro.
+     */
+    private static Macro record(AxisFilter filter, double[] values) {
+        Random random = new Random(224);
+        VirtualClock clock = new VirtualClock();
+        simulatedJoystick stick = new simulatedJoystick(12, 6, 1, 0);
+        Macro macro = new Macro(new JoystickSource[] {stick});
+        macro.setClock(clock);
+        macro.setAxisFilter(filter);
+        macro.startRecording();
+        for (int i = 0; i < values.length; i++) {
+            clock.advance(loopNanos);
+            double value = Math.sin(i * 2 * Math.PI / values.length) * 1.1 + (random.nextDouble() - 0.5) * 0.01;
+            values[i] = Math.max(-1, Math.min(1, value));
+            stick.setAxis(1, values[i]);
+            macro.record();
+        }
+        macro.stopRecording();
+        return macro;
+    }
+
+    @Test
+    public void playbackStaysWithinTheErrorBound() {
+        AxisFilter filter = new AxisFilter(0.05, 0.02, 0, 0.03);
+        double[] values = new double[500];
+        Macro macro = record(filter, values);
+        Macro unfiltered = record(null, new double[values.length]);
+        Macro unsimplified = record(new AxisFilter(0.05, 0.02, 0, 0), new double[values.length]);
+        assertTrue(macro.eventCount() < unsimplified.eventCount());
+        assertTrue(unsimplified.eventCount() < unfiltered.eventCount() / 2);
+        assertEquals(unfiltered.eventCount() - macro.eventCount(), macro.getDroppedEvents());
+
+        VirtualClock clock = new VirtualClock();
+        macro.setClock(clock);
+        simulatedJoystick[] sticks = {new simulatedJoystick(12, 6, 1, 0)};
+        macro.startPlaying();
+        double worst = 0;
+        for (double value : values) {
+            clock.advance(loopNanos);
+            macro.playback(sticks);
+            worst = Math.max(worst, Math.abs(sticks[0].getRawAxis(1) - value));
+        }
+        assertTrue("Played back " + worst + " away from the real value.", worst <= filter.getErrorBound() + 1e-9);
+    }
+
+    @Test
+    public void deadbandAndFullScaleAreExact() {
+        VirtualClock clock = new VirtualClock();
+        simulatedJoystick stick = new simulatedJoystick(12, 6, 1, 0);
+        Macro macro = new Macro(new JoystickSource[] {stick});
+        macro.setClock(clock);
+        macro.setAxisFilter(new AxisFilter(0.1, 0.5, 0, 0));
+        macro.startRecording();
+        double[] values = {0.05, -0.08, 0.9, 1, 0.7, 0.03};
+        for (double value : values) {
+            clock.advance(loopNanos);
+            stick.setAxis(0, value);
+            macro.record();
+        }
+        macro.stopRecording();
+        //Values in the deadband are 0, and 0.7 isn't a step from 1, but full scale and going back to 0 always count.
+        assertEquals(3, macro.eventCount());
+        assertEquals(0.9, macro.eventValue(0), 0);
+        assertEquals(1, macro.eventValue(1), 0);
+        assertEquals(0, macro.eventValue(2), 0);
+    }
+}
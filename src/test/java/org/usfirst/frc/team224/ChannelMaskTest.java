@@ -0,0 +1,153 @@
+package org.usfirst.frc.team224;
+
+import org.junit.Test;
+
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records and plays back macros with channel masks, on sticks whose ports aren't 0, 1, 2..., checking that a channel
+ * left out of a mask never makes an event, and is never touched by playback.
+ */
+public class ChannelMaskTest {
+    private static final long loopNanos = 20000000;
+    private static final int loops = 50;
+
+    /**
+     * Moves every channel of both sticks on every loop.
+     */
+    private static void moveEverything(simulatedJoystick[] sticks, int loop) {
+        for (simulatedJoystick stick : sticks) {
+            for (int j = 1; j <= stick.getButtonCount(); j++)
+                stick.setButton(j, (loop + j) % 2 == 0);
+            for (int j = 0; j < stick.getAxisCount(); j++)
+                stick.setAxis(j, (loop % 10) / 10.0 - j / 100.0);
+            stick.setPOV(0, loop % 8 * 45);
+        }
+    }
+
+    private static simulatedJoystick[] sticks() {
+        return new simulatedJoystick[] {new simulatedJoystick(12, 6, 1, 3), new simulatedJoystick(12, 6, 1, 5)};
+    }
+
+    private static Macro record(simulatedJoystick[] sticks, VirtualClock clock, boolean masked, PacketCapture capture) {
+        Macro macro = new Macro(sticks);
+        macro.setClock(clock);
+        if (masked)
+            macro.setChannelMask(0, 0b10, 0b1, 0); //Button 2 and axis 0 only.
+        macro.setCapture(capture);
+        macro.startRecording();
+        for (int n = 0; n < loops; n++) {
+            clock.advance(loopNanos);
+            moveEverything(sticks, n);
+            if (capture != null)
+                capture.capturePacket(clock.nanoTime());
+            macro.record();
+        }
+        macro.stopRecording();
+        return macro;
+    }
+
+    /**
+     * Checks that only button 2 and axis 0 of the first stick, and anything on the second stick, were recorded.
+     */
+    private static void assertOnlyMaskedChannels(Macro macro) {
+        assertTrue(macro.eventCount() > 0);
+        boolean sawButton = false, sawAxis = false;
+        for (int i = 0; i < macro.eventCount(); i++) {
+            if (macro.eventStick(i) != 0)
+                continue;
+            switch (macro.eventType(i)) {
+                case PRESS:
+                case RELEASE:
+                    assertEquals(2, macro.eventId(i));
+                    sawButton = true;
+                    break;
+                case AXIS:
+                    assertEquals(0, macro.eventId(i));
+                    sawAxis = true;
+                    break;
+                case POV:
+                    throw new AssertionError("POV 0 of the first stick is masked out, but was recorded.");
+            }
+        }
+        assertTrue(sawButton && sawAxis);
+    }
+
+    @Test
+    public void maskedChannelsAreNotRecorded() {
+        Macro macro = record(sticks(), new VirtualClock(), true, null);
+        assertOnlyMaskedChannels(macro);
+        Macro unmasked = record(sticks(), new VirtualClock(), false, null);
+        assertEquals(5, macro.getInitialState(1).getPort());
+        int maskedOut = 0;
+        for (int i = 0; i < unmasked.eventCount(); i++) {
+            JoystickEvent.eventType type = unmasked.eventType(i);
+            boolean inMask = type == JoystickEvent.eventType.AXIS ? unmasked.eventId(i) == 0:
+                             type != JoystickEvent.eventType.POV && unmasked.eventId(i) == 2;
+            if (unmasked.eventStick(i) == 0 && !inMask)
+                maskedOut++;
+        }
+        assertTrue(maskedOut > 0);
+        assertEquals(unmasked.eventCount() - maskedOut, macro.eventCount());
+    }
+
+    @Test
+    public void maskedChannelsAreNotCaptured() {
+        VirtualClock clock = new VirtualClock();
+        simulatedJoystick[] sticks = sticks();
+        PacketCapture capture = new PacketCapture(sticks, timeout -> {
+            LockSupport.parkNanos((long) (timeout * 1e9));
+            return false;
+        }, clock);
+        capture.start();
+        try {
+            assertOnlyMaskedChannels(record(sticks, clock, true, capture));
+        } finally {
+            capture.stop();
+        }
+    }
+
+    /**
+     * Plays an unmasked macro with a mask into sticks that start somewhere else, checking that channels outside the mask
+     * keep their values the whole time.
+     */
+    private static void assertMaskedPlayback(boolean interpolated) {
+        Macro macro = record(sticks(), new VirtualClock(), false, null);
+        VirtualClock clock = new VirtualClock();
+        macro.setClock(clock);
+        macro.setInterpolated(interpolated);
+        macro.setChannelMask(0, 0b10, 0b1, 0);
+        simulatedJoystick[] sticks = sticks();
+        sticks[0].setButton(1, true);
+        sticks[0].setAxis(1, 0.75);
+        sticks[0].setPOV(0, 270);
+        macro.startPlaying();
+        boolean button2Changed = false, axis0Changed = false;
+        while (macro.playback(sticks)) {
+            assertTrue(sticks[0].getRawButton(1));
+            assertFalse(sticks[0].getRawButton(3));
+            assertEquals(0.75, sticks[0].getRawAxis(1), 0);
+            assertEquals(0, sticks[0].getRawAxis(2), 0);
+            assertEquals(270, sticks[0].getPOV(0));
+            button2Changed |= sticks[0].getRawButton(2);
+            axis0Changed |= sticks[0].getRawAxis(0) != 0;
+            clock.advance(loopNanos);
+        }
+        assertTrue(button2Changed && axis0Changed);
+        assertEquals((loops - 1) % 8 * 45, sticks[1].getPOV(0)); //The second stick isn't masked at all.
+    }
+
+    @Test
+    public void maskedChannelsAreNotPlayed() {
+        assertMaskedPlayback(false);
+    }
+
+    @Test
+    public void maskedAxesAreNotInterpolated() {
+        assertMaskedPlayback(true);
+    }
+}
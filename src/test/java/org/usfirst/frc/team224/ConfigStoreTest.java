@@ -0,0 +1,119 @@
+package org.usfirst.frc.team224;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Sets config values faster than they're written, and checks what reaches the file, when, and what
+ * {@link ConfigStore#flush()} and {@link ConfigStore#close()} do when it can or can't be written.
+ */
+public class ConfigStoreTest {
+    /**
+     * Long enough that nothing is written on its own while a test runs.
+     */
+    private static final long longInterval = 60000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * @return What's in the file right now, read by a separate store.
+     */
+    private static ConfigStore reread(Path path) throws Exception {
+        ConfigStore store = new ConfigStore(path);
+        store.load();
+        store.close();
+        return store;
+    }
+
+    @Test(timeout = 10000)
+    public void changesAreCoalescedUntilTheInterval() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("robot.properties");
+        ConfigStore config = new ConfigStore(path, longInterval);
+        config.set("count", 0);
+        assertTrue(config.flush());
+        assertEquals(0, reread(path).getInt("count", -1));
+        for (int i = 1; i <= 1000; i++)
+            config.set("count", i);
+        config.set("maxSpeed", 0.8);
+        Thread.sleep(300);
+        assertEquals(0, reread(path).getInt("count", -1)); //Waiting for the interval.
+        assertFalse(reread(path).contains("maxSpeed"));
+        assertTrue(config.flush());
+        ConfigStore written = reread(path);
+        assertEquals(1000, written.getInt("count", -1));
+        assertEquals(0.8, written.getDouble("maxSpeed", 0), 0);
+        config.close();
+    }
+
+    @Test(timeout = 10000)
+    public void closeWritesWhatsLeftAndStopsSetting() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("robot.properties");
+        ConfigStore config = new ConfigStore(path, longInterval);
+        config.set("minSpeed", 0.3);
+        assertTrue(config.flush());
+        config.set("minSpeed", 0.35);
+        config.set("name", "Robot = 224\nline two");
+        config.close();
+        ConfigStore written = reread(path);
+        assertEquals(0.35, written.getDouble("minSpeed", 0), 0);
+        assertEquals("Robot = 224\nline two", written.getString("name", null));
+        assertEquals(0.35, config.getDouble("minSpeed", 0), 0); //Still readable.
+        try {
+            config.set("minSpeed", 0.4);
+            fail("Set a value after closing the store.");
+        } catch (IllegalStateException expected) {
+        }
+        assertTrue(config.flush()); //Nothing left to write.
+    }
+
+    @Test(timeout = 10000)
+    public void failedWritesAreReportedAndGivenUp() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("missing").resolve("robot.properties");
+        ConfigStore config = new ConfigStore(path, 10);
+        config.set("maxSpeed", 0.9);
+        assertFalse(config.flush());
+        config.close(); //Tries once more, then gives up rather than hanging.
+        assertFalse(Files.exists(path));
+        assertEquals(0.9, config.getDouble("maxSpeed", 0), 0);
+    }
+
+    @Test(timeout = 10000)
+    public void listenersOnlyHearRealChanges() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("robot.properties");
+        Files.write(path, "maxSpeed=1\nminSpeed=fast\n".getBytes(StandardCharsets.ISO_8859_1));
+        ConfigStore config = new ConfigStore(path, longInterval);
+        config.load();
+        List<String> all = new ArrayList<>(), maxSpeed = new ArrayList<>();
+        config.addListener((key, value) -> all.add(key + '=' + value));
+        config.addListener("maxSpeed", (key, value) -> maxSpeed.add(key + '=' + value));
+        config.addListener("maxSpeed", (key, value) -> {
+            throw new RuntimeException("A broken listener.");
+        });
+
+        assertEquals(0.45, config.getDouble("minSpeed", 0.45), 0); //Not a number, so the default is used...
+        config.set("maxSpeed", "1"); //Same as the file.
+        config.set("maxSpeed", 0.75);
+        config.set("maxSpeed", 0.75);
+        config.set("enabled", true);
+        assertEquals(2, all.size());
+        assertEquals("maxSpeed=0.75", all.get(0));
+        assertEquals("enabled=true", all.get(1));
+        assertEquals(1, maxSpeed.size());
+        config.close();
+        assertEquals("fast", reread(path).getString("minSpeed", null)); //...but it's kept in the file.
+        assertTrue(reread(path).getBoolean("enabled", false));
+    }
+}
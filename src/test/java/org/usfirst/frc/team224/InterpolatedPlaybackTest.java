@@ -0,0 +1,78 @@
+package org.usfirst.frc.team224;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Plays a ramp on one axis back out of step with the loop that recorded it, checking what time the axis is sampled at,
+ * and that its events are counted in the drift.
+ */
+public class InterpolatedPlaybackTest {
+    private static final long loopMicros = 20000;
+    private static final int loops = 100;
+
+    /**
+     * Records axis 0 going up by 0.01 every loop, so its value at any time is that time over 2 seconds.
+     */
+    private static Macro recordRamp() {
+        VirtualClock clock = new VirtualClock();
+        simulatedJoystick stick = new simulatedJoystick(12, 6, 1, 0);
+        Macro macro = new Macro(new JoystickSource[] {stick});
+        macro.setClock(clock);
+        macro.startRecording();
+        for (int n = 1; n <= loops; n++) {
+            clock.advance(loopMicros * 1000);
+            stick.setAxis(0, n / 100.0);
+            macro.record();
+        }
+        macro.stopRecording();
+        return macro;
+    }
+
+    @Test
+    public void axesAreSampledHalfwayToTheNextLoop() {
+        Macro macro = recordRamp();
+        VirtualClock clock = new VirtualClock();
+        macro.setClock(clock);
+        macro.setInterpolated(true);
+        simulatedJoystick stick = new simulatedJoystick(12, 6, 1, 0);
+        macro.startPlaying();
+        clock.advance(7000000); //Out of step with the recording.
+        long time = 7000;
+        while (macro.playback(new simulatedJoystick[] {stick})) {
+            //Buttons are played up to half a loop early, so the axes are sampled there too.
+            long sampled = Math.min(time + loopMicros / 2, loops * loopMicros);
+            assertEquals(sampled / 2e6, stick.getRawAxis(0), 1e-9);
+            clock.advance(loopMicros * 1000);
+            time += loopMicros;
+        }
+    }
+
+    @Test
+    public void axisEventsAreCountedInTheDrift() {
+        Macro macro = recordRamp();
+        VirtualClock clock = new VirtualClock();
+        macro.setClock(clock);
+        macro.setInterpolated(true);
+        simulatedJoystick stick = new simulatedJoystick(12, 6, 1, 0);
+        macro.startPlaying();
+        clock.advance(7000000);
+        while (macro.playback(new simulatedJoystick[] {stick}))
+            clock.advance(loopMicros * 1000);
+        //Every event is 3ms after one sample and 17ms before the next, so the closest is the one 3ms early. The last one
+        //is sampled right on time, since samples stop at the end of the macro.
+        assertEquals(-3000.0 * (loops - 1) / loops, macro.getMeanDrift(), 1e-9);
+        assertEquals(3000, macro.getMaxDrift());
+        assertEquals(loops, macro.getPlaybackPosition());
+
+        macro.setInterpolated(false);
+        macro.startPlaying();
+        clock.advance(7000000);
+        while (macro.playback(new simulatedJoystick[] {stick}))
+            clock.advance(loopMicros * 1000);
+        assertEquals(7000, macro.getMeanDrift(), 0); //Played on the loop after, 7ms late.
+        assertTrue(macro.getMaxDrift() <= loopMicros);
+    }
+}
@@ -0,0 +1,113 @@
+package org.usfirst.frc.team224;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Binds handlers to slots in a dispatcher and checks which ones run, in what order, for events dispatched directly and
+ * for stick changes found by {@link JoystickDispatcher#update}.
+ */
+public class JoystickDispatcherTest {
+    private final JoystickDispatcher dispatcher = new JoystickDispatcher();
+    private final List<String> ran = new ArrayList<>();
+
+    private void bind(JoystickEvent.eventType type, int port, int id, String name) {
+        dispatcher.bind(type, port, id, () -> ran.add(name));
+    }
+
+    @Test
+    public void handlersRunInTheOrderTheyWereBound() {
+        bind(JoystickEvent.eventType.PRESS, 1, 5, "first");
+        bind(JoystickEvent.eventType.PRESS, 1, 5, "second");
+        bind(JoystickEvent.eventType.PRESS, 1, 5, "third");
+        bind(JoystickEvent.eventType.RELEASE, 1, 5, "release");
+        dispatcher.dispatch(JoystickEvent.eventType.PRESS, 1, 5);
+        assertEquals(Arrays.asList("first", "second", "third"), ran);
+        ran.clear();
+        dispatcher.dispatch(JoystickEvent.of(JoystickEvent.eventType.RELEASE, 1, 5));
+        assertEquals(Collections.singletonList("release"), ran);
+    }
+
+    @Test
+    public void unbindRemovesEveryHandlerInTheSlot() {
+        bind(JoystickEvent.eventType.AXIS, 0, 2, "a");
+        bind(JoystickEvent.eventType.AXIS, 0, 2, "b");
+        bind(JoystickEvent.eventType.AXIS, 0, 3, "other axis");
+        dispatcher.unbind(JoystickEvent.eventType.AXIS, 0, 2);
+        dispatcher.unbind(JoystickEvent.eventType.AXIS, JoystickDispatcher.maxPorts, 2); //Ignored.
+        dispatcher.dispatch(JoystickEvent.eventType.AXIS, 0, 2);
+        dispatcher.dispatch(JoystickEvent.eventType.AXIS, 0, 3);
+        assertEquals(Collections.singletonList("other axis"), ran);
+        bind(JoystickEvent.eventType.AXIS, 0, 2, "again");
+        dispatcher.dispatch(JoystickEvent.eventType.AXIS, 0, 2);
+        assertEquals(Arrays.asList("other axis", "again"), ran);
+    }
+
+    @Test
+    public void outOfRangeSlotsAreRejectedWhenBinding() {
+        int[][] slots = {{-1, 1}, {JoystickDispatcher.maxPorts, 1}, {0, -1}, {0, JoystickDispatcher.maxChannels}};
+        for (int[] slot : slots)
+            try {
+                bind(JoystickEvent.eventType.PRESS, slot[0], slot[1], "never");
+                fail("Bound button " + slot[1] + " on port " + slot[0] + '.');
+            } catch (IllegalArgumentException expected) {
+            }
+        try {
+            dispatcher.bind(JoystickEvent.eventType.PRESS, 0, 1, null);
+            fail("Bound a null handler.");
+        } catch (NullPointerException expected) {
+        }
+    }
+
+    @Test
+    public void outOfRangeEventsAreIgnored() {
+        bind(JoystickEvent.eventType.PRESS, JoystickDispatcher.maxPorts - 1, JoystickDispatcher.maxChannels - 1, "last");
+        dispatcher.dispatch(JoystickEvent.eventType.PRESS, -1, 1);
+        dispatcher.dispatch(JoystickEvent.eventType.PRESS, JoystickDispatcher.maxPorts, 1);
+        dispatcher.dispatch(JoystickEvent.eventType.PRESS, 0, JoystickDispatcher.maxChannels);
+        dispatcher.dispatch(JoystickEvent.eventType.PRESS, 0, -1);
+        assertTrue(ran.isEmpty());
+        dispatcher.dispatch(JoystickEvent.eventType.PRESS, JoystickDispatcher.maxPorts - 1, JoystickDispatcher.maxChannels - 1);
+        assertEquals(Collections.singletonList("last"), ran);
+    }
+
+    @Test
+    public void updateOnlyDispatchesWhatChanged() {
+        simulatedJoystick stick = new simulatedJoystick(12, 6, 1, 2), source = new simulatedJoystick(12, 6, 1, 2);
+        for (int i = 1; i <= 12; i++) {
+            bind(JoystickEvent.eventType.PRESS, 2, i, "press " + i);
+            bind(JoystickEvent.eventType.RELEASE, 2, i, "release " + i);
+        }
+        for (int i = 0; i < 6; i++)
+            bind(JoystickEvent.eventType.AXIS, 2, i, "axis " + i);
+        bind(JoystickEvent.eventType.POV, 2, 0, "POV 0");
+        bind(JoystickEvent.eventType.PRESS, 3, 1, "other port");
+
+        dispatcher.update(stick, source, 2);
+        assertTrue(ran.isEmpty()); //Nothing changed.
+
+        source.setButton(1, true);
+        source.setButton(12, true);
+        source.setAxis(4, -0.5);
+        dispatcher.update(stick, source, 2);
+        assertEquals(Arrays.asList("press 1", "press 12", "axis 4"), ran);
+        assertEquals(-0.5, stick.getRawAxis(4), 0); //Already updated, for the handlers to read.
+
+        ran.clear();
+        dispatcher.update(stick, source, 2);
+        assertTrue(ran.isEmpty());
+
+        source.setButton(1, false);
+        source.setPOV(0, 90);
+        dispatcher.update(stick, source, 2);
+        assertEquals(Arrays.asList("release 1", "POV 0"), ran);
+    }
+}
@@ -0,0 +1,103 @@
+package org.usfirst.frc.team224;
+
+import org.junit.Test;
+
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Presses and releases buttons 1 and 32 on a 32 button stick, since button 32 is the sign bit of the packed buttons,
+ * and checks that the snapshot diff and the loops that walk it in {@link Macro#record()} and {@link PacketCapture} find
+ * both of them, as the right type.
+ */
+public class JoystickSnapshotTest {
+    private static final int first = 1, last = JoystickSnapshot.maxButtons;
+
+    private final simulatedJoystick stick = new simulatedJoystick(JoystickSnapshot.maxButtons, 6, 1, 0);
+
+    @Test
+    public void changedButtonsIncludeTheSignBit() {
+        JoystickSnapshot before = new JoystickSnapshot().capture(stick);
+        stick.setButton(first, true);
+        stick.setButton(last, true);
+        JoystickSnapshot after = new JoystickSnapshot().capture(stick);
+        assertTrue(after.getButtons() < 0);
+        assertEquals(1 | 1 << 31, after.changedButtons(before));
+        assertEquals(1 | 1 << 31, after.changedButtons(before.getButtons()));
+        assertTrue(after.getRawButton(first));
+        assertTrue(after.getRawButton(last));
+        assertFalse(after.getRawButton(last - 1));
+
+        stick.setButton(last, false);
+        JoystickSnapshot released = new JoystickSnapshot().capture(stick);
+        assertEquals(1 << 31, released.changedButtons(after));
+        assertEquals(0, released.changedButtons(new JoystickSnapshot().copy(released)));
+    }
+
+    /**
+     * Checks that the macro has a press of buttons 1 and 32 on the first loop, then a release of both.
+     */
+    private static void assertPressedAndReleased(Macro macro) {
+        assertEquals(4, macro.eventCount());
+        JoystickEvent.eventType[] types = {JoystickEvent.eventType.PRESS, JoystickEvent.eventType.PRESS,
+                                           JoystickEvent.eventType.RELEASE, JoystickEvent.eventType.RELEASE};
+        int[] ids = {first, last, first, last};
+        for (int i = 0; i < types.length; i++) {
+            assertEquals(types[i], macro.eventType(i));
+            assertEquals(ids[i], macro.eventId(i));
+        }
+        MacroCodecTest.assertSameEvents(macro, Macro.load(macro.toBytes(), (JoystickSource[]) null));
+    }
+
+    @Test
+    public void recordingFindsTheSignBit() {
+        VirtualClock clock = new VirtualClock();
+        Macro macro = new Macro(new JoystickSource[] {stick});
+        macro.setClock(clock);
+        macro.startRecording();
+        clock.advanceMillis(20);
+        stick.setButton(first, true);
+        stick.setButton(last, true);
+        macro.record();
+        clock.advanceMillis(20);
+        stick.setButton(first, false);
+        stick.setButton(last, false);
+        macro.record();
+        clock.advanceMillis(20);
+        macro.stopRecording();
+        assertPressedAndReleased(macro);
+    }
+
+    @Test
+    public void capturingFindsTheSignBit() {
+        VirtualClock clock = new VirtualClock();
+        PacketCapture capture = new PacketCapture(new JoystickSource[] {stick}, timeout -> {
+            LockSupport.parkNanos((long) (timeout * 1e9));
+            return false;
+        }, clock);
+        capture.start();
+        try {
+            Macro macro = new Macro(new JoystickSource[] {stick});
+            macro.setCapture(capture);
+            macro.startRecording();
+            stick.setButton(first, true);
+            stick.setButton(last, true);
+            capture.capturePacket(5000000);
+            clock.set(20000000);
+            macro.record();
+            stick.setButton(first, false);
+            stick.setButton(last, false);
+            capture.capturePacket(25000000);
+            clock.set(40000000);
+            macro.record();
+            clock.set(60000000);
+            macro.stopRecording();
+            assertPressedAndReleased(macro);
+        } finally {
+            capture.stop();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package org.usfirst.frc.team224;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips macros through the binary format. The macros are recorded from headless sticks on a virtual clock, so
+ * every event time is known exactly.
+ */
+public class MacroCodecTest {
+    /**
+     * Records a macro with a bit of everything: buttons, axes the Driver Station could have sent and ones it couldn't,
+     * and POVs, including one that's let go of.
+     *
+     * @param clock The clock to record on. It's advanced by the recording.
+     * @return The macro, recorded from two sticks on ports 0 and 1.
+     */
+    static Macro recordSample(VirtualClock clock) {
+        simulatedJoystick drive = new simulatedJoystick(12, 6, 1, 0), aux = new simulatedJoystick(12, 6, 1, 1);
+        aux.setPOV(0, -1);
+        Macro macro = new Macro(new JoystickSource[] {drive, aux});
+        macro.setClock(clock);
+        macro.startRecording();
+        clock.advance(1234567);
+        drive.setButton(3, true);
+        drive.setAxis(1, 64 / 127.0);
+        aux.setAxis(0, 0.123456789012345);
+        aux.setPOV(0, 315);
+        macro.record();
+        clock.advance(20000000);
+        drive.setButton(3, false);
+        drive.setAxis(1, -1);
+        aux.setAxis(0, 1 / 3.0);
+        aux.setPOV(0, -1);
+        macro.record();
+        clock.advance(20001000);
+        drive.setAxis(5, 1);
+        aux.setAxis(0, 0);
+        aux.setPOV(0, 90);
+        macro.record();
+        clock.advance(5000000);
+        macro.stopRecording();
+        return macro;
+    }
+
+    /**
+     * Checks that two macros have the same events, at the same times, with exactly the same values.
+     */
+    static void assertSameEvents(Macro expected, Macro actual) {
+        assertEquals(expected.eventCount(), actual.eventCount());
+        for (int i = 0; i < expected.eventCount(); i++) {
+            assertEquals(expected.eventOffsetMicros(i), actual.eventOffsetMicros(i));
+            assertEquals(expected.eventType(i), actual.eventType(i));
+            assertEquals(expected.eventStick(i), actual.eventStick(i));
+            assertEquals(expected.eventId(i), actual.eventId(i));
+            assertEquals(Double.doubleToLongBits(expected.eventValue(i)), Double.doubleToLongBits(actual.eventValue(i)));
+        }
+    }
+
+    /**
+     * @return An empty macro on one stick, for {@link MacroCodec#readEvent} to add to.
+     */
+    private static Macro loader() {
+        return new Macro(null, 1000L, new simulatedJoystick[] {new simulatedJoystick(12, 6, 1, 0)},
+                         Macro.binaryMacroFormatVersion);
+    }
+
+    /**
+     * Writes one event and reads it back.
+     */
+    private static double roundTrip(JoystickEvent.eventType type, double val) {
+        ByteBuffer buffer = ByteBuffer.allocate(MacroCodec.maxEventSize);
+        MacroCodec.writeEvent(buffer, 0, type, 0, type == JoystickEvent.eventType.POV ? 0: 1, val);
+        assertEquals(MacroCodec.eventSize(0, type, val), buffer.position());
+        buffer.flip();
+        Macro macro = loader();
+        MacroCodec.readEvent(buffer, macro, 0, Macro.binaryMacroFormatVersion);
+        assertEquals(0, buffer.remaining());
+        return macro.eventValue(0);
+    }
+
+    @Test
+    public void roundTripKeepsMicrosecondTimes() {
+        Macro macro = recordSample(new VirtualClock());
+        byte[] data = MacroCodec.encode(macro);
+        assertEquals(Macro.binaryMacroFormatVersion, MacroCodec.version(data));
+
+        Macro loaded = Macro.load(data, (JoystickSource[]) null);
+        assertSameEvents(macro, loaded);
+        assertEquals(1234, loaded.eventOffsetMicros(0));
+        assertEquals(46235, loaded.lengthMicros());
+        assertEquals(macro.getStartTime(), loaded.getStartTime());
+        for (int i = 0; i < macro.stickCount(); i++)
+            assertEquals(macro.getInitialState(i).toString(), loaded.getInitialState(i).toString());
+        assertArrayEquals(data, MacroCodec.encode(loaded));
+    }
+
+    @Test
+    public void exactAxesKeepEveryBit() {
+        for (double val : new double[] {0.123456789012345, 1 / 3.0, 0.5, -0.999, 1.5, Double.NaN})
+            assertEquals(Double.doubleToLongBits(val), Double.doubleToLongBits(roundTrip(JoystickEvent.eventType.AXIS, val)));
+        //Only values the Driver Station couldn't have sent pay for the whole double.
+        int quantized = MacroCodec.eventSize(0, JoystickEvent.eventType.AXIS, 64 / 127.0);
+        assertEquals(quantized + 7, MacroCodec.eventSize(0, JoystickEvent.eventType.AXIS, 0.123456789012345));
+        for (int raw = Byte.MIN_VALUE; raw <= Byte.MAX_VALUE; raw++) {
+            double val = raw < 0 ? raw / 128.0: raw / 127.0;
+            assertEquals(quantized, MacroCodec.eventSize(0, JoystickEvent.eventType.AXIS, val));
+            assertEquals(val, roundTrip(JoystickEvent.eventType.AXIS, val), 0);
+        }
+    }
+
+    @Test
+    public void POVsRoundTripThroughZigZag() {
+        for (int val : new int[] {-1, 0, 45, 90, 315, Integer.MAX_VALUE, Integer.MIN_VALUE})
+            assertEquals(val, (int) roundTrip(JoystickEvent.eventType.POV, val));
+        //An unpressed POV is as small as a pressed one, rather than taking a 5 byte varint.
+        assertEquals(MacroCodec.eventSize(0, JoystickEvent.eventType.POV, 0),
+                     MacroCodec.eventSize(0, JoystickEvent.eventType.POV, -1));
+        assertEquals(MacroCodec.eventSize(0, JoystickEvent.eventType.POV, 315),
+                     MacroCodec.eventSize(0, JoystickEvent.eventType.POV, -315));
+    }
+
+    @Test
+    public void loadsMillisecondVersion2() {
+        ByteBuffer out = ByteBuffer.allocate(256);
+        MacroCodec.writeHeader(out, loader());
+        out.put(4, (byte) 2);
+        MacroCodec.writeEvent(out, 5, JoystickEvent.eventType.PRESS, 0, 2, 0);
+        MacroCodec.writeEvent(out, 15, JoystickEvent.eventType.AXIS, 0, 1, -0.5);
+        MacroCodec.writeEvent(out, 0, JoystickEvent.eventType.POV, 0, 0, 270);
+        MacroCodec.writeFooter(out, 1000 + 40); //Version 2 saved the wall-clock stop time.
+        byte[] data = Arrays.copyOf(out.array(), out.position());
+
+        Macro loaded = Macro.load(data, (JoystickSource[]) null);
+        assertEquals(3, loaded.eventCount());
+        assertEquals(5000, loaded.eventOffsetMicros(0));
+        assertEquals(20000, loaded.eventOffsetMicros(1));
+        assertEquals(20000, loaded.eventOffsetMicros(2));
+        assertEquals(-0.5, loaded.eventValue(1), 0);
+        assertEquals(270, loaded.eventValue(2), 0);
+        assertEquals(40000, loaded.lengthMicros());
+        assertEquals(Macro.binaryMacroFormatVersion, loaded.getMacroFormatVersion());
+        assertEquals(Macro.binaryMacroFormatVersion, MacroCodec.version(loaded.toBytes()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncatedMacros() {
+        byte[] data = MacroCodec.encode(recordSample(new VirtualClock()));
+        Macro.load(Arrays.copyOf(data, data.length - 1), (JoystickSource[]) null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownVersions() {
+        byte[] data = MacroCodec.encode(recordSample(new VirtualClock()));
+        data[4] = 9;
+        Macro.load(data, (JoystickSource[]) null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEventsOutOfOrder() {
+        MacroCodec.writeEvent(ByteBuffer.allocate(MacroCodec.maxEventSize), -1, JoystickEvent.eventType.PRESS, 0, 1, 0);
+    }
+
+    /**
+     * Reads one event into a macro on a stick with 12 buttons, 6 axes and 1 POV switch.
+     */
+    private static void readEvent(JoystickEvent.eventType type, int stick, int id) {
+        ByteBuffer buffer = ByteBuffer.allocate(MacroCodec.maxEventSize);
+        MacroCodec.writeEvent(buffer, 0, type, stick, id, 0);
+        buffer.flip();
+        MacroCodec.readEvent(buffer, loader(), 0, Macro.binaryMacroFormatVersion);
+    }
+
+    @Test
+    public void rejectsEventsOnMissingChannels() {
+        readEvent(JoystickEvent.eventType.PRESS, 0, 12);
+        readEvent(JoystickEvent.eventType.AXIS, 0, 5);
+        readEvent(JoystickEvent.eventType.POV, 0, 0);
+        Object[][] bad = {{JoystickEvent.eventType.PRESS, 1, 1}, {JoystickEvent.eventType.AXIS, 6, 0},
+                          {JoystickEvent.eventType.PRESS, 0, 0}, {JoystickEvent.eventType.RELEASE, 0, 13},
+                          {JoystickEvent.eventType.AXIS, 0, 6}, {JoystickEvent.eventType.POV, 0, 1}};
+        for (Object[] event : bad)
+            try {
+                readEvent((JoystickEvent.eventType) event[0], (int) event[1], (int) event[2]);
+                fail("Read a " + event[0] + " event on stick " + event[1] + ", channel " + event[2] + '.');
+            } catch (IllegalArgumentException expected) {
+            }
+    }
+}
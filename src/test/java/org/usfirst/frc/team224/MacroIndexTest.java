@@ -0,0 +1,122 @@
+package org.usfirst.frc.team224;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Saves macros through an index, and copies them into its directory behind its back, checking that each one is listed
+ * by {@link MacroIndex#pollChanged()} exactly once.
+ */
+public class MacroIndexTest {
+    /**
+     * How long to wait for the watcher to see a file change, in milliseconds.
+     */
+    private static final long watchTimeout = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Saves a macro the way {@link MacroHelper#saveMacro(Macro)} does.
+     *
+     * @return The macro's name.
+     */
+    private static String save(MacroIndex index, Path dir) throws Exception {
+        Macro macro = MacroCodecTest.recordSample(new VirtualClock());
+        String name = String.valueOf(index.allocateId());
+        byte[] data = macro.toBytes();
+        MacroHelper.writeAtomically(dir.resolve(name), data);
+        index.add(name, macro, data);
+        return name;
+    }
+
+    /**
+     * Waits for the next changed macro.
+     */
+    private static String awaitChanged(MacroIndex index) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + watchTimeout;
+        String name;
+        while ((name = index.pollChanged()) == null && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        return name;
+    }
+
+    @Test
+    public void savedMacrosAreListedOnce() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        MacroIndex index = new MacroIndex(dir.toString());
+        index.startWatching();
+        try {
+            String name = save(index, dir);
+            assertEquals(name, index.pollChanged());
+            //Give the watcher time to see the file, and then a copy made behind the index's back to wait for.
+            Thread.sleep(200);
+            Files.write(dir.resolve("copied"), MacroCodecTest.recordSample(new VirtualClock()).toBytes());
+            assertEquals("copied", awaitChanged(index));
+            assertNotNull(index.getEntry("copied"));
+            Thread.sleep(200);
+            assertNull(index.pollChanged());
+        } finally {
+            index.stopWatching();
+        }
+    }
+
+    @Test
+    public void deletedMacrosAreListed() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        MacroIndex index = new MacroIndex(dir.toString());
+        String name = save(index, dir);
+        assertEquals(name, index.pollChanged());
+        index.startWatching();
+        try {
+            Files.delete(dir.resolve(name));
+            assertEquals(name, awaitChanged(index));
+            assertNull(index.getEntry(name));
+        } finally {
+            index.stopWatching();
+        }
+    }
+
+    @Test
+    public void packedMacrosLeaveTheIndex() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        MacroIndex index = new MacroIndex(dir.toString());
+        String name = save(index, dir);
+        assertEquals(name, index.pollChanged());
+        Files.delete(dir.resolve(name));
+        index.addPacked(name);
+        assertEquals(name, index.pollChanged());
+        assertNull(index.getEntry(name));
+        assertNull(index.pollChanged());
+        assertEquals(Integer.parseInt(name) + 1, index.allocateId());
+    }
+
+    @Test
+    public void indexIsSavedInTheBackground() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        MacroIndex index = new MacroIndex(dir.toString());
+        String first = null;
+        for (int i = 0; i < 5; i++) {
+            String name = save(index, dir);
+            if (first == null)
+                first = name;
+        }
+        index.setDisplayName(first, "Left\tside");
+        index.flush();
+        assertEquals(6, Files.readAllLines(dir.resolve(MacroIndex.indexFileName), StandardCharsets.UTF_8).size());
+
+        MacroIndex reopened = new MacroIndex(dir.toString());
+        assertEquals(5, reopened.getEntries().size());
+        assertEquals("Left side", reopened.getEntry(first).getDisplayName());
+        assertEquals(index.getEntry(first).getChecksum(), reopened.getEntry(first).getChecksum());
+    }
+}
@@ -0,0 +1,119 @@
+package org.usfirst.frc.team224;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Streams recordings to a journal and recovers journals cut off at every byte, like after a brownout.
+ */
+public class MacroJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Waits for the journal's writer thread to finish.
+     */
+    private static void awaitDone(MacroJournal journal) throws InterruptedException {
+        long deadline = System.nanoTime() + 5000000000L;
+        while (!journal.isDone()) {
+            if (System.nanoTime() > deadline)
+                fail("The journal wasn't finished.");
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void finishedJournalBecomesTheMacro() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("1");
+        VirtualClock clock = new VirtualClock();
+        simulatedJoystick stick = new simulatedJoystick(12, 6, 1, 0);
+        Macro macro = new Macro(new JoystickSource[] {stick});
+        macro.setClock(clock);
+        MacroJournal journal = new MacroJournal(path);
+        macro.setJournal(journal);
+        AtomicBoolean saved = new AtomicBoolean();
+        journal.setOnSaved(() -> saved.set(true));
+        macro.startRecording();
+        for (int i = 0; i < 500; i++) {
+            clock.advance(20000000);
+            stick.setButton(1, i % 2 == 0);
+            stick.setAxis(0, (i % 256 - 128) / 128.0);
+            stick.setPOV(0, i % 9 == 8 ? -1: i % 8 * 45);
+            macro.record();
+        }
+        clock.advance(20000000);
+        macro.stopRecording();
+        awaitDone(journal);
+
+        assertNull(journal.getError());
+        assertTrue(saved.get());
+        assertFalse(Files.exists(Paths.get(path + MacroJournal.journalSuffix)));
+        assertArrayEquals(MacroCodec.encode(macro), Files.readAllBytes(path));
+    }
+
+    @Test
+    public void recoveryEndsAtTheLastWholeEvent() throws Exception {
+        Macro macro = MacroCodecTest.recordSample(new VirtualClock());
+        byte[] data = MacroCodec.encode(macro);
+        //Where each event ends, counting from the end of the header, which is everything before the events and footer.
+        int[] ends = new int[macro.eventCount()];
+        for (int i = 0, end = 0; i < ends.length; i++)
+            ends[i] = end += MacroCodec.eventSize(macro.eventOffsetMicros(i) - (i > 0 ? macro.eventOffsetMicros(i - 1): 0),
+                                                  macro.eventType(i), macro.eventValue(i));
+        int headerEnd = data.length - MacroCodec.footerSize - ends[ends.length - 1];
+        for (int i = 0; i < ends.length; i++)
+            ends[i] += headerEnd;
+
+        Path path = folder.getRoot().toPath().resolve("1");
+        Path journalPath = Paths.get(path + MacroJournal.journalSuffix);
+        for (int cut = headerEnd; cut < data.length; cut++) {
+            Files.write(journalPath, Arrays.copyOf(data, cut));
+            assertEquals(path, MacroJournal.recover(journalPath));
+            assertFalse(Files.exists(journalPath));
+
+            Macro recovered = Macro.load(Files.readAllBytes(path), (JoystickSource[]) null);
+            int whole = 0;
+            while (whole < ends.length && ends[whole] <= cut)
+                whole++;
+            assertEquals("Cut at " + cut, whole, recovered.eventCount());
+            for (int i = 0; i < whole; i++) {
+                assertEquals(macro.eventOffsetMicros(i), recovered.eventOffsetMicros(i));
+                assertEquals(macro.eventType(i), recovered.eventType(i));
+                assertEquals(macro.eventId(i), recovered.eventId(i));
+                assertEquals(macro.eventValue(i), recovered.eventValue(i), 0);
+            }
+            assertEquals(whole > 0 ? macro.eventOffsetMicros(whole - 1): 0, recovered.lengthMicros());
+        }
+    }
+
+    @Test
+    public void journalCutOffInTheHeaderIsKept() throws Exception {
+        byte[] data = MacroCodec.encode(MacroCodecTest.recordSample(new VirtualClock()));
+        Path journalPath = folder.getRoot().toPath().resolve("1" + MacroJournal.journalSuffix);
+        for (int cut : new int[] {0, 3, MacroCodec.preambleSize, MacroCodec.preambleSize + 5}) {
+            Files.write(journalPath, Arrays.copyOf(data, cut));
+            try {
+                MacroJournal.recover(journalPath);
+                fail("A journal cut off at " + cut + " bytes was recovered.");
+            } catch (IOException e) {
+                assertTrue(Files.exists(journalPath));
+                assertFalse(Files.exists(folder.getRoot().toPath().resolve("1")));
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package org.usfirst.frc.team224;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Adds, replaces and removes macros in a pack, and opens packs left behind by a robot that lost power partway through
+ * adding one.
+ */
+public class MacroPackTest {
+    /**
+     * The size of the pack's header: magic, version and padding, slot capacity, slots used, and the end of the macros.
+     */
+    private static final int headerSize = 24;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Records a macro on a headless stick that presses a button and moves an axis every loop.
+     *
+     * @param loops How many loops to record, which is how big the macro is.
+     * @return The macro.
+     */
+    private static Macro macro(int loops) {
+        VirtualClock clock = new VirtualClock();
+        simulatedJoystick stick = new simulatedJoystick(12, 6, 1, 0);
+        Macro macro = new Macro(new JoystickSource[] {stick});
+        macro.setClock(clock);
+        macro.startRecording();
+        for (int i = 0; i < loops; i++) {
+            clock.advance(20000000);
+            stick.setButton(1, i % 2 == 0);
+            stick.setAxis(0, i / 1000.0);
+            macro.record();
+        }
+        clock.advance(20000000);
+        macro.stopRecording();
+        return macro;
+    }
+
+    private static MacroIndex.Entry add(MacroPack pack, String name, Macro macro) throws Exception {
+        return pack.add(name, "Macro " + name, macro, macro.toBytes());
+    }
+
+    private static void assertLoads(MacroPack pack, String name, Macro expected) throws Exception {
+        assertArrayEquals(expected.toBytes(), pack.load(name, null).toBytes());
+    }
+
+    private Path packPath() {
+        return folder.getRoot().toPath().resolve(MacroPack.packFileName);
+    }
+
+    @Test
+    public void replacingAMacroKeepsTheNewOne() throws Exception {
+        Macro first = macro(10), second = macro(20);
+        try (MacroPack pack = MacroPack.open(packPath())) {
+            long firstSize = add(pack, "a", first).getSize();
+            MacroIndex.Entry entry = add(pack, "a", second);
+            assertEquals(second.eventCount(), entry.getEventCount());
+            assertEquals(1, pack.getEntries().size());
+            assertEquals(firstSize, pack.getDeadBytes());
+            assertLoads(pack, "a", second);
+        }
+        try (MacroPack pack = MacroPack.open(packPath())) {
+            assertEquals(1, pack.getEntries().size());
+            assertEquals(first.toBytes().length, pack.getDeadBytes());
+            assertEquals("Macro a", pack.getEntry("a").getDisplayName());
+            assertLoads(pack, "a", second);
+        }
+    }
+
+    @Test
+    public void macroAddedWithoutItsHeaderIsIgnored() throws Exception {
+        Macro a = macro(10);
+        long size;
+        try (MacroPack pack = MacroPack.open(packPath())) {
+            add(pack, "a", a);
+            size = pack.getSize();
+        }
+        byte[] before = Files.readAllBytes(packPath());
+        try (MacroPack pack = MacroPack.open(packPath())) {
+            add(pack, "b", macro(30));
+        }
+        //Power lost after "b" and its slot were written, but before the header counted them.
+        byte[] crashed = Files.readAllBytes(packPath());
+        System.arraycopy(before, 0, crashed, 0, headerSize);
+        Files.write(packPath(), crashed);
+
+        Macro c = macro(5);
+        try (MacroPack pack = MacroPack.open(packPath())) {
+            assertEquals(1, pack.getEntries().size());
+            assertNull(pack.getEntry("b"));
+            assertEquals(size, pack.getSize());
+            assertLoads(pack, "a", a);
+            add(pack, "c", c); //Over what "b" left behind.
+        }
+        try (MacroPack pack = MacroPack.open(packPath())) {
+            assertEquals(2, pack.getEntries().size());
+            assertLoads(pack, "a", a);
+            assertLoads(pack, "c", c);
+        }
+    }
+
+    @Test
+    public void laterCopyWinsIfTheReplacedOneWasNeverMarkedDead() throws Exception {
+        Macro first = macro(10), second = macro(20);
+        try (MacroPack pack = MacroPack.open(packPath())) {
+            add(pack, "a", first);
+        }
+        byte[] before = Files.readAllBytes(packPath());
+        try (MacroPack pack = MacroPack.open(packPath())) {
+            add(pack, "a", second);
+        }
+        //Power lost after the header counted the new copy, but before the old one's slot was marked dead.
+        byte[] crashed = Files.readAllBytes(packPath());
+        System.arraycopy(before, headerSize, crashed, headerSize, MacroPack.slotSize);
+        Files.write(packPath(), crashed);
+
+        try (MacroPack pack = MacroPack.open(packPath())) {
+            assertEquals(1, pack.getEntries().size());
+            assertEquals(first.toBytes().length, pack.getDeadBytes());
+            assertLoads(pack, "a", second);
+        }
+    }
+
+    @Test
+    public void compactingDropsDeadMacros() throws Exception {
+        Macro a = macro(40), c = macro(15);
+        try (MacroPack pack = MacroPack.open(packPath())) {
+            add(pack, "a", macro(10));
+            add(pack, "b", macro(20));
+            add(pack, "c", c);
+            add(pack, "a", a);
+            assertTrue(pack.remove("b"));
+            assertFalse(pack.remove("b"));
+            long live = pack.getSize() - pack.getDeadBytes();
+            assertTrue(pack.getDeadBytes() > 0);
+
+            pack.compact();
+            assertEquals(0, pack.getDeadBytes());
+            assertEquals(live, pack.getSize());
+            assertEquals(pack.getSize(), Files.size(packPath()));
+            assertFalse(Files.exists(Paths.get(packPath() + ".tmp")));
+            assertLoads(pack, "a", a);
+            assertLoads(pack, "c", c);
+        }
+        try (MacroPack pack = MacroPack.open(packPath())) {
+            Set<String> names = new HashSet<>();
+            for (MacroIndex.Entry entry : pack.getEntries())
+                names.add(entry.getName());
+            assertEquals(new HashSet<>(Arrays.asList("a", "c")), names);
+            assertEquals(0, pack.getDeadBytes());
+            assertLoads(pack, "a", a);
+            assertLoads(pack, "c", c);
+        }
+    }
+
+    @Test
+    public void replacingOverAndOverCompactsOnItsOwn() throws Exception {
+        Macro last = null;
+        long added = 0;
+        try (MacroPack pack = MacroPack.open(packPath())) {
+            for (int i = 0; i < 12; i++) {
+                last = macro(700 - i);
+                added += add(pack, "a", last).getSize();
+            }
+            assertTrue(pack.getDeadBytes() < 64 * 1024);
+            assertTrue(pack.getSize() < added);
+            assertLoads(pack, "a", last);
+        }
+        try (MacroPack pack = MacroPack.open(packPath())) {
+            assertLoads(pack, "a", last);
+        }
+    }
+
+    @Test
+    public void runningOutOfSlotsGrowsThePack() throws Exception {
+        Macro[] macros = new Macro[100];
+        try (MacroPack pack = MacroPack.open(packPath())) {
+            for (int i = 0; i < macros.length; i++)
+                add(pack, Integer.toString(i), macros[i] = macro(1 + i % 7));
+            assertEquals(macros.length, pack.getEntries().size());
+        }
+        try (MacroPack pack = MacroPack.open(packPath())) {
+            assertEquals(macros.length, pack.getEntries().size());
+            for (int i = 0; i < macros.length; i++) {
+                assertNotNull(pack.getEntry(Integer.toString(i)));
+                assertLoads(pack, Integer.toString(i), macros[i]);
+            }
+        }
+    }
+
+    @Test
+    public void theFileGrowsAheadOfTheMacros() throws Exception {
+        Macro small = macro(10);
+        try (MacroPack pack = MacroPack.open(packPath())) {
+            long initial = Files.size(packPath());
+            int added = 0;
+            while (pack.getSize() <= initial)
+                add(pack, String.valueOf(added++), small);
+            long grown = Files.size(packPath());
+            assertTrue(grown >= 2 * initial);
+            while (pack.getSize() + small.toBytes().length <= grown)
+                add(pack, String.valueOf(added++), small); //Fits in the room left, so the file doesn't change size.
+            assertEquals(grown, Files.size(packPath()));
+            pack.setDisplayName("0", "Renamed");
+            assertEquals(grown, Files.size(packPath()));
+            for (int i = 0; i < added; i++)
+                assertLoads(pack, String.valueOf(i), small);
+        }
+        try (MacroPack pack = MacroPack.open(packPath())) { //The unused room at the end isn't a macro.
+            assertEquals("Renamed", pack.getEntry("0").getDisplayName());
+            assertLoads(pack, "0", small);
+            assertTrue(pack.getSize() < Files.size(packPath()));
+        }
+    }
+}
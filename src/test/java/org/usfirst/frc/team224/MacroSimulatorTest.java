@@ -0,0 +1,116 @@
+package org.usfirst.frc.team224;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Simulates a two loop macro, writes its golden timeline and checks it against it again, with the goldens in their own
+ * directory and next to the macro.
+ */
+public class MacroSimulatorTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Records button 1 being pressed on the first loop and axis 0 moving to the given value on the second.
+     */
+    private static Macro recordTwoLoops(double axis) {
+        VirtualClock clock = new VirtualClock();
+        simulatedJoystick stick = new simulatedJoystick(12, 6, 1, 0);
+        Macro macro = new Macro(new JoystickSource[] {stick});
+        macro.setClock(clock);
+        macro.startRecording();
+        clock.advanceMillis(20);
+        stick.setButton(1, true);
+        macro.record();
+        clock.advanceMillis(20);
+        stick.setAxis(0, axis);
+        macro.record();
+        clock.advanceMillis(20);
+        macro.stopRecording();
+        return macro;
+    }
+
+    @Test
+    public void timelinesFollowTheSticks() {
+        MacroSimulator.Timeline timeline = new MacroSimulator(20).simulate(recordTwoLoops(0.5));
+        List<String> lines = timeline.getLines();
+        assertTrue(lines.get(0).startsWith("0 0 ")); //The initial state.
+        assertTrue(lines.get(1).startsWith("20 0 "));
+        assertTrue(lines.get(2).startsWith("40 0 "));
+        assertEquals("end 4 loops 2 events", lines.get(lines.size() - 1));
+        assertEquals(4, lines.size());
+    }
+
+    @Test
+    public void diffToleratesOnlySmallAxisChanges() {
+        MacroSimulator simulator = new MacroSimulator(20);
+        MacroSimulator.Timeline expected = simulator.simulate(recordTwoLoops(0.5));
+        assertNull(simulator.simulate(recordTwoLoops(0.5)).diff(expected, 0));
+        assertNull(simulator.simulate(recordTwoLoops(0.5 + 1e-9)).diff(expected, 1e-6));
+        assertEquals(0, simulator.simulate(recordTwoLoops(0.5 + 1e-9)).diff(expected, 0).indexOf("line 3: "));
+        assertNotNull(simulator.simulate(recordTwoLoops(0.6)).diff(expected, 1e-6));
+
+        List<String> shorter = new ArrayList<>(expected.getLines());
+        shorter.remove(shorter.size() - 1);
+        assertTrue(new MacroSimulator.Timeline(shorter).diff(expected, 1e-6).contains("the timeline ended"));
+        assertTrue(expected.diff(new MacroSimulator.Timeline(shorter), 1e-6).contains("expected the timeline to end"));
+    }
+
+    /**
+     * Saves a macro, checks the directory twice, so the golden is written and then matched, and then breaks the golden.
+     */
+    private static void assertGoldensRoundTrip(Path macroDir, Path goldenDir) throws Exception {
+        Files.write(macroDir.resolve("1"), recordTwoLoops(0.5).toBytes());
+        MacroSimulator simulator = new MacroSimulator(20);
+
+        List<MacroSimulator.Result> results = simulator.checkAll(macroDir, goldenDir, 2);
+        assertEquals(1, results.size());
+        assertTrue(results.get(0).isPassed());
+        assertTrue(results.get(0).getMessage().startsWith("wrote "));
+        Path golden = goldenDir.resolve("1" + MacroSimulator.goldenSuffix);
+        assertTrue(Files.exists(golden));
+
+        results = simulator.checkAll(macroDir, goldenDir, 2);
+        assertEquals(1, results.size()); //The golden isn't checked as a macro.
+        assertEquals("1", results.get(0).getName());
+        assertTrue(results.get(0).getMessage(), results.get(0).isPassed());
+        assertTrue(results.get(0).getMessage().startsWith("matches "));
+
+        List<String> lines = new ArrayList<>(Files.readAllLines(golden, StandardCharsets.UTF_8));
+        lines.set(lines.size() - 1, "end 5 loops 2 events");
+        Files.write(golden, lines, StandardCharsets.UTF_8);
+        results = simulator.checkAll(macroDir, goldenDir, 2);
+        assertFalse(results.get(0).isPassed());
+        assertTrue(results.get(0).getMessage().startsWith("line " + lines.size() + ": "));
+
+        simulator.setUpdateGoldens(true);
+        assertTrue(simulator.checkAll(macroDir, goldenDir, 2).get(0).isPassed());
+        simulator.setUpdateGoldens(false);
+        assertTrue(simulator.checkAll(macroDir, goldenDir, 2).get(0).isPassed());
+    }
+
+    @Test
+    public void goldensInTheirOwnDirectory() throws Exception {
+        assertGoldensRoundTrip(folder.newFolder("macros").toPath(), folder.getRoot().toPath().resolve("goldens"));
+    }
+
+    @Test
+    public void goldensNextToTheMacros() throws Exception {
+        Path dir = folder.newFolder("macros").toPath();
+        assertGoldensRoundTrip(dir, dir);
+    }
+}
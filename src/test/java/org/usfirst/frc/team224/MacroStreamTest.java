@@ -0,0 +1,132 @@
+package org.usfirst.frc.team224;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streams binary and text macros from a channel that only hands over a few bytes at a time, so events are split
+ * across refills of the stream's buffer, and checks that they come out the same as from {@link Macro#load}.
+ */
+public class MacroStreamTest {
+    /**
+     * A channel that reads at most a set number of bytes at a time from an array.
+     */
+    private static class TrickleChannel implements ReadableByteChannel {
+        private final byte[] data;
+        private final int chunk;
+        private int position, reads;
+        private boolean open = true;
+
+        TrickleChannel(byte[] data, int chunk) {
+            this.data = data;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (position == data.length)
+                return -1;
+            int length = Math.min(Math.min(chunk, dst.remaining()), data.length - position);
+            dst.put(data, position, length);
+            position += length;
+            reads++;
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+    /**
+     * Records 8 seconds of a stick, with more events than the stream's window and more bytes than its buffer.
+     */
+    private static Macro recordLong() {
+        VirtualClock clock = new VirtualClock();
+        simulatedJoystick stick = new simulatedJoystick(12, 6, 1, 0);
+        Macro macro = new Macro(new JoystickSource[] {stick});
+        macro.setClock(clock);
+        macro.startRecording();
+        for (int n = 1; n <= 400; n++) {
+            clock.advance(20000000 + n * 1000);
+            stick.setAxis(0, Math.sin(n));
+            stick.setAxis(3, n / 400.0);
+            stick.setButton(n % 12 + 1, n % 3 != 0);
+            if (n % 10 == 0)
+                stick.setPOV(0, n % 360 / 45 * 45);
+            macro.record();
+        }
+        clock.advanceMillis(20);
+        macro.stopRecording();
+        return macro;
+    }
+
+    private static List<String> events(Macro macro) {
+        List<String> events = new ArrayList<>();
+        macro.forEachEvent((type, offsetMicros, stick, id, val) ->
+                events.add(type + " " + offsetMicros + ' ' + stick + ' ' + id + ' ' + Double.doubleToLongBits(val)));
+        return events;
+    }
+
+    private static void assertStreamsLikeItLoads(byte[] data) throws IOException {
+        assertTrue(data.length > MacroStream.bufferSize);
+        Macro loaded = Macro.load(data, (JoystickSource[]) null);
+        List<String> expected = events(loaded);
+        assertTrue(expected.size() > Macro.streamWindow);
+        for (int chunk : new int[] {3, 1000}) {
+            TrickleChannel channel = new TrickleChannel(data, chunk);
+            Macro streamed = MacroStream.open(channel, null);
+            assertTrue(streamed.isStreamed());
+            assertTrue(channel.reads < data.length / chunk); //Only the header has been read so far.
+            assertEquals(expected, events(streamed));
+            assertEquals(loaded.getStartTime(), streamed.getStartTime());
+            assertEquals(loaded.getStopTime(), streamed.getStopTime());
+            assertEquals(loaded.getInitialState(0).toString(), streamed.getInitialState(0).toString());
+            assertFalse(channel.isOpen());
+            if (chunk == 3) //Every event takes more than one read, so each one is split across a refill.
+                assertTrue(channel.reads > expected.size());
+        }
+    }
+
+    @Test
+    public void binaryMacrosStreamLikeTheyLoad() throws IOException {
+        Macro macro = recordLong();
+        macro.setMacroFormatVersion(Macro.binaryMacroFormatVersion);
+        assertStreamsLikeItLoads(macro.toBytes());
+    }
+
+    @Test
+    public void textMacrosStreamLikeTheyLoad() throws IOException {
+        Macro macro = recordLong();
+        macro.setMacroFormatVersion(Macro.textMacroFormatVersion);
+        assertStreamsLikeItLoads(macro.toBytes());
+    }
+
+    @Test
+    public void truncatedMacrosEndEarly() throws IOException {
+        Macro macro = recordLong();
+        byte[] data = macro.toBytes();
+        byte[] truncated = Arrays.copyOf(data, data.length / 2);
+        Macro streamed = MacroStream.open(new TrickleChannel(truncated, 7), null);
+        List<String> events = events(streamed);
+        assertTrue(events.size() > 0);
+        assertEquals(events(macro).subList(0, events.size()), events);
+        assertEquals(Integer.parseInt(events.get(events.size() - 1).split(" ")[1]), streamed.lengthMicros());
+    }
+}
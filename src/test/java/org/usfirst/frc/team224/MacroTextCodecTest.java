@@ -0,0 +1,176 @@
+package org.usfirst.frc.team224;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.CharBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the text and readable formats come out exactly the same as they did when every event was concatenated
+ * into its own String, whichever kind of output they're written to. The old code is copied here to compare against.
+ */
+public class MacroTextCodecTest {
+    /**
+     * Axis values whose text is easy to get wrong: exponents, negative zero, and ones that don't round nicely.
+     */
+    private static final double[] values = {0, -0.0, 1, -1, 0.5, 1 / 3.0, 0.1 + 0.2, 1e-5, -2.5e-8, 64 / 127.0,
+                                            0.123456789012345, 1e7, 123456.789};
+
+    /**
+     * An event, the way JoystickEvent.toString() used to write it.
+     */
+    private static String oldText(JoystickEvent.eventType type, long time, int stick, int id, Double val) {
+        String str = time + ":";
+        switch (type) {
+            case PRESS:
+                str += "press";
+                break;
+            case RELEASE:
+                str += "release";
+                break;
+            case AXIS:
+                str += "axis";
+                break;
+            case POV:
+                str += "POV";
+                break;
+        }
+        return str + ',' + stick + ',' + id + ',' +
+               (type == JoystickEvent.eventType.AXIS ? String.valueOf(val) + ',':
+                type == JoystickEvent.eventType.POV ? String.valueOf(val.intValue()): "") + '\n';
+    }
+
+    /**
+     * An event, the way JoystickEvent.toReadableString() used to write it, double space and all.
+     */
+    private static String oldReadable(JoystickEvent.eventType type, long time, int stick, Double val) {
+        SimpleDateFormat fmt = new SimpleDateFormat("MM/dd/yyyy hh:mm:ss");
+        return String.format(Locale.ENGLISH, "%s: Joystick %d's %s %s\n", fmt.format(time), stick,
+                             type == JoystickEvent.eventType.PRESS || type == JoystickEvent.eventType.RELEASE ? "Button ":
+                             type == JoystickEvent.eventType.AXIS ? "Axis": "POV",
+                             type == JoystickEvent.eventType.PRESS ? "pressed.":
+                             type == JoystickEvent.eventType.RELEASE ? "released.": ("set to " + val));
+    }
+
+    /**
+     * A macro, the way Macro.toString() used to write it.
+     */
+    private static String oldText(Macro macro) {
+        StringBuilder str = new StringBuilder("{").append(macro.getStartTime()).append('\n');
+        for (int i = 0; i < macro.stickCount(); i++)
+            str.append(macro.getInitialState(i)).append('\n');
+        for (int i = 0; i < macro.eventCount(); i++)
+            str.append(oldText(macro.eventType(i), macro.eventTime(i), macro.eventStick(i), macro.eventId(i),
+                               macro.eventValue(i)));
+        return str.append('}').append(macro.getStopTime()).append('\n').append(Macro.textMacroFormatVersion).toString();
+    }
+
+    /**
+     * A macro, the way Macro.toReadableString() used to write it.
+     */
+    private static String oldReadable(Macro macro) {
+        StringBuilder str = new StringBuilder("{ Start time: ").append(macro.getStartTime()).append('\n');
+        for (int i = 0; i < macro.stickCount(); i++)
+            str.append(macro.getInitialState(i).toReadableString()).append('\n');
+        for (int i = 0; i < macro.eventCount(); i++)
+            str.append(oldReadable(macro.eventType(i), macro.eventTime(i), macro.eventStick(i), macro.eventValue(i)));
+        return str.append("} Stop time: ").append(macro.getStopTime()).append("\nMacro Format Version: ")
+                  .append(macro.getMacroFormatVersion()).toString();
+    }
+
+    /**
+     * Records a macro with every kind of event, long enough that writing it takes several chunks.
+     */
+    private static Macro longMacro() {
+        VirtualClock clock = new VirtualClock();
+        simulatedJoystick stick = new simulatedJoystick(12, 6, 1, 0);
+        Macro macro = new Macro(new JoystickSource[] {stick});
+        macro.setClock(clock);
+        macro.startRecording();
+        for (int i = 0; i < 600; i++) {
+            clock.advance(7000000); //Not a whole loop, so events cross seconds at odd times.
+            stick.setButton(i % 12 + 1, i % 24 < 12);
+            stick.setAxis(i % 6, values[i % values.length]);
+            stick.setPOV(0, i % 5 == 0 ? -1: i % 8 * 45);
+            macro.record();
+        }
+        macro.stopRecording();
+        return macro;
+    }
+
+    /**
+     * An Appendable that isn't a StringBuilder, Writer or CharBuffer, so the codec has to use append(CharSequence).
+     */
+    private static class PlainAppendable implements Appendable {
+        final StringBuilder str = new StringBuilder();
+
+        @Override
+        public Appendable append(CharSequence csq) {
+            str.append(csq.toString());
+            return this;
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) {
+            return append(csq.subSequence(start, end));
+        }
+
+        @Override
+        public Appendable append(char c) {
+            str.append(c);
+            return this;
+        }
+    }
+
+    @Test
+    public void eventsMatchTheOldText() {
+        long time = 1488400000123L;
+        for (JoystickEvent.eventType type : JoystickEvent.eventType.values())
+            for (double value : values) {
+                double val = type == JoystickEvent.eventType.POV ? 315: value;
+                JoystickEvent event = type == JoystickEvent.eventType.PRESS || type == JoystickEvent.eventType.RELEASE ?
+                                      new JoystickEvent(type, time, 1, 3): new JoystickEvent(type, time, 1, 3, val);
+                assertEquals(oldText(type, time, 1, 3, val), event.toString());
+                assertEquals(oldReadable(type, time, 1, val), event.toReadableString());
+                time += 777;
+            }
+        assertEquals(oldReadable(JoystickEvent.eventType.PRESS, time, 0, 0.0),
+                     new JoystickEvent(JoystickEvent.eventType.PRESS, time, 0, 1).toReadableString());
+        assertTrue(new JoystickEvent(JoystickEvent.eventType.PRESS, time, 0, 1).toReadableString()
+                           .endsWith(": Joystick 0's Button  pressed.\n"));
+    }
+
+    @Test
+    public void macrosMatchTheOldText() throws IOException {
+        for (Macro macro : new Macro[] {MacroCodecTest.recordSample(new VirtualClock()), longMacro()}) {
+            String text = oldText(macro), readable = oldReadable(macro);
+            assertEquals(text, macro.toString());
+            assertEquals(readable, macro.toReadableString());
+
+            StringWriter writer = new StringWriter();
+            macro.writeText(writer);
+            assertEquals(text, writer.toString());
+            writer = new StringWriter();
+            macro.writeReadable(writer);
+            assertEquals(readable, writer.toString());
+
+            CharBuffer buffer = CharBuffer.allocate(readable.length());
+            macro.writeText(buffer);
+            assertEquals(text, ((CharBuffer) buffer.flip()).toString());
+            buffer.clear();
+            macro.writeReadable(buffer);
+            assertEquals(readable, ((CharBuffer) buffer.flip()).toString());
+
+            PlainAppendable appendable = new PlainAppendable();
+            macro.writeText(appendable);
+            assertEquals(text, appendable.str.toString());
+        }
+        assertTrue(longMacro().toString().length() > 2 * MacroTextCodec.chunkSize);
+    }
+}
@@ -0,0 +1,134 @@
+package org.usfirst.frc.team224;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks what {@link MacroTool#validate(Macro)} finds wrong with hand-edited text macros, and that the tool only reads
+ * the macros in a directory, and not the files around them or the ones it writes.
+ */
+public class MacroToolTest {
+    /**
+     * Where the sticks, start time and length of the hand-edited macros come from.
+     */
+    private static final Macro sample = MacroCodecTest.recordSample(new VirtualClock());
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Writes a text macro with the sample's sticks, start time and length, but the given events instead of its own.
+     */
+    private static String textMacro(JoystickEvent... events) {
+        StringBuilder str = new StringBuilder("{").append(sample.getStartTime()).append('\n');
+        for (int i = 0; i < sample.stickCount(); i++)
+            str.append(sample.getInitialState(i)).append('\n');
+        for (JoystickEvent event : events)
+            str.append(event);
+        return str.append('}').append(sample.getStopTime()).append('\n').append(Macro.textMacroFormatVersion).toString();
+    }
+
+    private static JoystickEvent event(JoystickEvent.eventType type, long millis, int stick, int id, double val) {
+        long time = sample.getStartTime() + millis;
+        return type == JoystickEvent.eventType.PRESS || type == JoystickEvent.eventType.RELEASE ?
+               new JoystickEvent(type, time, stick, id): new JoystickEvent(type, time, stick, id, val);
+    }
+
+    private static Macro load(String text) {
+        return Macro.load(text.getBytes(StandardCharsets.UTF_8), (JoystickSource[]) null);
+    }
+
+    private static void assertProblem(String text, String problem) {
+        List<String> problems = MacroTool.validate(load(text));
+        assertEquals(problems.toString(), 1, problems.size());
+        assertTrue(problems.get(0), problems.get(0).contains(problem));
+    }
+
+    @Test
+    public void recordedMacrosAreValid() {
+        assertTrue(MacroTool.validate(sample).isEmpty());
+        assertTrue(MacroTool.validate(load(textMacro(event(JoystickEvent.eventType.PRESS, 5, 0, 3, 0),
+                                                     event(JoystickEvent.eventType.AXIS, 10, 1, 0, -1)))).isEmpty());
+    }
+
+    @Test
+    public void eventsOutOfOrderAreInvalid() {
+        assertProblem(textMacro(event(JoystickEvent.eventType.PRESS, 10, 0, 3, 0),
+                                event(JoystickEvent.eventType.RELEASE, 5, 0, 3, 0)), "event 1 is before the one before it");
+    }
+
+    @Test
+    public void axesOutsideTheirRangeAreInvalid() {
+        assertProblem(textMacro(event(JoystickEvent.eventType.AXIS, 5, 0, 1, 1.5)), "outside of -1 to 1");
+        assertProblem(textMacro(event(JoystickEvent.eventType.AXIS, 5, 0, 1, Double.NaN)), "outside of -1 to 1");
+        assertProblem(textMacro(event(JoystickEvent.eventType.POV, 5, 1, 0, 360)), "isn't -1 or an angle");
+    }
+
+    @Test
+    public void badSticksAreRejectedWhenLoading() {
+        for (JoystickEvent event : new JoystickEvent[] {event(JoystickEvent.eventType.PRESS, 5, 2, 1, 0),
+                                                        event(JoystickEvent.eventType.AXIS, 5, 0, 6, 0)})
+            try {
+                load(textMacro(event));
+                fail("Loaded " + event.toString().trim() + " from a macro with two sticks of 6 axes.");
+            } catch (IllegalArgumentException expected) {
+            }
+    }
+
+    @Test
+    public void onlyMacrosAreChecked() throws Exception {
+        Path dir = folder.newFolder("macros").toPath();
+        Files.write(dir.resolve("1"), MacroCodecTest.recordSample(new VirtualClock()).toBytes());
+        Files.write(dir.resolve(".DS_Store"), new byte[] {0, 0, 0, 1, 'B', 'u', 'd', '1'});
+        Files.write(dir.resolve("notes.log"), "Drove into the wall.\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(dir.resolve("1" + MacroSimulator.goldenSuffix), "end 3 loops 9 events\n".getBytes(StandardCharsets.UTF_8));
+        MacroTool tool = new MacroTool(2, null, null);
+        tool.run(dir);
+        tool.shutdown();
+        assertEquals(1, tool.getMacroCount());
+        assertEquals(3, tool.getSkippedCount());
+        assertTrue(tool.isAllValid());
+    }
+
+    @Test
+    public void convertedMacrosAreNotReadAgain() throws Exception {
+        Path dir = folder.newFolder("macros").toPath(), out = dir.resolve("converted");
+        Files.write(dir.resolve("1"), MacroCodecTest.recordSample(new VirtualClock()).toBytes());
+        Files.createDirectories(dir.resolve("old"));
+        Files.write(dir.resolve("old").resolve("2"), textMacro(event(JoystickEvent.eventType.PRESS, 5, 0, 3, 0))
+                .getBytes(StandardCharsets.UTF_8));
+        Files.write(dir.resolve("3"), textMacro(event(JoystickEvent.eventType.PRESS, 10, 0, 3, 0),
+                                                event(JoystickEvent.eventType.RELEASE, 5, 0, 3, 0))
+                .getBytes(StandardCharsets.UTF_8));
+        Files.write(dir.resolve("4"), textMacro(event(JoystickEvent.eventType.PRESS, 5, 2, 1, 0))
+                .getBytes(StandardCharsets.UTF_8));
+
+        for (int run = 0; run < 2; run++) {
+            MacroTool tool = new MacroTool(2, Macro.binaryMacroFormatVersion, out);
+            tool.run(dir);
+            tool.shutdown();
+            assertEquals(4, tool.getMacroCount());
+            assertEquals(1, tool.getInvalidCount());
+            assertEquals(1, tool.getUnreadableCount());
+            assertEquals(2, tool.getConvertedCount());
+            if (run == 1) //The first run may or may not get to them before they're written.
+                assertEquals(2, tool.getSkippedCount());
+            assertFalse(tool.isAllValid());
+        }
+        assertTrue(MacroCodec.isBinary(Files.readAllBytes(out.resolve("1"))));
+        assertTrue(MacroCodec.isBinary(Files.readAllBytes(out.resolve("old").resolve("2"))));
+        assertFalse(Files.exists(out.resolve("3")));
+        assertFalse(Files.exists(out.resolve("converted")));
+    }
+}
@@ -0,0 +1,112 @@
+package org.usfirst.frc.team224;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Records through a {@link PacketCapture}, handing it packets by hand instead of from its thread, so packets can arrive
+ * between loops, or while the last loop was draining, at exactly known times.
+ */
+public class PacketCaptureTest {
+    private static final long millis = 1000000;
+
+    private final VirtualClock clock = new VirtualClock();
+    private final simulatedJoystick stick = new simulatedJoystick(12, 6, 1, 0);
+    //The capture thread never sees a packet, so the test is the only producer.
+    private final PacketCapture capture = new PacketCapture(new JoystickSource[] {stick}, timeout -> {
+        LockSupport.parkNanos((long) (timeout * 1e9));
+        return false;
+    }, clock);
+    private Macro macro;
+
+    @Before
+    public void startRecording() {
+        capture.start();
+        macro = new Macro(new JoystickSource[] {stick});
+        macro.setCapture(capture);
+    }
+
+    @After
+    public void stopCapture() {
+        capture.stop();
+    }
+
+    private void packet(long millis) {
+        capture.capturePacket(millis * PacketCaptureTest.millis);
+    }
+
+    private void record(long millis) {
+        clock.set(millis * PacketCaptureTest.millis);
+        macro.record();
+    }
+
+    private void assertEvent(int i, long micros, JoystickEvent.eventType type, int id, double value) {
+        assertEquals(micros, macro.eventOffsetMicros(i));
+        assertEquals(type, macro.eventType(i));
+        assertEquals(id, macro.eventId(i));
+        assertEquals(value, macro.eventValue(i), 0);
+    }
+
+    @Test
+    public void eventsStayInOrderAcrossDrains() {
+        macro.startRecording();
+        stick.setButton(1, true);
+        packet(3);
+        stick.setButton(1, false); //Tapped between two loops.
+        packet(8);
+        stick.setAxis(0, 0.5);
+        packet(12);
+        record(20);
+        stick.setAxis(1, 0.25);
+        packet(10); //Arrived while the last loop was draining, after an event from a later packet.
+        stick.setPOV(0, 90);
+        packet(30);
+        record(40);
+        clock.set(50 * millis);
+        macro.stopRecording();
+
+        assertEquals(5, macro.eventCount());
+        assertEvent(0, 3000, JoystickEvent.eventType.PRESS, 1, 0);
+        assertEvent(1, 8000, JoystickEvent.eventType.RELEASE, 1, 0);
+        assertEvent(2, 12000, JoystickEvent.eventType.AXIS, 0, 0.5);
+        assertEvent(3, 12000, JoystickEvent.eventType.AXIS, 1, 0.25);
+        assertEvent(4, 30000, JoystickEvent.eventType.POV, 0, 90);
+        MacroCodecTest.assertSameEvents(macro, Macro.load(macro.toBytes(), (JoystickSource[]) null));
+    }
+
+    @Test
+    public void heldAxesGoAfterCapturedEvents() {
+        macro.setAxisFilter(new AxisFilter(0, 0, 25, 0)); //One event every 40ms.
+        macro.startRecording();
+        stick.setAxis(0, 0.5);
+        packet(5);
+        stick.setAxis(0, 0.7); //Too soon, so it's held until the rate limit lets it through.
+        packet(10);
+        record(20);
+        record(40);
+        stick.setButton(2, true);
+        packet(50);
+        record(60);
+        stick.setAxis(0, 0.9);
+        packet(70);
+        stick.setButton(2, false);
+        packet(85); //Stamped after the loop that drains it read the clock.
+        record(80);
+        clock.set(90 * millis);
+        macro.stopRecording();
+
+        assertEquals(5, macro.eventCount());
+        assertEvent(0, 5000, JoystickEvent.eventType.AXIS, 0, 0.5);
+        assertEvent(1, 50000, JoystickEvent.eventType.PRESS, 2, 0);
+        assertEvent(2, 60000, JoystickEvent.eventType.AXIS, 0, 0.7);
+        assertEvent(3, 85000, JoystickEvent.eventType.RELEASE, 2, 0);
+        assertEvent(4, 85000, JoystickEvent.eventType.AXIS, 0, 0.9);
+        assertEquals(2, macro.getDroppedEvents());
+        MacroCodecTest.assertSameEvents(macro, Macro.load(macro.toBytes(), (JoystickSource[]) null));
+    }
+}
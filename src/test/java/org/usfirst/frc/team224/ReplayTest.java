@@ -0,0 +1,66 @@
+package org.usfirst.frc.team224;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Plays the same macro more than once, checking that the sticks go through the same states every time, and that
+ * playing it doesn't use it up.
+ */
+public class ReplayTest {
+    private final VirtualClock clock = new VirtualClock();
+    private final Macro macro = MacroCodecTest.recordSample(new VirtualClock());
+    private final simulatedJoystick[] sticks = {new simulatedJoystick(12, 6, 1, 0), new simulatedJoystick(12, 6, 1, 1)};
+
+    /**
+     * Runs playback every 10ms until the macro ends, or for the given number of loops.
+     *
+     * @return The state of the sticks after each loop.
+     */
+    private List<String> play(int loops) {
+        List<String> states = new ArrayList<>();
+        for (int i = 0; i < loops && macro.playback(sticks); i++) {
+            states.add(sticks[0] + " " + sticks[1]);
+            clock.advanceMillis(10);
+        }
+        return states;
+    }
+
+    @Test
+    public void replayingGivesTheSameStates() {
+        macro.setClock(clock);
+        int events = macro.eventCount();
+        macro.startPlaying();
+        List<String> first = play(Integer.MAX_VALUE);
+        assertFalse(macro.isPlaying());
+        assertEquals(events, macro.getPlaybackPosition());
+        assertEquals(5, first.size());
+
+        //The sticks are left where the macro ended, so the initial states have to be put back.
+        macro.startPlaying();
+        assertEquals(first, play(Integer.MAX_VALUE));
+        assertEquals(events, macro.eventCount());
+        MacroCodecTest.assertSameEvents(MacroCodecTest.recordSample(new VirtualClock()), macro);
+    }
+
+    @Test
+    public void rewindingStartsOverPartWay() {
+        macro.setClock(clock);
+        macro.startPlaying();
+        List<String> first = play(Integer.MAX_VALUE);
+
+        macro.startPlaying();
+        assertEquals(first.subList(0, 3), play(3));
+        assertTrue(macro.getPlaybackPosition() > 0);
+        macro.rewind();
+        assertEquals(0, macro.getPlaybackPosition());
+        assertTrue(macro.isPlaying());
+        assertEquals(first, play(Integer.MAX_VALUE));
+    }
+}
@@ -0,0 +1,102 @@
+package org.usfirst.frc.team224;
+
+import org.junit.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records long enough for the ring to wrap around several times, then checks that snapshots start on the right keyframe
+ * and hold exactly the events recorded since it, in order.
+ */
+public class RollingRecorderTest {
+    private static final long loopMillis = 20;
+    private static final long keyframeMillis = 500;
+
+    private final VirtualClock clock = new VirtualClock();
+    private final simulatedJoystick stick = new simulatedJoystick(12, 6, 1, 0);
+    private final RollingRecorder recorder = new RollingRecorder(2, keyframeMillis / 1000.0, new JoystickSource[] {stick});
+    private final BlockingQueue<Macro> built = new ArrayBlockingQueue<>(1);
+    private int nextLoop;
+
+    /**
+     * Records loops up to the given one. On loop n, button 1 is held on odd loops and axis 0 is at n / 1000, so every
+     * loop makes two events, and the loop they came from can be worked out from them.
+     */
+    private void recordUntil(int lastLoop) {
+        //Only button 1 and axis 0, so the ring is small enough to wrap quickly.
+        if (recorder.getCapacity() == 0)
+            recorder.setChannelMask(0, 1, 1, 0);
+        for (int n = nextLoop; n <= lastLoop; n++) {
+            clock.set(n * loopMillis * 1000000);
+            stick.setButton(1, n % 2 == 1);
+            stick.setAxis(0, n / 1000.0);
+            recorder.record();
+        }
+        nextLoop = lastLoop + 1;
+    }
+
+    private Macro snapshot(double seconds) throws InterruptedException {
+        assertTrue(recorder.snapshot(seconds, built::add));
+        Macro macro = built.poll(10, TimeUnit.SECONDS);
+        assertNotNull(macro);
+        while (recorder.isBuilding()) //It's handed over just before the builder is done.
+            Thread.sleep(1);
+        return macro;
+    }
+
+    /**
+     * Checks that a macro starts on the first keyframe at or after <code>fromMillis</code>, and has every event recorded from
+     * there until <code>lastLoop</code>.
+     */
+    private static void assertSnapshot(Macro macro, long fromMillis, int lastLoop) {
+        long keyframe = (fromMillis + keyframeMillis - 1) / keyframeMillis * keyframeMillis;
+        int firstLoop = (int) (keyframe / loopMillis);
+        assertEquals((lastLoop * loopMillis - keyframe) * 1000, macro.lengthMicros());
+        assertEquals(firstLoop % 2 == 1, macro.getInitialState(0).getRawButton(1));
+        assertEquals(firstLoop / 1000.0, macro.getInitialState(0).getRawAxis(0), 0);
+        assertEquals(2 * (lastLoop - firstLoop), macro.eventCount());
+        for (int i = 0; i < macro.eventCount(); i++) {
+            int n = firstLoop + 1 + i / 2;
+            assertEquals((n * loopMillis - keyframe) * 1000, macro.eventOffsetMicros(i));
+            if (i % 2 == 0)
+                assertEquals(n % 2 == 1 ? JoystickEvent.eventType.PRESS: JoystickEvent.eventType.RELEASE, macro.eventType(i));
+            else {
+                assertEquals(JoystickEvent.eventType.AXIS, macro.eventType(i));
+                assertEquals(n / 1000.0, macro.eventValue(i), 0);
+            }
+        }
+    }
+
+    @Test
+    public void snapshotsSurviveTheRingWrapping() throws InterruptedException {
+        recorder.setClock(clock);
+        recordUntil(540);
+        assertTrue(recorder.getEventCount() > 4 * recorder.getCapacity());
+        //The keyframe at 10 s is at event 1000, which is near the end of the ring, so the copy wraps around.
+        assertTrue(1000 % recorder.getCapacity() + 80 > recorder.getCapacity());
+        assertSnapshot(snapshot(1), 10800 - 1000, 540);
+        assertEquals(0.8, recorder.getSnapshotLength(), 1e-9);
+    }
+
+    @Test
+    public void snapshotsAreLimitedToTheWindow() throws InterruptedException {
+        recorder.setClock(clock);
+        recordUntil(540);
+        assertSnapshot(snapshot(60), 10800 - 2000, 540);
+        //Keep recording, and the next snapshot moves along with it.
+        recordUntil(555);
+        assertSnapshot(snapshot(0.5), 11100 - 500, 555);
+    }
+
+    @Test
+    public void snapshotsNeedARecording() {
+        assertFalse(recorder.snapshot(1, built::add));
+    }
+}
@@ -0,0 +1,101 @@
+package org.usfirst.frc.team224;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the timer wheel loop by loop, checking which tick each task runs on.
+ */
+public class TickSchedulerTest {
+    private final TickScheduler scheduler = new TickScheduler();
+    private final List<Long> runs = new ArrayList<>(); //The ticks a task ran on.
+
+    private void tick(int ticks) {
+        for (int i = 0; i < ticks; i++)
+            scheduler.tick();
+    }
+
+    private Runnable log() {
+        return () -> runs.add(scheduler.getTick());
+    }
+
+    @Test
+    public void runsOnTheTickItsDue() {
+        TickScheduler.Task task = scheduler.scheduleTicks(3, log());
+        tick(2);
+        assertTrue(runs.isEmpty());
+        tick(5);
+        assertEquals(Arrays.asList(3L), runs);
+        assertTrue(task.isDone());
+        assertFalse(task.cancel());
+        assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    public void secondsRoundUpToWholeLoops() {
+        scheduler.schedule(0.05, log());
+        scheduler.schedule(0.06, log()); //Exactly 3 loops, despite rounding error.
+        scheduler.schedule(0, log());
+        scheduler.scheduleTicks(-4, log());
+        tick(4);
+        assertEquals(Arrays.asList(1L, 1L, 3L, 3L), runs);
+    }
+
+    @Test
+    public void tasksFurtherThanTheWheelWaitForTheirLap() {
+        scheduler.scheduleTicks(TickScheduler.wheelSize * 2 + 5, log());
+        scheduler.scheduleTicks(5, log());
+        tick(TickScheduler.wheelSize * 3);
+        assertEquals(Arrays.asList(5L, TickScheduler.wheelSize * 2 + 5L), runs);
+    }
+
+    @Test
+    public void cancelledTasksNeverRun() {
+        TickScheduler.Task task = scheduler.scheduleTicks(2, log());
+        scheduler.scheduleTicks(2, log());
+        assertTrue(task.cancel());
+        assertFalse(task.cancel());
+        assertTrue(task.isCancelled());
+        assertEquals(1, scheduler.size());
+        tick(3);
+        assertEquals(Arrays.asList(2L), runs);
+    }
+
+    @Test
+    public void repeatingTasksRunUntilTheyCancelThemselves() {
+        TickScheduler.Task[] task = new TickScheduler.Task[1];
+        task[0] = scheduler.scheduleRepeatingTicks(2, 3, () -> {
+            runs.add(scheduler.getTick());
+            if (runs.size() == 4)
+                task[0].cancel();
+        });
+        tick(30);
+        assertEquals(Arrays.asList(2L, 5L, 8L, 11L), runs);
+        assertFalse(task[0].isDone());
+        assertTrue(task[0].isCancelled());
+        assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    public void tasksCanScheduleAndCancelEachOther() {
+        TickScheduler.Task later = scheduler.scheduleTicks(2, log());
+        scheduler.scheduleTicks(1, log());
+        scheduler.scheduleTicks(1, () -> {
+            later.cancel();
+            scheduler.scheduleTicks(2, log());
+        });
+        scheduler.scheduleTicks(1, () -> {
+            throw new IllegalStateException("A broken task");
+        });
+        tick(4);
+        assertEquals(Arrays.asList(1L, 3L), runs);
+        assertEquals(0, scheduler.size());
+    }
+}
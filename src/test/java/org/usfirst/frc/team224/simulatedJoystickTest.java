@@ -0,0 +1,128 @@
+package org.usfirst.frc.team224;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Updates a simulated stick from another one, checking what its listener is told and that the shared button events
+ * from {@link JoystickEvent#of} it hands out are never changed.
+ */
+public class simulatedJoystickTest {
+    private final simulatedJoystick stick = new simulatedJoystick(12, 6, 2, 3), source = new simulatedJoystick(12, 6, 2, 3);
+    private final List<String> changes = new ArrayList<>();
+
+    private void update(int id) {
+        stick.updateWithEvents(source, id, (port, type, i, val) -> {
+            //The stick already has the new value.
+            switch (type) {
+                case PRESS:
+                case RELEASE:
+                    assertEquals(type == JoystickEvent.eventType.PRESS, stick.getRawButton(i));
+                    break;
+                case AXIS:
+                    assertEquals(val, stick.getRawAxis(i), 0);
+                    break;
+                case POV:
+                    assertEquals(val, stick.getPOV(i), 0);
+                    break;
+            }
+            changes.add(port + " " + type + ' ' + i + ' ' + val);
+        });
+    }
+
+    @Test
+    public void listenerIsToldEachChangeOnce() {
+        update(3);
+        assertTrue(changes.isEmpty());
+
+        source.setButton(1, true);
+        source.setButton(12, true);
+        source.setAxis(5, 0.123456789);
+        source.setPOV(1, 315);
+        update(3);
+        assertEquals("3 PRESS 1 0.0", changes.get(0));
+        assertEquals("3 PRESS 12 0.0", changes.get(1));
+        assertEquals("3 AXIS 5 0.123456789", changes.get(2));
+        assertEquals("3 POV 1 315.0", changes.get(3));
+        assertEquals(4, changes.size());
+
+        changes.clear();
+        update(3);
+        assertTrue(changes.isEmpty());
+
+        source.setButton(12, false);
+        source.setPOV(1, -1);
+        update(4); //Reported as the given ID, not the stick's port.
+        assertEquals("4 RELEASE 12 0.0", changes.get(0));
+        assertEquals("4 POV 1 -1.0", changes.get(1));
+        assertEquals(2, changes.size());
+    }
+
+    @Test
+    public void povValuesArePassedExactly() {
+        for (int angle = 315; angle >= 0; angle -= 45) { //Simulated POVs start at 0, so that comes last.
+            source.setPOV(0, angle);
+            double[] reported = {Double.NaN};
+            stick.updateWithEvents(source, 3, (port, type, i, val) -> reported[0] = val);
+            assertEquals(angle, reported[0], 0);
+        }
+        source.setPOV(0, 90);
+        stick.reset();
+        JoystickEvent event = stick.updateWithEvents(source, 3).get(0);
+        assertEquals(JoystickEvent.eventType.POV, event.getEventType());
+        assertEquals(Integer.valueOf(90), event.getPOVValue());
+        assertEquals(90, event.getVal(), 0);
+    }
+
+    @Test
+    public void sharedButtonEventsAreNeverChanged() {
+        JoystickEvent press = JoystickEvent.of(JoystickEvent.eventType.PRESS, 3, 7);
+        assertSame(press, JoystickEvent.of(JoystickEvent.eventType.PRESS, 3, 7));
+        assertNotSame(press, JoystickEvent.of(JoystickEvent.eventType.RELEASE, 3, 7));
+        assertNotSame(press, JoystickEvent.of(JoystickEvent.eventType.PRESS, 4, 7));
+
+        for (int i = 0; i < 4; i++) {
+            source.setButton(7, i % 2 == 0);
+            source.setAxis(0, i / 4.0);
+            List<JoystickEvent> events = stick.updateWithEvents(source, 3);
+            JoystickEvent button = events.get(0);
+            assertSame(JoystickEvent.of(i % 2 == 0 ? JoystickEvent.eventType.PRESS: JoystickEvent.eventType.RELEASE, 3, 7),
+                       button);
+            assertEquals(i == 0 ? 1: 2, events.size()); //Axis 0 starts at 0.
+        }
+        source.setButton(7, true);
+        JoystickEvent other = new simulatedJoystick(12, 6, 2, 5).updateWithEvents(source, 5).get(0); //Same button, other port.
+        assertEquals(5, other.getStickId());
+        assertSame(press, stick.updateWithEvents(source, 3).get(0));
+
+        assertEquals(JoystickEvent.eventType.PRESS, press.getEventType());
+        assertEquals(3, press.getStickId());
+        assertEquals(Integer.valueOf(7), press.getID());
+        assertEquals(0, press.getTime());
+        assertNull(press.getVal());
+        assertNull(press.getPOVValue());
+    }
+
+    @Test
+    public void onlyButtonsTheDriverStationHasAreShared() {
+        JoystickEvent outside = JoystickEvent.of(JoystickEvent.eventType.PRESS, JoystickDispatcher.maxPorts, 1);
+        assertNotSame(outside, JoystickEvent.of(JoystickEvent.eventType.PRESS, JoystickDispatcher.maxPorts, 1));
+        assertEquals(JoystickDispatcher.maxPorts, outside.getStickId());
+        assertNotSame(JoystickEvent.of(JoystickEvent.eventType.RELEASE, 0, JoystickDispatcher.maxChannels),
+                      JoystickEvent.of(JoystickEvent.eventType.RELEASE, 0, JoystickDispatcher.maxChannels));
+        try {
+            JoystickEvent.of(JoystickEvent.eventType.AXIS, 0, 1);
+            fail("Shared an axis event.");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}